@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2010-2013 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of PircBotX.
+ *
+ * PircBotX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PircBotX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pircbotx;
+
+import com.google.common.base.Equivalence;
+
+/**
+ * The rules a server uses to decide if two nicks or channel names are the same,
+ * as given by CASEMAPPING in {@link ServerInfo}. Folding uses a lookup table
+ * and comparisons are done one character at a time, so nothing is allocated.
+ * @author Leon Blakey <lord.quackstar at gmail.com>
+ */
+public enum CaseMapping {
+	/**
+	 * Only A-Z are folded to a-z.
+	 */
+	ASCII("ascii", 'Z'),
+	/**
+	 * A-Z and []\~ are folded to a-z and {}|^. Used if the server doesn't 
+	 * say otherwise
+	 */
+	RFC1459("rfc1459", '^'),
+	/**
+	 * A-Z and []\ are folded to a-z and {}|.
+	 */
+	STRICT_RFC1459("strict-rfc1459", ']');
+	protected final String serverName;
+	protected final char[] foldTable = new char[128];
+	protected final Equivalence<String> equivalence = new Equivalence<String>() {
+		@Override
+		protected boolean doEquivalent(String a, String b) {
+			return CaseMapping.this.equalsIgnoreCase(a, b);
+		}
+
+		@Override
+		protected int doHash(String string) {
+			return CaseMapping.this.hashIgnoreCase(string);
+		}
+	};
+
+	CaseMapping(String name, char lastUpperCase) {
+		this.serverName = name;
+		for (char i = 0; i < foldTable.length; i++)
+			foldTable[i] = (i >= 'A' && i <= lastUpperCase) ? (char) (i + ('a' - 'A')) : i;
+	}
+
+	/**
+	 * Get the mapping with the given CASEMAPPING name.
+	 * @param name The name from the server, can be null
+	 * @return The mapping or {@link #RFC1459} if its unknown
+	 */
+	public static CaseMapping forName(String name) {
+		for (CaseMapping curMapping : values())
+			if (curMapping.serverName.equalsIgnoreCase(name))
+				return curMapping;
+		return RFC1459;
+	}
+
+	public char toLowerCase(char character) {
+		return character < foldTable.length ? foldTable[character] : character;
+	}
+
+	public String toLowerCase(String string) {
+		char[] chars = string.toCharArray();
+		for (int i = 0; i < chars.length; i++)
+			chars[i] = toLowerCase(chars[i]);
+		return new String(chars);
+	}
+
+	public boolean equalsIgnoreCase(String string1, String string2) {
+		if (string1 == string2)
+			return true;
+		if (string1 == null || string2 == null || string1.length() != string2.length())
+			return false;
+		for (int i = 0; i < string1.length(); i++)
+			if (toLowerCase(string1.charAt(i)) != toLowerCase(string2.charAt(i)))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Get a hash code that's the same for all strings equal under this mapping.
+	 */
+	public int hashIgnoreCase(String string) {
+		int hash = 0;
+		for (int i = 0; i < string.length(); i++)
+			hash = 31 * hash + toLowerCase(string.charAt(i));
+		return hash;
+	}
+
+	/**
+	 * Get an {@link Equivalence} using this mapping, eg for 
+	 * {@link PersistentMap#empty(com.google.common.base.Equivalence) }
+	 */
+	public Equivalence<String> getEquivalence() {
+		return equivalence;
+	}
+
+	/**
+	 * @return The name used in CASEMAPPING
+	 */
+	@Override
+	public String toString() {
+		return serverName;
+	}
+}
@@ -19,17 +19,21 @@
 package org.pircbotx;
 
 import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import java.util.UUID;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import lombok.AccessLevel;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.concurrent.AtomicSafeInitializer;
 import org.apache.commons.lang3.concurrent.ConcurrentException;
-import org.pircbotx.hooks.managers.ThreadedListenerManager;
 import org.pircbotx.output.OutputChannel;
 import org.pircbotx.snapshot.ChannelSnapshot;
 
@@ -43,6 +47,15 @@ import org.pircbotx.snapshot.ChannelSnapshot;
 @Getter
 @Setter(AccessLevel.PROTECTED)
 public class Channel implements Comparable<Channel> {
+	/**
+	 * Mode letters in the order of their bit in {@link #modeFlags}
+	 */
+	protected static final String MODE_LETTERS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ";
+	/**
+	 * How long a {@link #refreshMode() } waits for the reply before the next 
+	 * refresh gives up on it and asks again
+	 */
+	protected static final long MODE_REFRESH_TIMEOUT_SECONDS = 60;
 	protected final String name;
 	protected final UUID channelId = UUID.randomUUID();
 	@Getter(AccessLevel.PROTECTED)
@@ -56,7 +69,6 @@ public class Channel implements Comparable<Channel> {
 			return bot.getConfiguration().getBotFactory().createOutputChannel(bot, Channel.this);
 		}
 	};
-	protected String mode = "";
 	protected String topic = "";
 	protected long topicTimestamp;
 	protected long createTimestamp;
@@ -70,12 +82,41 @@ public class Channel implements Comparable<Channel> {
 	protected boolean topicProtection = false;
 	protected int channelLimit = -1;
 	protected String channelKey = null;
+	/**
+	 * Set modes, one bit per letter of {@link #MODE_LETTERS}
+	 */
+	@Getter(AccessLevel.NONE)
+	@Setter(AccessLevel.NONE)
+	protected volatile long modeFlags = 0;
+	/**
+	 * Parameter of each set mode that has one, eg the key, at the index of its bit
+	 */
+	@Getter(AccessLevel.NONE)
+	@Setter(AccessLevel.NONE)
+	protected final String[] modeParameters = new String[MODE_LETTERS.length()];
 	@Getter(AccessLevel.NONE)
 	@Setter(AccessLevel.NONE)
-	protected boolean modeStale = false;
+	protected final AtomicReference<SettableFuture<String>> modeRefresh = new AtomicReference<SettableFuture<String>>();
+	/**
+	 * The {@link System#nanoTime() } the pending mode refresh was sent
+	 */
+	@Getter(AccessLevel.NONE)
+	@Setter(AccessLevel.NONE)
+	protected volatile long modeRefreshStarted;
+	/**
+	 * True once a {@link ChannelSyncPolicy#LAZY lazy} sync has been requested
+	 */
 	@Getter(AccessLevel.NONE)
 	@Setter(AccessLevel.NONE)
-	protected CountDownLatch modeLatch = null;
+	protected final AtomicBoolean syncRequested = new AtomicBoolean(false);
+	/**
+	 * This channel's {@link ChannelSyncPolicy}, resolved by the 
+	 * {@link UserChannelDao} when the channel is created and when the server's
+	 * CASEMAPPING changes so it isn't looked up on every read
+	 */
+	@Getter(AccessLevel.NONE)
+	@Setter(AccessLevel.NONE)
+	protected volatile ChannelSyncPolicy syncPolicy;
 
 	@SuppressWarnings("unchecked")
 	protected Channel(PircBotX bot, UserChannelDao<? extends User, ? extends Channel> dao, String name) {
@@ -96,55 +137,163 @@ public class Channel implements Comparable<Channel> {
 		}
 	}
 
+	/**
+	 * Apply a mode line from the server, eg +kl key 10. Parameters are matched
+	 * to modes using {@link ServerInfo#getChannelModeType(char) }; list modes
+	 * and user levels are skipped
+	 * @param rawMode The modes and their parameters
+	 */
 	protected void parseMode(String rawMode) {
-		if (rawMode.contains(" ")) {
-			//Mode contains arguments which are impossible to parse.
-			//Could be a ban command (we shouldn't use this), channel key (should, but where), etc
-			//Need to ask server
-			modeStale = true;
+		String[] modeParts = StringUtils.split(rawMode, ' ');
+		if (modeParts.length == 0)
 			return;
-		}
-
-		//Parse mode by switching between removing and adding by the existance of a + or - sign
+		int parameterIndex = 1;
 		boolean adding = true;
-		for (char curChar : rawMode.toCharArray())
+		for (char curChar : modeParts[0].toCharArray())
 			if (curChar == '-')
 				adding = false;
 			else if (curChar == '+')
 				adding = true;
-			else if (adding)
-				mode = mode + curChar;
-			else
-				mode = mode.replace(Character.toString(curChar), "");
+			else {
+				ChannelModeType modeType = bot.getServerInfo().getChannelModeType(curChar);
+				String parameter = null;
+				if (modeType.hasParameter(adding) && parameterIndex < modeParts.length)
+					parameter = modeParts[parameterIndex++];
+				if (modeType.isChannelSetting())
+					updateMode(curChar, adding, parameter);
+			}
 	}
 
 	/**
-	 * Gets the channel mode. If mode is simple (no arguments), this will return immediately.
-	 * If its not (mode with arguments, eg channel key), then asks the server for the
-	 * correct mode, waiting until it gets a response
-	 * <p>
-	 * <b>WARNING:</b> Because of the last checking, a threaded listener manager like
-	 * {@link ThreadedListenerManager} is required. Using a single threaded listener
-	 * manager like {@link org.pircbotx.hooks.managers.GenericListenerManager} will 
-	 * mean this method <i>never returns</i>!
-	 * @return A known good mode, either immediately or soon.
+	 * Set or unset a single mode, keeping the matching fields (eg
+	 * {@link #getChannelKey() }) in sync
+	 * @param mode The mode letter
+	 * @param adding True if the mode is being set
+	 * @param parameter The modes parameter or null if it has none
+	 */
+	protected void updateMode(char mode, boolean adding, String parameter) {
+		int index = MODE_LETTERS.indexOf(mode);
+		if (index == -1)
+			return;
+		if (adding) {
+			modeParameters[index] = parameter;
+			modeFlags |= 1L << index;
+		} else {
+			modeFlags &= ~(1L << index);
+			modeParameters[index] = null;
+		}
+
+		if (mode == 'k')
+			channelKey = adding ? parameter : null;
+		else if (mode == 'l')
+			channelLimit = adding ? Utils.tryParseInt(parameter, -1) : -1;
+		else if (mode == 'm')
+			moderated = adding;
+		else if (mode == 'n')
+			noExternalMessages = adding;
+		else if (mode == 'i')
+			inviteOnly = adding;
+		else if (mode == 's')
+			secret = adding;
+		else if (mode == 'p')
+			channelPrivate = adding;
+		else if (mode == 't')
+			topicProtection = adding;
+	}
+
+	/**
+	 * Look up this channel's {@link ChannelSyncPolicy} in the configuration.
+	 * @param caseMapping How the server compares channel names
+	 */
+	protected void resolveSyncPolicy(CaseMapping caseMapping) {
+		syncPolicy = bot.getConfiguration().getChannelSyncPolicy(getName(), caseMapping);
+	}
+
+	/**
+	 * Request the channels users and mode from the server if its
+	 * {@link ChannelSyncPolicy} is lazy and they haven't been requested yet.
+	 * Doesn't wait for the reply
+	 */
+	protected void requireSync() {
+		if (syncRequested.get() || syncPolicy != ChannelSyncPolicy.LAZY)
+			return;
+		if (syncRequested.compareAndSet(false, true))
+			bot.getInputParser().requestChannelSync(getName());
+	}
+
+	/**
+	 * Gets the channel mode, eg <code>ntkl key 10</code>. Modes are tracked as
+	 * they change so this never waits for the server. Use {@link #refreshMode() }
+	 * to fetch the mode again
+	 * @return The set modes followed by their parameters
 	 */
 	public String getMode() {
-		if (!modeStale)
-			return mode;
+		requireSync();
+		long flags = modeFlags;
+		StringBuilder letters = new StringBuilder();
+		StringBuilder parameters = new StringBuilder();
+		for (int i = 0; i < MODE_LETTERS.length(); i++) {
+			if ((flags & (1L << i)) == 0)
+				continue;
+			letters.append(MODE_LETTERS.charAt(i));
+			String parameter = modeParameters[i];
+			if (parameter != null)
+				parameters.append(' ').append(parameter);
+		}
+		return letters.append(parameters).toString();
+	}
 
-		//Mode is stale, get new mode from server
-		try {
-			log.debug("Mode is stale for channel " + getName() + ", fetching fresh mode");
-			if (modeLatch == null || modeLatch.getCount() == 0)
-				modeLatch = new CountDownLatch(1);
-			bot.sendRaw().rawLine("MODE " + getName());
-			//Wait for setMode to be called
-			modeLatch.await();
-			//We have known good mode from server, now return
-			return mode;
-		} catch (InterruptedException e) {
-			throw new RuntimeException("Waiting for mode response interrupted", e);
+	/**
+	 * Check if a mode is set
+	 * @param mode The mode letter, eg i
+	 * @return True if set
+	 */
+	public boolean hasMode(char mode) {
+		requireSync();
+		int index = MODE_LETTERS.indexOf(mode);
+		return index != -1 && (modeFlags & (1L << index)) != 0;
+	}
+
+	/**
+	 * Get the parameter of a set mode
+	 * @param mode The mode letter, eg k
+	 * @return The parameter or null if the mode isn't set or has no parameter
+	 */
+	public String getModeParameter(char mode) {
+		return hasMode(mode) ? modeParameters[MODE_LETTERS.indexOf(mode)] : null;
+	}
+
+	/**
+	 * Ask the server for the channels mode. Nothing blocks while waiting, the
+	 * returned future completes with {@link #getMode() } once the reply arrives.
+	 * Use {@link java.util.concurrent.Future#get(long, java.util.concurrent.TimeUnit) }
+	 * to wait with a timeout. Waiting in a listener requires a threaded listener
+	 * manager as the reply is processed by the input thread. 
+	 * <p>
+	 * The future is cancelled if the server replies with an error or the bot 
+	 * disconnects. If there's no reply at all, the next refresh after 
+	 * {@link #MODE_REFRESH_TIMEOUT_SECONDS} cancels it and asks again
+	 * @return A future of the refreshed mode. Concurrent refreshes share one request
+	 */
+	public ListenableFuture<String> refreshMode() {
+		while (true) {
+			SettableFuture<String> pending = modeRefresh.get();
+			if (pending != null) {
+				if (System.nanoTime() - modeRefreshStarted < TimeUnit.SECONDS.toNanos(MODE_REFRESH_TIMEOUT_SECONDS))
+					return pending;
+				log.debug("No reply to mode refresh of channel " + getName() + ", asking again");
+				if (modeRefresh.compareAndSet(pending, null))
+					pending.cancel(false);
+				continue;
+			}
+			SettableFuture<String> future = SettableFuture.create();
+			//Set before the future is visible so no one thinks its stale
+			modeRefreshStarted = System.nanoTime();
+			if (modeRefresh.compareAndSet(null, future)) {
+				log.debug("Fetching fresh mode for channel " + getName());
+				bot.sendRaw().rawLine("MODE " + getName());
+				return future;
+			}
 		}
 	}
 
@@ -162,6 +311,7 @@ public class Channel implements Comparable<Channel> {
 	 * @return An <b>immutable copy</b> of the levels the user holds
 	 */
 	public ImmutableSortedSet<UserLevel> getUserLevels(User user) {
+		requireSync();
 		return getDao().getLevels(this, user);
 	}
 
@@ -171,6 +321,7 @@ public class Channel implements Comparable<Channel> {
 	 * @return An <b>immutable copy</b> of normal users
 	 */
 	public ImmutableSortedSet<User> getNormalUsers() {
+		requireSync();
 		return getDao().getNormalUsers(this);
 	}
 
@@ -179,6 +330,7 @@ public class Channel implements Comparable<Channel> {
 	 * @return An <b>immutable copy</b> of opped users
 	 */
 	public ImmutableSortedSet<User> getOps() {
+		requireSync();
 		return getDao().getUsers(this, UserLevel.OP);
 	}
 
@@ -187,6 +339,7 @@ public class Channel implements Comparable<Channel> {
 	 * @return An <b>immutable copy</b> of voiced users
 	 */
 	public ImmutableSortedSet<User> getVoices() {
+		requireSync();
 		return getDao().getUsers(this, UserLevel.VOICE);
 	}
 
@@ -195,6 +348,7 @@ public class Channel implements Comparable<Channel> {
 	 * @return An <b>immutable copy</b> of users with Owner status
 	 */
 	public ImmutableSortedSet<User> getOwners() {
+		requireSync();
 		return getDao().getUsers(this, UserLevel.OWNER);
 	}
 
@@ -203,6 +357,7 @@ public class Channel implements Comparable<Channel> {
 	 * @return An <b>immutable copy</b> of users with Half Operator status
 	 */
 	public ImmutableSortedSet<User> getHalfOps() {
+		requireSync();
 		return getDao().getUsers(this, UserLevel.HALFOP);
 	}
 
@@ -211,19 +366,41 @@ public class Channel implements Comparable<Channel> {
 	 * @return An <b>immutable copy</b> of users with Super Operator status
 	 */
 	public ImmutableSortedSet<User> getSuperOps() {
+		requireSync();
 		return getDao().getUsers(this, UserLevel.SUPEROP);
 	}
 
 	/**
-	 * Sets the mode of the channel. If there is a getMode() waiting on this,
-	 * fire it.
-	 * @param mode
+	 * Replace the mode of the channel, eg from the servers reply to MODE. Completes
+	 * any pending {@link #refreshMode() }
+	 * @param mode The complete mode with parameters, the leading + is optional
 	 */
 	protected void setMode(String mode) {
-		this.mode = mode;
-		this.modeStale = false;
-		if (modeLatch != null)
-			modeLatch.countDown();
+		for (int i = 0; i < MODE_LETTERS.length(); i++)
+			updateMode(MODE_LETTERS.charAt(i), false, null);
+		parseMode(mode);
+		SettableFuture<String> pending = modeRefresh.getAndSet(null);
+		if (pending != null)
+			pending.set(getMode());
+	}
+
+	/**
+	 * Cancel any pending {@link #refreshMode() } since no reply will come, eg 
+	 * after an error or disconnect
+	 */
+	protected void cancelModeRefresh() {
+		SettableFuture<String> pending = modeRefresh.getAndSet(null);
+		if (pending != null)
+			pending.cancel(false);
+	}
+
+	/**
+	 * Copy the mode of another channel, used by snapshots
+	 * @param other The channel to copy from
+	 */
+	protected void copyMode(Channel other) {
+		System.arraycopy(other.modeParameters, 0, modeParameters, 0, modeParameters.length);
+		modeFlags = other.modeFlags;
 	}
 
 	/**
@@ -231,9 +408,20 @@ public class Channel implements Comparable<Channel> {
 	 * @return An <i>Unmodifiable</i> Set of users in this channel
 	 */
 	public ImmutableSortedSet<User> getUsers() {
+		requireSync();
 		return getDao().getUsers(this);
 	}
 
+	/**
+	 * Get the number of users in this channel. Unlike {@link #getUsers() } this
+	 * doesn't copy the users
+	 * @return The number of users in this channel
+	 */
+	public int getUserCount() {
+		requireSync();
+		return getDao().getUserCount(this);
+	}
+
 	/**
 	 * Get the user that set the topic. As the user may or may not be in the
 	 * channel return as a string
@@ -248,6 +436,7 @@ public class Channel implements Comparable<Channel> {
 	 * @return True if the user is an Operator, false if not
 	 */
 	public boolean isOp(User user) {
+		requireSync();
 		return getDao().levelContainsUser(UserLevel.OP, this, user);
 	}
 
@@ -256,6 +445,7 @@ public class Channel implements Comparable<Channel> {
 	 * @return True if the user has Voice, false if not
 	 */
 	public boolean hasVoice(User user) {
+		requireSync();
 		return getDao().levelContainsUser(UserLevel.VOICE, this, user);
 	}
 
@@ -264,6 +454,7 @@ public class Channel implements Comparable<Channel> {
 	 * @return True if the user is a Super Operator, false if not
 	 */
 	public boolean isSuperOp(User user) {
+		requireSync();
 		return getDao().levelContainsUser(UserLevel.SUPEROP, this, user);
 	}
 
@@ -272,6 +463,7 @@ public class Channel implements Comparable<Channel> {
 	 * @return True if the user is an Owner, false if not
 	 */
 	public boolean isOwner(User user) {
+		requireSync();
 		return getDao().levelContainsUser(UserLevel.OWNER, this, user);
 	}
 
@@ -280,13 +472,12 @@ public class Channel implements Comparable<Channel> {
 	 * @return True if the user is a Half Operator, false if not
 	 */
 	public boolean isHalfOp(User user) {
+		requireSync();
 		return getDao().levelContainsUser(UserLevel.HALFOP, this, user);
 	}
 
 	public ChannelSnapshot createSnapshot() {
-		if (modeStale)
-			log.warn("Channel {} mode '{}' is stale", getName(), mode);
-		return new ChannelSnapshot(this, mode);
+		return new ChannelSnapshot(this);
 	}
 
 	/**
@@ -0,0 +1,72 @@
+/**
+ * Copyright (C) 2010-2013 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of PircBotX.
+ *
+ * PircBotX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PircBotX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pircbotx;
+
+/**
+ * The kinds of channel modes a server advertises in the CHANMODES and PREFIX
+ * parts of 005. The kind decides if a mode takes a parameter and if it is part
+ * of a channels mode at all.
+ * @author Leon Blakey <lord.quackstar at gmail.com>
+ * @see ServerInfo#getChannelModeType(char)
+ */
+public enum ChannelModeType {
+	/**
+	 * Type A: Adds or removes an entry from a list, eg bans. Always has a parameter
+	 */
+	LIST,
+	/**
+	 * Type B: A setting that always has a parameter, eg the channel key
+	 */
+	PARAMETER,
+	/**
+	 * Type C: A setting that only has a parameter when set, eg the user limit
+	 */
+	SET_PARAMETER,
+	/**
+	 * Type D: A setting that never has a parameter, eg invite only
+	 */
+	FLAG,
+	/**
+	 * A mode from PREFIX that gives a user a level, eg op. Always has a nick
+	 * as the parameter
+	 */
+	USER_LEVEL;
+
+	/**
+	 * Check if a mode of this type consumes a parameter
+	 * @param adding True if the mode is being set, false if its being removed
+	 * @return True if a parameter follows
+	 */
+	public boolean hasParameter(boolean adding) {
+		if (this == FLAG)
+			return false;
+		if (this == SET_PARAMETER)
+			return adding;
+		return true;
+	}
+
+	/**
+	 * Check if modes of this type are part of the channels mode. List modes and
+	 * user levels are tracked elsewhere
+	 * @return True for {@link #PARAMETER}, {@link #SET_PARAMETER}, and {@link #FLAG}
+	 */
+	public boolean isChannelSetting() {
+		return this == PARAMETER || this == SET_PARAMETER || this == FLAG;
+	}
+}
@@ -0,0 +1,43 @@
+/**
+ * Copyright (C) 2010-2013 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of PircBotX.
+ *
+ * PircBotX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PircBotX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pircbotx;
+
+/**
+ * When the users and mode of a channel the bot joins are fetched from the
+ * server with WHO and MODE.
+ * @author Leon Blakey <lord.quackstar at gmail.com>
+ * @see Configuration#getChannelSyncPolicy(java.lang.String, org.pircbotx.CaseMapping) 
+ */
+public enum ChannelSyncPolicy {
+	/**
+	 * Fetch as soon as the bot joins
+	 */
+	EAGER,
+	/**
+	 * Fetch the first time the channels users or mode are needed, eg by
+	 * {@link Channel#getUsers() }. The call returns what is currently known and
+	 * the channel is synced in the background, one channel at a time
+	 */
+	LAZY,
+	/**
+	 * Never fetch, only users seen joining or speaking are known. Useful for 
+	 * bots that only send to very large channels
+	 */
+	NEVER
+}
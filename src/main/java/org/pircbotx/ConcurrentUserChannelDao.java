@@ -0,0 +1,40 @@
+/**
+ * Copyright (C) 2010-2013 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of PircBotX.
+ *
+ * PircBotX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PircBotX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pircbotx;
+
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A {@link UserChannelDao} that lets many threads read at the same time, eg
+ * listeners checking {@link Channel#isOp(org.pircbotx.User) } while the 
+ * InputParser is updating the maps. Writes are still exclusive. To use, return
+ * it from {@link Configuration.BotFactory#createUserChannelDao(org.pircbotx.PircBotX) }
+ * @author Leon Blakey <lord.quackstar at gmail.com>
+ */
+public class ConcurrentUserChannelDao<U extends User, C extends Channel> extends UserChannelDao<U, C> {
+	public ConcurrentUserChannelDao(PircBotX bot, Configuration.BotFactory botFactory) {
+		super(bot, botFactory);
+	}
+
+	@Override
+	protected ReadWriteLock createAccessLock() {
+		return new ReentrantReadWriteLock();
+	}
+}
@@ -28,6 +28,7 @@ import java.net.InetAddress;
 import java.net.Socket;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -47,12 +48,15 @@ import org.pircbotx.hooks.CoreHooks;
 import org.pircbotx.hooks.Listener;
 import org.pircbotx.hooks.managers.ListenerManager;
 import org.pircbotx.hooks.managers.ThreadedListenerManager;
+import org.pircbotx.output.FixedDelayRateLimiter;
 import org.pircbotx.output.OutputCAP;
 import org.pircbotx.output.OutputChannel;
 import org.pircbotx.output.OutputDCC;
 import org.pircbotx.output.OutputIRC;
 import org.pircbotx.output.OutputRaw;
 import org.pircbotx.output.OutputUser;
+import org.pircbotx.output.RateLimiter;
+import org.pircbotx.output.TokenBucketRateLimiter;
 
 /**
  * Configuration<B> class for PircBotX
@@ -80,20 +84,45 @@ import org.pircbotx.output.OutputUser;
  * <li>serverPassword - The password of the IRC server</li>
  * <li>messageDelay - number of milliseconds to delay between consecutive</li>
  * messages
+ * <li>messageBurst - number of messages that can be sent without waiting for
+ * messageDelay after the bot has been idle. Above 1 lines are rate limited with
+ * a {@link TokenBucketRateLimiter} that refills one message every messageDelay
+ * (default: 1, a fixed messageDelay between all messages)</li>
  * <li>socketFactory - SocketFactory to use to connect to the IRC server (default:
  * {@link SocketFactory#getDefault() }</li>
  * <li>inetAddress - Local address to use when connecting to the IRC server</li>
  * <li>encoding - The encoding {@link Charset} to use for the connection (default:
  * {@link Charset#defaultCharset()}</li>
  * <li>socketTimeout - Number of milliseconds to wait before the socket times out on read
- * operations. This does not mean the socket is invalid. By default its 5 minutes
+ * operations. This does not mean the socket is invalid. Also limits how long 
+ * connecting through a {@link SelectorEngine} can take. By default its 5 minutes
  * minutes</li>
  * <li>maxLineLength - Maximum length of any line that is sent. (default: IRC 
  * RFC default (including \r\n) 512 bytes)</li>
+ * <li>maxInputLineLength - Maximum length in bytes of any line that is received, 
+ * including the line ending. Longer lines are discarded (default: 8192)</li>
  * <li>autoSplitMessage - Enable or disable sendRawLineSplit splitting all lines
  * to maxLineLength (default: true)</li>
  * <li>autoNickChange - Enable or disable changing nick in case it is already 
  * in use on the server by adding numbers until an unused nick is found</li>
+ * <li>stringPool - If set, user logins, hostmasks, servers and real names
+ * are interned in this {@link StringPool}. Set the same pool in multiple 
+ * configurations to share it between bots (default: null, no interning)</li>
+ * <li>maxPrivateUsers - Maximum number of recent users outside of the bot's
+ * channels (eg users that private message the bot) that are cached so the
+ * same {@link User} is used for their following lines. Must be at least 1 
+ * (default: 1000)</li>
+ * <li>privateUserTimeout - Number of milliseconds since their last line before
+ * a cached private user is evicted (default: 30 minutes)</li>
+ * <li>whoXFields - WHOX fields to request when joining a channel if the server
+ * supports WHOX, eg leave out r and s if real names and servers aren't needed.
+ * Must contain n (the nick). null always uses a plain WHO (default: uhsnfdr,
+ * everything a plain WHO returns)</li>
+ * <li>defaultChannelSyncPolicy - When the users and mode of joined channels 
+ * are fetched, see {@link ChannelSyncPolicy} (default: EAGER)</li>
+ * <li>channelSyncPolicies - {@link ChannelSyncPolicy} of specific channels, 
+ * overriding defaultChannelSyncPolicy. Names are compared with the server's 
+ * {@link CaseMapping}, so they can't differ only by case</li>
  * </ul>
  * 
  * Bot classes:
@@ -141,14 +170,22 @@ public class Configuration<B extends PircBotX> {
 	protected final Locale locale;
 	protected final int socketTimeout;
 	protected final int maxLineLength;
+	protected final int maxInputLineLength;
 	protected final boolean autoSplitMessage;
 	protected final boolean autoNickChange;
 	protected final long messageDelay;
+	protected final int messageBurst;
 	protected final boolean shutdownHookEnabled;
 	protected final ImmutableMap<String, String> autoJoinChannels;
 	protected final boolean identServerEnabled;
 	protected final String nickservPassword;
 	protected final boolean autoReconnect;
+	protected final StringPool stringPool;
+	protected final int maxPrivateUsers;
+	protected final long privateUserTimeout;
+	protected final String whoXFields;
+	protected final ChannelSyncPolicy defaultChannelSyncPolicy;
+	protected final ImmutableMap<String, ChannelSyncPolicy> channelSyncPolicies;
 	//Bot classes
 	protected final ListenerManager<B> listenerManager;
 	protected final boolean capEnabled;
@@ -176,7 +213,22 @@ public class Configuration<B extends PircBotX> {
 		checkNotNull(builder.getLocale(), "Must specify locale");
 		checkArgument(builder.getSocketTimeout() >= 0, "Socket timeout must be positive");
 		checkArgument(builder.getMaxLineLength() > 0, "Max line length must be positive");
+		checkArgument(builder.getMaxInputLineLength() > 2, "Max input line length must be greater than 2");
+		checkArgument(builder.getMaxPrivateUsers() > 0, "Max private users must be positive");
+		checkArgument(builder.getPrivateUserTimeout() > 0, "Private user timeout must be positive");
+		if (builder.getWhoXFields() != null) {
+			checkArgument(builder.getWhoXFields().indexOf('n') != -1, "WHOX fields must contain n");
+			checkArgument(StringUtils.containsOnly(builder.getWhoXFields(), InputParser.WHOX_FIELD_ORDER), "Unknown WHOX field in %s", builder.getWhoXFields());
+		}
+		checkNotNull(builder.getDefaultChannelSyncPolicy(), "Must specify default channel sync policy");
+		//Policies are matched with the server's CASEMAPPING, RFC1459 folds the most characters
+		Map<String, String> foldedChannels = new HashMap<String, String>();
+		for (String curChannel : builder.getChannelSyncPolicies().keySet()) {
+			String otherChannel = foldedChannels.put(CaseMapping.RFC1459.toLowerCase(curChannel), curChannel);
+			checkArgument(otherChannel == null, "Channel sync policies given for both %s and %s, channel names are compared ignoring case", otherChannel, curChannel);
+		}
 		checkArgument(builder.getMessageDelay() >= 0, "Message delay must be positive");
+		checkArgument(builder.getMessageBurst() >= 1, "Message burst must be at least 1");
 		if(builder.getNickservPassword() != null)
 			checkArgument(!builder.getNickservPassword().trim().equals(""), "Nickserv password cannot be empty");
 		checkNotNull(builder.getListenerManager(), "Must specify listener manager");
@@ -208,12 +260,20 @@ public class Configuration<B extends PircBotX> {
 		this.locale = builder.getLocale();
 		this.socketTimeout = builder.getSocketTimeout();
 		this.maxLineLength = builder.getMaxLineLength();
+		this.maxInputLineLength = builder.getMaxInputLineLength();
 		this.autoSplitMessage = builder.isAutoSplitMessage();
 		this.autoNickChange = builder.isAutoNickChange();
 		this.messageDelay = builder.getMessageDelay();
+		this.messageBurst = builder.getMessageBurst();
 		this.identServerEnabled = builder.isIdentServerEnabled();
 		this.nickservPassword = builder.getNickservPassword();
 		this.autoReconnect = builder.isAutoReconnect();
+		this.stringPool = builder.getStringPool();
+		this.maxPrivateUsers = builder.getMaxPrivateUsers();
+		this.privateUserTimeout = builder.getPrivateUserTimeout();
+		this.whoXFields = builder.getWhoXFields();
+		this.defaultChannelSyncPolicy = builder.getDefaultChannelSyncPolicy();
+		this.channelSyncPolicies = ImmutableMap.copyOf(builder.getChannelSyncPolicies());
 		this.listenerManager = builder.getListenerManager();
 		this.autoJoinChannels = ImmutableMap.copyOf(builder.getAutoJoinChannels());
 		this.capEnabled = builder.isCapEnabled();
@@ -222,6 +282,20 @@ public class Configuration<B extends PircBotX> {
 		this.botFactory = builder.getBotFactory();
 	}
 
+	/**
+	 * Get when the users and mode of a channel are fetched
+	 * @param channel The channel name
+	 * @param caseMapping How the server compares channel names
+	 * @return The channels entry in channelSyncPolicies or defaultChannelSyncPolicy
+	 */
+	public ChannelSyncPolicy getChannelSyncPolicy(String channel, CaseMapping caseMapping) {
+		//Only a few channels have their own policy, scanning them doesn't allocate
+		for (Map.Entry<String, ChannelSyncPolicy> curEntry : channelSyncPolicies.entrySet())
+			if (caseMapping.equalsIgnoreCase(curEntry.getKey(), channel))
+				return curEntry.getValue();
+		return defaultChannelSyncPolicy;
+	}
+
 	@Accessors(chain = true)
 	@Data
 	public static class Builder<B extends PircBotX> {
@@ -255,14 +329,22 @@ public class Configuration<B extends PircBotX> {
 		protected Locale locale = Locale.getDefault();
 		protected int socketTimeout = 1000 * 60 * 5;
 		protected int maxLineLength = 512;
+		protected int maxInputLineLength = 8192;
 		protected boolean autoSplitMessage = true;
 		protected boolean autoNickChange = false;
 		protected long messageDelay = 1000;
+		protected int messageBurst = 1;
 		protected boolean shutdownHookEnabled = true;
 		protected final Map<String, String> autoJoinChannels = Maps.newHashMap();
 		protected boolean identServerEnabled;
 		protected String nickservPassword;
 		protected boolean autoReconnect = false;
+		protected StringPool stringPool = null;
+		protected int maxPrivateUsers = 1000;
+		protected long privateUserTimeout = 1000 * 60 * 30;
+		protected String whoXFields = "uhsnfdr";
+		protected ChannelSyncPolicy defaultChannelSyncPolicy = ChannelSyncPolicy.EAGER;
+		protected final Map<String, ChannelSyncPolicy> channelSyncPolicies = Maps.newHashMap();
 		//Bot classes
 		protected ListenerManager<B> listenerManager = null;
 		protected boolean capEnabled = false;
@@ -304,12 +386,20 @@ public class Configuration<B extends PircBotX> {
 			this.locale = configuration.getLocale();
 			this.socketTimeout = configuration.getSocketTimeout();
 			this.maxLineLength = configuration.getMaxLineLength();
+			this.maxInputLineLength = configuration.getMaxInputLineLength();
 			this.autoSplitMessage = configuration.isAutoSplitMessage();
 			this.autoNickChange = configuration.isAutoNickChange();
 			this.messageDelay = configuration.getMessageDelay();
+			this.messageBurst = configuration.getMessageBurst();
 			this.listenerManager = configuration.getListenerManager();
 			this.nickservPassword = configuration.getNickservPassword();
 			this.autoReconnect = configuration.isAutoReconnect();
+			this.stringPool = configuration.getStringPool();
+			this.maxPrivateUsers = configuration.getMaxPrivateUsers();
+			this.privateUserTimeout = configuration.getPrivateUserTimeout();
+			this.whoXFields = configuration.getWhoXFields();
+			this.defaultChannelSyncPolicy = configuration.getDefaultChannelSyncPolicy();
+			this.channelSyncPolicies.putAll(configuration.getChannelSyncPolicies());
 			this.autoJoinChannels.putAll(configuration.getAutoJoinChannels());
 			this.identServerEnabled = configuration.isIdentServerEnabled();
 			this.capEnabled = configuration.isCapEnabled();
@@ -349,12 +439,20 @@ public class Configuration<B extends PircBotX> {
 			this.locale = otherBuilder.getLocale();
 			this.socketTimeout = otherBuilder.getSocketTimeout();
 			this.maxLineLength = otherBuilder.getMaxLineLength();
+			this.maxInputLineLength = otherBuilder.getMaxInputLineLength();
 			this.autoSplitMessage = otherBuilder.isAutoSplitMessage();
 			this.autoNickChange = otherBuilder.isAutoNickChange();
 			this.messageDelay = otherBuilder.getMessageDelay();
+			this.messageBurst = otherBuilder.getMessageBurst();
 			this.listenerManager = otherBuilder.getListenerManager();
 			this.nickservPassword = otherBuilder.getNickservPassword();
 			this.autoReconnect = otherBuilder.isAutoReconnect();
+			this.stringPool = otherBuilder.getStringPool();
+			this.maxPrivateUsers = otherBuilder.getMaxPrivateUsers();
+			this.privateUserTimeout = otherBuilder.getPrivateUserTimeout();
+			this.whoXFields = otherBuilder.getWhoXFields();
+			this.defaultChannelSyncPolicy = otherBuilder.getDefaultChannelSyncPolicy();
+			this.channelSyncPolicies.putAll(otherBuilder.getChannelSyncPolicies());
 			this.autoJoinChannels.putAll(otherBuilder.getAutoJoinChannels());
 			this.identServerEnabled = otherBuilder.isIdentServerEnabled();
 			this.capEnabled = otherBuilder.isCapEnabled();
@@ -395,6 +493,11 @@ public class Configuration<B extends PircBotX> {
 			return this;
 		}
 
+		public Builder<B> addChannelSyncPolicy(String channel, ChannelSyncPolicy policy) {
+			getChannelSyncPolicies().put(channel, policy);
+			return this;
+		}
+
 		public Builder<B> setServer(String hostname, int port) {
 			return setServerHostname(hostname)
 					.setServerPort(port);
@@ -467,6 +570,13 @@ public class Configuration<B extends PircBotX> {
 			return new OutputRaw(bot);
 		}
 
+		public RateLimiter createRateLimiter(PircBotX bot) {
+			Configuration<PircBotX> configuration = bot.getConfiguration();
+			if (configuration.getMessageBurst() > 1)
+				return new TokenBucketRateLimiter(bot, configuration.getMessageBurst(), configuration.getMessageDelay());
+			return new FixedDelayRateLimiter(configuration.getMessageDelay());
+		}
+
 		public OutputCAP createOutputCAP(PircBotX bot) {
 			return new OutputCAP(bot);
 		}
@@ -491,6 +601,28 @@ public class Configuration<B extends PircBotX> {
 			return new InputParser(bot);
 		}
 
+		/**
+		 * Create the handlers for commands from users, keyed by upper case
+		 * command. Override and add to or replace entries in the returned map
+		 * to change how commands are handled
+		 * @param bot The bot the handlers are for
+		 * @return A new, mutable map of handlers
+		 */
+		public Map<String, InputParser.CommandHandler> createCommandHandlers(PircBotX bot) {
+			return new HashMap<String, InputParser.CommandHandler>(InputParser.DEFAULT_COMMAND_HANDLERS);
+		}
+
+		/**
+		 * Create the handlers for numeric server responses, keyed by code.
+		 * Override and add to or replace entries in the returned map to change
+		 * how responses are handled
+		 * @param bot The bot the handlers are for
+		 * @return A new, mutable map of handlers
+		 */
+		public Map<Integer, InputParser.ServerResponseHandler> createServerResponseHandlers(PircBotX bot) {
+			return new HashMap<Integer, InputParser.ServerResponseHandler>(InputParser.DEFAULT_SERVER_RESPONSE_HANDLERS);
+		}
+
 		public DccHandler createDccHandler(PircBotX bot) {
 			return new DccHandler(bot);
 		}
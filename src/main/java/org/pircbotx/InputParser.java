@@ -19,29 +19,33 @@
 package org.pircbotx;
 
 import org.pircbotx.snapshot.UserSnapshot;
+import static com.google.common.base.Preconditions.*;
 import com.google.common.base.CharMatcher;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.Maps;
-import java.io.BufferedReader;
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import lombok.Getter;
-import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import static org.pircbotx.ReplyConstants.*;
 import org.pircbotx.cap.CapHandler;
 import org.pircbotx.cap.TLSCapHandler;
 import org.pircbotx.exception.IrcException;
+import org.pircbotx.hooks.Event;
 import org.pircbotx.hooks.events.ActionEvent;
 import org.pircbotx.hooks.events.ChannelInfoEvent;
 import org.pircbotx.hooks.events.ConnectEvent;
@@ -99,31 +103,106 @@ import org.slf4j.MarkerFactory;
  * Parse received input from IRC server.
  * @author Leon Blakey <lord.quackstar at gmail.com>
  */
-@RequiredArgsConstructor
 @Slf4j
 public class InputParser implements Closeable {
 	protected static final Marker INPUT_MARKER = MarkerFactory.getMarker("pircbotx.input");
 	/**
-	 * Codes that say we are connected: Initial connection (001-4), user stats (251-5), or MOTD (375-6).
+	 * Codes that say we are connected: Initial connection (001-5), user stats 
+	 * (251-5), or MOTD (375-6). Indexed by code like the server response handlers
 	 */
-	protected static final ImmutableList<String> CONNECT_CODES = ImmutableList.of("001", "002", "003", "004", "005",
-			"251", "252", "253", "254", "255", "375", "376");
+	protected static final boolean[] CONNECT_CODES = new boolean[1000];
+	/**
+	 * All WHOX fields in the order the server sends them, excluding the token
+	 */
+	public static final String WHOX_FIELD_ORDER = "cuihsnfdlaor";
+	/**
+	 * How long to wait for the end of a lazy sync's WHO reply before moving on
+	 * to the next channel
+	 */
+	protected static final long LAZY_SYNC_TIMEOUT_SECONDS = 60;
+	@Getter
 	protected final Configuration<PircBotX> configuration;
+	@Getter
 	protected final PircBotX bot;
+	/**
+	 * Command handlers by upper case command name
+	 */
+	protected final ImmutableMap<String, CommandHandler> commandHandlers;
+	/**
+	 * Numeric handlers, indexed by code
+	 */
+	protected final ServerResponseHandler[] serverResponseHandlers = new ServerResponseHandler[1000];
 	protected final List<CapHandler> capHandlersFinished = new ArrayList<CapHandler>();
 	protected boolean capEndSent = false;
-	protected BufferedReader inputReader;
+	/**
+	 * Reused for every line to avoid creating a list of tokens per line
+	 */
+	protected final IrcMessage message = new IrcMessage();
 	//Builders
 	protected final Map<String, WhoisEvent.Builder<PircBotX>> whoisBuilder = Maps.newHashMap();
+	/**
+	 * Changes from WHO replies, applied together at the end of the reply
+	 */
+	protected final Map<Channel, UserChannelDao.Batch<User, Channel>> whoBatches = Maps.newHashMap();
+	/**
+	 * Channel names of WHOX queries sent by {@link #sendChannelWho(java.lang.String) },
+	 * keyed by query token
+	 */
+	protected final Map<String, String> whoXQueries = Maps.newConcurrentMap();
+	protected final AtomicInteger lastWhoXToken = new AtomicInteger();
+	/**
+	 * Channels waiting for a lazy sync, see {@link #requestChannelSync(java.lang.String) }.
+	 * Also guards lazySyncChannel
+	 */
+	protected final Queue<String> lazySyncQueue = new LinkedList<String>();
+	/**
+	 * Channel of the lazy sync whose WHO reply hasn't ended yet
+	 */
+	protected String lazySyncChannel = null;
+	/**
+	 * The {@link System#nanoTime() } the current lazy sync was sent
+	 */
+	protected long lazySyncStarted;
+	/**
+	 * The configured WHOX fields in the order they're received
+	 */
+	protected final char[] whoXReplyFields;
 	protected StringBuilder motdBuilder;
 	@Getter
 	protected boolean channelListRunning = false;
 	protected ImmutableList.Builder<ChannelListEntry> channelListBuilder;
 	protected int nickSuffix = 0;
+	/**
+	 * Pool for user strings or null if interning is disabled
+	 */
+	protected final StringPool stringPool;
+
+	static {
+		for (int curCode : new int[]{1, 2, 3, 4, 5, RPL_LUSERCLIENT, RPL_LUSEROP, RPL_LUSERUNKNOWN,
+			RPL_LUSERCHANNELS, RPL_LUSERME, RPL_MOTDSTART, RPL_ENDOFMOTD})
+			CONNECT_CODES[curCode] = true;
+	}
 
 	public InputParser(PircBotX bot) {
+		this(bot.getConfiguration(), bot);
+	}
+
+	public InputParser(Configuration<PircBotX> configuration, PircBotX bot) {
 		this.bot = bot;
-		this.configuration = bot.getConfiguration();
+		this.configuration = configuration;
+		this.stringPool = configuration.getStringPool();
+		StringBuilder replyFields = new StringBuilder();
+		if (configuration.getWhoXFields() != null)
+			for (char curField : WHOX_FIELD_ORDER.toCharArray())
+				if (configuration.getWhoXFields().indexOf(curField) != -1)
+					replyFields.append(curField);
+		this.whoXReplyFields = replyFields.toString().toCharArray();
+		this.commandHandlers = ImmutableMap.copyOf(configuration.getBotFactory().createCommandHandlers(bot));
+		for (Map.Entry<Integer, ServerResponseHandler> curEntry : configuration.getBotFactory().createServerResponseHandlers(bot).entrySet()) {
+			int code = curEntry.getKey();
+			checkArgument(code >= 0 && code < serverResponseHandlers.length, "Server response code %s out of range", code);
+			serverResponseHandlers[code] = checkNotNull(curEntry.getValue(), "Server response handler for %s cannot be null", code);
+		}
 	}
 
 	/**
@@ -137,18 +216,21 @@ public class InputParser implements Closeable {
 			throw new IllegalArgumentException("Can't process null line");
 		log.info(INPUT_MARKER, line);
 
-		List<String> parsedLine = Utils.tokenizeLine(line);
-
-		String senderInfo = "";
-		if (parsedLine.get(0).charAt(0) == ':')
-			senderInfo = parsedLine.remove(0);
-
-		String command = parsedLine.remove(0).toUpperCase(configuration.getLocale());
+		IrcMessage message = this.message.parse(line);
+		String command = message.getCommandString(configuration.getLocale());
+		if (command.length() == 0) {
+			if (hasListeners(UnknownEvent.class))
+				configuration.getListenerManager().dispatchEvent(new UnknownEvent<PircBotX>(bot, line));
+			return;
+		}
 
 		// Check for server pings.
 		if (command.equals("PING")) {
+			//Servers ping regularly, a good time to notice lost replies
+			checkChannelSyncTimeout();
 			// Respond to the ping and return immediately.
-			configuration.getListenerManager().dispatchEvent(new ServerPingEvent<PircBotX>(bot, parsedLine.get(0)));
+			if (hasListeners(ServerPingEvent.class))
+				configuration.getListenerManager().dispatchEvent(new ServerPingEvent<PircBotX>(bot, message.getParamString(0)));
 			return;
 		} else if (command.startsWith("ERROR")) {
 			//Server is shutting us down
@@ -156,6 +238,7 @@ public class InputParser implements Closeable {
 			return;
 		}
 
+		List<String> parsedLine = message.getParams();
 		String sourceNick;
 		String sourceLogin = "";
 		String sourceHostname = "";
@@ -164,18 +247,16 @@ public class InputParser implements Closeable {
 		if (target.startsWith(":"))
 			target = target.substring(1);
 
-		int exclamation = senderInfo.indexOf('!');
-		int at = senderInfo.indexOf('@');
-		if (senderInfo.startsWith(":"))
-			if (exclamation > 0 && at > 0 && exclamation < at) {
-				sourceNick = senderInfo.substring(1, exclamation);
-				sourceLogin = senderInfo.substring(exclamation + 1, at);
-				sourceHostname = senderInfo.substring(at + 1);
+		if (message.hasPrefix())
+			if (message.hasHostmask()) {
+				sourceNick = message.getNickString();
+				sourceLogin = message.getLoginString();
+				sourceHostname = message.getHostString();
 			} else {
-				int code = Utils.tryParseInt(command, -1);
+				int code = message.getNumeric();
 				if (code != -1) {
 					if (!bot.loggedIn)
-						processConnect(line, command, target, parsedLine);
+						processConnect(line, code, command, target, parsedLine);
 					processServerResponse(code, line, parsedLine);
 					// Return from the method.
 					return;
@@ -184,23 +265,170 @@ public class InputParser implements Closeable {
 					// It must be a nick without login and hostname.
 					// (or maybe a NOTICE or suchlike from the server)
 					//WARNING: Changed from origional PircBot. Instead of command as target, use channel/user (setup later)
-					sourceNick = senderInfo;
+					sourceNick = message.getPrefixString();
 			}
 		else {
 			// We don't know what this line means.
-			configuration.getListenerManager().dispatchEvent(new UnknownEvent<PircBotX>(bot, line));
+			if (hasListeners(UnknownEvent.class))
+				configuration.getListenerManager().dispatchEvent(new UnknownEvent<PircBotX>(bot, line));
 			// Return from the method;
 			return;
 		}
 
-		if (sourceNick.startsWith(":"))
-			sourceNick = sourceNick.substring(1);
-
 		if (!bot.loggedIn)
-			processConnect(line, command, target, parsedLine);
+			processConnect(line, -1, command, target, parsedLine);
 		processCommand(target, sourceNick, sourceLogin, sourceHostname, command, line, parsedLine);
 	}
 
+	/**
+	 * Check if any listener wants the event. Handlers should skip creating (and
+	 * any work only needed for) events nobody receives, but must still update
+	 * the bot's state
+	 * @param eventClass The class of the event
+	 * @return True if the event should be created and dispatched
+	 */
+	public boolean hasListeners(Class<? extends Event> eventClass) {
+		return configuration.getListenerManager().hasListeners(eventClass);
+	}
+
+	/**
+	 * Request all users in a channel. If the server supports WHOX and
+	 * {@link Configuration#getWhoXFields() } is set, only those fields are requested
+	 * and the replies are matched to the channel with a query token
+	 * @param channel The name of the channel
+	 */
+	public void sendChannelWho(String channel) {
+		if (configuration.getWhoXFields() == null || !bot.getServerInfo().isWhoX()) {
+			bot.sendRaw().rawLine("WHO " + channel);
+			return;
+		}
+
+		//Tokens can be at most 3 digits
+		int token = (lastWhoXToken.getAndIncrement() & Integer.MAX_VALUE) % 999 + 1;
+		whoXQueries.put(String.valueOf(token), channel);
+		bot.sendRaw().rawLine("WHO " + channel + " %t" + configuration.getWhoXFields() + "," + token);
+	}
+
+	/**
+	 * Request the users and mode of a channel
+	 * @param channel The name of the channel
+	 */
+	public void syncChannel(String channel) {
+		sendChannelWho(channel);
+		bot.sendRaw().rawLine("MODE " + channel);
+	}
+
+	/**
+	 * Sync a {@link ChannelSyncPolicy#LAZY lazy} channel in the background. Only
+	 * one channel is synced at a time, the next is requested once the WHO reply
+	 * of the previous one ends
+	 * @param channel The name of the channel
+	 */
+	public void requestChannelSync(String channel) {
+		if (!bot.isConnected())
+			return;
+		checkChannelSyncTimeout();
+		synchronized (lazySyncQueue) {
+			if (lazySyncChannel != null) {
+				lazySyncQueue.add(channel);
+				return;
+			}
+			lazySyncChannel = channel;
+			lazySyncStarted = System.nanoTime();
+		}
+		syncChannel(channel);
+	}
+
+	/**
+	 * Start the next lazy sync if the channels WHO reply ended the current one
+	 * @param channel The channel whose WHO reply ended
+	 */
+	protected void finishChannelSync(String channel) {
+		String nextChannel;
+		synchronized (lazySyncQueue) {
+			if (lazySyncChannel == null || !bot.getUserChannelDao().getCaseMapping().equalsIgnoreCase(lazySyncChannel, channel))
+				return;
+			nextChannel = pollChannelSync();
+		}
+		if (nextChannel != null)
+			syncChannel(nextChannel);
+	}
+
+	/**
+	 * Give up on a lazy sync whose WHO reply never ended, eg because the server
+	 * ignored it, so the queued channels are still synced
+	 */
+	protected void checkChannelSyncTimeout() {
+		String nextChannel;
+		synchronized (lazySyncQueue) {
+			if (lazySyncChannel == null || System.nanoTime() - lazySyncStarted < TimeUnit.SECONDS.toNanos(LAZY_SYNC_TIMEOUT_SECONDS))
+				return;
+			log.warn("WHO reply for lazy sync of " + lazySyncChannel + " never ended, skipping");
+			nextChannel = pollChannelSync();
+		}
+		if (nextChannel != null)
+			syncChannel(nextChannel);
+	}
+
+	/**
+	 * Take the next queued channel as the current lazy sync. Must hold the
+	 * lazySyncQueue lock
+	 * @return The channel to sync or null if none are queued
+	 */
+	protected String pollChannelSync() {
+		//Skip channels that were left while waiting
+		String nextChannel;
+		do
+			nextChannel = lazySyncQueue.poll();
+		while (nextChannel != null && !bot.getUserChannelDao().channelExists(nextChannel));
+		lazySyncChannel = nextChannel;
+		lazySyncStarted = System.nanoTime();
+		return nextChannel;
+	}
+
+	/**
+	 * Cancel a pending {@link Channel#refreshMode() } the server answered with an error
+	 * @param channel The name of the channel from the error
+	 */
+	protected void cancelModeRefresh(String channel) {
+		if (bot.getUserChannelDao().channelExists(channel))
+			bot.getUserChannelDao().getChannel(channel).cancelModeRefresh();
+	}
+
+	/**
+	 * Forget the WHOX queries sent for a channel once its reply has ended
+	 * @param channel The channel name from the end of the WHO reply, compared
+	 * with the server's CASEMAPPING
+	 */
+	protected void removeWhoXQuery(String channel) {
+		CaseMapping caseMapping = bot.getUserChannelDao().getCaseMapping();
+		for (Iterator<String> itr = whoXQueries.values().iterator(); itr.hasNext();)
+			if (caseMapping.equalsIgnoreCase(itr.next(), channel))
+				itr.remove();
+	}
+
+	/**
+	 * Get the batch for a channel's pending WHO or WHOX reply
+	 */
+	protected UserChannelDao.Batch<User, Channel> getWhoBatch(Channel channel) {
+		UserChannelDao.Batch<User, Channel> batch = whoBatches.get(channel);
+		if (batch == null) {
+			batch = bot.getUserChannelDao().createBatch(Math.max(bot.getUserChannelDao().getUserCount(channel), 16));
+			whoBatches.put(channel, batch);
+		}
+		return batch;
+	}
+
+	/**
+	 * Intern a string that will be stored in a user (login, hostmask, server or
+	 * real name) in the configured {@link StringPool}, if any
+	 * @param string The parsed string
+	 * @return The pooled instance, or the given string if interning is disabled
+	 */
+	public String intern(String string) {
+		return stringPool == null ? string : stringPool.intern(string);
+	}
+
 	/**
 	 * Process any lines relevant to connect. Only called before bot is logged into the server
 	 * @param rawLine Raw, unprocessed line from the server
@@ -211,7 +439,23 @@ public class InputParser implements Closeable {
 	 * @throws IOException If an error occurs during upgrading to SSL
 	 */
 	public void processConnect(String rawLine, String code, String target, List<String> parsedLine) throws IrcException, IOException {
-		if (CONNECT_CODES.contains(code)) {
+		int numeric = (code.length() == 3) ? Utils.tryParseInt(code, -1) : -1;
+		processConnect(rawLine, numeric, code, target, parsedLine);
+	}
+
+	/**
+	 * Process any lines relevant to connect without comparing strings for 
+	 * numerics. Only called before bot is logged into the server
+	 * @param rawLine Raw, unprocessed line from the server
+	 * @param code The numeric code or -1 if the line is a command
+	 * @param command The upper case command or code
+	 * @param target
+	 * @param parsedLine Processed line
+	 * @throws IrcException If the server rejects the bot (nick already in use or a 4** or 5** code
+	 * @throws IOException If an error occurs during upgrading to SSL
+	 */
+	protected void processConnect(String rawLine, int code, String command, String target, List<String> parsedLine) throws IrcException, IOException {
+		if (code >= 0 && code < CONNECT_CODES.length && CONNECT_CODES[code]) {
 			// We're connected to the server.
 			bot.loggedIn(configuration.getName() + (nickSuffix == 0 ? "" : nickSuffix));
 			log.debug("Logged onto server.");
@@ -226,7 +470,7 @@ public class InputParser implements Closeable {
 				autoConnectChannels = configuration.getAutoJoinChannels();
 			for (Map.Entry<String, String> channelEntry : autoConnectChannels.entrySet())
 				bot.sendIRC().joinChannel(channelEntry.getKey(), channelEntry.getValue());
-		} else if (code.equals("433"))
+		} else if (code == ERR_NICKNAMEINUSE)
 			//EXAMPLE: AnAlreadyUsedName :Nickname already in use
 			//Nickname in use, rename
 			if (configuration.isAutoNickChange()) {
@@ -234,15 +478,15 @@ public class InputParser implements Closeable {
 				bot.sendIRC().changeNick(configuration.getName() + nickSuffix);
 			} else
 				throw new IrcException(IrcException.Reason.NickAlreadyInUse, "Line: " + rawLine);
-		else if (code.equals("439")) {
+		else if (code == 439) {
 			//EXAMPLE: PircBotX: Target change too fast. Please wait 104 seconds
 			// No action required.
-		} else if (configuration.isCapEnabled() && code.equals("451") && target.equals("CAP")) {
+		} else if (code == ERR_NOTREGISTERED && configuration.isCapEnabled() && target.equals("CAP")) {
 			//EXAMPLE: 451 CAP :You have not registered
 			//Ignore, this is from servers that don't support CAP
-		} else if (code.startsWith("5") || code.startsWith("4"))
+		} else if (code >= 400 && code < 600)
 			throw new IrcException(IrcException.Reason.CannotLogin, "Received error: " + rawLine);
-		else if (code.equals("670")) {
+		else if (code == 670) {
 			//Server is saying that we can upgrade to TLS
 			SSLSocketFactory sslSocketFactory = ((SSLSocketFactory) SSLSocketFactory.getDefault());
 			for (CapHandler curCapHandler : configuration.getCapHandlers())
@@ -258,7 +502,7 @@ public class InputParser implements Closeable {
 			//Notify CAP Handlers
 			for (CapHandler curCapHandler : configuration.getCapHandlers())
 				curCapHandler.handleUnknown(bot, rawLine);
-		} else if (code.equals("CAP")) {
+		} else if (code == -1 && command.equals("CAP")) {
 			//Handle CAP Code; remove extra from params
 			String capCommand = parsedLine.get(1);
 			ImmutableList<String> capParams = ImmutableList.copyOf(StringUtils.split(parsedLine.get(2)));
@@ -303,93 +547,427 @@ public class InputParser implements Closeable {
 	}
 
 	public void processCommand(String target, String sourceNick, String sourceLogin, String sourceHostname, String command, String line, List<String> parsedLine) throws IOException {
-		User source = bot.getUserChannelDao().getUser(sourceNick);
+		CommandHandler handler = commandHandlers.get(command);
+		if (handler == null) {
+			// If we reach this point, then we've found something that the PircBotX
+			// Doesn't currently deal with.
+			if (hasListeners(UnknownEvent.class))
+				configuration.getListenerManager().dispatchEvent(new UnknownEvent<PircBotX>(bot, line));
+			return;
+		}
+
+		User source = bot.getUserChannelDao().getSourceUser(sourceNick);
 		//If the channel matches a prefix, then its a channel
 		Channel channel = (target.length() != 0 && configuration.getChannelPrefixes().indexOf(target.charAt(0)) >= 0) ? bot.getUserChannelDao().getChannel(target) : null;
 		String message = parsedLine.size() >= 2 ? parsedLine.get(1) : "";
+		handler.handleCommand(this, target, sourceNick, sourceLogin, sourceHostname, source, channel, message, line, parsedLine);
+	}
+
+	/**
+	 * This method is called by the PircBotX when a numeric response
+	 * is received from the IRC server. We use this method to
+	 * allow PircBotX to process various responses from the server
+	 * before then passing them on to the onServerResponse method.
+	 * <p>
+	 * Note that this method is private and should not appear in any
+	 * of the javadoc generated documentation.
+	 *
+	 * @param code The three-digit numerical code for the response.
+	 * @param response The full response from the IRC server.
+	 */
+	public void processServerResponse(int code, String rawResponse, List<String> parsedResponse) {
+		if (parsedResponse == null)
+			throw new IllegalArgumentException("Can't process null response");
+		ServerResponseHandler handler = (code >= 0 && code < serverResponseHandlers.length) ? serverResponseHandlers[code] : null;
+		boolean dispatch = hasListeners(ServerResponseEvent.class);
+		if (handler == null && !dispatch)
+			return;
+
+		//Parsed response format: Everything after code
+		//eg: Response 321 Channel :Users Name gives us [Channel, Users Name]
+		//Handlers get the list as is, it's only copied for listeners
+		if (handler != null)
+			handler.handleServerResponse(this, code, rawResponse, parsedResponse);
+		if (dispatch)
+			configuration.getListenerManager().dispatchEvent(new ServerResponseEvent<PircBotX>(bot, code, rawResponse, ImmutableList.copyOf(parsedResponse)));
+	}
+
+	/**
+	 * Called when the mode of a channel is set. We process this in
+	 * order to call the appropriate onOp, onDeop, etc method before
+	 * finally calling the override-able onMode method.
+	 * <p>
+	 * Note that this method is private and is not intended to appear
+	 * in the javadoc generated documentation.
+	 *
+	 * @param target The channel or nick that the mode operation applies to.
+	 * @param sourceNick The nick of the user that set the mode.
+	 * @param sourceLogin The login of the user that set the mode.
+	 * @param sourceHostname The hostname of the user that set the mode.
+	 * @param mode The mode that has been set.
+	 */
+	public void processMode(User user, String target, String mode) {
+		if (configuration.getChannelPrefixes().indexOf(target.charAt(0)) >= 0) {
+			// The mode of a channel is being changed.
+			Channel channel = bot.getUserChannelDao().getChannel(target);
+			Iterator<String> params = Iterators.forArray(StringUtils.split(mode, ' '));
+
+			//Level changes are applied together before any event is dispatched
+			UserChannelDao.Batch<User, Channel> batch = bot.getUserChannelDao().createBatch(4);
+			List<Event> modeEvents = new ArrayList<Event>();
+
+			//Process modes letter by letter, CHANMODES and PREFIX decide which take a parameter
+			boolean adding = true;
+			String modeLetters = params.next();
+			for (int i = 0; i < modeLetters.length(); i++) {
+				char curModeChar = modeLetters.charAt(i);
+
+				if (curModeChar == '+') {
+					adding = true;
+					continue;
+				} else if (curModeChar == '-') {
+					adding = false;
+					continue;
+				}
+				ChannelModeType modeType = bot.getServerInfo().getChannelModeType(curModeChar);
+				String parameter = (modeType.hasParameter(adding) && params.hasNext()) ? params.next() : null;
+				if (modeType.isChannelSetting())
+					channel.updateMode(curModeChar, adding, parameter);
+
+				if (modeType == ChannelModeType.USER_LEVEL) {
+					if (parameter == null)
+						continue;
+					User recipient = batch.getUser(parameter);
+					if (curModeChar == 'o') {
+						if (adding)
+							batch.addUserToLevel(UserLevel.OP, recipient, channel);
+						else
+							batch.removeUserFromLevel(UserLevel.OP, recipient, channel);
+						if (hasListeners(OpEvent.class))
+							modeEvents.add(new OpEvent<PircBotX>(bot, channel, user, recipient, adding));
+					} else if (curModeChar == 'v') {
+						if (adding)
+							batch.addUserToLevel(UserLevel.VOICE, recipient, channel);
+						else
+							batch.removeUserFromLevel(UserLevel.VOICE, recipient, channel);
+						if (hasListeners(VoiceEvent.class))
+							modeEvents.add(new VoiceEvent<PircBotX>(bot, channel, user, recipient, adding));
+					} else if (curModeChar == 'h') {
+						//Half-op change
+						if (adding)
+							batch.addUserToLevel(UserLevel.HALFOP, recipient, channel);
+						else
+							batch.removeUserFromLevel(UserLevel.HALFOP, recipient, channel);
+						if (hasListeners(HalfOpEvent.class))
+							modeEvents.add(new HalfOpEvent<PircBotX>(bot, channel, user, recipient, adding));
+					} else if (curModeChar == 'a') {
+						//SuperOp change
+						if (adding)
+							batch.addUserToLevel(UserLevel.SUPEROP, recipient, channel);
+						else
+							batch.removeUserFromLevel(UserLevel.SUPEROP, recipient, channel);
+						if (hasListeners(SuperOpEvent.class))
+							modeEvents.add(new SuperOpEvent<PircBotX>(bot, channel, user, recipient, adding));
+					} else if (curModeChar == 'q') {
+						//Owner change
+						if (adding)
+							batch.addUserToLevel(UserLevel.OWNER, recipient, channel);
+						else
+							batch.removeUserFromLevel(UserLevel.OWNER, recipient, channel);
+						if (hasListeners(OwnerEvent.class))
+							modeEvents.add(new OwnerEvent<PircBotX>(bot, channel, user, recipient, adding));
+					}
+				} else if (curModeChar == 'k') {
+					if (adding) {
+						if (hasListeners(SetChannelKeyEvent.class))
+							modeEvents.add(new SetChannelKeyEvent<PircBotX>(bot, channel, user, parameter));
+					} else if (hasListeners(RemoveChannelKeyEvent.class))
+						modeEvents.add(new RemoveChannelKeyEvent<PircBotX>(bot, channel, user, parameter));
+				} else if (curModeChar == 'l') {
+					if (adding) {
+						if (hasListeners(SetChannelLimitEvent.class))
+							modeEvents.add(new SetChannelLimitEvent<PircBotX>(bot, channel, user, channel.getChannelLimit()));
+					} else if (hasListeners(RemoveChannelLimitEvent.class))
+						modeEvents.add(new RemoveChannelLimitEvent<PircBotX>(bot, channel, user));
+				} else if (curModeChar == 'b') {
+					if (adding) {
+						if (hasListeners(SetChannelBanEvent.class))
+							modeEvents.add(new SetChannelBanEvent<PircBotX>(bot, channel, user, parameter));
+					} else if (hasListeners(RemoveChannelBanEvent.class))
+						modeEvents.add(new RemoveChannelBanEvent<PircBotX>(bot, channel, user, parameter));
+				} else if (curModeChar == 't') {
+					if (adding) {
+						if (hasListeners(SetTopicProtectionEvent.class))
+							modeEvents.add(new SetTopicProtectionEvent<PircBotX>(bot, channel, user));
+					} else if (hasListeners(RemoveTopicProtectionEvent.class))
+						modeEvents.add(new RemoveTopicProtectionEvent<PircBotX>(bot, channel, user));
+				} else if (curModeChar == 'n') {
+					if (adding) {
+						if (hasListeners(SetNoExternalMessagesEvent.class))
+							modeEvents.add(new SetNoExternalMessagesEvent<PircBotX>(bot, channel, user));
+					} else if (hasListeners(RemoveNoExternalMessagesEvent.class))
+						modeEvents.add(new RemoveNoExternalMessagesEvent<PircBotX>(bot, channel, user));
+				} else if (curModeChar == 'i') {
+					if (adding) {
+						if (hasListeners(SetInviteOnlyEvent.class))
+							modeEvents.add(new SetInviteOnlyEvent<PircBotX>(bot, channel, user));
+					} else if (hasListeners(RemoveInviteOnlyEvent.class))
+						modeEvents.add(new RemoveInviteOnlyEvent<PircBotX>(bot, channel, user));
+				} else if (curModeChar == 'm') {
+					if (adding) {
+						if (hasListeners(SetModeratedEvent.class))
+							modeEvents.add(new SetModeratedEvent<PircBotX>(bot, channel, user));
+					} else if (hasListeners(RemoveModeratedEvent.class))
+						modeEvents.add(new RemoveModeratedEvent<PircBotX>(bot, channel, user));
+				} else if (curModeChar == 'p') {
+					if (adding) {
+						if (hasListeners(SetPrivateEvent.class))
+							modeEvents.add(new SetPrivateEvent<PircBotX>(bot, channel, user));
+					} else if (hasListeners(RemovePrivateEvent.class))
+						modeEvents.add(new RemovePrivateEvent<PircBotX>(bot, channel, user));
+				} else if (curModeChar == 's') {
+					if (adding) {
+						if (hasListeners(SetSecretEvent.class))
+							modeEvents.add(new SetSecretEvent<PircBotX>(bot, channel, user));
+					} else if (hasListeners(RemoveSecretEvent.class))
+						modeEvents.add(new RemoveSecretEvent<PircBotX>(bot, channel, user));
+				}
+			}
+			if (hasListeners(ModeEvent.class))
+				modeEvents.add(new ModeEvent<PircBotX>(bot, channel, user, mode));
+			batch.apply();
+			for (Event curEvent : modeEvents)
+				configuration.getListenerManager().dispatchEvent(curEvent);
+		} else if (hasListeners(UserModeEvent.class))
+			// The mode of a user is being changed.
+			configuration.getListenerManager().dispatchEvent(new UserModeEvent<PircBotX>(bot, user, bot.getUserChannelDao().getSourceUser(target), mode));
+	}
+
+	public void processUserStatus(Channel chan, User user, String prefix) {
+		UserChannelDao.Batch<User, Channel> batch = bot.getUserChannelDao().createBatch(1);
+		processUserStatus(batch, chan, user, prefix);
+		batch.apply();
+	}
+
+	/**
+	 * Add the levels and away and ircop status from a WHO reply's status flags
+	 * @param batch The batch to add level changes to
+	 */
+	public void processUserStatus(UserChannelDao.Batch<User, Channel> batch, Channel chan, User user, String prefix) {
+		if (prefix.contains("@"))
+			batch.addUserToLevel(UserLevel.OP, user, chan);
+		if (prefix.contains("+"))
+			batch.addUserToLevel(UserLevel.VOICE, user, chan);
+		if (prefix.contains("%"))
+			batch.addUserToLevel(UserLevel.HALFOP, user, chan);
+		if (prefix.contains("~"))
+			batch.addUserToLevel(UserLevel.OWNER, user, chan);
+		if (prefix.contains("&"))
+			batch.addUserToLevel(UserLevel.SUPEROP, user, chan);
+		//Assume here (H) if there is no G
+		user.setAway(prefix.contains("G"));
+		user.setIrcop(prefix.contains("*"));
+	}
+
+	/**
+	 * Clear out builders.
+	 */
+	public void close() {
+		capEndSent = false;
+		capHandlersFinished.clear();
+		whoisBuilder.clear();
+		whoBatches.clear();
+		synchronized (lazySyncQueue) {
+			lazySyncQueue.clear();
+			lazySyncChannel = null;
+		}
+		motdBuilder = null;
+		channelListRunning = false;
+		channelListBuilder = null;
+	}
 
-		// Check for CTCP requests.
-		if (command.equals("PRIVMSG") && message.startsWith("\u0001") && message.endsWith("\u0001")) {
-			String request = message.substring(1, message.length() - 1);
-			if (request.equals("VERSION"))
-				// VERSION request
-				configuration.getListenerManager().dispatchEvent(new VersionEvent<PircBotX>(bot, source, channel));
-			else if (request.startsWith("ACTION "))
-				// ACTION request
-				configuration.getListenerManager().dispatchEvent(new ActionEvent<PircBotX>(bot, source, channel, request.substring(7)));
-			else if (request.startsWith("PING "))
-				// PING request
-				configuration.getListenerManager().dispatchEvent(new PingEvent<PircBotX>(bot, source, channel, request.substring(5)));
-			else if (request.equals("TIME"))
-				// TIME request
-				configuration.getListenerManager().dispatchEvent(new TimeEvent<PircBotX>(bot, channel, source));
-			else if (request.equals("FINGER"))
-				// FINGER request
-				configuration.getListenerManager().dispatchEvent(new FingerEvent<PircBotX>(bot, source, channel));
-			else if (request.startsWith("DCC ")) {
-				// This is a DCC request.
-				boolean success = bot.getDccHandler().processDcc(source, request);
-				if (!success)
-					// The DccManager didn't know what to do with the line.
+	/**
+	 * Handles a single command (eg PRIVMSG or JOIN) from a user. Add or replace
+	 * handlers with {@link Configuration.BotFactory#createCommandHandlers(org.pircbotx.PircBotX) }
+	 */
+	public static interface CommandHandler {
+		/**
+		 * Handle the command
+		 * @param parser The parser that received the line
+		 * @param target First parameter of the line without a leading :
+		 * @param sourceNick Nick of the user that sent the line
+		 * @param sourceLogin Login of the user that sent the line, can be empty
+		 * @param sourceHostname Hostname of the user that sent the line, can be empty
+		 * @param source The user that sent the line
+		 * @param channel The channel the line was sent to or null if target isn't a channel
+		 * @param message Second parameter of the line or an empty string
+		 * @param line Raw line from the server
+		 * @param parsedLine Parameters after the command
+		 */
+		public void handleCommand(InputParser parser, String target, String sourceNick, String sourceLogin, String sourceHostname,
+				User source, Channel channel, String message, String line, List<String> parsedLine) throws IOException;
+	}
+
+	/**
+	 * Handles a single numeric response from the server. Add or replace handlers
+	 * with {@link Configuration.BotFactory#createServerResponseHandlers(org.pircbotx.PircBotX) }.
+	 * Afterwards a {@link ServerResponseEvent} is dispatched, but only if a 
+	 * listener handles it
+	 */
+	public static interface ServerResponseHandler {
+		/**
+		 * Handle the response
+		 * @param parser The parser that received the line
+		 * @param code The numeric code
+		 * @param rawResponse Raw line from the server
+		 * @param parsedResponse Parameters after the code. Read only, each 
+		 * parameter is copied out of the line when it's read
+		 */
+		public void handleServerResponse(InputParser parser, int code, String rawResponse, List<String> parsedResponse);
+	}
+	/**
+	 * Handles 004 and 005 server info lines
+	 */
+	protected static final ServerResponseHandler SERVER_INFO_HANDLER = new ServerResponseHandler() {
+		public void handleServerResponse(InputParser parser, int code, String rawResponse, List<String> parsedResponse) {
+			//Example: 004 PircBotX sendak.freenode.net ircd-seven-1.1.3 DOQRSZaghilopswz CFILMPQbcefgijklmnopqrstvz bkloveqjfI
+			//Server info line, remove ending comment and let ServerInfo class parse it
+			List<String> serverInfoResponse = parsedResponse;
+			int endCommentIndex = rawResponse.lastIndexOf(" :");
+			if (endCommentIndex > 1) {
+				String endComment = rawResponse.substring(endCommentIndex + 2);
+				int lastIndex = parsedResponse.size() - 1;
+				if (endComment.equals(parsedResponse.get(lastIndex)))
+					serverInfoResponse = parsedResponse.subList(0, lastIndex);
+			}
+			parser.bot.getServerInfo().parse(code, serverInfoResponse);
+			String caseMapping = parser.bot.getServerInfo().getCaseMapping();
+			if (caseMapping != null)
+				parser.bot.getUserChannelDao().setCaseMapping(CaseMapping.forName(caseMapping));
+		}
+	};
+	/**
+	 * Default command handlers, built once and copied by {@link Configuration.BotFactory#createCommandHandlers(org.pircbotx.PircBotX) }
+	 */
+	public static final ImmutableMap<String, CommandHandler> DEFAULT_COMMAND_HANDLERS = ImmutableMap.<String, CommandHandler>builder()
+			.put("PRIVMSG", new CommandHandler() {
+		public void handleCommand(InputParser parser, String target, String sourceNick, String sourceLogin, String sourceHostname,
+				User source, Channel channel, String message, String line, List<String> parsedLine) throws IOException {
+			PircBotX bot = parser.bot;
+			Configuration<PircBotX> configuration = parser.configuration;
+			// Check for CTCP requests.
+			if (message.startsWith("\u0001") && message.endsWith("\u0001")) {
+				String request = message.substring(1, message.length() - 1);
+				if (request.equals("VERSION"))
+					// VERSION request
+					configuration.getListenerManager().dispatchEvent(new VersionEvent<PircBotX>(bot, source, channel));
+				else if (request.startsWith("ACTION "))
+					// ACTION request
+					configuration.getListenerManager().dispatchEvent(new ActionEvent<PircBotX>(bot, source, channel, request.substring(7)));
+				else if (request.startsWith("PING "))
+					// PING request
+					configuration.getListenerManager().dispatchEvent(new PingEvent<PircBotX>(bot, source, channel, request.substring(5)));
+				else if (request.equals("TIME"))
+					// TIME request
+					configuration.getListenerManager().dispatchEvent(new TimeEvent<PircBotX>(bot, channel, source));
+				else if (request.equals("FINGER"))
+					// FINGER request
+					configuration.getListenerManager().dispatchEvent(new FingerEvent<PircBotX>(bot, source, channel));
+				else if (request.startsWith("DCC ")) {
+					// This is a DCC request.
+					boolean success = bot.getDccHandler().processDcc(source, request);
+					if (!success)
+						// The DccManager didn't know what to do with the line.
+						configuration.getListenerManager().dispatchEvent(new UnknownEvent<PircBotX>(bot, line));
+				} else
+					// An unknown CTCP message - ignore it.
 					configuration.getListenerManager().dispatchEvent(new UnknownEvent<PircBotX>(bot, line));
-			} else
-				// An unknown CTCP message - ignore it.
-				configuration.getListenerManager().dispatchEvent(new UnknownEvent<PircBotX>(bot, line));
-		} else if (command.equals("PRIVMSG") && channel != null)
-			// This is a normal message to a channel.
-			configuration.getListenerManager().dispatchEvent(new MessageEvent<PircBotX>(bot, channel, source, message));
-		else if (command.equals("PRIVMSG")) {
-			// This is a private message to us.
-			//Add to private message
-			bot.getUserChannelDao().addUserToPrivate(source);
-			configuration.getListenerManager().dispatchEvent(new PrivateMessageEvent<PircBotX>(bot, source, message));
-		} else if (command.equals("JOIN")) {
-			// Someone is joining a channel.
-			if (sourceNick.equalsIgnoreCase(bot.getNick())) {
-				//Its us, get channel info
-				bot.sendRaw().rawLine("WHO " + target);
-				bot.sendRaw().rawLine("MODE " + target);
+			} else if (channel != null) {
+				// This is a normal message to a channel.
+				if (parser.hasListeners(MessageEvent.class))
+					configuration.getListenerManager().dispatchEvent(new MessageEvent<PircBotX>(bot, channel, source, message));
+			} else {
+				// This is a private message to us.
+				//Keep using the same user for their following private lines
+				bot.getUserChannelDao().addUserToPrivate(source);
+				if (parser.hasListeners(PrivateMessageEvent.class))
+					configuration.getListenerManager().dispatchEvent(new PrivateMessageEvent<PircBotX>(bot, source, message));
 			}
-			source.setLogin(sourceLogin);
-			source.setHostmask(sourceHostname);
+		}
+	}).put("JOIN", new CommandHandler() {
+		public void handleCommand(InputParser parser, String target, String sourceNick, String sourceLogin, String sourceHostname,
+				User source, Channel channel, String message, String line, List<String> parsedLine) throws IOException {
+			PircBotX bot = parser.bot;
+			// Someone is joining a channel.
+			if (bot.getUserChannelDao().getCaseMapping().equalsIgnoreCase(sourceNick, bot.getNick())
+					&& parser.configuration.getChannelSyncPolicy(target, bot.getUserChannelDao().getCaseMapping()) == ChannelSyncPolicy.EAGER)
+				//Its us, get channel info now unless its synced later or never
+				parser.syncChannel(target);
+			source.setLogin(parser.intern(sourceLogin));
+			source.setHostmask(parser.intern(sourceHostname));
 			bot.getUserChannelDao().addUserToChannel(source, channel);
-			configuration.getListenerManager().dispatchEvent(new JoinEvent<PircBotX>(bot, channel, source));
-		} else if (command.equals("PART")) {
+			if (parser.hasListeners(JoinEvent.class))
+				parser.configuration.getListenerManager().dispatchEvent(new JoinEvent<PircBotX>(bot, channel, source));
+		}
+	}).put("PART", new CommandHandler() {
+		public void handleCommand(InputParser parser, String target, String sourceNick, String sourceLogin, String sourceHostname,
+				User source, Channel channel, String message, String line, List<String> parsedLine) throws IOException {
+			PircBotX bot = parser.bot;
 			// Someone is parting from a channel.
-			UserChannelDaoSnapshot daoSnapshot = bot.getUserChannelDao().createSnapshot();
-			ChannelSnapshot channelSnapshot = daoSnapshot.getChannel(channel.getName());
-			UserSnapshot sourceSnapshot = daoSnapshot.getUser(source.getNick());
+			//Only snapshot if someone will receive the snapshot
+			boolean dispatch = parser.hasListeners(PartEvent.class);
+			UserChannelDaoSnapshot daoSnapshot = dispatch ? bot.getUserChannelDao().createSnapshot(ImmutableList.of(channel)) : null;
 			if (sourceNick.equals(bot.getNick()))
 				//We parted the channel
 				bot.getUserChannelDao().removeChannel(channel);
 			else
 				//Just remove the user from memory
 				bot.getUserChannelDao().removeUserFromChannel(source, channel);
-			configuration.getListenerManager().dispatchEvent(new PartEvent<PircBotX>(bot, daoSnapshot, channelSnapshot, sourceSnapshot, message));
-		} else if (command.equals("NICK")) {
+			if (dispatch)
+				parser.configuration.getListenerManager().dispatchEvent(new PartEvent<PircBotX>(bot, daoSnapshot,
+						daoSnapshot.getChannel(channel.getName()), daoSnapshot.getUser(source.getNick()), message));
+		}
+	}).put("NICK", new CommandHandler() {
+		public void handleCommand(InputParser parser, String target, String sourceNick, String sourceLogin, String sourceHostname,
+				User source, Channel channel, String message, String line, List<String> parsedLine) throws IOException {
+			PircBotX bot = parser.bot;
 			// Somebody is changing their nick.
 			String newNick = target;
 			bot.getUserChannelDao().renameUser(source, newNick);
 			if (sourceNick.equals(bot.getNick()))
 				// Update our nick if it was us that changed nick.
 				bot.setNick(newNick);
-			configuration.getListenerManager().dispatchEvent(new NickChangeEvent<PircBotX>(bot, sourceNick, newNick, source));
-		} else if (command.equals("NOTICE"))
+			if (parser.hasListeners(NickChangeEvent.class))
+				parser.configuration.getListenerManager().dispatchEvent(new NickChangeEvent<PircBotX>(bot, sourceNick, newNick, source));
+		}
+	}).put("NOTICE", new CommandHandler() {
+		public void handleCommand(InputParser parser, String target, String sourceNick, String sourceLogin, String sourceHostname,
+				User source, Channel channel, String message, String line, List<String> parsedLine) throws IOException {
 			// Someone is sending a notice.
-			configuration.getListenerManager().dispatchEvent(new NoticeEvent<PircBotX>(bot, source, channel, message));
-		else if (command.equals("QUIT")) {
-			UserChannelDaoSnapshot daoSnapshot = bot.getUserChannelDao().createSnapshot();
-			UserSnapshot sourceSnapshot = daoSnapshot.getUser(source.getNick());
+			if (parser.hasListeners(NoticeEvent.class))
+				parser.configuration.getListenerManager().dispatchEvent(new NoticeEvent<PircBotX>(parser.bot, source, channel, message));
+		}
+	}).put("QUIT", new CommandHandler() {
+		public void handleCommand(InputParser parser, String target, String sourceNick, String sourceLogin, String sourceHostname,
+				User source, Channel channel, String message, String line, List<String> parsedLine) throws IOException {
+			PircBotX bot = parser.bot;
+			boolean dispatch = parser.hasListeners(QuitEvent.class);
+			UserChannelDaoSnapshot daoSnapshot = dispatch ? bot.getUserChannelDao().createSnapshot(source.getChannels()) : null;
 			//A real target is missing, so index is off
 			String reason = target;
 			// Someone has quit from the IRC server.
 			if (!sourceNick.equals(bot.getNick()))
 				//Someone else
 				bot.getUserChannelDao().removeUser(source);
-			configuration.getListenerManager().dispatchEvent(new QuitEvent<PircBotX>(bot, daoSnapshot, sourceSnapshot, reason));
-		} else if (command.equals("KICK")) {
-			// Somebody has been kicked from a channel.
-			User recipient = bot.getUserChannelDao().getUser(message);
+			if (dispatch)
+				parser.configuration.getListenerManager().dispatchEvent(new QuitEvent<PircBotX>(bot, daoSnapshot, daoSnapshot.getUser(source.getNick()), reason));
+		}
+	}).put("KICK", new CommandHandler() {
+		public void handleCommand(InputParser parser, String target, String sourceNick, String sourceLogin, String sourceHostname,
+				User source, Channel channel, String message, String line, List<String> parsedLine) throws IOException {
+			PircBotX bot = parser.bot;
+			// Somebody has been kicked from a channel. Don't start tracking an unknown recipient
+			User recipient = bot.getUserChannelDao().getSourceUser(message);
 
 			if (recipient.getNick().equals(bot.getNick()))
 				//We were just kicked
@@ -397,14 +975,21 @@ public class InputParser implements Closeable {
 			else
 				//Someone else
 				bot.getUserChannelDao().removeUserFromChannel(recipient, channel);
-			configuration.getListenerManager().dispatchEvent(new KickEvent<PircBotX>(bot, channel, source, recipient, parsedLine.get(2)));
-		} else if (command.equals("MODE")) {
+			if (parser.hasListeners(KickEvent.class))
+				parser.configuration.getListenerManager().dispatchEvent(new KickEvent<PircBotX>(bot, channel, source, recipient, parsedLine.get(2)));
+		}
+	}).put("MODE", new CommandHandler() {
+		public void handleCommand(InputParser parser, String target, String sourceNick, String sourceLogin, String sourceHostname,
+				User source, Channel channel, String message, String line, List<String> parsedLine) throws IOException {
 			// Somebody is changing the mode on a channel or user (Use long form since mode isn't after a : )
 			String mode = line.substring(line.indexOf(target, 2) + target.length() + 1);
 			if (mode.startsWith(":"))
 				mode = mode.substring(1);
-			processMode(source, target, mode);
-		} else if (command.equals("TOPIC")) {
+			parser.processMode(source, target, mode);
+		}
+	}).put("TOPIC", new CommandHandler() {
+		public void handleCommand(InputParser parser, String target, String sourceNick, String sourceLogin, String sourceHostname,
+				User source, Channel channel, String message, String line, List<String> parsedLine) throws IOException {
 			// Someone is changing the topic.
 			long currentTime = System.currentTimeMillis();
 			String oldTopic = channel.getTopic();
@@ -412,141 +997,238 @@ public class InputParser implements Closeable {
 			channel.setTopicSetter(sourceNick);
 			channel.setTopicTimestamp(currentTime);
 
-			configuration.getListenerManager().dispatchEvent(new TopicEvent<PircBotX>(bot, channel, oldTopic, message, source, currentTime, true));
-		} else if (command.equals("INVITE")) {
+			if (parser.hasListeners(TopicEvent.class))
+				parser.configuration.getListenerManager().dispatchEvent(new TopicEvent<PircBotX>(parser.bot, channel, oldTopic, message, source, currentTime, true));
+		}
+	}).put("INVITE", new CommandHandler() {
+		public void handleCommand(InputParser parser, String target, String sourceNick, String sourceLogin, String sourceHostname,
+				User source, Channel channel, String message, String line, List<String> parsedLine) throws IOException {
+			PircBotX bot = parser.bot;
 			// Somebody is inviting somebody else into a channel.
 			//Use line method instead of channel since channel is wrong
-			configuration.getListenerManager().dispatchEvent(new InviteEvent<PircBotX>(bot, sourceNick, message));
-			if (bot.getUserChannelDao().getChannels(source).isEmpty())
-				bot.getUserChannelDao().removeUser(source);
-		} else
-			// If we reach this point, then we've found something that the PircBotX
-			// Doesn't currently deal with.
-			configuration.getListenerManager().dispatchEvent(new UnknownEvent<PircBotX>(bot, line));
-	}
-
+			if (parser.hasListeners(InviteEvent.class))
+				parser.configuration.getListenerManager().dispatchEvent(new InviteEvent<PircBotX>(bot, sourceNick, message));
+		}
+	}).build();
 	/**
-	 * This method is called by the PircBotX when a numeric response
-	 * is received from the IRC server. We use this method to
-	 * allow PircBotX to process various responses from the server
-	 * before then passing them on to the onServerResponse method.
-	 * <p>
-	 * Note that this method is private and should not appear in any
-	 * of the javadoc generated documentation.
-	 *
-	 * @param code The three-digit numerical code for the response.
-	 * @param response The full response from the IRC server.
+	 * Default numeric handlers, built once and copied by {@link Configuration.BotFactory#createServerResponseHandlers(org.pircbotx.PircBotX) }
 	 */
-	public void processServerResponse(int code, String rawResponse, List<String> parsedResponseOrig) {
-		ImmutableList<String> parsedResponse = ImmutableList.copyOf(parsedResponseOrig);
-		if (parsedResponse == null)
-			throw new IllegalArgumentException("Can't process null response");
-		//Parsed response format: Everything after code
-		//eg: Response 321 Channel :Users Name gives us [Channel, Users Name]
-		if (code == RPL_LISTSTART) {
+	public static final ImmutableMap<Integer, ServerResponseHandler> DEFAULT_SERVER_RESPONSE_HANDLERS = ImmutableMap.<Integer, ServerResponseHandler>builder()
+			.put(RPL_LISTSTART, new ServerResponseHandler() {
+		public void handleServerResponse(InputParser parser, int code, String rawResponse, List<String> parsedResponse) {
 			//EXAMPLE: 321 Channel :Users Name (actual text)
 			//A channel list is about to be sent
-			channelListBuilder = ImmutableList.builder();
-			channelListRunning = true;
-		} else if (code == RPL_LIST) {
+			parser.channelListBuilder = ImmutableList.builder();
+			parser.channelListRunning = true;
+		}
+	}).put(RPL_LIST, new ServerResponseHandler() {
+		public void handleServerResponse(InputParser parser, int code, String rawResponse, List<String> parsedResponse) {
 			//This is part of a full channel listing as part of /LIST
 			//EXAMPLE: 322 lordquackstar #xomb 12 :xomb exokernel project @ www.xomb.org
 			String channel = parsedResponse.get(1);
 			int userCount = Utils.tryParseInt(parsedResponse.get(2), -1);
 			String topic = parsedResponse.get(3);
-			channelListBuilder.add(new ChannelListEntry(channel, userCount, topic));
-		} else if (code == RPL_LISTEND) {
+			parser.channelListBuilder.add(new ChannelListEntry(channel, userCount, topic));
+		}
+	}).put(RPL_LISTEND, new ServerResponseHandler() {
+		public void handleServerResponse(InputParser parser, int code, String rawResponse, List<String> parsedResponse) {
 			//EXAMPLE: 323 :End of /LIST
 			//End of channel list, dispatch event
-			configuration.getListenerManager().dispatchEvent(new ChannelInfoEvent<PircBotX>(bot, channelListBuilder.build()));
-			channelListBuilder = null;
-			channelListRunning = false;
-		} else if (code == RPL_TOPIC) {
+			parser.configuration.getListenerManager().dispatchEvent(new ChannelInfoEvent<PircBotX>(parser.bot, parser.channelListBuilder.build()));
+			parser.channelListBuilder = null;
+			parser.channelListRunning = false;
+		}
+	}).put(RPL_TOPIC, new ServerResponseHandler() {
+		public void handleServerResponse(InputParser parser, int code, String rawResponse, List<String> parsedResponse) {
 			//EXAMPLE: 332 PircBotX #aChannel :I'm some random topic
 			//This is topic about a channel we've just joined. From /JOIN or /TOPIC
-			Channel channel = bot.getUserChannelDao().getChannel(parsedResponse.get(1));
+			Channel channel = parser.bot.getUserChannelDao().getChannel(parsedResponse.get(1));
 			String topic = parsedResponse.get(2);
 
 			channel.setTopic(topic);
-		} else if (code == RPL_TOPICINFO) {
+		}
+	}).put(RPL_TOPICINFO, new ServerResponseHandler() {
+		public void handleServerResponse(InputParser parser, int code, String rawResponse, List<String> parsedResponse) {
 			//EXAMPLE: 333 PircBotX #aChannel ISetTopic 1564842512
 			//This is information on the topic of the channel we've just joined. From /JOIN or /TOPIC
+			PircBotX bot = parser.bot;
 			Channel channel = bot.getUserChannelDao().getChannel(parsedResponse.get(1));
-			User setBy = bot.getUserChannelDao().getUser(parsedResponse.get(2));
+			User setBy = bot.getUserChannelDao().getSourceUser(parsedResponse.get(2));
 			long date = Utils.tryParseLong(parsedResponse.get(3), -1);
 
 			channel.setTopicTimestamp(date * 1000);
 			channel.setTopicSetter(setBy.getNick());
 
-			configuration.getListenerManager().dispatchEvent(new TopicEvent<PircBotX>(bot, channel, null, channel.getTopic(), setBy, date, false));
-		} else if (code == RPL_WHOREPLY) {
+			parser.configuration.getListenerManager().dispatchEvent(new TopicEvent<PircBotX>(bot, channel, null, channel.getTopic(), setBy, date, false));
+		}
+	}).put(RPL_WHOREPLY, new ServerResponseHandler() {
+		public void handleServerResponse(InputParser parser, int code, String rawResponse, List<String> parsedResponse) {
 			//EXAMPLE: 352 PircBotX #aChannel ~someName 74.56.56.56.my.Hostmask wolfe.freenode.net someNick H :0 Full Name
 			//Part of a WHO reply on information on individual users
+			PircBotX bot = parser.bot;
 			Channel channel = bot.getUserChannelDao().getChannel(parsedResponse.get(1));
+			UserChannelDao.Batch<User, Channel> batch = parser.getWhoBatch(channel);
+
+			//Setup user, the dao is told about the changes when the batch is applied
+			User curUser = batch.getUser(parsedResponse.get(5));
+			batch.beginUserUpdate(curUser);
+			try {
+				curUser.setLogin(parser.intern(parsedResponse.get(2)));
+				curUser.setHostmask(parser.intern(parsedResponse.get(3)));
+				curUser.setServer(parser.intern(parsedResponse.get(4)));
+				curUser.setNick(parsedResponse.get(5));
+				parser.processUserStatus(batch, channel, curUser, parsedResponse.get(6));
+				//Extra parsing needed since tokenizer stopped at :
+				String rawEnding = parsedResponse.get(7);
+				int rawEndingSpaceIndex = rawEnding.indexOf(' ');
+				curUser.setHops(Integer.parseInt(rawEnding.substring(0, rawEndingSpaceIndex)));
+				curUser.setRealName(parser.intern(rawEnding.substring(rawEndingSpaceIndex + 1)));
+			} finally {
+				batch.endUserUpdate(curUser);
+			}
 
-			//Setup user
-			User curUser = bot.getUserChannelDao().getUser(parsedResponse.get(5));
-			curUser.setLogin(parsedResponse.get(2));
-			curUser.setHostmask(parsedResponse.get(3));
-			curUser.setServer(parsedResponse.get(4));
-			curUser.setNick(parsedResponse.get(5));
-			processUserStatus(channel, curUser, parsedResponse.get(6));
-			//Extra parsing needed since tokenizer stopped at :
-			String rawEnding = parsedResponse.get(7);
-			int rawEndingSpaceIndex = rawEnding.indexOf(' ');
-			curUser.setHops(Integer.parseInt(rawEnding.substring(0, rawEndingSpaceIndex)));
-			curUser.setRealName(rawEnding.substring(rawEndingSpaceIndex + 1));
-
-			//Associate with channel
-			bot.getUserChannelDao().addUserToChannel(curUser, channel);
-		} else if (code == RPL_ENDOFWHO) {
+			//Associate with channel once the whole reply is received
+			batch.addUserToChannel(curUser, channel);
+		}
+	}).put(RPL_WHOSPCRPL, new ServerResponseHandler() {
+		public void handleServerResponse(InputParser parser, int code, String rawResponse, List<String> parsedResponse) {
+			//EXAMPLE: 354 PircBotX 42 ~someName 74.56.56.56.my.Hostmask wolfe.freenode.net someNick H 0 :Full Name
+			//Reply to a WHOX query from sendChannelWho, only the requested fields are sent
+			String channelName = parser.whoXQueries.get(parsedResponse.get(1));
+			if (channelName == null || parsedResponse.size() < parser.whoXReplyFields.length + 2)
+				//Not our query
+				return;
+			PircBotX bot = parser.bot;
+			Channel channel = bot.getUserChannelDao().getChannel(channelName);
+			UserChannelDao.Batch<User, Channel> batch = parser.getWhoBatch(channel);
+
+			String login = null, hostmask = null, server = null, nick = null, status = null, hops = null, realName = null;
+			for (int i = 0; i < parser.whoXReplyFields.length; i++) {
+				String value = parsedResponse.get(i + 2);
+				switch (parser.whoXReplyFields[i]) {
+					case 'u':
+						login = value;
+						break;
+					case 'h':
+						hostmask = value;
+						break;
+					case 's':
+						server = value;
+						break;
+					case 'n':
+						nick = value;
+						break;
+					case 'f':
+						status = value;
+						break;
+					case 'd':
+						hops = value;
+						break;
+					case 'r':
+						realName = value;
+						break;
+				}
+			}
+
+			//Setup user with only the fields that were sent
+			User curUser = batch.getUser(nick);
+			batch.beginUserUpdate(curUser);
+			try {
+				if (login != null)
+					curUser.setLogin(parser.intern(login));
+				if (hostmask != null)
+					curUser.setHostmask(parser.intern(hostmask));
+				if (server != null)
+					curUser.setServer(parser.intern(server));
+				if (status != null)
+					parser.processUserStatus(batch, channel, curUser, status);
+				if (hops != null)
+					curUser.setHops(Utils.tryParseInt(hops, 0));
+				if (realName != null)
+					curUser.setRealName(parser.intern(realName));
+			} finally {
+				batch.endUserUpdate(curUser);
+			}
+
+			//Associate with channel once the whole reply is received
+			batch.addUserToChannel(curUser, channel);
+		}
+	}).put(RPL_ENDOFWHO, new ServerResponseHandler() {
+		public void handleServerResponse(InputParser parser, int code, String rawResponse, List<String> parsedResponse) {
 			//EXAMPLE: 315 PircBotX #aChannel :End of /WHO list
 			//End of the WHO reply
-			Channel channel = bot.getUserChannelDao().getChannel(parsedResponse.get(1));
-			configuration.getListenerManager().dispatchEvent(new UserListEvent<PircBotX>(bot, channel, bot.getUserChannelDao().getUsers(channel)));
-		} else if (code == RPL_CHANNELMODEIS) {
-			//EXAMPLE: 324 PircBotX #aChannel +cnt
+			PircBotX bot = parser.bot;
+			String target = parsedResponse.get(1);
+			//Replies don't overlap so every pending batch belongs to this WHO. Replies 
+			//to eg WHO someNick are batched under the channel in the 352, often *
+			for (UserChannelDao.Batch<User, Channel> curBatch : parser.whoBatches.values())
+				curBatch.apply();
+			parser.whoBatches.clear();
+			parser.removeWhoXQuery(target);
+			parser.finishChannelSync(target);
+			if (target.length() == 0 || parser.configuration.getChannelPrefixes().indexOf(target.charAt(0)) < 0)
+				//Not a channel, no user list to send
+				return;
+			Channel channel = bot.getUserChannelDao().getChannel(target);
+			if (parser.hasListeners(UserListEvent.class))
+				parser.configuration.getListenerManager().dispatchEvent(new UserListEvent<PircBotX>(bot, channel, bot.getUserChannelDao().getUsers(channel)));
+		}
+	}).put(ERR_NOSUCHCHANNEL, new ServerResponseHandler() {
+		public void handleServerResponse(InputParser parser, int code, String rawResponse, List<String> parsedResponse) {
+			//EXAMPLE: 403 PircBotX #aChannel :No such channel
+			//Some servers reply to WHO with this instead of an empty WHO reply
+			parser.finishChannelSync(parsedResponse.get(1));
+			parser.cancelModeRefresh(parsedResponse.get(1));
+		}
+	}).put(ERR_NOTONCHANNEL, new ServerResponseHandler() {
+		public void handleServerResponse(InputParser parser, int code, String rawResponse, List<String> parsedResponse) {
+			//EXAMPLE: 442 PircBotX #aChannel :You're not on that channel
+			parser.cancelModeRefresh(parsedResponse.get(1));
+		}
+	}).put(RPL_CHANNELMODEIS, new ServerResponseHandler() {
+		public void handleServerResponse(InputParser parser, int code, String rawResponse, List<String> parsedResponse) {
+			//EXAMPLE: 324 PircBotX #aChannel +cntkl key 10
 			//Full channel mode (In response to MODE <channel>)
-			Channel channel = bot.getUserChannelDao().getChannel(parsedResponse.get(1));
-			String mode = parsedResponse.get(2);
+			Channel channel = parser.bot.getUserChannelDao().getChannel(parsedResponse.get(1));
+			String mode = StringUtils.join(parsedResponse.subList(2, parsedResponse.size()), ' ');
 
 			channel.setMode(mode);
-			configuration.getListenerManager().dispatchEvent(new ModeEvent<PircBotX>(bot, channel, null, mode));
-		} else if (code == 329) {
+			if (parser.hasListeners(ModeEvent.class))
+				parser.configuration.getListenerManager().dispatchEvent(new ModeEvent<PircBotX>(parser.bot, channel, null, mode));
+		}
+	}).put(329, new ServerResponseHandler() {
+		public void handleServerResponse(InputParser parser, int code, String rawResponse, List<String> parsedResponse) {
 			//EXAMPLE: 329 lordquackstar #botters 1199140245
 			//Tells when channel was created. From /JOIN
-			Channel channel = bot.getUserChannelDao().getChannel(parsedResponse.get(1));
+			Channel channel = parser.bot.getUserChannelDao().getChannel(parsedResponse.get(1));
 			int createDate = Utils.tryParseInt(parsedResponse.get(2), -1);
 
 			//Set in channel
 			channel.setCreateTimestamp(createDate);
-		} else if (code == RPL_MOTDSTART)
+		}
+	}).put(RPL_MOTDSTART, new ServerResponseHandler() {
+		public void handleServerResponse(InputParser parser, int code, String rawResponse, List<String> parsedResponse) {
 			//Example: 375 PircBotX :- wolfe.freenode.net Message of the Day -
 			//Motd is starting, reset the StringBuilder
-			motdBuilder = new StringBuilder();
-		else if (code == RPL_MOTD)
+			parser.motdBuilder = new StringBuilder();
+		}
+	}).put(RPL_MOTD, new ServerResponseHandler() {
+		public void handleServerResponse(InputParser parser, int code, String rawResponse, List<String> parsedResponse) {
 			//Example: 372 PircBotX :- Welcome to wolfe.freenode.net in Manchester, England, Uk!  Thanks to
 			//This is part of the MOTD, add a new line
-			motdBuilder.append(CharMatcher.WHITESPACE.trimFrom(parsedResponse.get(1).substring(1))).append("\n");
-		else if (code == RPL_ENDOFMOTD) {
+			parser.motdBuilder.append(CharMatcher.WHITESPACE.trimFrom(parsedResponse.get(1).substring(1))).append("\n");
+		}
+	}).put(RPL_ENDOFMOTD, new ServerResponseHandler() {
+		public void handleServerResponse(InputParser parser, int code, String rawResponse, List<String> parsedResponse) {
 			//Example: PircBotX :End of /MOTD command.
 			//End of MOTD, clean it and dispatch MotdEvent
-			ServerInfo serverInfo = bot.getServerInfo();
-			serverInfo.setMotd(motdBuilder.toString().trim());
-			motdBuilder = null;
-			configuration.getListenerManager().dispatchEvent(new MotdEvent<PircBotX>(bot, (serverInfo.getMotd())));
-		} else if (code == 4 || code == 5) {
-			//Example: 004 PircBotX sendak.freenode.net ircd-seven-1.1.3 DOQRSZaghilopswz CFILMPQbcefgijklmnopqrstvz bkloveqjfI
-			//Server info line, remove ending comment and let ServerInfo class parse it
-			int endCommentIndex = rawResponse.lastIndexOf(" :");
-			if (endCommentIndex > 1) {
-				String endComment = rawResponse.substring(endCommentIndex + 2);
-				int lastIndex = parsedResponseOrig.size() - 1;
-				if (endComment.equals(parsedResponseOrig.get(lastIndex)))
-					parsedResponseOrig.remove(lastIndex);
-			}
-			bot.getServerInfo().parse(code, parsedResponseOrig);
-		} else if (code == RPL_WHOISUSER) {
+			ServerInfo serverInfo = parser.bot.getServerInfo();
+			serverInfo.setMotd(parser.motdBuilder.toString().trim());
+			parser.motdBuilder = null;
+			parser.configuration.getListenerManager().dispatchEvent(new MotdEvent<PircBotX>(parser.bot, (serverInfo.getMotd())));
+		}
+	}).put(4, SERVER_INFO_HANDLER).put(5, SERVER_INFO_HANDLER).put(RPL_WHOISUSER, new ServerResponseHandler() {
+		public void handleServerResponse(InputParser parser, int code, String rawResponse, List<String> parsedResponse) {
 			//Example: 311 TheLQ Plazma ~Plazma freenode/staff/plazma * :Plazma Rooolz!
 			//New whois is starting
 			String whoisNick = parsedResponse.get(1);
@@ -556,215 +1238,49 @@ public class InputParser implements Closeable {
 			builder.setLogin(parsedResponse.get(2));
 			builder.setHostname(parsedResponse.get(3));
 			builder.setRealname(parsedResponse.get(5));
-			whoisBuilder.put(whoisNick, builder);
-		} else if (code == RPL_WHOISCHANNELS) {
+			parser.whoisBuilder.put(whoisNick, builder);
+		}
+	}).put(RPL_WHOISCHANNELS, new ServerResponseHandler() {
+		public void handleServerResponse(InputParser parser, int code, String rawResponse, List<String> parsedResponse) {
 			//Example: 319 TheLQ Plazma :+#freenode
 			//Channel list from whois. Re-tokenize since they're after the :
 			String whoisNick = parsedResponse.get(1);
 			ImmutableList<String> parsedChannels = ImmutableList.copyOf(Utils.tokenizeLine(parsedResponse.get(2)));
 
-			whoisBuilder.get(whoisNick).setChannels(parsedChannels);
-		} else if (code == RPL_WHOISSERVER) {
+			parser.whoisBuilder.get(whoisNick).setChannels(parsedChannels);
+		}
+	}).put(RPL_WHOISSERVER, new ServerResponseHandler() {
+		public void handleServerResponse(InputParser parser, int code, String rawResponse, List<String> parsedResponse) {
 			//Server info from whois
 			//312 TheLQ Plazma leguin.freenode.net :Ume?, SE, EU
 			String whoisNick = parsedResponse.get(1);
 
-			whoisBuilder.get(whoisNick).setServer(parsedResponse.get(2));
-			whoisBuilder.get(whoisNick).setServerInfo(parsedResponse.get(3));
-		} else if (code == RPL_WHOISIDLE) {
+			parser.whoisBuilder.get(whoisNick).setServer(parsedResponse.get(2));
+			parser.whoisBuilder.get(whoisNick).setServerInfo(parsedResponse.get(3));
+		}
+	}).put(RPL_WHOISIDLE, new ServerResponseHandler() {
+		public void handleServerResponse(InputParser parser, int code, String rawResponse, List<String> parsedResponse) {
 			//Idle time from whois
 			//317 TheLQ md_5 6077 1347373349 :seconds idle, signon time
 			String whoisNick = parsedResponse.get(1);
 
-			whoisBuilder.get(whoisNick).setIdleSeconds(Long.parseLong(parsedResponse.get(2)));
-			whoisBuilder.get(whoisNick).setSignOnTime(Long.parseLong(parsedResponse.get(3)));
-		} else if (code == 330)
+			parser.whoisBuilder.get(whoisNick).setIdleSeconds(Long.parseLong(parsedResponse.get(2)));
+			parser.whoisBuilder.get(whoisNick).setSignOnTime(Long.parseLong(parsedResponse.get(3)));
+		}
+	}).put(330, new ServerResponseHandler() {
+		public void handleServerResponse(InputParser parser, int code, String rawResponse, List<String> parsedResponse) {
 			//RPL_WHOISACCOUNT: Extra Whois info
 			//330 TheLQ Utoxin Utoxin :is logged in as
-			whoisBuilder.get(parsedResponse.get(1)).setRegisteredAs(parsedResponse.get(2));
-		else if (code == RPL_ENDOFWHOIS) {
+			parser.whoisBuilder.get(parsedResponse.get(1)).setRegisteredAs(parsedResponse.get(2));
+		}
+	}).put(RPL_ENDOFWHOIS, new ServerResponseHandler() {
+		public void handleServerResponse(InputParser parser, int code, String rawResponse, List<String> parsedResponse) {
 			//End of whois
 			//318 TheLQ Plazma :End of /WHOIS list.
 			String whoisNick = parsedResponse.get(1);
 
-			configuration.getListenerManager().dispatchEvent(whoisBuilder.get(whoisNick).generateEvent(bot));
-			whoisBuilder.remove(whoisNick);
+			parser.configuration.getListenerManager().dispatchEvent(parser.whoisBuilder.get(whoisNick).generateEvent(parser.bot));
+			parser.whoisBuilder.remove(whoisNick);
 		}
-		configuration.getListenerManager().dispatchEvent(new ServerResponseEvent<PircBotX>(bot, code, rawResponse, parsedResponse));
-	}
-
-	/**
-	 * Called when the mode of a channel is set. We process this in
-	 * order to call the appropriate onOp, onDeop, etc method before
-	 * finally calling the override-able onMode method.
-	 * <p>
-	 * Note that this method is private and is not intended to appear
-	 * in the javadoc generated documentation.
-	 *
-	 * @param target The channel or nick that the mode operation applies to.
-	 * @param sourceNick The nick of the user that set the mode.
-	 * @param sourceLogin The login of the user that set the mode.
-	 * @param sourceHostname The hostname of the user that set the mode.
-	 * @param mode The mode that has been set.
-	 */
-	public void processMode(User user, String target, String mode) {
-		if (configuration.getChannelPrefixes().indexOf(target.charAt(0)) >= 0) {
-			// The mode of a channel is being changed.
-			Channel channel = bot.getUserChannelDao().getChannel(target);
-			channel.parseMode(mode);
-			Iterator<String> params = Iterators.forArray(StringUtils.split(mode, ' '));
-
-			//Process modes letter by letter, grabbing paramaters as needed
-			boolean adding = true;
-			String modeLetters = params.next();
-			for (int i = 0; i < modeLetters.length(); i++) {
-				char curModeChar = modeLetters.charAt(i);
-
-				if (curModeChar == '+')
-					adding = true;
-				else if (curModeChar == '-')
-					adding = false;
-				else if (curModeChar == 'o') {
-					User recipient = bot.getUserChannelDao().getUser(params.next());
-					if (adding) {
-						bot.getUserChannelDao().addUserToLevel(UserLevel.OP, recipient, channel);
-						configuration.getListenerManager().dispatchEvent(new OpEvent<PircBotX>(bot, channel, user, recipient, true));
-					} else {
-						bot.getUserChannelDao().removeUserFromLevel(UserLevel.OP, recipient, channel);
-						configuration.getListenerManager().dispatchEvent(new OpEvent<PircBotX>(bot, channel, user, recipient, false));
-					}
-				} else if (curModeChar == 'v') {
-					User recipient = bot.getUserChannelDao().getUser(params.next());
-					if (adding) {
-						bot.getUserChannelDao().addUserToLevel(UserLevel.VOICE, recipient, channel);
-						configuration.getListenerManager().dispatchEvent(new VoiceEvent<PircBotX>(bot, channel, user, recipient, true));
-					} else {
-						bot.getUserChannelDao().removeUserFromLevel(UserLevel.VOICE, recipient, channel);
-						configuration.getListenerManager().dispatchEvent(new VoiceEvent<PircBotX>(bot, channel, user, recipient, false));
-					}
-				} else if (curModeChar == 'h') {
-					//Half-op change
-					User recipient = bot.getUserChannelDao().getUser(params.next());
-					if (adding) {
-						bot.getUserChannelDao().addUserToLevel(UserLevel.HALFOP, recipient, channel);
-						configuration.getListenerManager().dispatchEvent(new HalfOpEvent<PircBotX>(bot, channel, user, recipient, true));
-					} else {
-						bot.getUserChannelDao().removeUserFromLevel(UserLevel.HALFOP, recipient, channel);
-						configuration.getListenerManager().dispatchEvent(new HalfOpEvent<PircBotX>(bot, channel, user, recipient, false));
-					}
-				} else if (curModeChar == 'a') {
-					//SuperOp change
-					User recipient = bot.getUserChannelDao().getUser(params.next());
-					if (adding) {
-						bot.getUserChannelDao().addUserToLevel(UserLevel.SUPEROP, recipient, channel);
-						configuration.getListenerManager().dispatchEvent(new SuperOpEvent<PircBotX>(bot, channel, user, recipient, true));
-					} else {
-						bot.getUserChannelDao().removeUserFromLevel(UserLevel.SUPEROP, recipient, channel);
-						configuration.getListenerManager().dispatchEvent(new SuperOpEvent<PircBotX>(bot, channel, user, recipient, false));
-					}
-				} else if (curModeChar == 'q') {
-					//Owner change
-					User recipient = bot.getUserChannelDao().getUser(params.next());
-					if (adding) {
-						bot.getUserChannelDao().addUserToLevel(UserLevel.OWNER, recipient, channel);
-						configuration.getListenerManager().dispatchEvent(new OwnerEvent<PircBotX>(bot, channel, user, recipient, true));
-					} else {
-						bot.getUserChannelDao().removeUserFromLevel(UserLevel.OWNER, recipient, channel);
-						configuration.getListenerManager().dispatchEvent(new OwnerEvent<PircBotX>(bot, channel, user, recipient, false));
-					}
-				} else if (curModeChar == 'k')
-					if (adding) {
-						String key = params.next();
-						channel.setChannelKey(key);
-						configuration.getListenerManager().dispatchEvent(new SetChannelKeyEvent<PircBotX>(bot, channel, user, key));
-					} else {
-						String key = params.hasNext() ? params.next() : null;
-						channel.setChannelKey(null);
-						configuration.getListenerManager().dispatchEvent(new RemoveChannelKeyEvent<PircBotX>(bot, channel, user, key));
-					}
-				else if (curModeChar == 'l')
-					if (adding) {
-						int limit = Integer.parseInt(params.next());
-						channel.setChannelLimit(limit);
-						configuration.getListenerManager().dispatchEvent(new SetChannelLimitEvent<PircBotX>(bot, channel, user, limit));
-					} else {
-						channel.setChannelLimit(-1);
-						configuration.getListenerManager().dispatchEvent(new RemoveChannelLimitEvent<PircBotX>(bot, channel, user));
-					}
-				else if (curModeChar == 'b')
-					if (adding)
-						configuration.getListenerManager().dispatchEvent(new SetChannelBanEvent<PircBotX>(bot, channel, user, params.next()));
-					else
-						configuration.getListenerManager().dispatchEvent(new RemoveChannelBanEvent<PircBotX>(bot, channel, user, params.next()));
-				else if (curModeChar == 't') {
-					channel.setTopicProtection(adding);
-					if (adding)
-						configuration.getListenerManager().dispatchEvent(new SetTopicProtectionEvent<PircBotX>(bot, channel, user));
-					else
-						configuration.getListenerManager().dispatchEvent(new RemoveTopicProtectionEvent<PircBotX>(bot, channel, user));
-				} else if (curModeChar == 'n') {
-					channel.setNoExternalMessages(adding);
-					if (adding)
-						configuration.getListenerManager().dispatchEvent(new SetNoExternalMessagesEvent<PircBotX>(bot, channel, user));
-					else
-						configuration.getListenerManager().dispatchEvent(new RemoveNoExternalMessagesEvent<PircBotX>(bot, channel, user));
-				} else if (curModeChar == 'i') {
-					channel.setInviteOnly(adding);
-					if (adding)
-						configuration.getListenerManager().dispatchEvent(new SetInviteOnlyEvent<PircBotX>(bot, channel, user));
-					else
-						configuration.getListenerManager().dispatchEvent(new RemoveInviteOnlyEvent<PircBotX>(bot, channel, user));
-				} else if (curModeChar == 'm') {
-					channel.setModerated(adding);
-					if (adding)
-						configuration.getListenerManager().dispatchEvent(new SetModeratedEvent<PircBotX>(bot, channel, user));
-					else
-						configuration.getListenerManager().dispatchEvent(new RemoveModeratedEvent<PircBotX>(bot, channel, user));
-				} else if (curModeChar == 'p') {
-					channel.setChannelPrivate(adding);
-					if (adding)
-						configuration.getListenerManager().dispatchEvent(new SetPrivateEvent<PircBotX>(bot, channel, user));
-					else
-						configuration.getListenerManager().dispatchEvent(new RemovePrivateEvent<PircBotX>(bot, channel, user));
-				} else if (curModeChar == 's') {
-					channel.setSecret(adding);
-					if (adding)
-						configuration.getListenerManager().dispatchEvent(new SetSecretEvent<PircBotX>(bot, channel, user));
-					else
-						configuration.getListenerManager().dispatchEvent(new RemoveSecretEvent<PircBotX>(bot, channel, user));
-				}
-			}
-			configuration.getListenerManager().dispatchEvent(new ModeEvent<PircBotX>(bot, channel, user, mode));
-		} else
-			// The mode of a user is being changed.
-			configuration.getListenerManager().dispatchEvent(new UserModeEvent<PircBotX>(bot, user, bot.getUserChannelDao().getUser(target), mode));
-	}
-
-	public void processUserStatus(Channel chan, User user, String prefix) {
-		if (prefix.contains("@"))
-			bot.getUserChannelDao().addUserToLevel(UserLevel.OP, user, chan);
-		if (prefix.contains("+"))
-			bot.getUserChannelDao().addUserToLevel(UserLevel.VOICE, user, chan);
-		if (prefix.contains("%"))
-			bot.getUserChannelDao().addUserToLevel(UserLevel.HALFOP, user, chan);
-		if (prefix.contains("~"))
-			bot.getUserChannelDao().addUserToLevel(UserLevel.OWNER, user, chan);
-		if (prefix.contains("&"))
-			bot.getUserChannelDao().addUserToLevel(UserLevel.SUPEROP, user, chan);
-		//Assume here (H) if there is no G
-		user.setAway(prefix.contains("G"));
-		user.setIrcop(prefix.contains("*"));
-	}
-
-	/**
-	 * Clear out builders.
-	 */
-	public void close() {
-		capEndSent = false;
-		capHandlersFinished.clear();
-		whoisBuilder.clear();
-		motdBuilder = null;
-		channelListRunning = false;
-		channelListBuilder = null;
-	}
+	}).build();
 }
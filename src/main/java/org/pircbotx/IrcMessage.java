@@ -0,0 +1,339 @@
+/**
+ * Copyright (C) 2010-2013 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of PircBotX.
+ *
+ * PircBotX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PircBotX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pircbotx;
+
+import com.google.common.base.CharMatcher;
+import java.nio.CharBuffer;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.Locale;
+import org.apache.commons.lang3.ArrayUtils;
+
+/**
+ * Parsed view of a raw IRC line. Instead of splitting the line into new strings
+ * only the offsets of the prefix, command, and parameters are recorded. Parts
+ * are returned as {@link CharSequence} views over the original line and only
+ * copied into strings when requested.
+ * <p>
+ * Tokenizing matches {@link Utils#tokenizeLine(java.lang.String) }: parameters
+ * are separated by a single space and everything after " :" is one parameter.
+ * <p>
+ * A single instance can be reused for every line by calling {@link #parse(java.lang.String) }
+ * again, so this class is not thread safe
+ * @author Leon Blakey <lord.quackstar at gmail.com>
+ */
+public class IrcMessage {
+	/**
+	 * Common commands that are returned without copying from {@link #getCommandString(java.util.Locale) }
+	 */
+	protected static final String[] KNOWN_COMMANDS = {"PRIVMSG", "NOTICE", "JOIN", "PART", "QUIT", "MODE",
+		"NICK", "KICK", "TOPIC", "INVITE", "PING", "PONG", "CAP", "ERROR"};
+	protected String line;
+	/**
+	 * Start and end of the trimmed line
+	 */
+	protected int lineStart;
+	protected int lineEnd;
+	/**
+	 * End of the prefix (exclusive) or -1 if there is no prefix. The prefix
+	 * starts after the leading ':'
+	 */
+	protected int prefixEnd;
+	/**
+	 * Position of ! and @ in a nick!login@host prefix or -1 if the prefix isn't
+	 * a full hostmask
+	 */
+	protected int exclamation;
+	protected int at;
+	protected int commandStart;
+	protected int commandEnd;
+	protected int[] paramStarts = new int[16];
+	protected int[] paramEnds = new int[16];
+	protected int paramCount;
+
+	/**
+	 * Parse the line, discarding any previously parsed line
+	 * @param line The raw line from the server
+	 * @return This object
+	 */
+	public IrcMessage parse(String line) {
+		if (line == null)
+			throw new IllegalArgumentException("Can't parse null line");
+		this.line = line;
+		lineStart = 0;
+		lineEnd = line.length();
+		while (lineStart < lineEnd && CharMatcher.WHITESPACE.matches(line.charAt(lineStart)))
+			lineStart++;
+		while (lineEnd > lineStart && CharMatcher.WHITESPACE.matches(line.charAt(lineEnd - 1)))
+			lineEnd--;
+		prefixEnd = exclamation = at = -1;
+		paramCount = 0;
+
+		int pos = lineStart;
+		if (pos < lineEnd && line.charAt(pos) == ':') {
+			prefixEnd = indexOfSpace(pos);
+			for (int i = pos + 1; i < prefixEnd; i++) {
+				char curChar = line.charAt(i);
+				if (curChar == '!' && exclamation == -1)
+					exclamation = i;
+				else if (curChar == '@' && at == -1)
+					at = i;
+			}
+			if (exclamation == -1 || at <= exclamation)
+				exclamation = at = -1;
+			pos = Math.min(prefixEnd + 1, lineEnd);
+		}
+
+		commandStart = pos;
+		commandEnd = indexOfSpace(pos);
+		pos = commandEnd + 1;
+		while (pos <= lineEnd && commandEnd < lineEnd) {
+			if (pos < lineEnd && line.charAt(pos) == ':') {
+				//Everything after : is a single parameter
+				addParam(pos + 1, lineEnd);
+				break;
+			}
+			int end = indexOfSpace(pos);
+			addParam(pos, end);
+			pos = end + 1;
+		}
+		return this;
+	}
+
+	protected int indexOfSpace(int from) {
+		int end = line.indexOf(' ', from);
+		return (end == -1 || end > lineEnd) ? lineEnd : end;
+	}
+
+	protected void addParam(int start, int end) {
+		if (paramCount == paramStarts.length) {
+			int[] newStarts = new int[paramCount * 2];
+			int[] newEnds = new int[paramCount * 2];
+			System.arraycopy(paramStarts, 0, newStarts, 0, paramCount);
+			System.arraycopy(paramEnds, 0, newEnds, 0, paramCount);
+			paramStarts = newStarts;
+			paramEnds = newEnds;
+		}
+		paramStarts[paramCount] = start;
+		paramEnds[paramCount] = end;
+		paramCount++;
+	}
+
+	protected CharSequence view(int start, int end) {
+		return CharBuffer.wrap(line, start, end);
+	}
+
+	/**
+	 * @return The original, unmodified line
+	 */
+	public String getLine() {
+		return line;
+	}
+
+	/**
+	 * @return True if the line starts with a :prefix
+	 */
+	public boolean hasPrefix() {
+		return prefixEnd != -1;
+	}
+
+	/**
+	 * @return True if the prefix is in the form nick!login@host
+	 */
+	public boolean hasHostmask() {
+		return exclamation != -1;
+	}
+
+	/**
+	 * @return The prefix without the leading ':' or an empty sequence if there
+	 * is no prefix
+	 */
+	public CharSequence getPrefix() {
+		return hasPrefix() ? view(lineStart + 1, prefixEnd) : "";
+	}
+
+	/**
+	 * @return The nick from a nick!login@host prefix, otherwise the entire prefix
+	 */
+	public CharSequence getNick() {
+		return hasHostmask() ? view(lineStart + 1, exclamation) : getPrefix();
+	}
+
+	/**
+	 * @return The login from a nick!login@host prefix, otherwise an empty sequence
+	 */
+	public CharSequence getLogin() {
+		return hasHostmask() ? view(exclamation + 1, at) : "";
+	}
+
+	/**
+	 * @return The host from a nick!login@host prefix, otherwise an empty sequence
+	 */
+	public CharSequence getHost() {
+		return hasHostmask() ? view(at + 1, prefixEnd) : "";
+	}
+
+	/**
+	 * @return The nick from {@link #getNick() } as a string
+	 */
+	public String getNickString() {
+		return hasHostmask() ? line.substring(lineStart + 1, exclamation) : getPrefixString();
+	}
+
+	/**
+	 * @return The prefix from {@link #getPrefix() } as a string
+	 */
+	public String getPrefixString() {
+		return hasPrefix() ? line.substring(lineStart + 1, prefixEnd) : "";
+	}
+
+	/**
+	 * @return The login from {@link #getLogin() } as a string
+	 */
+	public String getLoginString() {
+		return hasHostmask() ? line.substring(exclamation + 1, at) : "";
+	}
+
+	/**
+	 * @return The host from {@link #getHost() } as a string
+	 */
+	public String getHostString() {
+		return hasHostmask() ? line.substring(at + 1, prefixEnd) : "";
+	}
+
+	/**
+	 * @return The command or numeric exactly as sent by the server
+	 */
+	public CharSequence getCommand() {
+		return view(commandStart, commandEnd);
+	}
+
+	/**
+	 * Get the command in upper case. Common commands are returned as constants
+	 * so no new string is created
+	 * @param locale Locale to use when converting unknown commands to upper case
+	 * @return The upper case command
+	 */
+	public String getCommandString(Locale locale) {
+		int length = commandEnd - commandStart;
+		for (String curCommand : KNOWN_COMMANDS)
+			if (curCommand.length() == length && line.regionMatches(true, commandStart, curCommand, 0, length))
+				return curCommand;
+		return line.substring(commandStart, commandEnd).toUpperCase(locale);
+	}
+
+	/**
+	 * Check the command without copying it
+	 * @param command The command to compare to, case insensitive
+	 * @return True if the commands match
+	 */
+	public boolean isCommand(String command) {
+		int length = commandEnd - commandStart;
+		return command.length() == length && line.regionMatches(true, commandStart, command, 0, length);
+	}
+
+	/**
+	 * @return The numeric reply code or -1 if the command is not a number
+	 */
+	public int getNumeric() {
+		if (commandStart == commandEnd)
+			return -1;
+		int code = 0;
+		for (int i = commandStart; i < commandEnd; i++) {
+			char curChar = line.charAt(i);
+			if (curChar < '0' || curChar > '9' || code > Integer.MAX_VALUE / 10)
+				return -1;
+			code = code * 10 + (curChar - '0');
+		}
+		return code;
+	}
+
+	/**
+	 * @return Number of parameters after the command
+	 */
+	public int getParamCount() {
+		return paramCount;
+	}
+
+	/**
+	 * Get a parameter without copying it
+	 * @param index Index of the parameter after the command
+	 * @return A view of the parameter
+	 * @throws IndexOutOfBoundsException If there is no parameter at the index
+	 */
+	public CharSequence getParam(int index) {
+		checkParamIndex(index);
+		return view(paramStarts[index], paramEnds[index]);
+	}
+
+	/**
+	 * Get a parameter as a string
+	 * @param index Index of the parameter after the command
+	 * @return The parameter
+	 * @throws IndexOutOfBoundsException If there is no parameter at the index
+	 */
+	public String getParamString(int index) {
+		checkParamIndex(index);
+		return line.substring(paramStarts[index], paramEnds[index]);
+	}
+
+	protected void checkParamIndex(int index) {
+		if (index < 0 || index >= paramCount)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Parameters: " + paramCount);
+	}
+
+	/**
+	 * Get all parameters as a list, in the same format as
+	 * {@link Utils#tokenizeLine(java.lang.String) } after removing the prefix
+	 * and command. Parameters are only copied out of the line when read, so
+	 * handlers that use a few parameters don't pay for the rest. The list is
+	 * immutable and stays valid after another line is parsed
+	 * @return A list of all parameters
+	 */
+	public List<String> getParams() {
+		return new ParamList(line, ArrayUtils.subarray(paramStarts, 0, paramCount), ArrayUtils.subarray(paramEnds, 0, paramCount));
+	}
+
+	@Override
+	public String toString() {
+		return line;
+	}
+
+	protected static class ParamList extends AbstractList<String> {
+		protected final String line;
+		protected final int[] starts;
+		protected final int[] ends;
+
+		public ParamList(String line, int[] starts, int[] ends) {
+			this.line = line;
+			this.starts = starts;
+			this.ends = ends;
+		}
+
+		@Override
+		public String get(int index) {
+			return line.substring(starts[index], ends[index]);
+		}
+
+		@Override
+		public int size() {
+			return starts.length;
+		}
+	}
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright (C) 2010-2013 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of PircBotX.
+ *
+ * PircBotX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PircBotX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pircbotx;
+
+import static com.google.common.base.Preconditions.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Encodes lines sent to the server. Lines are encoded with one reusable encoder
+ * straight into pooled buffers, so many lines can be written together without
+ * creating new Strings or byte arrays. Lines longer than the maximum length
+ * are cut on encoded bytes, never in the middle of a character.
+ * <p/>
+ * This class is not thread safe, each connection should have its own instance
+ * @author Leon Blakey <lord.quackstar at gmail.com>
+ * @see LineFramer
+ */
+public class LineEncoder {
+	protected static final int BUFFER_SIZE = 8192;
+	protected final CharsetEncoder encoder;
+	protected final int maxLineLength;
+	protected final boolean direct;
+	protected final int bufferSize;
+	/**
+	 * Line currently being encoded, reused for every line
+	 */
+	protected final CharBuffer charBuffer;
+	/**
+	 * Buffers with encoded lines in the order they were encoded
+	 */
+	protected final List<ByteBuffer> filledBuffers = new ArrayList<ByteBuffer>();
+	protected final Queue<ByteBuffer> pool = new LinkedList<ByteBuffer>();
+	protected ByteBuffer buffer;
+
+	/**
+	 * Create an encoder.
+	 * @param charset The encoding of the connection
+	 * @param maxLineLength The maximum number of bytes in a line, including the
+	 * line ending.
+	 * @param direct True to use direct buffers for writing to channels, false for
+	 * streams
+	 */
+	public LineEncoder(Charset charset, int maxLineLength, boolean direct) {
+		checkNotNull(charset, "Charset cannot be null");
+		checkArgument(maxLineLength > 2, "Max line length must be more than 2");
+		this.encoder = charset.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.maxLineLength = maxLineLength;
+		this.direct = direct;
+		this.bufferSize = Math.max(BUFFER_SIZE, maxLineLength);
+		//Every character is at least 1 byte, so more characters than bytes are never needed
+		this.charBuffer = CharBuffer.allocate(maxLineLength - 2);
+	}
+
+	/**
+	 * Encode the line followed by a line ending.
+	 * @param line The line to encode, cut if longer than the max line length
+	 */
+	public void encode(String line) {
+		if (buffer == null || buffer.remaining() < maxLineLength) {
+			if (buffer != null)
+				filledBuffers.add(buffer);
+			buffer = takeBuffer();
+		}
+
+		int length = Math.min(line.length(), charBuffer.capacity());
+		//Don't leave half of a surrogate pair
+		if (length < line.length() && Character.isHighSurrogate(line.charAt(length - 1)))
+			length--;
+		charBuffer.clear();
+		charBuffer.put(line, 0, length);
+		charBuffer.flip();
+
+		//Anything that doesn't fit in the line is dropped
+		int limit = buffer.limit();
+		buffer.limit(buffer.position() + maxLineLength - 2);
+		encoder.reset();
+		encoder.encode(charBuffer, buffer, true);
+		encoder.flush(buffer);
+		buffer.limit(limit);
+		buffer.put((byte) '\r').put((byte) '\n');
+	}
+
+	/**
+	 * Check if there are any encoded lines waiting to be written
+	 * @return True if nothing has been encoded since the last write
+	 */
+	public boolean isEmpty() {
+		return filledBuffers.isEmpty() && (buffer == null || buffer.position() == 0);
+	}
+
+	/**
+	 * Get all encoded lines ready to be written, eg with 
+	 * {@link java.nio.channels.GatheringByteChannel#write(java.nio.ByteBuffer[]) }.
+	 * Call {@link #recycle() } once they have been written
+	 * @return The buffers in order, flipped for reading
+	 */
+	public ByteBuffer[] getBuffers() {
+		if (buffer != null && buffer.position() != 0) {
+			filledBuffers.add(buffer);
+			buffer = null;
+		}
+		ByteBuffer[] buffers = filledBuffers.toArray(new ByteBuffer[filledBuffers.size()]);
+		for (ByteBuffer curBuffer : buffers)
+			curBuffer.flip();
+		return buffers;
+	}
+
+	/**
+	 * Return the buffers from {@link #getBuffers() } to the pool.
+	 */
+	public void recycle() {
+		for (ByteBuffer curBuffer : filledBuffers) {
+			curBuffer.clear();
+			pool.add(curBuffer);
+		}
+		filledBuffers.clear();
+	}
+
+	/**
+	 * Write all encoded lines to the stream. Does not flush the stream
+	 * @param outputStream The stream to write to
+	 * @throws IOException If the stream throws an exception
+	 */
+	public void writeTo(OutputStream outputStream) throws IOException {
+		try {
+			for (ByteBuffer curBuffer : getBuffers()) {
+				if (curBuffer.hasArray())
+					outputStream.write(curBuffer.array(), curBuffer.arrayOffset() + curBuffer.position(), curBuffer.remaining());
+				else
+					while (curBuffer.hasRemaining())
+						outputStream.write(curBuffer.get());
+			}
+		} finally {
+			recycle();
+		}
+	}
+
+	protected ByteBuffer takeBuffer() {
+		ByteBuffer pooledBuffer = pool.poll();
+		if (pooledBuffer != null)
+			return pooledBuffer;
+		return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+	}
+}
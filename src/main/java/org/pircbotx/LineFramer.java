@@ -0,0 +1,164 @@
+/**
+ * Copyright (C) 2010-2013 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of PircBotX.
+ *
+ * PircBotX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PircBotX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pircbotx;
+
+import static com.google.common.base.Preconditions.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Splits raw bytes from the server into lines. Bytes are collected in a single
+ * reusable buffer and only the bytes of a complete line are decoded, using one
+ * reusable decoder. Both LF and CRLF line endings are accepted.
+ * <p>
+ * Lines longer than the maximum length are discarded without ever being decoded.
+ * This class is not thread safe, each connection should have its own instance
+ * @author Leon Blakey <lord.quackstar at gmail.com>
+ */
+@Slf4j
+public class LineFramer {
+	protected final CharsetDecoder decoder;
+	protected final ByteBuffer buffer;
+	protected final CharBuffer charBuffer;
+	/**
+	 * Start of the first line that hasn't been returned yet.
+	 */
+	protected int lineStart = 0;
+	/**
+	 * Where to continue searching for a line ending.
+	 */
+	protected int scanPosition = 0;
+	protected boolean discardingLine = false;
+
+	/**
+	 * Create a framer.
+	 * @param charset The encoding of the connection
+	 * @param maxLineLength The maximum number of bytes in a line, including the
+	 * line ending.
+	 */
+	public LineFramer(Charset charset, int maxLineLength) {
+		checkNotNull(charset, "Charset cannot be null");
+		checkArgument(maxLineLength > 2, "Max line length must be more than 2");
+		this.decoder = charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.buffer = ByteBuffer.allocate(maxLineLength);
+		this.charBuffer = CharBuffer.allocate((int) Math.ceil(maxLineLength * (double) decoder.maxCharsPerByte()));
+	}
+
+	/**
+	 * Get the buffer to read bytes into. Its position marks the end of the
+	 * received data, so only read into its remaining space (eg with
+	 * {@link java.nio.channels.ReadableByteChannel#read(java.nio.ByteBuffer) })
+	 * @return The internal buffer
+	 */
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Get the next complete line from the bytes received so far.
+	 * @return The decoded line without the line ending or null if no complete line
+	 * is available yet
+	 */
+	public String nextLine() {
+		byte[] bytes = buffer.array();
+		int end = buffer.position();
+		for (int i = scanPosition; i < end; i++) {
+			if (bytes[i] != '\n')
+				continue;
+			int curLineStart = lineStart;
+			lineStart = scanPosition = i + 1;
+			if (discardingLine) {
+				//End of an oversized line, start fresh after it
+				discardingLine = false;
+				continue;
+			}
+
+			int lineEnd = (i > curLineStart && bytes[i - 1] == '\r') ? i - 1 : i;
+			return decode(bytes, curLineStart, lineEnd - curLineStart);
+		}
+		scanPosition = end;
+
+		//No complete line left, make room for more
+		if (lineStart > 0) {
+			System.arraycopy(bytes, lineStart, bytes, 0, end - lineStart);
+			buffer.position(end - lineStart);
+			scanPosition -= lineStart;
+			lineStart = 0;
+		} else if (!buffer.hasRemaining()) {
+			//An entire buffer without a line ending, drop it
+			if (!discardingLine)
+				log.warn("Discarding line longer than " + buffer.capacity() + " bytes");
+			buffer.clear();
+			scanPosition = 0;
+			discardingLine = true;
+		}
+		return null;
+	}
+
+	/**
+	 * Read the next line from the stream, blocking until one is available. Any
+	 * exceptions thrown by the stream (eg a socket timeout) can be safely
+	 * handled and this method called again without losing data
+	 * @param inputStream The stream to read from
+	 * @return The next line or null if the end of the stream has been reached
+	 * @throws IOException If the stream throws an exception
+	 */
+	public String readLine(InputStream inputStream) throws IOException {
+		String line;
+		while ((line = nextLine()) == null) {
+			int read = inputStream.read(buffer.array(), buffer.position(), buffer.remaining());
+			if (read == -1)
+				return remainder();
+			buffer.position(buffer.position() + read);
+		}
+		return line;
+	}
+
+	/**
+	 * Get any unterminated line left once the end of the stream has been reached.
+	 * @return The decoded line or null if nothing is left
+	 */
+	public String remainder() {
+		int end = buffer.position();
+		String line = null;
+		if (!discardingLine && lineStart < end)
+			line = decode(buffer.array(), lineStart, end - lineStart);
+		buffer.clear();
+		lineStart = scanPosition = 0;
+		discardingLine = false;
+		return line;
+	}
+
+	protected String decode(byte[] bytes, int offset, int length) {
+		decoder.reset();
+		charBuffer.clear();
+		decoder.decode(ByteBuffer.wrap(bytes, offset, length), charBuffer, true);
+		decoder.flush(charBuffer);
+		charBuffer.flip();
+		return charBuffer.toString();
+	}
+}
@@ -34,6 +34,7 @@ import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -72,6 +73,7 @@ public class MultiBotManager<B extends PircBotX> {
 	protected final BiMap<B, Integer> runningBotsNumbers = HashBiMap.create();
 	protected final Object runningBotsLock = new Object[0];
 	protected final ListeningExecutorService botPool;
+	protected final SelectorEngine selectorEngine;
 	//Code for starting
 	protected List<B> startQueue = new ArrayList<B>();
 	protected State state = State.NEW;
@@ -85,6 +87,7 @@ public class MultiBotManager<B extends PircBotX> {
 		ThreadPoolExecutor defaultPool = (ThreadPoolExecutor) Executors.newCachedThreadPool();
 		defaultPool.allowCoreThreadTimeOut(true);
 		this.botPool = MoreExecutors.listeningDecorator(defaultPool);
+		this.selectorEngine = null;
 	}
 
 	/**
@@ -95,6 +98,23 @@ public class MultiBotManager<B extends PircBotX> {
 		checkNotNull(botPool, "Bot pool cannot be null");
 		this.botPool = MoreExecutors.listeningDecorator(botPool);
 		this.managerNumber = MANAGER_COUNT.getAndIncrement();
+		this.selectorEngine = null;
+	}
+
+	/**
+	 * Create MultiBotManager that services all bot connections with the given 
+	 * {@link SelectorEngine} instead of a blocking thread per bot. A cached 
+	 * thread pool is still used to connect and login each bot.
+	 * @param selectorEngine The engine to register bots with. It is not closed
+	 * by this manager
+	 */
+	public MultiBotManager(SelectorEngine selectorEngine) {
+		checkNotNull(selectorEngine, "Selector engine cannot be null");
+		managerNumber = MANAGER_COUNT.getAndIncrement();
+		ThreadPoolExecutor defaultPool = (ThreadPoolExecutor) Executors.newCachedThreadPool();
+		defaultPool.allowCoreThreadTimeOut(true);
+		this.botPool = MoreExecutors.listeningDecorator(defaultPool);
+		this.selectorEngine = selectorEngine;
 	}
 
 	/**
@@ -149,7 +169,9 @@ public class MultiBotManager<B extends PircBotX> {
 
 	protected ListenableFuture<Void> startBot(final B bot) {
 		checkNotNull(bot, "Bot cannot be null");
-		ListenableFuture<Void> future = botPool.submit(new BotRunner(bot));
+		ListenableFuture<Void> future = (selectorEngine != null)
+				? selectorEngine.startBot(bot, botPool)
+				: botPool.submit(new BotRunner(bot));
 		synchronized (runningBotsLock) {
 			runningBots.put(bot, future);
 			runningBotsNumbers.put(bot, bot.getBotId());
@@ -188,6 +210,19 @@ public class MultiBotManager<B extends PircBotX> {
 				log.debug("Waiting 5 seconds for bot(s) [{}] to terminate ", commaJoiner.join(runningBots.values()));
 			}
 		while (!botPool.awaitTermination(5, TimeUnit.SECONDS));
+
+		//Bots serviced by a SelectorEngine aren't running in the pool, wait for them directly
+		if (selectorEngine != null) {
+			List<ListenableFuture<Void>> botFutures;
+			synchronized (runningBotsLock) {
+				botFutures = new ArrayList<ListenableFuture<Void>>(runningBots.values());
+			}
+			try {
+				Futures.successfulAsList(botFutures).get();
+			} catch (ExecutionException e) {
+				throw new RuntimeException("Could not wait for bots to disconnect", e);
+			}
+		}
 	}
 
 	/**
@@ -0,0 +1,397 @@
+/**
+ * Copyright (C) 2010-2013 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of PircBotX.
+ *
+ * PircBotX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PircBotX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pircbotx;
+
+import com.google.common.base.Equivalence;
+import com.google.common.collect.AbstractIterator;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable hash map where {@link #plus(java.lang.Object, java.lang.Object) }
+ * and {@link #minus(java.lang.Object) } return a new map sharing all unchanged
+ * parts with this one. Implemented as a hash array mapped trie, so changes and
+ * lookups copy or visit at most 7 small nodes, and keeping an old version 
+ * around (eg for a snapshot) costs nothing.
+ * <p/>
+ * Keys are compared with an {@link Equivalence}, by default 
+ * {@link Object#equals(java.lang.Object) }. Null keys and values are not supported
+ * @author Leon Blakey <lord.quackstar at gmail.com>
+ */
+public final class PersistentMap<K, V> implements Iterable<Map.Entry<K, V>> {
+	protected static final int BITS = 5;
+	protected static final int MASK = (1 << BITS) - 1;
+	@SuppressWarnings("unchecked")
+	protected static final PersistentMap EMPTY = new PersistentMap(null, 0, Equivalence.equals());
+	protected final Node root;
+	protected final int size;
+	protected final Equivalence<Object> equivalence;
+
+	protected PersistentMap(Node root, int size, Equivalence<Object> equivalence) {
+		this.root = root;
+		this.size = size;
+		this.equivalence = equivalence;
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <K, V> PersistentMap<K, V> empty() {
+		return EMPTY;
+	}
+
+	/**
+	 * Get an empty map that compares keys with the given equivalence.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <K, V> PersistentMap<K, V> empty(Equivalence<? super K> equivalence) {
+		return new PersistentMap<K, V>(null, 0, (Equivalence<Object>) equivalence);
+	}
+
+	/**
+	 * Get an empty map that compares keys the same way as this map.
+	 */
+	public PersistentMap<K, V> clear() {
+		return new PersistentMap<K, V>(null, 0, equivalence);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(Object key) {
+		if (root == null || key == null)
+			return null;
+		return (V) root.find(0, equivalence.hash(key), key, equivalence);
+	}
+
+	public boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * Get a map with the key set to the value
+	 * @return A new map, or this map if the key already has the value
+	 */
+	public PersistentMap<K, V> plus(K key, V value) {
+		if (key == null || value == null)
+			throw new NullPointerException("Key and value cannot be null");
+		boolean[] added = new boolean[1];
+		Node startRoot = (root == null) ? BitmapNode.EMPTY : root;
+		Node newRoot = startRoot.plus(0, equivalence.hash(key), key, value, equivalence, added);
+		if (newRoot == root)
+			return this;
+		return new PersistentMap<K, V>(newRoot, added[0] ? size + 1 : size, equivalence);
+	}
+
+	/**
+	 * Get a map without the key
+	 * @return A new map, or this map if the key doesn't exist
+	 */
+	public PersistentMap<K, V> minus(Object key) {
+		if (root == null || key == null)
+			return this;
+		Node newRoot = root.minus(0, equivalence.hash(key), key, equivalence);
+		if (newRoot == root)
+			return this;
+		return new PersistentMap<K, V>(newRoot, size - 1, equivalence);
+	}
+
+	/**
+	 * Get all keys. This walks the entire map
+	 * @return A new list of keys
+	 */
+	@SuppressWarnings("unchecked")
+	public List<K> keys() {
+		List<K> keys = new ArrayList<K>(size);
+		if (root != null)
+			root.collect(keys, null);
+		return keys;
+	}
+
+	/**
+	 * Get all values. This walks the entire map
+	 * @return A new list of values
+	 */
+	@SuppressWarnings("unchecked")
+	public List<V> values() {
+		List<V> values = new ArrayList<V>(size);
+		if (root != null)
+			root.collect(null, values);
+		return values;
+	}
+
+	/**
+	 * Iterate over all entries without copying the map. Since the map can't 
+	 * change this is always safe
+	 */
+	public Iterator<Map.Entry<K, V>> iterator() {
+		return new EntryIterator<K, V>(root);
+	}
+
+	protected static class EntryIterator<K, V> extends AbstractIterator<Map.Entry<K, V>> {
+		//Enough for 7 levels of BitmapNodes and a CollisionNode
+		protected final Object[][] arrays = new Object[8][];
+		protected final int[] indexes = new int[8];
+		protected int depth = -1;
+
+		public EntryIterator(Node root) {
+			if (root != null)
+				push(root);
+		}
+
+		protected void push(Node node) {
+			depth++;
+			arrays[depth] = (node instanceof BitmapNode) ? ((BitmapNode) node).array : ((CollisionNode) node).array;
+			indexes[depth] = 0;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		protected Map.Entry<K, V> computeNext() {
+			while (depth >= 0) {
+				Object[] array = arrays[depth];
+				int index = indexes[depth];
+				if (index >= array.length) {
+					arrays[depth--] = null;
+					continue;
+				}
+				indexes[depth] = index + 2;
+				if (array[index] == null)
+					push((Node) array[index + 1]);
+				else
+					return new AbstractMap.SimpleImmutableEntry<K, V>((K) array[index], (V) array[index + 1]);
+			}
+			return endOfData();
+		}
+	}
+
+	protected static abstract class Node {
+		abstract Object find(int shift, int hash, Object key, Equivalence<Object> equivalence);
+
+		abstract Node plus(int shift, int hash, Object key, Object value, Equivalence<Object> equivalence, boolean[] added);
+
+		/**
+		 * @return The new node, this if the key doesn't exist, or null if the node is now empty
+		 */
+		abstract Node minus(int shift, int hash, Object key, Equivalence<Object> equivalence);
+
+		abstract void collect(List keys, List values);
+	}
+
+	/**
+	 * Node with up to 32 slots selected by 5 bits of the hash. Each slot is
+	 * either a key and value or null and a child node
+	 */
+	protected static final class BitmapNode extends Node {
+		static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+		final int bitmap;
+		final Object[] array;
+
+		BitmapNode(int bitmap, Object[] array) {
+			this.bitmap = bitmap;
+			this.array = array;
+		}
+
+		int index(int bit) {
+			return Integer.bitCount(bitmap & (bit - 1));
+		}
+
+		Object find(int shift, int hash, Object key, Equivalence<Object> equivalence) {
+			int bit = 1 << ((hash >>> shift) & MASK);
+			if ((bitmap & bit) == 0)
+				return null;
+			int index = index(bit);
+			Object slotKey = array[2 * index];
+			Object slotValue = array[2 * index + 1];
+			if (slotKey == null)
+				return ((Node) slotValue).find(shift + BITS, hash, key, equivalence);
+			return equivalence.equivalent(key, slotKey) ? slotValue : null;
+		}
+
+		Node plus(int shift, int hash, Object key, Object value, Equivalence<Object> equivalence, boolean[] added) {
+			int bit = 1 << ((hash >>> shift) & MASK);
+			int index = index(bit);
+			if ((bitmap & bit) == 0) {
+				//Empty slot, insert
+				Object[] newArray = new Object[array.length + 2];
+				System.arraycopy(array, 0, newArray, 0, 2 * index);
+				newArray[2 * index] = key;
+				newArray[2 * index + 1] = value;
+				System.arraycopy(array, 2 * index, newArray, 2 * (index + 1), array.length - 2 * index);
+				added[0] = true;
+				return new BitmapNode(bitmap | bit, newArray);
+			}
+
+			Object slotKey = array[2 * index];
+			Object slotValue = array[2 * index + 1];
+			Object newSlotKey;
+			Object newSlotValue;
+			if (slotKey == null) {
+				Node child = (Node) slotValue;
+				Node newChild = child.plus(shift + BITS, hash, key, value, equivalence, added);
+				if (newChild == child)
+					return this;
+				newSlotKey = null;
+				newSlotValue = newChild;
+			} else if (equivalence.equivalent(key, slotKey)) {
+				if (value == slotValue)
+					return this;
+				newSlotKey = slotKey;
+				newSlotValue = value;
+			} else {
+				//Two keys in one slot, push both down a level
+				added[0] = true;
+				newSlotKey = null;
+				newSlotValue = createNode(shift + BITS, slotKey, slotValue, hash, key, value, equivalence);
+			}
+			Object[] newArray = array.clone();
+			newArray[2 * index] = newSlotKey;
+			newArray[2 * index + 1] = newSlotValue;
+			return new BitmapNode(bitmap, newArray);
+		}
+
+		Node minus(int shift, int hash, Object key, Equivalence<Object> equivalence) {
+			int bit = 1 << ((hash >>> shift) & MASK);
+			if ((bitmap & bit) == 0)
+				return this;
+			int index = index(bit);
+			Object slotKey = array[2 * index];
+			Object slotValue = array[2 * index + 1];
+			if (slotKey == null) {
+				Node child = (Node) slotValue;
+				Node newChild = child.minus(shift + BITS, hash, key, equivalence);
+				if (newChild == child)
+					return this;
+				if (newChild != null) {
+					Object[] newArray = array.clone();
+					newArray[2 * index + 1] = newChild;
+					return new BitmapNode(bitmap, newArray);
+				}
+			} else if (!equivalence.equivalent(key, slotKey))
+				return this;
+
+			//Remove the slot
+			if (bitmap == bit)
+				return null;
+			Object[] newArray = new Object[array.length - 2];
+			System.arraycopy(array, 0, newArray, 0, 2 * index);
+			System.arraycopy(array, 2 * (index + 1), newArray, 2 * index, newArray.length - 2 * index);
+			return new BitmapNode(bitmap ^ bit, newArray);
+		}
+
+		@SuppressWarnings("unchecked")
+		void collect(List keys, List values) {
+			for (int i = 0; i < array.length; i += 2)
+				if (array[i] == null)
+					((Node) array[i + 1]).collect(keys, values);
+				else {
+					if (keys != null)
+						keys.add(array[i]);
+					if (values != null)
+						values.add(array[i + 1]);
+				}
+		}
+	}
+
+	/**
+	 * Node for keys whose hashes are completely equal
+	 */
+	protected static final class CollisionNode extends Node {
+		final int hash;
+		final Object[] array;
+
+		CollisionNode(int hash, Object[] array) {
+			this.hash = hash;
+			this.array = array;
+		}
+
+		int indexOf(Object key, Equivalence<Object> equivalence) {
+			for (int i = 0; i < array.length; i += 2)
+				if (equivalence.equivalent(key, array[i]))
+					return i;
+			return -1;
+		}
+
+		Object find(int shift, int hash, Object key, Equivalence<Object> equivalence) {
+			int index = indexOf(key, equivalence);
+			return index == -1 ? null : array[index + 1];
+		}
+
+		Node plus(int shift, int hash, Object key, Object value, Equivalence<Object> equivalence, boolean[] added) {
+			if (hash != this.hash) {
+				//Different hash that shares the prefix, nest this node in a bitmap node
+				BitmapNode parent = new BitmapNode(1 << ((this.hash >>> shift) & MASK), new Object[]{null, this});
+				return parent.plus(shift, hash, key, value, equivalence, added);
+			}
+			int index = indexOf(key, equivalence);
+			if (index != -1) {
+				if (array[index + 1] == value)
+					return this;
+				Object[] newArray = array.clone();
+				newArray[index + 1] = value;
+				return new CollisionNode(hash, newArray);
+			}
+			Object[] newArray = new Object[array.length + 2];
+			System.arraycopy(array, 0, newArray, 0, array.length);
+			newArray[array.length] = key;
+			newArray[array.length + 1] = value;
+			added[0] = true;
+			return new CollisionNode(hash, newArray);
+		}
+
+		Node minus(int shift, int hash, Object key, Equivalence<Object> equivalence) {
+			int index = indexOf(key, equivalence);
+			if (index == -1)
+				return this;
+			if (array.length == 2)
+				return null;
+			Object[] newArray = new Object[array.length - 2];
+			System.arraycopy(array, 0, newArray, 0, index);
+			System.arraycopy(array, index + 2, newArray, index, newArray.length - index);
+			return new CollisionNode(hash, newArray);
+		}
+
+		@SuppressWarnings("unchecked")
+		void collect(List keys, List values) {
+			for (int i = 0; i < array.length; i += 2) {
+				if (keys != null)
+					keys.add(array[i]);
+				if (values != null)
+					values.add(array[i + 1]);
+			}
+		}
+	}
+
+	protected static Node createNode(int shift, Object key1, Object value1, int hash2, Object key2, Object value2, Equivalence<Object> equivalence) {
+		int hash1 = equivalence.hash(key1);
+		if (hash1 == hash2)
+			return new CollisionNode(hash1, new Object[]{key1, value1, key2, value2});
+		boolean[] added = new boolean[1];
+		return BitmapNode.EMPTY
+				.plus(shift, hash1, key1, value1, equivalence, added)
+				.plus(shift, hash2, key2, value2, equivalence, added);
+	}
+}
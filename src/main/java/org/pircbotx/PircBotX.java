@@ -18,20 +18,23 @@
  */
 package org.pircbotx;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.primitives.Ints;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.InterruptedIOException;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 import java.lang.ref.WeakReference;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLSocketFactory;
 import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
@@ -93,8 +96,11 @@ public class PircBotX implements Comparable<PircBotX> {
 	//Connection stuff.
 	@Getter(AccessLevel.PROTECTED)
 	protected Socket socket;
-	protected BufferedReader inputReader;
-	protected OutputStreamWriter outputWriter;
+	protected InputStream inputStream;
+	protected LineFramer inputFramer;
+	protected OutputStream outputStream;
+	protected LineEncoder outputEncoder;
+	protected SelectorEngine.Connection engineConnection;
 	protected final OutputRaw outputRaw;
 	protected final OutputIRC outputIRC;
 	protected final OutputCAP outputCAP;
@@ -164,16 +170,7 @@ public class PircBotX implements Comparable<PircBotX> {
 	 */
 	protected void connect() throws IOException, IrcException {
 		synchronized (stateLock) {
-			Utils.addBotToMDC(this);
-			if (isConnected())
-				throw new IrcException(IrcException.Reason.AlreadyConnected, "Must disconnect from server before connecting again");
-			if (getState() == State.CONNECTED)
-				throw new RuntimeException("Bot is not connected but state is State.CONNECTED. This shouldn't happen");
-			if (configuration.isIdentServerEnabled() && IdentServer.getServer() == null)
-				throw new RuntimeException("UseIdentServer is enabled but no IdentServer has been started");
-
-			//Reset capabilities
-			enabledCapabilities = new ArrayList<String>();
+			checkCanConnect();
 
 			// Connect to the server by DNS server
 			for (InetAddress curAddress : InetAddress.getAllByName(configuration.getServerHostname())) {
@@ -197,6 +194,97 @@ public class PircBotX implements Comparable<PircBotX> {
 			changeSocket(socket);
 		}
 
+		sendLogin();
+
+		//Start input to start accepting lines
+		startLineProcessing();
+	}
+
+	/**
+	 * Connect to the server using a non-blocking {@link SocketChannel} that is
+	 * serviced by the given {@link SelectorEngine} instead of a dedicated thread.
+	 * This returns as soon as the login lines have been sent, incoming lines are 
+	 * then handled by one of the engine's selector threads.
+	 * <p>
+	 * The configured {@link Configuration#getSocketFactory() socket factory} is 
+	 * not used in this mode, so SSL connections (including STARTTLS) are not supported.
+	 * @param engine The engine that will service this bot's connection
+	 * @return The connection registered with the engine
+	 * @throws IOException if it was not possible to connect to the server.
+	 * @throws IrcException if the server would not let us join it.
+	 * @see SelectorEngine#startBot(org.pircbotx.PircBotX, java.util.concurrent.Executor) 
+	 */
+	protected SelectorEngine.Connection connect(SelectorEngine engine) throws IOException, IrcException {
+		SelectorEngine.Connection connection;
+		synchronized (stateLock) {
+			checkCanConnect();
+			if (configuration.getSocketFactory() instanceof SSLSocketFactory)
+				throw new IrcException(IrcException.Reason.CannotLogin, "SSL connections are not supported by the SelectorEngine");
+
+			// Connect to the server by DNS server
+			SocketChannel channel = null;
+			for (InetAddress curAddress : InetAddress.getAllByName(configuration.getServerHostname())) {
+				log.debug("Trying address " + curAddress);
+				try {
+					channel = SocketChannel.open();
+					if (configuration.getLocalAddress() != null)
+						channel.socket().bind(new InetSocketAddress(configuration.getLocalAddress(), 0));
+					//Connect through the socket so the timeout is honoured, a blocked
+					//connect would otherwise hold the connect executor's thread
+					channel.socket().connect(new InetSocketAddress(curAddress, configuration.getServerPort()), configuration.getSocketTimeout());
+
+					//No exception, assume successful
+					break;
+				} catch (Exception e) {
+					log.debug("Unable to connect to " + configuration.getServerHostname() + " using the IP address " + curAddress.getHostAddress() + ", trying to check another address.", e);
+					if (channel != null)
+						channel.close();
+					channel = null;
+				}
+			}
+
+			//Make sure were connected
+			if (channel == null || !channel.isConnected())
+				throw new IOException("Unable to connect to the IRC network " + configuration.getServerHostname() + " (last connection attempt exception attached)");
+			state = State.CONNECTED;
+			log.info("Connected to server.");
+
+			this.socket = channel.socket();
+			this.inputStream = null;
+			this.inputFramer = null;
+			this.outputStream = null;
+			this.outputEncoder = new LineEncoder(configuration.getEncoding(), configuration.getMaxLineLength(), true);
+			connection = this.engineConnection = engine.register(this, channel);
+		}
+
+		sendLogin();
+
+		//Let the engine start handing us lines
+		connection.startReading();
+		return connection;
+	}
+
+	/**
+	 * Verify that the bot is in a state where it can connect. Must be called
+	 * while holding the state lock
+	 */
+	protected void checkCanConnect() throws IrcException {
+		Utils.addBotToMDC(this);
+		if (isConnected())
+			throw new IrcException(IrcException.Reason.AlreadyConnected, "Must disconnect from server before connecting again");
+		if (getState() == State.CONNECTED)
+			throw new RuntimeException("Bot is not connected but state is State.CONNECTED. This shouldn't happen");
+		if (configuration.isIdentServerEnabled() && IdentServer.getServer() == null)
+			throw new RuntimeException("UseIdentServer is enabled but no IdentServer has been started");
+
+		//Reset capabilities
+		enabledCapabilities = new ArrayList<String>();
+	}
+
+	/**
+	 * Send the initial lines to register with the server once the socket is connected.
+	 */
+	protected void sendLogin() throws IOException {
 		configuration.getListenerManager().dispatchEvent(new SocketConnectEvent(this));
 
 		if (configuration.isIdentServerEnabled())
@@ -217,15 +305,16 @@ public class PircBotX implements Comparable<PircBotX> {
 
 		sendRaw().rawLineNow("NICK " + configuration.getName());
 		sendRaw().rawLineNow("USER " + configuration.getLogin() + " 8 * :" + configuration.getVersion());
-
-		//Start input to start accepting lines
-		startLineProcessing();
 	}
 
 	protected void changeSocket(Socket socket) throws IOException {
+		if (engineConnection != null)
+			throw new IOException("Cannot change the socket of a connection serviced by a SelectorEngine");
 		this.socket = socket;
-		this.inputReader = new BufferedReader(new InputStreamReader(socket.getInputStream(), configuration.getEncoding()));
-		this.outputWriter = new OutputStreamWriter(socket.getOutputStream(), configuration.getEncoding());
+		this.inputStream = socket.getInputStream();
+		this.inputFramer = new LineFramer(configuration.getEncoding(), configuration.getMaxInputLineLength());
+		this.outputStream = socket.getOutputStream();
+		this.outputEncoder = new LineEncoder(configuration.getEncoding(), configuration.getMaxLineLength(), false);
 	}
 
 	protected void startLineProcessing() {
@@ -233,7 +322,7 @@ public class PircBotX implements Comparable<PircBotX> {
 			//Get line from the server
 			String line;
 			try {
-				line = inputReader.readLine();
+				line = inputFramer.readLine(inputStream);
 			} catch (InterruptedIOException iioe) {
 				// This will happen if we haven't received anything from the server for a while.
 				// So we shall send it a ping to check that we are still connected.
@@ -256,12 +345,7 @@ public class PircBotX implements Comparable<PircBotX> {
 				break;
 
 			//Start acting the line
-			try {
-				inputParser.handleLine(line);
-			} catch (Exception e) {
-				//Exception in client code. Just log and continue
-				log.error("Exception encountered when parsing line", e);
-			}
+			processLine(line);
 
 			//Do nothing if this thread is being interrupted (meaning shutdown() was run)
 			if (Thread.interrupted())
@@ -273,17 +357,53 @@ public class PircBotX implements Comparable<PircBotX> {
 	}
 
 	/**
-	 * Actually sends the raw line to the server. This method is NOT SYNCHRONIZED 
-	 * since it's only called from methods that handle locking
+	 * Hand a single line received from the server to the {@link InputParser}. 
+	 * Any exceptions are logged and swallowed so the read loop (or selector thread) 
+	 * keeps running
+	 * @param line The raw line without the line ending
+	 */
+	protected void processLine(String line) {
+		try {
+			inputParser.handleLine(line);
+		} catch (Exception e) {
+			//Exception in client code. Just log and continue
+			log.error("Exception encountered when parsing line", e);
+		}
+	}
+
+	/**
+	 * Actually sends the raw line to the server. The line is encoded, cut to 
+	 * the max line length, and isn't sent until {@link #flushRawLinesToServer() } 
+	 * is called. This method is NOT SYNCHRONIZED since it's only called from 
+	 * methods that handle locking
 	 * @param line 
 	 */
 	protected void sendRawLineToServer(String line) {
-		if (line.length() > configuration.getMaxLineLength() - 2)
-			line = line.substring(0, configuration.getMaxLineLength() - 2);
+		outputEncoder.encode(line);
+	}
+
+	/**
+	 * Send all lines from {@link #sendRawLineToServer(java.lang.String) } to
+	 * the server in as few writes as possible. This method is NOT SYNCHRONIZED 
+	 * since it's only called from methods that handle locking
+	 */
+	protected void flushRawLinesToServer() {
+		LineEncoder encoder = outputEncoder;
+		if (encoder == null || encoder.isEmpty())
+			return;
+		SelectorEngine.Connection connection = engineConnection;
+		if (connection != null) {
+			try {
+				connection.write(encoder.getBuffers());
+			} finally {
+				encoder.recycle();
+			}
+			return;
+		}
 		try {
-			outputWriter.write(line + "\r\n");
-			outputWriter.flush();
-		} catch (Exception e) {
+			encoder.writeTo(outputStream);
+			outputStream.flush();
+		} catch (IOException e) {
 			//Not much else we can do, but this requires attention of whatever is calling this
 			throw new RuntimeException("Exception encountered when writing to socket", e);
 		}
@@ -423,9 +543,17 @@ public class PircBotX implements Comparable<PircBotX> {
 	 */
 	@Synchronized("stateLock")
 	public void shutdown(boolean noReconnect) {
+		SelectorEngine.Connection selectorConnection = engineConnection;
+		if (selectorConnection != null && selectorConnection.isSelectorThread()) {
+			//Waiting for listeners here would stall every bot on the selector thread
+			selectorConnection.shutdownBot(noReconnect);
+			return;
+		}
 		UserChannelDaoSnapshot daoSnapshot;
 		synchronized (stateLock) {
 			state = State.DISCONNECTED;
+			//Write lines like QUIT that were sent right before shutting down
+			outputRaw.close();
 			try {
 				socket.close();
 			} catch (Exception e) {
@@ -450,7 +578,8 @@ public class PircBotX implements Comparable<PircBotX> {
 
 			//Clear relevant variables of information
 			loggedIn = false;
-			daoSnapshot = userChannelDao.createSnapshot();
+			//Nothing changes the channels after this, copy them only when used
+			daoSnapshot = userChannelDao.createSnapshot(ImmutableList.<Channel>of());
 			userChannelDao.close();
 			inputParser.close();
 			dccHandler.close();
@@ -462,6 +591,13 @@ public class PircBotX implements Comparable<PircBotX> {
 
 		//Shutdown listener manager
 		configuration.getListenerManager().shutdown(this);
+
+		//Let the engine reconnect or finish the bot
+		SelectorEngine.Connection connection = engineConnection;
+		if (connection != null) {
+			engineConnection = null;
+			connection.closed();
+		}
 	}
 
 	/**
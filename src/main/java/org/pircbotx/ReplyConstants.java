@@ -130,6 +130,7 @@ public final class ReplyConstants {
 	public static final int RPL_VERSION = 351;
 	public static final int RPL_WHOREPLY = 352;
 	public static final int RPL_NAMREPLY = 353;
+	public static final int RPL_WHOSPCRPL = 354;
 	public static final int RPL_LINKS = 364;
 	public static final int RPL_ENDOFLINKS = 365;
 	public static final int RPL_ENDOFNAMES = 366;
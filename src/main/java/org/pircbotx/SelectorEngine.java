@@ -0,0 +1,460 @@
+/**
+ * Copyright (C) 2010-2013 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of PircBotX.
+ *
+ * PircBotX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PircBotX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pircbotx;
+
+import static com.google.common.base.Preconditions.*;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+/**
+ * Services the connections of many bots from a small, fixed set of selector
+ * threads instead of dedicating a blocking thread to each bot. Each connection
+ * is pinned to one selector thread, so lines from a single server are still
+ * handed to the bot's {@link InputParser} one at a time and in order.
+ * <p>
+ * Normally used through {@link MultiBotManager#MultiBotManager(org.pircbotx.SelectorEngine) }.
+ * Bots connected with an engine do not use the configured socket factory, so
+ * SSL connections are not supported. Since lines are parsed on the selector
+ * threads, a listener manager that executes listeners in their own threads
+ * like the default {@link org.pircbotx.hooks.managers.ThreadedListenerManager}
+ * should be used
+ * @author Leon Blakey <lord.quackstar at gmail.com>
+ */
+@Slf4j
+public class SelectorEngine implements Closeable {
+	protected static final AtomicInteger ENGINE_COUNT = new AtomicInteger();
+	protected final int engineNumber;
+	protected final SelectorThread[] selectorThreads;
+	protected final AtomicInteger nextSelectorThread = new AtomicInteger();
+	/**
+	 * Runs bot shutdowns, which wait for the bot's listeners, so selector 
+	 * threads keep servicing the other bots meanwhile
+	 */
+	protected final ExecutorService shutdownExecutor;
+	@Getter
+	protected volatile boolean closed = false;
+
+	/**
+	 * Create an engine with one selector thread per available processor.
+	 * @throws IOException If a selector cannot be opened
+	 */
+	public SelectorEngine() throws IOException {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Create an engine with the specified number of selector threads.
+	 * @param threadCount Number of selector threads to service connections with
+	 * @throws IOException If a selector cannot be opened
+	 */
+	public SelectorEngine(int threadCount) throws IOException {
+		checkArgument(threadCount > 0, "Thread count must be positive");
+		engineNumber = ENGINE_COUNT.getAndIncrement();
+		shutdownExecutor = Executors.newCachedThreadPool(new BasicThreadFactory.Builder()
+				.namingPattern("selectorEngine" + engineNumber + "-shutdown%d")
+				.daemon(true)
+				.build());
+		selectorThreads = new SelectorThread[threadCount];
+		for (int i = 0; i < threadCount; i++) {
+			selectorThreads[i] = new SelectorThread(Selector.open());
+			selectorThreads[i].setName("selectorEngine" + engineNumber + "-thread" + i);
+			selectorThreads[i].setDaemon(true);
+			selectorThreads[i].start();
+		}
+	}
+
+	/**
+	 * Connect the bot using the given executor, reconnecting it if
+	 * {@link Configuration#isAutoReconnect() } is enabled. The executor is only
+	 * used for the short blocking connect and login, afterwards the bot is
+	 * serviced by this engine
+	 * @param bot An <b>unconnected</b> bot
+	 * @param connectExecutor Executor to run the connect in
+	 * @return A future that completes when the bot is disconnected for good
+	 */
+	public ListenableFuture<Void> startBot(PircBotX bot, Executor connectExecutor) {
+		checkNotNull(bot, "Bot cannot be null");
+		checkNotNull(connectExecutor, "Connect executor cannot be null");
+		checkState(!closed, "Engine has been closed");
+		SettableFuture<Void> future = SettableFuture.create();
+		bot.reconnectStopped = false;
+		submitConnect(bot, connectExecutor, future);
+		return future;
+	}
+
+	protected void submitConnect(final PircBotX bot, final Executor connectExecutor, final SettableFuture<Void> future) {
+		try {
+			connectExecutor.execute(new Runnable() {
+				public void run() {
+					try {
+						Connection connection = bot.connect(SelectorEngine.this);
+						connection.setOnClose(new Runnable() {
+							public void run() {
+								if (!closed && bot.getConfiguration().isAutoReconnect() && !bot.reconnectStopped)
+									submitConnect(bot, connectExecutor, future);
+								else
+									future.set(null);
+							}
+						});
+					} catch (Exception e) {
+						future.setException(e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			//Executor has been shutdown, so the bot is finished
+			log.debug("Connect executor has been shutdown, not connecting bot " + bot.getBotId());
+			future.set(null);
+		}
+	}
+
+	/**
+	 * Register an already connected channel. Reading does not start until
+	 * {@link Connection#startReading() } is called
+	 * @param bot The bot that owns the channel
+	 * @param channel A connected channel
+	 * @return The connection handle used to write lines and start reading
+	 * @throws IOException If the channel cannot be made non-blocking
+	 */
+	protected Connection register(PircBotX bot, SocketChannel channel) throws IOException {
+		checkState(!closed, "Engine has been closed");
+		channel.configureBlocking(false);
+		SelectorThread selectorThread = selectorThreads[Math.abs(nextSelectorThread.getAndIncrement() % selectorThreads.length)];
+		Connection connection = new Connection(bot, channel, selectorThread);
+		selectorThread.register(connection);
+		return connection;
+	}
+
+	/**
+	 * Stop all selector threads. Any bots that are still connected are
+	 * shutdown.
+	 */
+	public void close() {
+		closed = true;
+		for (SelectorThread curThread : selectorThreads)
+			curThread.selector.wakeup();
+	}
+
+	/**
+	 * The connection of a single bot to its server.
+	 */
+	public class Connection {
+		protected final PircBotX bot;
+		protected final SocketChannel channel;
+		protected final SelectorThread selectorThread;
+		protected final LineFramer framer;
+		protected final Queue<ByteBuffer> writeQueue = new LinkedList<ByteBuffer>();
+		protected final Object writeLock = new Object();
+		protected final AtomicBoolean finished = new AtomicBoolean();
+		protected final AtomicBoolean shutdownStarted = new AtomicBoolean();
+		protected SelectionKey key;
+		protected long lastReadTime = System.currentTimeMillis();
+		protected Runnable onClose;
+
+		protected Connection(PircBotX bot, SocketChannel channel, SelectorThread selectorThread) {
+			this.bot = bot;
+			this.channel = channel;
+			this.selectorThread = selectorThread;
+			this.framer = new LineFramer(bot.getConfiguration().getEncoding(), bot.getConfiguration().getMaxInputLineLength());
+		}
+
+		/**
+		 * Start handing lines to the bot.
+		 */
+		public void startReading() {
+			selectorThread.execute(new Runnable() {
+				public void run() {
+					if (key != null && key.isValid())
+						key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+				}
+			});
+		}
+
+		/**
+		 * Write the buffers to the server in as few system calls as possible.
+		 * Whatever can't be written immediately is copied and queued, so the 
+		 * buffers can be reused once this returns
+		 * @param buffers Encoded lines to send
+		 */
+		public void write(ByteBuffer[] buffers) {
+			synchronized (writeLock) {
+				try {
+					if (writeQueue.isEmpty())
+						channel.write(buffers);
+				} catch (ClosedChannelException e) {
+					//Closed by the selector thread when the server disconnected
+					log.debug("Connection closed, discarding lines");
+					return;
+				} catch (IOException e) {
+					throw new RuntimeException("Exception encountered when writing to socket", e);
+				}
+				int remaining = 0;
+				for (ByteBuffer curBuffer : buffers)
+					remaining += curBuffer.remaining();
+				if (remaining == 0)
+					return;
+				ByteBuffer leftover = ByteBuffer.allocate(remaining);
+				for (ByteBuffer curBuffer : buffers)
+					leftover.put(curBuffer);
+				leftover.flip();
+				writeQueue.add(leftover);
+			}
+			waitForWritable();
+		}
+
+		/**
+		 * Socket buffer is full, let the selector thread finish writing
+		 */
+		protected void waitForWritable() {
+			selectorThread.execute(new Runnable() {
+				public void run() {
+					if (key != null && key.isValid())
+						key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				}
+			});
+		}
+
+		protected void handleWrite() throws IOException {
+			synchronized (writeLock) {
+				while (!writeQueue.isEmpty()) {
+					ByteBuffer buffer = writeQueue.peek();
+					channel.write(buffer);
+					if (buffer.hasRemaining())
+						//Still full, wait for next write event
+						return;
+					writeQueue.remove();
+				}
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			}
+		}
+
+		protected void handleRead() throws IOException {
+			int read = channel.read(framer.getBuffer());
+			if (read == -1) {
+				log.info("Server closed the connection");
+				close();
+				return;
+			}
+			lastReadTime = System.currentTimeMillis();
+
+			//Hand every complete line to the bot
+			String line;
+			while ((line = framer.nextLine()) != null) {
+				bot.processLine(line);
+				if (finished.get() || !channel.isOpen())
+					return;
+			}
+		}
+
+		protected void checkTimeout(long now) {
+			int socketTimeout = bot.getConfiguration().getSocketTimeout();
+			if (shutdownStarted.get() || socketTimeout <= 0 || now - lastReadTime < socketTimeout)
+				return;
+			// We haven't received anything from the server for a while.
+			// So we shall send it a ping to check that we are still connected.
+			lastReadTime = now;
+			try {
+				bot.sendRaw().rawLineNow("PING " + (now / 1000));
+			} catch (Exception e) {
+				log.error("Could not ping server", e);
+			}
+		}
+
+		/**
+		 * Close the socket and shutdown the bot. Safe to call multiple times.
+		 */
+		protected void close() {
+			if (!finished.get())
+				shutdownBot(false);
+		}
+
+		/**
+		 * Stop servicing the connection and shutdown the bot on another thread.
+		 * Must be called from the selector thread, which only cancels the key
+		 * and closes the channel
+		 * @param noReconnect Passed to {@link PircBotX#shutdown(boolean) }
+		 */
+		protected void shutdownBot(final boolean noReconnect) {
+			if (!shutdownStarted.compareAndSet(false, true))
+				return;
+			if (key != null)
+				key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				log.error("Cannot close channel", e);
+			}
+			shutdownExecutor.execute(new Runnable() {
+				public void run() {
+					Utils.addBotToMDC(bot);
+					//Waits for a shutdown already in progress
+					if (bot.getState() != PircBotX.State.DISCONNECTED)
+						//Will call closed() once done
+						bot.shutdown(noReconnect);
+					else
+						closed();
+				}
+			});
+		}
+
+		/**
+		 * @return True if called from the selector thread servicing this connection
+		 */
+		protected boolean isSelectorThread() {
+			return Thread.currentThread() == selectorThread;
+		}
+
+		/**
+		 * Called by the bot once it has completely shutdown.
+		 */
+		protected void closed() {
+			if (!finished.compareAndSet(false, true))
+				return;
+			if (key != null)
+				key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				log.error("Cannot close channel", e);
+			}
+			selectorThread.selector.wakeup();
+			Runnable onCloseLocal;
+			synchronized (this) {
+				onCloseLocal = onClose;
+				onClose = null;
+			}
+			if (onCloseLocal != null)
+				onCloseLocal.run();
+		}
+
+		protected void setOnClose(Runnable onClose) {
+			boolean runNow;
+			synchronized (this) {
+				runNow = finished.get();
+				if (!runNow)
+					this.onClose = onClose;
+			}
+			if (runNow)
+				onClose.run();
+		}
+	}
+
+	protected class SelectorThread extends Thread {
+		protected final Selector selector;
+		protected final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		protected final List<Connection> connections = new ArrayList<Connection>();
+
+		public SelectorThread(Selector selector) {
+			this.selector = selector;
+		}
+
+		public void register(final Connection connection) {
+			execute(new Runnable() {
+				public void run() {
+					try {
+						connection.key = connection.channel.register(selector, 0, connection);
+						connections.add(connection);
+					} catch (ClosedChannelException e) {
+						log.error("Channel closed before it could be registered", e);
+						connection.close();
+					}
+				}
+			});
+		}
+
+		/**
+		 * Run the task on this selector thread.
+		 */
+		public void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			while (!closed)
+				try {
+					selector.select(1000);
+
+					//Run queued tasks (registrations and interest changes)
+					Runnable curTask;
+					while ((curTask = tasks.poll()) != null)
+						curTask.run();
+
+					for (SelectionKey curKey : selector.selectedKeys()) {
+						Connection connection = (Connection) curKey.attachment();
+						Utils.addBotToMDC(connection.bot);
+						try {
+							if (curKey.isValid() && curKey.isWritable())
+								connection.handleWrite();
+							if (curKey.isValid() && curKey.isReadable())
+								connection.handleRead();
+						} catch (Exception e) {
+							if (connection.bot.getState() != PircBotX.State.DISCONNECTED)
+								log.error("Exception encountered on connection, shutting down bot", e);
+							connection.close();
+						}
+					}
+					selector.selectedKeys().clear();
+
+					//Cleanup closed connections and ping idle ones
+					long now = System.currentTimeMillis();
+					for (int i = connections.size() - 1; i >= 0; i--) {
+						Connection connection = connections.get(i);
+						if (connection.finished.get())
+							connections.remove(i);
+						else
+							connection.checkTimeout(now);
+					}
+				} catch (Exception e) {
+					log.error("Exception encountered in selector thread", e);
+				}
+
+			//Engine closed, disconnect everything
+			for (Connection curConnection : connections)
+				curConnection.close();
+			try {
+				selector.close();
+			} catch (IOException e) {
+				log.error("Cannot close selector", e);
+			}
+		}
+	}
+}
@@ -21,10 +21,13 @@ package org.pircbotx;
 import com.google.common.collect.ImmutableMap;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.StringTokenizer;
 import lombok.AccessLevel;
 import lombok.Data;
+import lombok.Getter;
 import lombok.Setter;
+import org.apache.commons.lang3.StringUtils;
 
 /**
  * This is a giant info bean of various things about the server. This is separate
@@ -79,6 +82,7 @@ public class ServerInfo {
 	protected boolean cPrivMsgExists;
 	protected boolean cNoticeExists;
 	protected int maxTargets;
+	protected ImmutableMap<String, Integer> targetMax = ImmutableMap.of();
 	protected boolean knockExists;
 	protected boolean vChannels;
 	protected int watchMax;
@@ -99,6 +103,12 @@ public class ServerInfo {
 	protected int totalChannelsFormed;
 	protected int serverUsers;
 	protected int connectedServers;
+	/**
+	 * Type of each channel mode, indexed by the mode character. Built from
+	 * CHANMODES and PREFIX
+	 */
+	@Getter(AccessLevel.NONE)
+	protected volatile ChannelModeType[] channelModeTypes = createChannelModeTypes(null, null);
 
 	public void parse(int code, List<String> parsedLine) {
 		//Pass off to speicific methods
@@ -191,11 +201,26 @@ public class ServerInfo {
 				whoX = true;
 			else if (key.equalsIgnoreCase("CALLERID") || key.equalsIgnoreCase("ACCEPT"))
 				callerID = true;
-			else if (key.equalsIgnoreCase("USERIP"))
+			else if (key.equalsIgnoreCase("MAXTARGETS"))
+				//No value means there is no limit
+				maxTargets = Utils.tryParseInt(value, Integer.MAX_VALUE);
+			else if (key.equalsIgnoreCase("TARGMAX")) {
+				//Empty limits mean there is no limit
+				ImmutableMap.Builder<String, Integer> targetMaxBuilder = ImmutableMap.builder();
+				for (String curCommand : StringUtils.split(value, ',')) {
+					String[] commandParts = StringUtils.split(curCommand, ':');
+					if (commandParts.length == 0)
+						continue;
+					int limit = (commandParts.length == 2) ? Utils.tryParseInt(commandParts[1], Integer.MAX_VALUE) : Integer.MAX_VALUE;
+					targetMaxBuilder.put(commandParts[0].toUpperCase(Locale.ENGLISH), limit);
+				}
+				targetMax = targetMaxBuilder.build();
+			} else if (key.equalsIgnoreCase("USERIP"))
 				userIPExists = true;
 			else if (key.equalsIgnoreCase("CNOTICE"))
 				cNoticeExists = true;
 		}
+		channelModeTypes = createChannelModeTypes(channelModes, prefixes);
 		//Freenode
 		//005 PircBotX CHANTYPES=# EXCEPTS INVEX CHANMODES=eIbq,k,flj,CFLMPQcgimnprstz CHANLIMIT=#:120 PREFIX=(ov)@+ MAXLIST=bqeI:100 MODES=4 NETWORK=freenode KNOCK STATUSMSG=@+ CALLERID=g :are supported by this server
 		//005 PircBotX CASEMAPPING=rfc1459 CHARSET=ascii NICKLEN=16 CHANNELLEN=50 TOPICLEN=390 ETRACE CPRIVMSG CNOTICE DEAF=D MONITOR=100 FNC TARGMAX=NAMES:1,LIST:1,KICK:1,WHOIS:1,PRIVMSG:4,NOTICE:4,ACCEPT:,MONITOR: :are supported by this server
@@ -205,6 +230,65 @@ public class ServerInfo {
 		//005 PircBotX CHANLIMIT=#:75 CHANNELLEN=50 CHANMODES=beI,k,l,BCMNORScimnpstz AWAYLEN=160 ELIST=CMNTU SAFELIST KNOCK NAMESX UHNAMES FNC EXCEPTS=e INVEX=I :are supported by this server
 	}
 	
+	/**
+	 * Get the maximum number of comma separated targets the command accepts. 
+	 * Uses TARGMAX, then MAXTARGETS. If the server sent neither only 1 target
+	 * is assumed to be supported
+	 * @param command The command, eg PRIVMSG
+	 * @return The maximum number of targets, {@link Integer#MAX_VALUE} if 
+	 * unlimited
+	 */
+	public int getTargetMax(String command) {
+		Integer limit = targetMax.get(command.toUpperCase(Locale.ENGLISH));
+		if (limit != null)
+			return limit;
+		if (maxTargets > 0)
+			return maxTargets;
+		return 1;
+	}
+
+	/**
+	 * Get how a channel mode is used. Modes the server didn't advertise are
+	 * assumed to be {@link ChannelModeType#FLAG flags} without parameters
+	 * @param mode The mode character, eg k
+	 * @return The type of the mode
+	 */
+	public ChannelModeType getChannelModeType(char mode) {
+		ChannelModeType[] types = channelModeTypes;
+		if (mode >= types.length || types[mode] == null)
+			return ChannelModeType.FLAG;
+		return types[mode];
+	}
+
+	/**
+	 * Build the mode type lookup table. Falls back to the RFC1459 modes
+	 * (b,k,l,imnpst) and the common prefix modes (qaohv) when the server
+	 * hasn't sent them
+	 * @param chanModes The CHANMODES value, eg beI,k,l,imnpst
+	 * @param prefixes The PREFIX value, eg (ov)@+
+	 */
+	protected static ChannelModeType[] createChannelModeTypes(String chanModes, String prefixes) {
+		//004 also fills channelModes with a plain list of letters, ignore it
+		if (chanModes == null || chanModes.indexOf(',') == -1)
+			chanModes = "b,k,l,imnpst";
+		String prefixModes = "qaohv";
+		if (prefixes != null && prefixes.startsWith("(") && prefixes.indexOf(')') != -1)
+			prefixModes = prefixes.substring(1, prefixes.indexOf(')'));
+
+		ChannelModeType[] types = new ChannelModeType[128];
+		String[] groups = StringUtils.splitPreserveAllTokens(chanModes, ',');
+		ChannelModeType[] groupTypes = {ChannelModeType.LIST, ChannelModeType.PARAMETER,
+			ChannelModeType.SET_PARAMETER, ChannelModeType.FLAG};
+		for (int i = 0; i < groups.length && i < groupTypes.length; i++)
+			for (char curMode : groups[i].toCharArray())
+				if (curMode < types.length)
+					types[curMode] = groupTypes[i];
+		for (char curMode : prefixModes.toCharArray())
+			if (curMode < types.length)
+				types[curMode] = ChannelModeType.USER_LEVEL;
+		return types;
+	}
+
 	/**
 	 * Get all supported server options as a map. Be careful about calling this
 	 * very early in the connection phase as we might not of received all the 005
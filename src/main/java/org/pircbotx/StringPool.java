@@ -0,0 +1,92 @@
+/**
+ * Copyright (C) 2010-2013 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of PircBotX.
+ *
+ * PircBotX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PircBotX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pircbotx;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Weak interning pool for strings that are repeated across many users, such as
+ * logins, hostmasks, servers and real names. Equal strings share one instance
+ * while any user still references it and are otherwise garbage collected.
+ * <p>
+ * A pool is thread safe and can be shared by multiple bots (eg all bots in a
+ * {@link MultiBotManager}) by setting the same instance in each
+ * {@link Configuration}
+ * @author Leon Blakey <lord.quackstar at gmail.com>
+ */
+public class StringPool {
+	protected final Interner<String> interner = Interners.newWeakInterner();
+	protected final AtomicLong requestCount = new AtomicLong();
+	protected final AtomicLong hitCount = new AtomicLong();
+
+	/**
+	 * Get the pooled instance equal to the given string, adding it to the pool
+	 * if there isn't one yet.
+	 * @param string The string to intern, can be null
+	 * @return The pooled instance or null if the string was null
+	 */
+	public String intern(String string) {
+		if (string == null)
+			return null;
+		String pooled = interner.intern(string);
+		requestCount.incrementAndGet();
+		if (pooled != string)
+			hitCount.incrementAndGet();
+		return pooled;
+	}
+
+	/**
+	 * @return Number of non-null strings passed to {@link #intern(java.lang.String) }
+	 */
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	/**
+	 * @return Number of strings that were replaced by an existing pooled instance,
+	 * ie the number of duplicate copies that didn't need to be kept
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * @return Fraction of requests that were hits, or 0 if there have been no
+	 * requests
+	 */
+	public double getHitRate() {
+		long requests = requestCount.get();
+		return requests == 0 ? 0 : (double) hitCount.get() / requests;
+	}
+
+	/**
+	 * Reset the request and hit counters. Pooled strings are kept
+	 */
+	public void resetStats() {
+		requestCount.set(0);
+		hitCount.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "StringPool(requests=" + getRequestCount() + ", hits=" + getHitCount() + ")";
+	}
+}
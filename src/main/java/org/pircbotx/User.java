@@ -64,6 +64,13 @@ public class User implements Comparable<User> {
 	private boolean ircop = false;
 	private String server = "";
 	private int hops = 0;
+	/**
+	 * True while a {@link UserChannelDao.Batch} is changing the fields, so the
+	 * dao is told once when the batch is applied instead of by every setter
+	 */
+	@Getter(AccessLevel.NONE)
+	@Setter(AccessLevel.NONE)
+	protected boolean changesDeferred = false;
 
 	@SuppressWarnings("unchecked")
 	protected User(PircBotX bot, UserChannelDao<? extends User, ? extends Channel> dao, String nick) {
@@ -196,6 +203,55 @@ public class User implements Comparable<User> {
 		return getNick().compareToIgnoreCase(other.getNick());
 	}
 
+	protected void setNick(String nick) {
+		this.nick = nick;
+		userChanged();
+	}
+
+	protected void setRealName(String realName) {
+		this.realName = realName;
+		userChanged();
+	}
+
+	protected void setLogin(String login) {
+		this.login = login;
+		userChanged();
+	}
+
+	protected void setHostmask(String hostmask) {
+		this.hostmask = hostmask;
+		userChanged();
+	}
+
+	protected void setAway(boolean away) {
+		this.away = away;
+		userChanged();
+	}
+
+	protected void setIrcop(boolean ircop) {
+		this.ircop = ircop;
+		userChanged();
+	}
+
+	protected void setServer(String server) {
+		this.server = server;
+		userChanged();
+	}
+
+	protected void setHops(int hops) {
+		this.hops = hops;
+		userChanged();
+	}
+
+	/**
+	 * Tell the dao this user has changed so the next snapshot has the new values.
+	 */
+	protected void userChanged() {
+		//Snapshots don't have a dao
+		if (dao != null && !changesDeferred)
+			dao.userChanged(this);
+	}
+
 	/**
 	 * The exact server that this user is joined to.
 	 * @return The address of the server
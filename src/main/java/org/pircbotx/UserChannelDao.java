@@ -19,75 +19,194 @@
 package org.pircbotx;
 
 import static com.google.common.base.Preconditions.*;
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
-import com.google.common.collect.ImmutableBiMap;
-import com.google.common.collect.ImmutableMap;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import java.io.Closeable;
-import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-import lombok.AccessLevel;
-import lombok.RequiredArgsConstructor;
-import lombok.Synchronized;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 import org.apache.commons.lang3.StringUtils;
 import org.pircbotx.hooks.events.UserListEvent;
 import org.pircbotx.snapshot.ChannelSnapshot;
 import org.pircbotx.snapshot.UserChannelDaoSnapshot;
-import org.pircbotx.snapshot.UserChannelMapSnapshot;
 import org.pircbotx.snapshot.UserSnapshot;
 
 /**
  * Stores and maintains relationships between users and channels. This class should
  * not be directly, it is meant to be the internal storage engine.
+ * <p/>
+ * All maps are {@link PersistentMap}s, so {@link #createSnapshot() } only needs
+ * to keep the current versions instead of copying every user and relationship.
+ * <p/>
+ * Only users in a channel with the bot (or explicitly requested with 
+ * {@link #getUser(java.lang.String) }) are tracked. Other users that send 
+ * lines to the bot are kept in a bounded cache of recent private users, see 
+ * {@link #getSourceUser(java.lang.String) }
  * @see User
  * @see Channel
  * @author Leon Blakey <lord.quackstar at gmail.com>
  */
-@RequiredArgsConstructor(access = AccessLevel.PROTECTED)
 public class UserChannelDao<U extends User, C extends Channel> implements Closeable {
 	protected final PircBotX bot;
 	protected final Configuration.BotFactory botFactory;
-	protected final Object accessLock = new Object();
+	/**
+	 * Guards all maps. Reads and writes are exclusive unless a subclass like
+	 * {@link ConcurrentUserChannelDao} provides a real read/write lock
+	 */
+	protected final ReadWriteLock accessLock = createAccessLock();
+	/**
+	 * Which users are in which channels along with their levels
+	 */
 	protected final UserChannelMap<U, C> mainMap;
-	protected final EnumMap<UserLevel, UserChannelMap<U, C>> levelsMap;
-	protected final BiMap<String, U> userNickMap;
-	protected final BiMap<String, C> channelNameMap;
-	protected final Set<U> privateUsers;
+	/**
+	 * How nicks and channel names are compared, set from the server's CASEMAPPING.
+	 * Volatile along with userNickMap so {@link Batch#getUser(java.lang.String) }
+	 * can read them without locking. Both are only replaced under the write lock
+	 */
+	protected volatile CaseMapping caseMapping;
+	protected volatile PersistentMap<String, U> userNickMap;
+	protected PersistentMap<String, C> channelNameMap;
+	/**
+	 * Recent untracked (and tracked) users that sent a line to the bot, keyed by
+	 * nick in lower case. Bounded by {@link Configuration#getMaxPrivateUsers() }
+	 */
+	protected final Cache<String, U> privateUsers;
+	/**
+	 * Last snapshot of each user, refreshed for users in {@link #changedUsers}
+	 * when a dao snapshot is created
+	 */
+	protected PersistentMap<U, UserSnapshot> userSnapshots;
+	protected final Set<U> changedUsers;
+	protected volatile CachedSet<U> allUsersCache;
+	protected volatile CachedSet<C> allChannelsCache;
 
 	public UserChannelDao(PircBotX bot, Configuration.BotFactory botFactory) {
 		this.bot = bot;
 		this.botFactory = botFactory;
 		this.mainMap = new UserChannelMap<U, C>();
-		this.userNickMap = HashBiMap.create();
-		this.channelNameMap = HashBiMap.create();
-		this.privateUsers = new HashSet<U>();
+		this.caseMapping = CaseMapping.RFC1459;
+		this.userNickMap = PersistentMap.empty(caseMapping.getEquivalence());
+		this.channelNameMap = PersistentMap.empty(caseMapping.getEquivalence());
+		this.privateUsers = CacheBuilder.newBuilder()
+				.maximumSize(bot.getConfiguration().getMaxPrivateUsers())
+				.expireAfterAccess(bot.getConfiguration().getPrivateUserTimeout(), TimeUnit.MILLISECONDS)
+				.build();
+		this.userSnapshots = PersistentMap.empty();
+		this.changedUsers = new HashSet<U>();
+	}
 
-		//Initialize levels map with a UserChannelMap for each level
-		this.levelsMap = Maps.newEnumMap(UserLevel.class);
-		for (UserLevel level : UserLevel.values())
-			levelsMap.put(level, new UserChannelMap<U, C>());
+	/**
+	 * Create a read only copy of the given dao that shares all maps with it.
+	 * Later changes to the given dao are not visible in the copy
+	 * @param otherDao The dao to copy, must be locked by the caller
+	 */
+	protected UserChannelDao(UserChannelDao<U, C> otherDao) {
+		this.bot = otherDao.bot;
+		this.botFactory = otherDao.botFactory;
+		this.mainMap = new UserChannelMap<U, C>(otherDao.mainMap);
+		this.caseMapping = otherDao.caseMapping;
+		this.userNickMap = otherDao.userNickMap;
+		this.channelNameMap = otherDao.channelNameMap;
+		this.privateUsers = otherDao.privateUsers;
+		this.userSnapshots = otherDao.userSnapshots;
+		this.changedUsers = new HashSet<U>();
+	}
+
+	/**
+	 * Create the lock guarding all maps. Called during construction, so must not
+	 * depend on any fields
+	 * @return A lock where the read and write locks are the same lock
+	 */
+	protected ReadWriteLock createAccessLock() {
+		return new ExclusiveLock();
 	}
 
-	@Synchronized("accessLock")
 	public U getUser(String nick) {
 		checkArgument(StringUtils.isNotBlank(nick), "Cannot get a blank user");
-		U user = userNickMap.get(nick);
-		if (user != null)
+		accessLock.readLock().lock();
+		try {
+			U user = userNickMap.get(nick);
+			if (user != null)
+				return user;
+		} finally {
+			accessLock.readLock().unlock();
+		}
+
+		accessLock.writeLock().lock();
+		try {
+			//Might of been created while waiting for the lock
+			U user = userNickMap.get(nick);
+			if (user != null)
+				return user;
+
+			//Start tracking a recent private user instead of creating a duplicate
+			user = privateUsers.getIfPresent(caseMapping.toLowerCase(nick));
+			if (user == null)
+				user = (U) botFactory.createUser(bot, nick);
+			userNickMap = userNickMap.plus(nick, user);
+			changedUsers.add(user);
 			return user;
+		} finally {
+			accessLock.writeLock().unlock();
+		}
+	}
 
-		//Create new user
-		user = (U) botFactory.createUser(bot, nick);
-		userNickMap.put(nick, user);
-		return user;
+	/**
+	 * Get the user that sent a line to the bot. Unlike {@link #getUser(java.lang.String) }
+	 * unknown nicks are not tracked: an untracked user is created and only kept
+	 * in the bounded cache of recent private users so the same user is returned
+	 * for following lines. It becomes tracked when it joins one of the bot's 
+	 * channels
+	 * @param nick The nick of the user
+	 * @return The tracked user, or a recent or new untracked user
+	 */
+	public U getSourceUser(String nick) {
+		checkArgument(StringUtils.isNotBlank(nick), "Cannot get a blank user");
+		accessLock.readLock().lock();
+		try {
+			U user = userNickMap.get(nick);
+			if (user == null)
+				user = privateUsers.getIfPresent(caseMapping.toLowerCase(nick));
+			if (user != null)
+				return user;
+		} finally {
+			accessLock.readLock().unlock();
+		}
+
+		accessLock.writeLock().lock();
+		try {
+			//Might of been created while waiting for the lock
+			U user = userNickMap.get(nick);
+			if (user != null)
+				return user;
+			String key = caseMapping.toLowerCase(nick);
+			user = privateUsers.getIfPresent(key);
+			if (user == null) {
+				user = (U) botFactory.createUser(bot, nick);
+				privateUsers.put(key, user);
+			}
+			return user;
+		} finally {
+			accessLock.writeLock().unlock();
+		}
 	}
 
-	@Synchronized("accessLock")
 	public boolean userExists(String nick) {
-		return userNickMap.containsKey(nick);
+		accessLock.readLock().lock();
+		try {
+			return userNickMap.containsKey(nick);
+		} finally {
+			accessLock.readLock().unlock();
+		}
 	}
 
 	/**
@@ -110,112 +229,292 @@ public class UserChannelDao<U extends User, C extends Channel> implements Closea
 	 *
 	 * @see UserListEvent
 	 */
-	@Synchronized("accessLock")
 	public ImmutableSortedSet<U> getAllUsers() {
-		return ImmutableSortedSet.copyOf(userNickMap.values());
+		accessLock.readLock().lock();
+		try {
+			CachedSet<U> cache = allUsersCache;
+			if (cache == null || cache.source != userNickMap) {
+				cache = new CachedSet<U>(userNickMap, ImmutableSortedSet.copyOf(userNickMap.values()));
+				allUsersCache = cache;
+			}
+			return cache.set;
+		} finally {
+			accessLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the number of known users.
+	 * @return The number of users
+	 */
+	public int getUserCount() {
+		accessLock.readLock().lock();
+		try {
+			return userNickMap.size();
+		} finally {
+			accessLock.readLock().unlock();
+		}
 	}
 
-	@Synchronized("accessLock")
 	protected void addUserToChannel(U user, C channel) {
-		mainMap.addUserToChannel(user, channel);
+		accessLock.writeLock().lock();
+		try {
+			mainMap.addUserToChannel(user, channel);
+			if (userNickMap.get(user.getNick()) != user) {
+				//Start tracking an untracked user
+				userNickMap = userNickMap.plus(user.getNick(), user);
+				changedUsers.add(user);
+			}
+		} finally {
+			accessLock.writeLock().unlock();
+		}
 	}
 
-	@Synchronized("accessLock")
 	protected void addUserToPrivate(U user) {
-		privateUsers.add(user);
+		accessLock.writeLock().lock();
+		try {
+			privateUsers.put(caseMapping.toLowerCase(user.getNick()), user);
+		} finally {
+			accessLock.writeLock().unlock();
+		}
 	}
 
-	@Synchronized("accessLock")
 	protected void addUserToLevel(UserLevel level, U user, C channel) {
-		levelsMap.get(level).addUserToChannel(user, channel);
+		accessLock.writeLock().lock();
+		try {
+			mainMap.addUserToLevel(level, user, channel);
+		} finally {
+			accessLock.writeLock().unlock();
+		}
 	}
 
-	@Synchronized("accessLock")
 	protected void removeUserFromLevel(UserLevel level, U user, C channel) {
-		levelsMap.get(level).removeUserFromChannel(user, channel);
+		accessLock.writeLock().lock();
+		try {
+			mainMap.removeUserFromLevel(level, user, channel);
+		} finally {
+			accessLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Start collecting changes to apply all at once, eg for a burst of WHO
+	 * replies or a MODE line changing many users
+	 * @param expectedMemberships Roughly how many memberships will be changed
+	 * @return A new batch for this dao
+	 */
+	protected Batch<U, C> createBatch(int expectedMemberships) {
+		return new Batch<U, C>(this, expectedMemberships);
 	}
 
-	@Synchronized("accessLock")
 	public ImmutableSortedSet<U> getNormalUsers(C channel) {
-		Set<U> remainingUsers = new HashSet<U>(mainMap.getUsers(channel));
-		for (UserChannelMap<U, C> curLevelMap : levelsMap.values())
-			remainingUsers.removeAll(curLevelMap.getUsers(channel));
-		return ImmutableSortedSet.copyOf(remainingUsers);
+		accessLock.readLock().lock();
+		try {
+			return mainMap.getNormalUsers(channel);
+		} finally {
+			accessLock.readLock().unlock();
+		}
 	}
 
-	@Synchronized("accessLock")
 	public ImmutableSortedSet<U> getUsers(C channel, UserLevel level) {
-		return levelsMap.get(level).getUsers(channel);
+		accessLock.readLock().lock();
+		try {
+			return mainMap.getUsers(channel, level);
+		} finally {
+			accessLock.readLock().unlock();
+		}
 	}
 
-	@Synchronized("accessLock")
 	public ImmutableSortedSet<UserLevel> getLevels(C channel, U user) {
-		ImmutableSortedSet.Builder<UserLevel> builder = ImmutableSortedSet.naturalOrder();
-		for (Map.Entry<UserLevel, UserChannelMap<U, C>> curEntry : levelsMap.entrySet())
-			if (curEntry.getValue().containsEntry(user, channel))
-				builder.add(curEntry.getKey());
-		return builder.build();
+		accessLock.readLock().lock();
+		try {
+			return mainMap.getLevels(user, channel);
+		} finally {
+			accessLock.readLock().unlock();
+		}
 	}
 
-	@Synchronized("accessLock")
 	public ImmutableSortedSet<C> getNormalUserChannels(U user) {
-		Set<C> remainingChannels = new HashSet<C>(mainMap.getChannels(user));
-		for (UserChannelMap<U, C>  curLevelMap : levelsMap.values())
-			remainingChannels.removeAll(curLevelMap.getChannels(user));
-		return ImmutableSortedSet.copyOf(remainingChannels);
+		accessLock.readLock().lock();
+		try {
+			return mainMap.getNormalChannels(user);
+		} finally {
+			accessLock.readLock().unlock();
+		}
 	}
 
-	@Synchronized("accessLock")
 	public ImmutableSortedSet<C> getChannels(U user, UserLevel level) {
-		return levelsMap.get(level).getChannels(user);
+		accessLock.readLock().lock();
+		try {
+			return mainMap.getChannels(user, level);
+		} finally {
+			accessLock.readLock().unlock();
+		}
 	}
 
-	@Synchronized("accessLock")
 	protected void removeUserFromChannel(U user, C channel) {
-		mainMap.removeUserFromChannel(user, channel);
-		for (UserChannelMap<U, C> curLevelMap : levelsMap.values())
-			curLevelMap.removeUserFromChannel(user, channel);
-
-		if (!privateUsers.contains(user) && !mainMap.containsUser(user))
-			//Completely remove user
-			userNickMap.inverse().remove(user);
+		accessLock.writeLock().lock();
+		try {
+			mainMap.removeUserFromChannel(user, channel);
+
+			if (!mainMap.containsUser(user))
+				//Completely remove user, if they sent us private lines they're
+				//still in privateUsers until evicted
+				forgetUser(user);
+		} finally {
+			accessLock.writeLock().unlock();
+		}
 	}
 
-	@Synchronized("accessLock")
 	protected void removeUser(U user) {
-		mainMap.removeUser(user);
-		for (UserChannelMap<U, C> curLevelMap : levelsMap.values())
-			curLevelMap.removeUser(user);
-
-		//Remove remaining locations
-		userNickMap.inverse().remove(user);
-		privateUsers.remove(user);
+		accessLock.writeLock().lock();
+		try {
+			mainMap.removeUser(user);
+
+			//Remove remaining locations
+			forgetUser(user);
+			String key = caseMapping.toLowerCase(user.getNick());
+			if (privateUsers.getIfPresent(key) == user)
+				privateUsers.invalidate(key);
+		} finally {
+			accessLock.writeLock().unlock();
+		}
 	}
 
-	@Synchronized("accessLock")
 	protected boolean levelContainsUser(UserLevel level, C channel, U user) {
-		return levelsMap.get(level).containsEntry(user, channel);
+		accessLock.readLock().lock();
+		try {
+			return mainMap.containsLevel(level, user, channel);
+		} finally {
+			accessLock.readLock().unlock();
+		}
 	}
 
-	@Synchronized("accessLock")
 	protected void renameUser(U user, String newNick) {
-		user.setNick(newNick);
-		BiMap<U, String> inverseUserNickMap = userNickMap.inverse();
-		inverseUserNickMap.remove(user);
-		inverseUserNickMap.put(user, newNick);
+		accessLock.writeLock().lock();
+		try {
+			String oldKey = caseMapping.toLowerCase(user.getNick());
+			boolean recentPrivate = privateUsers.getIfPresent(oldKey) == user;
+			if (recentPrivate)
+				privateUsers.invalidate(oldKey);
+			removeUserNick(user);
+			user.setNick(newNick);
+			userNickMap = userNickMap.plus(newNick, user);
+			changedUsers.add(user);
+			if (recentPrivate)
+				privateUsers.put(caseMapping.toLowerCase(newNick), user);
+		} finally {
+			accessLock.writeLock().unlock();
+		}
+	}
+
+	public CaseMapping getCaseMapping() {
+		accessLock.readLock().lock();
+		try {
+			return caseMapping;
+		} finally {
+			accessLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Change how nicks and channel names are compared. Existing users or 
+	 * channels that are now equal are merged, keeping the last one
+	 * @param caseMapping The new mapping
+	 */
+	protected void setCaseMapping(CaseMapping caseMapping) {
+		checkNotNull(caseMapping, "Case mapping cannot be null");
+		accessLock.writeLock().lock();
+		try {
+			if (caseMapping == this.caseMapping)
+				return;
+			this.caseMapping = caseMapping;
+			userNickMap = rekey(userNickMap, caseMapping);
+			channelNameMap = rekey(channelNameMap, caseMapping);
+			for (C curChannel : channelNameMap.values())
+				curChannel.resolveSyncPolicy(caseMapping);
+			ImmutableList<U> recentPrivateUsers = ImmutableList.copyOf(privateUsers.asMap().values());
+			privateUsers.invalidateAll();
+			for (U curUser : recentPrivateUsers)
+				privateUsers.put(caseMapping.toLowerCase(curUser.getNick()), curUser);
+		} finally {
+			accessLock.writeLock().unlock();
+		}
+	}
+
+	protected static <V> PersistentMap<String, V> rekey(PersistentMap<String, V> map, CaseMapping caseMapping) {
+		PersistentMap<String, V> newMap = PersistentMap.empty(caseMapping.getEquivalence());
+		for (Map.Entry<String, V> curEntry : map)
+			newMap = newMap.plus(curEntry.getKey(), curEntry.getValue());
+		return newMap;
+	}
+
+	/**
+	 * Called by {@link User} when any of its fields change so the next snapshot
+	 * doesn't use the old values
+	 * @param user The changed user
+	 */
+	protected void userChanged(U user) {
+		accessLock.writeLock().lock();
+		try {
+			//Ignore users that are no longer (or not yet) stored
+			if (userNickMap.get(user.getNick()) == user)
+				changedUsers.add(user);
+		} finally {
+			accessLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Remove the user from the nick map and snapshot cache. Caller must hold
+	 * the write lock
+	 */
+	protected void forgetUser(U user) {
+		removeUserNick(user);
+		userSnapshots = userSnapshots.minus(user);
+		changedUsers.remove(user);
+	}
+
+	protected void removeUserNick(U user) {
+		if (userNickMap.get(user.getNick()) == user) {
+			userNickMap = userNickMap.minus(user.getNick());
+			return;
+		}
+
+		//Nick was changed without renameUser, search for it
+		for (Map.Entry<String, U> curEntry : userNickMap)
+			if (curEntry.getValue() == user) {
+				userNickMap = userNickMap.minus(curEntry.getKey());
+				return;
+			}
 	}
 
-	@Synchronized("accessLock")
 	public C getChannel(String name) {
 		checkArgument(StringUtils.isNotBlank(name), "Cannot get a blank channel");
-		C chan = channelNameMap.get(name);
-		if (chan != null)
+		accessLock.readLock().lock();
+		try {
+			C chan = channelNameMap.get(name);
+			if (chan != null)
+				return chan;
+		} finally {
+			accessLock.readLock().unlock();
+		}
+
+		accessLock.writeLock().lock();
+		try {
+			//Might of been created while waiting for the lock
+			C chan = channelNameMap.get(name);
+			if (chan != null)
+				return chan;
+
+			//Channel does not exist, create one
+			chan = (C) botFactory.createChannel(bot, name);
+			chan.resolveSyncPolicy(caseMapping);
+			channelNameMap = channelNameMap.plus(name, chan);
 			return chan;
-
-		//Channel does not exist, create one
-		chan = (C) botFactory.createChannel(bot, name);
-		channelNameMap.put(name, chan);
-		return chan;
+		} finally {
+			accessLock.writeLock().unlock();
+		}
 	}
 
 	/**
@@ -223,88 +522,418 @@ public class UserChannelDao<U extends User, C extends Channel> implements Closea
 	 * @param name A channel name as a string
 	 * @return True if we are still connected to the channel, false if not
 	 */
-	@Synchronized("accessLock")
 	public boolean channelExists(String name) {
-		return channelNameMap.containsKey(name);
+		accessLock.readLock().lock();
+		try {
+			return channelNameMap.containsKey(name);
+		} finally {
+			accessLock.readLock().unlock();
+		}
 	}
 
-	@Synchronized("accessLock")
 	public ImmutableSortedSet<U> getUsers(C channel) {
-		return mainMap.getUsers(channel);
+		accessLock.readLock().lock();
+		try {
+			return mainMap.getUsers(channel);
+		} finally {
+			accessLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Iterate over the users in the channel without sorting or copying them.
+	 * Changes made after this is called are not visible
+	 * @param channel The channel
+	 * @return Users in no particular order
+	 */
+	public Iterable<U> iterateUsers(C channel) {
+		accessLock.readLock().lock();
+		try {
+			return mainMap.iterateUsers(channel);
+		} finally {
+			accessLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the number of users in the channel without copying them.
+	 * @param channel The channel
+	 * @return The number of users
+	 */
+	public int getUserCount(C channel) {
+		accessLock.readLock().lock();
+		try {
+			return mainMap.getUserCount(channel);
+		} finally {
+			accessLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the number of users with the level in the channel without copying them.
+	 * @param channel The channel
+	 * @param level The level
+	 * @return The number of users
+	 */
+	public int getLevelCount(C channel, UserLevel level) {
+		accessLock.readLock().lock();
+		try {
+			return mainMap.getLevelCount(channel, level);
+		} finally {
+			accessLock.readLock().unlock();
+		}
 	}
 
-	@Synchronized("accessLock")
 	public ImmutableSortedSet<C> getAllChannels() {
-		return ImmutableSortedSet.copyOf(channelNameMap.values());
+		accessLock.readLock().lock();
+		try {
+			CachedSet<C> cache = allChannelsCache;
+			if (cache == null || cache.source != channelNameMap) {
+				cache = new CachedSet<C>(channelNameMap, ImmutableSortedSet.copyOf(channelNameMap.values()));
+				allChannelsCache = cache;
+			}
+			return cache.set;
+		} finally {
+			accessLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the number of known channels.
+	 * @return The number of channels
+	 */
+	public int getChannelCount() {
+		accessLock.readLock().lock();
+		try {
+			return channelNameMap.size();
+		} finally {
+			accessLock.readLock().unlock();
+		}
 	}
 
-	@Synchronized("accessLock")
 	public ImmutableSortedSet<C> getChannels(U user) {
-		return mainMap.getChannels(user);
+		accessLock.readLock().lock();
+		try {
+			return mainMap.getChannels(user);
+		} finally {
+			accessLock.readLock().unlock();
+		}
 	}
 
-	@Synchronized("accessLock")
-	protected void removeChannel(C channel) {
-		mainMap.removeChannel(channel);
-		for (UserChannelMap<U, C> curLevelMap : levelsMap.values())
-			curLevelMap.removeChannel(channel);
+	/**
+	 * Iterate over the channels the user is in without sorting or copying them.
+	 * Changes made after this is called are not visible
+	 * @param user The user
+	 * @return Channels in no particular order
+	 */
+	public Iterable<C> iterateChannels(U user) {
+		accessLock.readLock().lock();
+		try {
+			return mainMap.iterateChannels(user);
+		} finally {
+			accessLock.readLock().unlock();
+		}
+	}
 
-		//Remove remaining locations
-		channelNameMap.remove(channel.getName());
+	protected void removeChannel(C channel) {
+		accessLock.writeLock().lock();
+		try {
+			mainMap.removeChannel(channel);
+
+			//Remove remaining locations
+			channelNameMap = channelNameMap.minus(channel.getName());
+		} finally {
+			accessLock.writeLock().unlock();
+		}
 	}
 
-	@Synchronized("accessLock")
 	public void close() {
-		mainMap.clear();
-		for (UserChannelMap<U, C> curLevelMap : levelsMap.values())
-			curLevelMap.clear();
-		channelNameMap.clear();
-		privateUsers.clear();
-		userNickMap.clear();
+		accessLock.writeLock().lock();
+		try {
+			//No replies will come for these anymore
+			for (C curChannel : channelNameMap.values())
+				curChannel.cancelModeRefresh();
+			mainMap.clear();
+			channelNameMap = channelNameMap.clear();
+			privateUsers.invalidateAll();
+			userNickMap = userNickMap.clear();
+			userSnapshots = PersistentMap.empty();
+			changedUsers.clear();
+		} finally {
+			accessLock.writeLock().unlock();
+		}
 	}
 
-	@Synchronized("accessLock")
+	/**
+	 * Create a snapshot of all users, channels, and their relationships. Only
+	 * users that changed since the last snapshot and channels are copied, 
+	 * everything else is shared with the live maps
+	 * @return A read only dao containing snapshots
+	 */
 	public UserChannelDaoSnapshot createSnapshot() {
-		//Create snapshots of all users and channels
-		ImmutableMap.Builder<U, UserSnapshot> userSnapshotBuilder = ImmutableMap.builder();
-		for (U curUser : userNickMap.values())
-			userSnapshotBuilder.put(curUser, curUser.createSnapshot());
-		ImmutableMap<U, UserSnapshot> userSnapshotMap = userSnapshotBuilder.build();
-		ImmutableMap.Builder<C, ChannelSnapshot> channelSnapshotBuilder = ImmutableMap.builder();
-		for (C curChannel : channelNameMap.values())
-			channelSnapshotBuilder.put(curChannel, curChannel.createSnapshot());
-		ImmutableMap<C, ChannelSnapshot> channelSnapshotMap = channelSnapshotBuilder.build();
-
-		//Make snapshots of the relationship maps using the above user and channel snapshots
-		UserChannelMapSnapshot mainMapSnapshot = mainMap.createSnapshot(userSnapshotMap, channelSnapshotMap);
-		EnumMap<UserLevel, UserChannelMap<UserSnapshot, ChannelSnapshot>> levelsMapSnapshot = Maps.newEnumMap(UserLevel.class);
-		for (Map.Entry<UserLevel, UserChannelMap<U, C>> curLevel : levelsMap.entrySet())
-			levelsMapSnapshot.put(curLevel.getKey(), curLevel.getValue().createSnapshot(userSnapshotMap, channelSnapshotMap));
-		ImmutableBiMap.Builder<String, UserSnapshot> userNickMapSnapshotBuilder = ImmutableBiMap.builder();
-		for (Map.Entry<String, U> curNick : userNickMap.entrySet())
-			userNickMapSnapshotBuilder.put(curNick.getKey(), curNick.getValue().createSnapshot());
-		ImmutableBiMap.Builder<String, ChannelSnapshot> channelNameMapSnapshotBuilder = ImmutableBiMap.builder();
-		for (Map.Entry<String, C> curName : channelNameMap.entrySet())
-			channelNameMapSnapshotBuilder.put(curName.getKey(), curName.getValue().createSnapshot());
-		ImmutableSortedSet.Builder<UserSnapshot> privateUserSnapshotBuilder = ImmutableSortedSet.naturalOrder();
-		for (User curUser : privateUsers)
-			privateUserSnapshotBuilder.add(curUser.createSnapshot());
-
-		//Finally can create the snapshot object
-		UserChannelDaoSnapshot daoSnapshot = new UserChannelDaoSnapshot(bot,
-				mainMapSnapshot,
-				levelsMapSnapshot,
-				userNickMapSnapshotBuilder.build(),
-				channelNameMapSnapshotBuilder.build(),
-				privateUserSnapshotBuilder.build());
-		
-		//Tell UserSnapshots and ChannelSnapshots what the new backing dao is
-		for(UserSnapshot curUserSnapshot : userSnapshotMap.values())
-			curUserSnapshot.setDao(daoSnapshot);
-		for(ChannelSnapshot curChannelSnapshot : channelSnapshotMap.values())
-			curChannelSnapshot.setDao(daoSnapshot);
-		
-		//Finally
-		return daoSnapshot;
+		return createSnapshotOf(null);
+	}
+
+	/**
+	 * Create a snapshot that only copies the given channels now. Any other 
+	 * channel is copied the first time its returned from the snapshot, so its
+	 * fields will contain any changes made in the meantime while its users and
+	 * levels won't. Users and relationships are the same as 
+	 * {@link #createSnapshot() }. Useful for events that only involve a few 
+	 * channels, eg a PART
+	 * @param channels The channels to copy now
+	 * @return A read only dao containing snapshots
+	 */
+	public UserChannelDaoSnapshot createSnapshot(Iterable<? extends C> channels) {
+		checkNotNull(channels, "Channels cannot be null");
+		return createSnapshotOf(channels);
+	}
+
+	/**
+	 * Create a snapshot under the write lock. The channel list is read inside
+	 * the lock since the read lock can't be upgraded
+	 * @param channels The channels to copy now or null for all channels
+	 * @return A read only dao containing snapshots
+	 */
+	@SuppressWarnings("unchecked")
+	protected UserChannelDaoSnapshot createSnapshotOf(Iterable<? extends C> channels) {
+		accessLock.writeLock().lock();
+		try {
+			if (channels == null)
+				channels = channelNameMap.values();
+
+			//Refresh snapshots of users that have changed
+			for (U curUser : changedUsers)
+				userSnapshots = userSnapshots.plus(curUser, curUser.createSnapshot());
+			changedUsers.clear();
+
+			//Channels have many fields that are changed directly, always copy
+			Map<Channel, ChannelSnapshot> channelSnapshotMap = new HashMap<Channel, ChannelSnapshot>();
+			for (C curChannel : channels)
+				channelSnapshotMap.put(curChannel, curChannel.createSnapshot());
+
+			//Workaround for generics
+			UserChannelDaoSnapshot daoSnapshot = new UserChannelDaoSnapshot(bot,
+					(UserChannelDao<User, Channel>) (Object) new UserChannelDao<U, C>(this),
+					(PersistentMap<User, UserSnapshot>) (Object) userSnapshots,
+					channelSnapshotMap);
+
+			//Tell ChannelSnapshots what the new backing dao is
+			for (ChannelSnapshot curChannelSnapshot : channelSnapshotMap.values())
+				curChannelSnapshot.setDao(daoSnapshot);
+			return daoSnapshot;
+		} finally {
+			accessLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Changes to a dao that are applied together by {@link #apply() } under a
+	 * single lock acquisition, so readers never see part of the batch. Changes
+	 * to the same membership are merged, so eg a user added to a channel with
+	 * 3 levels is stored once instead of 4 times.
+	 * <p>
+	 * Users that aren't tracked yet are created by {@link #getUser(java.lang.String) }
+	 * and only added to the dao when the batch is applied and adds them to a 
+	 * channel. Changes to user fields
+	 * between {@link #beginUserUpdate(org.pircbotx.User) } and 
+	 * {@link #endUserUpdate(org.pircbotx.User) } are also only told to the dao
+	 * when applied, so a WHO reply takes no locks until then. Batches are not 
+	 * thread safe and are meant to be used by the InputParser
+	 */
+	public static class Batch<U extends User, C extends Channel> {
+		protected final UserChannelDao<U, C> dao;
+		/**
+		 * Flags to set (index 0) and clear (index 1) for each membership
+		 */
+		protected final Map<C, Map<U, int[]>> changes = Maps.newHashMap();
+		/**
+		 * Users created by this batch, keyed by nick in lower case
+		 */
+		protected final Map<String, U> newUsers;
+		/**
+		 * Users whose fields changed, marked changed in the dao when applied
+		 */
+		protected final Set<U> updatedUsers;
+		protected final int expectedMemberships;
+
+		protected Batch(UserChannelDao<U, C> dao, int expectedMemberships) {
+			this.dao = dao;
+			this.expectedMemberships = expectedMemberships;
+			this.newUsers = Maps.newHashMapWithExpectedSize(expectedMemberships);
+			this.updatedUsers = Sets.newHashSetWithExpectedSize(expectedMemberships);
+		}
+
+		/**
+		 * Get a tracked user or one created by this batch. Unlike 
+		 * {@link UserChannelDao#getUser(java.lang.String) } new users are only 
+		 * tracked once the batch is applied, and only if they were added to a
+		 * channel. Levels of new users that aren't added to a channel are dropped
+		 * @param nick The nick of the user
+		 * @return The user
+		 */
+		public U getUser(String nick) {
+			checkArgument(StringUtils.isNotBlank(nick), "Cannot get a blank user");
+			//Maps are immutable, no lock needed to read the current one
+			U user = dao.userNickMap.get(nick);
+			if (user != null)
+				return user;
+			String key = dao.caseMapping.toLowerCase(nick);
+			user = newUsers.get(key);
+			if (user != null)
+				return user;
+
+			//Reuse a recent private user, don't add new users to that cache
+			user = dao.privateUsers.getIfPresent(key);
+			if (user == null)
+				user = (U) dao.botFactory.createUser(dao.bot, nick);
+			newUsers.put(key, user);
+			return user;
+		}
+
+		/**
+		 * Stop telling the dao about every change to the users fields. Must be 
+		 * followed by {@link #endUserUpdate(org.pircbotx.User) }, normally in
+		 * a finally block
+		 * @param user The user about to be changed
+		 */
+		public void beginUserUpdate(U user) {
+			user.changesDeferred = true;
+		}
+
+		/**
+		 * Tell the dao about changes to the user once the batch is applied
+		 * @param user The user from {@link #beginUserUpdate(org.pircbotx.User) }
+		 */
+		public void endUserUpdate(U user) {
+			user.changesDeferred = false;
+			updatedUsers.add(user);
+		}
+
+		public void addUserToChannel(U user, C channel) {
+			update(user, channel, UserChannelMap.MEMBER, 0);
+		}
+
+		public void addUserToLevel(UserLevel level, U user, C channel) {
+			update(user, channel, UserChannelMap.toFlag(level), 0);
+		}
+
+		public void removeUserFromLevel(UserLevel level, U user, C channel) {
+			update(user, channel, 0, UserChannelMap.toFlag(level));
+		}
+
+		protected void update(U user, C channel, int setFlags, int clearFlags) {
+			Map<U, int[]> channelChanges = changes.get(channel);
+			if (channelChanges == null) {
+				channelChanges = Maps.newHashMapWithExpectedSize(expectedMemberships);
+				changes.put(channel, channelChanges);
+			}
+			int[] flags = channelChanges.get(user);
+			if (flags == null) {
+				flags = new int[2];
+				channelChanges.put(user, flags);
+			}
+			//Later changes override earlier ones
+			flags[0] = (flags[0] | setFlags) & ~clearFlags;
+			flags[1] = (flags[1] | clearFlags) & ~setFlags;
+		}
+
+		public boolean isEmpty() {
+			return changes.isEmpty() && newUsers.isEmpty() && updatedUsers.isEmpty();
+		}
+
+		/**
+		 * Apply all changes to the dao and empty the batch so it can be reused.
+		 */
+		public void apply() {
+			if (isEmpty())
+				return;
+			dao.accessLock.writeLock().lock();
+			try {
+				//Something else might of tracked a user with the same nick, use that one
+				Map<U, U> replacedUsers = null;
+				for (U curUser : newUsers.values()) {
+					U trackedUser = dao.userNickMap.get(curUser.getNick());
+					if (trackedUser != null && trackedUser != curUser) {
+						if (replacedUsers == null)
+							replacedUsers = Maps.newHashMap();
+						replacedUsers.put(curUser, trackedUser);
+					}
+				}
+
+				//Only track new users that join a channel. Eg the target of 
+				//MODE #chan +o Nick might not be in any channel we know of
+				for (Map<U, int[]> curChanges : changes.values())
+					for (Map.Entry<U, int[]> curChange : curChanges.entrySet())
+						if ((curChange.getValue()[0] & UserChannelMap.MEMBER) != 0)
+							track(resolve(curChange.getKey(), replacedUsers));
+
+				for (Map.Entry<C, Map<U, int[]>> curChannel : changes.entrySet())
+					for (Map.Entry<U, int[]> curChange : curChannel.getValue().entrySet()) {
+						U user = resolve(curChange.getKey(), replacedUsers);
+						if (dao.userNickMap.get(user.getNick()) != user)
+							//New user that never joined, don't leave them in the map
+							continue;
+						int[] flags = curChange.getValue();
+						dao.mainMap.updateFlags(user, curChannel.getKey(), flags[0], flags[1]);
+					}
+
+				//Users tracked above are already marked, same check as userChanged
+				for (U curUser : updatedUsers)
+					if (dao.userNickMap.get(curUser.getNick()) == curUser)
+						dao.changedUsers.add(curUser);
+			} finally {
+				dao.accessLock.writeLock().unlock();
+			}
+			changes.clear();
+			newUsers.clear();
+			updatedUsers.clear();
+		}
+
+		protected U resolve(U user, Map<U, U> replacedUsers) {
+			if (replacedUsers != null && replacedUsers.containsKey(user))
+				return replacedUsers.get(user);
+			return user;
+		}
+
+		/**
+		 * Add the user to the nick map if it isn't already. Caller must hold
+		 * the write lock
+		 */
+		protected void track(U user) {
+			if (dao.userNickMap.get(user.getNick()) != user) {
+				dao.userNickMap = dao.userNickMap.plus(user.getNick(), user);
+				dao.changedUsers.add(user);
+			}
+		}
+	}
+
+	/**
+	 * A sorted copy of a {@link PersistentMap}'s values. Valid as long as the
+	 * map is the same object
+	 */
+	protected static class CachedSet<E> {
+		protected final Object source;
+		protected final ImmutableSortedSet<E> set;
+
+		public CachedSet(Object source, ImmutableSortedSet<E> set) {
+			this.source = source;
+			this.set = set;
+		}
+	}
+
+	/**
+	 * A single lock used for both reading and writing.
+	 */
+	protected static class ExclusiveLock implements ReadWriteLock {
+		protected final Lock lock = new ReentrantLock();
+
+		public Lock readLock() {
+			return lock;
+		}
+
+		public Lock writeLock() {
+			return lock;
+		}
 	}
 }
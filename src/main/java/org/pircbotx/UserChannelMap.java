@@ -18,99 +18,402 @@
  */
 package org.pircbotx;
 
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSortedSet;
-import com.google.common.collect.Multimap;
+import java.util.Iterator;
 import java.util.Map;
-import lombok.AccessLevel;
-import lombok.RequiredArgsConstructor;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import lombok.extern.slf4j.Slf4j;
-import org.pircbotx.snapshot.ChannelSnapshot;
-import org.pircbotx.snapshot.UserChannelMapSnapshot;
-import org.pircbotx.snapshot.UserSnapshot;
 
 /**
- * A many to many map of users to channels.
+ * A many to many map of users to channels. Each membership is stored twice,
+ * once under the user and once under the channel, with whether the user is in
+ * the channel and all of their {@link UserLevel}s packed into a single byte so
+ * levels don't need maps of their own. Backed by {@link PersistentMap}s, so a
+ * copy shares all data with the original and costs nothing to create
+ * <p/>
+ * Sorted sets returned by queries are cached until the channel or user they 
+ * came from changes, and user counts are updated with each change. Reads can
+ * happen at the same time, but changes must be made by one thread at a time
  */
-@RequiredArgsConstructor(access = AccessLevel.PROTECTED)
 @Slf4j
 public class UserChannelMap<U extends User, C extends Channel> {
-	protected final Multimap<U, C> userToChannelMap;
-	protected final Multimap<C, U> channelToUserMap;
+	/**
+	 * Set when the user is in the channel, as opposed to only having a level
+	 * in it (eg a WHO reply gives levels before the user is added)
+	 */
+	protected static final int MEMBER = 0x80;
+	/**
+	 * Index into counts and views for users in the channel, the levels use 
+	 * their ordinal
+	 */
+	protected static final int MEMBERS = UserLevel.values().length;
+	/**
+	 * Index into views for users in the channel without a level.
+	 */
+	protected static final int NORMAL = MEMBERS + 1;
+	/**
+	 * Every possible set of levels, indexed by the level bits of the flags
+	 */
+	protected static final ImmutableList<ImmutableSortedSet<UserLevel>> LEVEL_SETS;
+	protected PersistentMap<U, PersistentMap<C, Byte>> userToChannelMap;
+	protected PersistentMap<C, PersistentMap<U, Byte>> channelToUserMap;
+	/**
+	 * Number of users in each channel and with each level, indexed by 
+	 * {@link #MEMBERS} and level ordinals. Arrays are never changed once stored
+	 */
+	protected PersistentMap<C, int[]> channelCounts;
+	protected final ConcurrentMap<C, Views<U>> channelViews = new ConcurrentHashMap<C, Views<U>>();
+	protected final ConcurrentMap<U, Views<C>> userViews = new ConcurrentHashMap<U, Views<C>>();
+
+	static {
+		ImmutableList.Builder<ImmutableSortedSet<UserLevel>> levelSets = ImmutableList.builder();
+		for (int flags = 0; flags < (1 << MEMBERS); flags++) {
+			ImmutableSortedSet.Builder<UserLevel> builder = ImmutableSortedSet.naturalOrder();
+			for (UserLevel curLevel : UserLevel.values())
+				if ((flags & toFlag(curLevel)) != 0)
+					builder.add(curLevel);
+			levelSets.add(builder.build());
+		}
+		LEVEL_SETS = levelSets.build();
+	}
 
 	/**
-	 * Create with HashMultimaps.
+	 * Create an empty map.
 	 */
 	public UserChannelMap() {
-		channelToUserMap = HashMultimap.create();
-		userToChannelMap = HashMultimap.create();
+		userToChannelMap = PersistentMap.empty();
+		channelToUserMap = PersistentMap.empty();
+		channelCounts = PersistentMap.empty();
+	}
+
+	/**
+	 * Create a copy of the given map. Later changes to either map do not
+	 * affect the other
+	 * @param otherMap The map to copy
+	 */
+	public UserChannelMap(UserChannelMap<U, C> otherMap) {
+		userToChannelMap = otherMap.userToChannelMap;
+		channelToUserMap = otherMap.channelToUserMap;
+		channelCounts = otherMap.channelCounts;
 	}
 
 	public void addUserToChannel(U user, C channel) {
 		log.trace("MapAdd User: {} | Channel: {}", user, channel);
-		userToChannelMap.put(user, channel);
-		channelToUserMap.put(channel, user);
+		setFlags(user, channel, getFlags(user, channel) | MEMBER);
 	}
 
+	/**
+	 * Remove the user and all of their levels from the channel.
+	 */
 	public void removeUserFromChannel(U user, C channel) {
-		userToChannelMap.remove(user, channel);
-		channelToUserMap.remove(channel, user);
+		setFlags(user, channel, 0);
+	}
+
+	public void addUserToLevel(UserLevel level, U user, C channel) {
+		setFlags(user, channel, getFlags(user, channel) | toFlag(level));
+	}
+
+	public void removeUserFromLevel(UserLevel level, U user, C channel) {
+		setFlags(user, channel, getFlags(user, channel) & ~toFlag(level));
+	}
+
+	/**
+	 * Set and clear several flags of a membership at once, eg the accumulated
+	 * changes of a {@link UserChannelDao.Batch}. Cleared flags win over set flags
+	 */
+	protected void updateFlags(U user, C channel, int setFlags, int clearFlags) {
+		setFlags(user, channel, (getFlags(user, channel) | setFlags) & ~clearFlags);
 	}
 
 	public void removeUser(U user) {
+		PersistentMap<C, Byte> channels = userToChannelMap.get(user);
+		if (channels == null)
+			return;
+		userToChannelMap = userToChannelMap.minus(user);
+		userViews.remove(user);
+
 		//Remove the user from each channel
-		for (Channel curChannel : userToChannelMap.removeAll(user))
-			channelToUserMap.remove(curChannel, user);
+		for (Map.Entry<C, Byte> curEntry : channels) {
+			C curChannel = curEntry.getKey();
+			channelToUserMap = removeEntry(channelToUserMap, curChannel, user);
+			updateCounts(curChannel, curEntry.getValue() & 0xFF, 0);
+		}
 	}
 
 	public void removeChannel(C channel) {
+		PersistentMap<U, Byte> users = channelToUserMap.get(channel);
+		if (users == null)
+			return;
+		channelToUserMap = channelToUserMap.minus(channel);
+		channelCounts = channelCounts.minus(channel);
+		channelViews.remove(channel);
+
 		//Remove the channel from each user
-		for (User curUser : channelToUserMap.removeAll(channel))
+		for (U curUser : users.keys()) {
 			//This will automatically remove the user if they have no more channels
-			userToChannelMap.remove(curUser, channel);
+			userToChannelMap = removeEntry(userToChannelMap, curUser, channel);
+			if (!userToChannelMap.containsKey(curUser))
+				userViews.remove(curUser);
+		}
 	}
 
+	/**
+	 * Get all users in the channel.
+	 */
 	public ImmutableSortedSet<U> getUsers(C channel) {
-		return ImmutableSortedSet.copyOf(channelToUserMap.get(channel));
+		return getView(channelViews, channel, channelToUserMap.get(channel), MEMBERS);
+	}
+
+	/**
+	 * Get all users with the level in the channel.
+	 */
+	public ImmutableSortedSet<U> getUsers(C channel, UserLevel level) {
+		return getView(channelViews, channel, channelToUserMap.get(channel), level.ordinal());
+	}
+
+	/**
+	 * Get all users in the channel without any level.
+	 */
+	public ImmutableSortedSet<U> getNormalUsers(C channel) {
+		return getView(channelViews, channel, channelToUserMap.get(channel), NORMAL);
+	}
+
+	/**
+	 * Iterate over the users in the channel without sorting or copying. Changes
+	 * made after this is called are not visible
+	 */
+	public Iterable<U> iterateUsers(C channel) {
+		return iterateKeys(channelToUserMap.get(channel));
+	}
+
+	/**
+	 * Get the number of users in the channel.
+	 */
+	public int getUserCount(C channel) {
+		int[] counts = channelCounts.get(channel);
+		return counts == null ? 0 : counts[MEMBERS];
+	}
+
+	/**
+	 * Get the number of users with the level in the channel.
+	 */
+	public int getLevelCount(C channel, UserLevel level) {
+		int[] counts = channelCounts.get(channel);
+		return counts == null ? 0 : counts[level.ordinal()];
 	}
 
+	/**
+	 * Get all channels the user is in.
+	 */
 	public ImmutableSortedSet<C> getChannels(U user) {
-		return ImmutableSortedSet.copyOf(userToChannelMap.get(user));
+		return getView(userViews, user, userToChannelMap.get(user), MEMBERS);
+	}
+
+	/**
+	 * Get all channels the user has the level in.
+	 */
+	public ImmutableSortedSet<C> getChannels(U user, UserLevel level) {
+		return getView(userViews, user, userToChannelMap.get(user), level.ordinal());
+	}
+
+	/**
+	 * Get all channels the user is in without any level.
+	 */
+	public ImmutableSortedSet<C> getNormalChannels(U user) {
+		return getView(userViews, user, userToChannelMap.get(user), NORMAL);
+	}
+
+	/**
+	 * Iterate over the channels the user is in without sorting or copying. 
+	 * Changes made after this is called are not visible
+	 */
+	public Iterable<C> iterateChannels(U user) {
+		return iterateKeys(userToChannelMap.get(user));
+	}
+
+	/**
+	 * Get all levels the user has in the channel. Nothing is allocated, the
+	 * sets are shared
+	 */
+	public ImmutableSortedSet<UserLevel> getLevels(U user, C channel) {
+		return LEVEL_SETS.get(getFlags(user, channel) & ~MEMBER);
+	}
+
+	public boolean containsLevel(UserLevel level, U user, C channel) {
+		return (getFlags(user, channel) & toFlag(level)) != 0;
 	}
 
 	public boolean containsEntry(U user, C channel) {
 		log.trace("MapContains User: {} | Channel: {}", user, channel);
-		boolean channelToUserContains = channelToUserMap.containsEntry(channel, user);
-		boolean userToChannelContains = userToChannelMap.containsEntry(user, channel);
-		if (channelToUserContains != userToChannelContains)
-			throw new RuntimeException("Map inconsistent! User: " + user + " | Channel: " + channel + " | channelToUserMap: " + channelToUserContains + " | userToChannelMap: " + userToChannelContains);
-		return  channelToUserContains;
+		return (getFlags(user, channel) & MEMBER) != 0;
 	}
 
-	public boolean containsUser(User user) {
-		boolean channelToUserContains = channelToUserMap.containsValue(user);
-		boolean userToChannelContains = userToChannelMap.containsKey(user);
-		if (channelToUserContains != userToChannelContains)
-			throw new RuntimeException("Map inconsistent! User: " + user + " | channelToUserMap: " + channelToUserContains + " | userToChannelMap: " + userToChannelContains);
-		return channelToUserContains;
+	/**
+	 * Check if the user is in any channel.
+	 */
+	public boolean containsUser(U user) {
+		PersistentMap<C, Byte> channels = userToChannelMap.get(user);
+		if (channels == null)
+			return false;
+		for (Byte curFlags : channels.values())
+			if ((curFlags & MEMBER) != 0)
+				return true;
+		return false;
 	}
 
 	public void clear() {
-		userToChannelMap.clear();
-		channelToUserMap.clear();
+		userToChannelMap = PersistentMap.empty();
+		channelToUserMap = PersistentMap.empty();
+		channelCounts = PersistentMap.empty();
+		channelViews.clear();
+		userViews.clear();
+	}
+
+	protected int getFlags(U user, C channel) {
+		PersistentMap<C, Byte> channels = userToChannelMap.get(user);
+		if (channels == null)
+			return 0;
+		Byte flags = channels.get(channel);
+		return flags == null ? 0 : flags & 0xFF;
+	}
+
+	/**
+	 * Store the flags in both maps, removing the entry if there are none.
+	 */
+	protected void setFlags(U user, C channel, int flags) {
+		int oldFlags = getFlags(user, channel);
+		if (flags == oldFlags)
+			return;
+		if (flags == 0) {
+			userToChannelMap = removeEntry(userToChannelMap, user, channel);
+			channelToUserMap = removeEntry(channelToUserMap, channel, user);
+			if (!userToChannelMap.containsKey(user))
+				userViews.remove(user);
+			if (!channelToUserMap.containsKey(channel))
+				channelViews.remove(channel);
+		} else {
+			//Byte.valueOf is cached so nothing is allocated for the flags
+			Byte flagsByte = Byte.valueOf((byte) flags);
+			userToChannelMap = putEntry(userToChannelMap, user, channel, flagsByte);
+			channelToUserMap = putEntry(channelToUserMap, channel, user, flagsByte);
+		}
+		updateCounts(channel, oldFlags, flags & 0xFF);
+	}
+
+	protected void updateCounts(C channel, int oldFlags, int newFlags) {
+		if (oldFlags == newFlags)
+			return;
+		if (!channelToUserMap.containsKey(channel)) {
+			channelCounts = channelCounts.minus(channel);
+			return;
+		}
+
+		int[] counts = channelCounts.get(channel);
+		int[] newCounts = (counts == null) ? new int[MEMBERS + 1] : counts.clone();
+		for (int i = 0; i <= MEMBERS; i++) {
+			int flag = (i == MEMBERS) ? MEMBER : 1 << i;
+			if ((oldFlags & flag) != 0)
+				newCounts[i]--;
+			if ((newFlags & flag) != 0)
+				newCounts[i]++;
+		}
+		channelCounts = channelCounts.plus(channel, newCounts);
+	}
+
+	/**
+	 * Get a cached view of the source map, creating it if the source has 
+	 * changed since it was cached. Since the source is a {@link PersistentMap}
+	 * it being the same object means nothing has changed
+	 */
+	protected static <O, K extends Comparable<?>> ImmutableSortedSet<K> getView(ConcurrentMap<O, Views<K>> viewCache, O owner, PersistentMap<K, Byte> source, int viewIndex) {
+		if (source == null)
+			return ImmutableSortedSet.of();
+		Views<K> views = viewCache.get(owner);
+		if (views == null || views.source != source) {
+			views = new Views<K>(source);
+			viewCache.put(owner, views);
+		}
+
+		ImmutableSortedSet<K> view = views.sets.get(viewIndex);
+		if (view == null) {
+			if (viewIndex == MEMBERS)
+				view = filter(source, MEMBER, MEMBER);
+			else if (viewIndex == NORMAL)
+				view = filter(source, 0xFF, MEMBER);
+			else
+				view = filter(source, 1 << viewIndex, 1 << viewIndex);
+			views.sets.set(viewIndex, view);
+		}
+		return view;
+	}
+
+	protected static int toFlag(UserLevel level) {
+		return 1 << level.ordinal();
 	}
 
-	public UserChannelMapSnapshot createSnapshot(Map<U, UserSnapshot> userSnapshots, Map<C, ChannelSnapshot> channelSnapshots) {
-		//Create new multimaps replacing each user and channel with their respective snapshots
-		ImmutableMultimap.Builder<UserSnapshot, ChannelSnapshot> userToChannelSnapshotBuilder = ImmutableMultimap.builder();
-		for (Map.Entry<U, C> curEntry : userToChannelMap.entries())
-			userToChannelSnapshotBuilder.put(userSnapshots.get(curEntry.getKey()), channelSnapshots.get(curEntry.getValue()));
-		ImmutableMultimap.Builder<ChannelSnapshot, UserSnapshot> channelToUserSnapshotBuilder = ImmutableMultimap.builder();
-		for (Map.Entry<C, U> curEntry : channelToUserMap.entries())
-			channelToUserSnapshotBuilder.put(channelSnapshots.get(curEntry.getKey()), userSnapshots.get(curEntry.getValue()));
+	/**
+	 * Get all keys whose flags equal the expected flags after applying the mask.
+	 */
+	protected static <K extends Comparable<?>> ImmutableSortedSet<K> filter(PersistentMap<K, Byte> map, int mask, int expectedFlags) {
+		if (map == null)
+			return ImmutableSortedSet.of();
+		ImmutableSortedSet.Builder<K> builder = ImmutableSortedSet.naturalOrder();
+		for (Map.Entry<K, Byte> curEntry : map)
+			if ((curEntry.getValue() & mask) == expectedFlags)
+				builder.add(curEntry.getKey());
+		return builder.build();
+	}
+
+	protected static <K> Iterable<K> iterateKeys(final PersistentMap<K, Byte> map) {
+		if (map == null)
+			return ImmutableList.of();
+		return new Iterable<K>() {
+			public Iterator<K> iterator() {
+				final Iterator<Map.Entry<K, Byte>> entries = map.iterator();
+				return new AbstractIterator<K>() {
+					@Override
+					protected K computeNext() {
+						while (entries.hasNext()) {
+							Map.Entry<K, Byte> curEntry = entries.next();
+							if ((curEntry.getValue() & MEMBER) != 0)
+								return curEntry.getKey();
+						}
+						return endOfData();
+					}
+				};
+			}
+		};
+	}
+
+	protected static <K, V> PersistentMap<K, PersistentMap<V, Byte>> putEntry(PersistentMap<K, PersistentMap<V, Byte>> map, K key, V value, Byte flags) {
+		PersistentMap<V, Byte> values = map.get(key);
+		if (values == null)
+			values = PersistentMap.empty();
+		return map.plus(key, values.plus(value, flags));
+	}
+
+	protected static <K, V> PersistentMap<K, PersistentMap<V, Byte>> removeEntry(PersistentMap<K, PersistentMap<V, Byte>> map, K key, V value) {
+		PersistentMap<V, Byte> values = map.get(key);
+		if (values == null)
+			return map;
+		values = values.minus(value);
+		return values.isEmpty() ? map.minus(key) : map.plus(key, values);
+	}
+
+	/**
+	 * Sorted sets made from a single version of a channel's users or a user's 
+	 * channels, indexed like the counts with {@link #NORMAL} at the end
+	 */
+	protected static class Views<K> {
+		protected final PersistentMap<K, Byte> source;
+		protected final AtomicReferenceArray<ImmutableSortedSet<K>> sets = new AtomicReferenceArray<ImmutableSortedSet<K>>(NORMAL + 1);
 
-		//Return a snapshot of the map
-		return new UserChannelMapSnapshot(userToChannelSnapshotBuilder.build(), channelToUserSnapshotBuilder.build());
+		public Views(PersistentMap<K, Byte> source) {
+			this.source = source;
+		}
 	}
 }
@@ -84,6 +84,15 @@ public final class Utils {
 		bot.sendRawLineToServer(rawLine);
 	}
 
+	/**
+	 * Flushes lines written with {@link #sendRawLineToServer(org.pircbotx.PircBotX, java.lang.String) }.
+	 * Needed so {@link PircBotX#flushRawLinesToServer() } can stay protected
+	 * @param bot The bot to flush
+	 */
+	public static void flushRawLinesToServer(PircBotX bot) {
+		bot.flushRawLinesToServer();
+	}
+
 	/**
 	 * Tokenize IRC raw input into it's components, keeping the
 	 * 'sender' and 'message' fields intact.
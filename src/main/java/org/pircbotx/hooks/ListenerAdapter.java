@@ -18,6 +18,11 @@
  */
 package org.pircbotx.hooks;
 
+import static com.google.common.base.Preconditions.*;
+import com.google.common.collect.MapMaker;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.pircbotx.PircBotX;
 import org.pircbotx.hooks.events.*;
 import org.pircbotx.hooks.types.*;
@@ -33,132 +38,337 @@ import org.pircbotx.hooks.types.*;
  * {@link Listener#onEvent(org.pircbotx.hooks.Event) } method, you must call
  * <code>super.onEvent(event)</code>, otherwise none of the Adapter hook methods
  * will be called!
+ * <p>
+ * Listener managers only send events that have an overridden method here (see
+ * {@link ListenerInterest}). Overriding onEvent sends every event
  * @author Leon Blakey <lord.quackstar at gmail.com>
  */
 public abstract class ListenerAdapter<T extends PircBotX> implements Listener<T> {
+	/**
+	 * Event types that have a method in this class. Specific events come
+	 * first, then the Generic interfaces. Indexes are the cases of the switch in
+	 * {@link #onEvent(org.pircbotx.hooks.Event) }, so both must be changed together
+	 */
+	protected static final Class<?>[] HANDLED_TYPES = {
+		ActionEvent.class,
+		ChannelInfoEvent.class,
+		ConnectEvent.class,
+		DisconnectEvent.class,
+		FingerEvent.class,
+		HalfOpEvent.class,
+		IncomingChatRequestEvent.class,
+		IncomingFileTransferEvent.class,
+		InviteEvent.class,
+		JoinEvent.class,
+		KickEvent.class,
+		MessageEvent.class,
+		ModeEvent.class,
+		MotdEvent.class,
+		NickChangeEvent.class,
+		NoticeEvent.class,
+		OpEvent.class,
+		OwnerEvent.class,
+		PartEvent.class,
+		PingEvent.class,
+		PrivateMessageEvent.class,
+		QuitEvent.class,
+		RemoveChannelBanEvent.class,
+		RemoveChannelKeyEvent.class,
+		RemoveChannelLimitEvent.class,
+		RemoveInviteOnlyEvent.class,
+		RemoveModeratedEvent.class,
+		RemoveNoExternalMessagesEvent.class,
+		RemovePrivateEvent.class,
+		RemoveSecretEvent.class,
+		RemoveTopicProtectionEvent.class,
+		ServerPingEvent.class,
+		ServerResponseEvent.class,
+		SetChannelBanEvent.class,
+		SetChannelKeyEvent.class,
+		SetChannelLimitEvent.class,
+		SetInviteOnlyEvent.class,
+		SetModeratedEvent.class,
+		SetNoExternalMessagesEvent.class,
+		SetPrivateEvent.class,
+		SetSecretEvent.class,
+		SetTopicProtectionEvent.class,
+		SocketConnectEvent.class,
+		SuperOpEvent.class,
+		TimeEvent.class,
+		TopicEvent.class,
+		UnknownEvent.class,
+		UserListEvent.class,
+		UserModeEvent.class,
+		VersionEvent.class,
+		VoiceEvent.class,
+		WhoisEvent.class,
+		GenericCTCPEvent.class,
+		GenericUserModeEvent.class,
+		GenericChannelModeEvent.class,
+		GenericDCCEvent.class,
+		GenericMessageEvent.class,
+		GenericUserEvent.class,
+		GenericChannelEvent.class,
+		GenericChannelUserEvent.class
+	};
+	/**
+	 * Number of cases in the {@link #onEvent(org.pircbotx.hooks.Event) } switch
+	 */
+	protected static final int SWITCH_CASES = 60;
+	/**
+	 * Indexes of {@link #HANDLED_TYPES} to call for each event class, cached
+	 * by ListenerAdapter class. Classes are weakly referenced so listeners and
+	 * events from other class loaders can still be unloaded
+	 */
+	protected static final ConcurrentMap<Class<?>, ConcurrentMap<Class<?>, int[]>> DISPATCH_TABLES = new MapMaker().weakKeys().makeMap();
+
+	static {
+		checkState(HANDLED_TYPES.length == SWITCH_CASES, "HANDLED_TYPES has %s entries but onEvent has %s cases", HANDLED_TYPES.length, SWITCH_CASES);
+		for (Class<?> curType : HANDLED_TYPES)
+			try {
+				ListenerAdapter.class.getMethod(getMethodName(curType), curType);
+			} catch (NoSuchMethodException e) {
+				throw new IllegalStateException("No method " + getMethodName(curType) + " for " + curType, e);
+			}
+	}
+
 	public void onEvent(Event<T> event) throws Exception {
-		if (event instanceof ActionEvent)
-			onAction((ActionEvent<T>) event);
-		else if (event instanceof ChannelInfoEvent)
-			onChannelInfo((ChannelInfoEvent<T>) event);
-		else if (event instanceof ConnectEvent)
-			onConnect((ConnectEvent<T>) event);
-		else if (event instanceof DisconnectEvent)
-			onDisconnect((DisconnectEvent<T>) event);
-		else if (event instanceof FingerEvent)
-			onFinger((FingerEvent<T>) event);
-		else if (event instanceof HalfOpEvent)
-			onHalfOp((HalfOpEvent<T>) event);
-		else if (event instanceof IncomingChatRequestEvent)
-			onIncomingChatRequest((IncomingChatRequestEvent<T>) event);
-		else if (event instanceof IncomingFileTransferEvent)
-			onIncomingFileTransfer((IncomingFileTransferEvent<T>) event);
-		else if (event instanceof InviteEvent)
-			onInvite((InviteEvent<T>) event);
-		else if (event instanceof JoinEvent)
-			onJoin((JoinEvent<T>) event);
-		else if (event instanceof KickEvent)
-			onKick((KickEvent<T>) event);
-		else if (event instanceof MessageEvent)
-			onMessage((MessageEvent<T>) event);
-		else if (event instanceof ModeEvent)
-			onMode((ModeEvent<T>) event);
-		else if (event instanceof MotdEvent)
-			onMotd((MotdEvent<T>) event);
-		else if (event instanceof NickChangeEvent)
-			onNickChange((NickChangeEvent<T>) event);
-		else if (event instanceof NoticeEvent)
-			onNotice((NoticeEvent<T>) event);
-		else if (event instanceof OpEvent)
-			onOp((OpEvent<T>) event);
-		else if (event instanceof OwnerEvent)
-			onOwner((OwnerEvent<T>) event);
-		else if (event instanceof PartEvent)
-			onPart((PartEvent<T>) event);
-		else if (event instanceof PingEvent)
-			onPing((PingEvent<T>) event);
-		else if (event instanceof PrivateMessageEvent)
-			onPrivateMessage((PrivateMessageEvent<T>) event);
-		else if (event instanceof QuitEvent)
-			onQuit((QuitEvent<T>) event);
-		else if (event instanceof RemoveChannelBanEvent)
-			onRemoveChannelBan((RemoveChannelBanEvent<T>) event);
-		else if (event instanceof RemoveChannelKeyEvent)
-			onRemoveChannelKey((RemoveChannelKeyEvent<T>) event);
-		else if (event instanceof RemoveChannelLimitEvent)
-			onRemoveChannelLimit((RemoveChannelLimitEvent<T>) event);
-		else if (event instanceof RemoveInviteOnlyEvent)
-			onRemoveInviteOnly((RemoveInviteOnlyEvent<T>) event);
-		else if (event instanceof RemoveModeratedEvent)
-			onRemoveModerated((RemoveModeratedEvent<T>) event);
-		else if (event instanceof RemoveNoExternalMessagesEvent)
-			onRemoveNoExternalMessages((RemoveNoExternalMessagesEvent<T>) event);
-		else if (event instanceof RemovePrivateEvent)
-			onRemovePrivate((RemovePrivateEvent<T>) event);
-		else if (event instanceof RemoveSecretEvent)
-			onRemoveSecret((RemoveSecretEvent<T>) event);
-		else if (event instanceof RemoveTopicProtectionEvent)
-			onRemoveTopicProtection((RemoveTopicProtectionEvent<T>) event);
-		else if (event instanceof ServerPingEvent)
-			onServerPing((ServerPingEvent<T>) event);
-		else if (event instanceof ServerResponseEvent)
-			onServerResponse((ServerResponseEvent<T>) event);
-		else if (event instanceof SetChannelBanEvent)
-			onSetChannelBan((SetChannelBanEvent<T>) event);
-		else if (event instanceof SetChannelKeyEvent)
-			onSetChannelKey((SetChannelKeyEvent<T>) event);
-		else if (event instanceof SetChannelLimitEvent)
-			onSetChannelLimit((SetChannelLimitEvent<T>) event);
-		else if (event instanceof SetInviteOnlyEvent)
-			onSetInviteOnly((SetInviteOnlyEvent<T>) event);
-		else if (event instanceof SetModeratedEvent)
-			onSetModerated((SetModeratedEvent<T>) event);
-		else if (event instanceof SetNoExternalMessagesEvent)
-			onSetNoExternalMessages((SetNoExternalMessagesEvent<T>) event);
-		else if (event instanceof SetPrivateEvent)
-			onSetPrivate((SetPrivateEvent<T>) event);
-		else if (event instanceof SetSecretEvent)
-			onSetSecret((SetSecretEvent<T>) event);
-		else if (event instanceof SetTopicProtectionEvent)
-			onSetTopicProtection((SetTopicProtectionEvent<T>) event);
-		else if (event instanceof SocketConnectEvent)
-			onSocketConnect((SocketConnectEvent<T>) event);
-		else if (event instanceof SuperOpEvent)
-			onSuperOp((SuperOpEvent<T>) event);
-		else if (event instanceof TimeEvent)
-			onTime((TimeEvent<T>) event);
-		else if (event instanceof TopicEvent)
-			onTopic((TopicEvent<T>) event);
-		else if (event instanceof UnknownEvent)
-			onUnknown((UnknownEvent<T>) event);
-		else if (event instanceof UserListEvent)
-			onUserList((UserListEvent<T>) event);
-		else if (event instanceof UserModeEvent)
-			onUserMode((UserModeEvent<T>) event);
-		else if (event instanceof VersionEvent)
-			onVersion((VersionEvent<T>) event);
-		else if (event instanceof VoiceEvent)
-			onVoice((VoiceEvent<T>) event);
-		else if (event instanceof WhoisEvent)
-			onWhois((WhoisEvent<T>) event);
-
-		//Generic methods
-		if (event instanceof GenericCTCPEvent)
-			onGenericCTCP((GenericCTCPEvent<T>) event);
-		if (event instanceof GenericUserModeEvent)
-			onGenericUserMode((GenericUserModeEvent<T>) event);
-		if (event instanceof GenericChannelModeEvent)
-			onGenericChannelMode((GenericChannelModeEvent<T>) event);
-		if (event instanceof GenericDCCEvent)
-			onGenericDCC((GenericDCCEvent<T>) event);
-		if (event instanceof GenericMessageEvent)
-			onGenericMessage((GenericMessageEvent<T>) event);
-		if (event instanceof GenericUserEvent)
-			onGenericUser((GenericUserEvent<T>) event);
-		if (event instanceof GenericChannelEvent)
-			onGenericChannel((GenericChannelEvent<T>) event);
-		if (event instanceof GenericChannelUserEvent)
-			onGenericChannelUser((GenericChannelUserEvent<T>) event);
+		//Only methods the subclass overrides are called, see getHandlers
+		for (int curHandler : getHandlers(getClass(), event.getClass()))
+			switch (curHandler) {
+				case 0:
+					onAction((ActionEvent<T>) event);
+					break;
+				case 1:
+					onChannelInfo((ChannelInfoEvent<T>) event);
+					break;
+				case 2:
+					onConnect((ConnectEvent<T>) event);
+					break;
+				case 3:
+					onDisconnect((DisconnectEvent<T>) event);
+					break;
+				case 4:
+					onFinger((FingerEvent<T>) event);
+					break;
+				case 5:
+					onHalfOp((HalfOpEvent<T>) event);
+					break;
+				case 6:
+					onIncomingChatRequest((IncomingChatRequestEvent<T>) event);
+					break;
+				case 7:
+					onIncomingFileTransfer((IncomingFileTransferEvent<T>) event);
+					break;
+				case 8:
+					onInvite((InviteEvent<T>) event);
+					break;
+				case 9:
+					onJoin((JoinEvent<T>) event);
+					break;
+				case 10:
+					onKick((KickEvent<T>) event);
+					break;
+				case 11:
+					onMessage((MessageEvent<T>) event);
+					break;
+				case 12:
+					onMode((ModeEvent<T>) event);
+					break;
+				case 13:
+					onMotd((MotdEvent<T>) event);
+					break;
+				case 14:
+					onNickChange((NickChangeEvent<T>) event);
+					break;
+				case 15:
+					onNotice((NoticeEvent<T>) event);
+					break;
+				case 16:
+					onOp((OpEvent<T>) event);
+					break;
+				case 17:
+					onOwner((OwnerEvent<T>) event);
+					break;
+				case 18:
+					onPart((PartEvent<T>) event);
+					break;
+				case 19:
+					onPing((PingEvent<T>) event);
+					break;
+				case 20:
+					onPrivateMessage((PrivateMessageEvent<T>) event);
+					break;
+				case 21:
+					onQuit((QuitEvent<T>) event);
+					break;
+				case 22:
+					onRemoveChannelBan((RemoveChannelBanEvent<T>) event);
+					break;
+				case 23:
+					onRemoveChannelKey((RemoveChannelKeyEvent<T>) event);
+					break;
+				case 24:
+					onRemoveChannelLimit((RemoveChannelLimitEvent<T>) event);
+					break;
+				case 25:
+					onRemoveInviteOnly((RemoveInviteOnlyEvent<T>) event);
+					break;
+				case 26:
+					onRemoveModerated((RemoveModeratedEvent<T>) event);
+					break;
+				case 27:
+					onRemoveNoExternalMessages((RemoveNoExternalMessagesEvent<T>) event);
+					break;
+				case 28:
+					onRemovePrivate((RemovePrivateEvent<T>) event);
+					break;
+				case 29:
+					onRemoveSecret((RemoveSecretEvent<T>) event);
+					break;
+				case 30:
+					onRemoveTopicProtection((RemoveTopicProtectionEvent<T>) event);
+					break;
+				case 31:
+					onServerPing((ServerPingEvent<T>) event);
+					break;
+				case 32:
+					onServerResponse((ServerResponseEvent<T>) event);
+					break;
+				case 33:
+					onSetChannelBan((SetChannelBanEvent<T>) event);
+					break;
+				case 34:
+					onSetChannelKey((SetChannelKeyEvent<T>) event);
+					break;
+				case 35:
+					onSetChannelLimit((SetChannelLimitEvent<T>) event);
+					break;
+				case 36:
+					onSetInviteOnly((SetInviteOnlyEvent<T>) event);
+					break;
+				case 37:
+					onSetModerated((SetModeratedEvent<T>) event);
+					break;
+				case 38:
+					onSetNoExternalMessages((SetNoExternalMessagesEvent<T>) event);
+					break;
+				case 39:
+					onSetPrivate((SetPrivateEvent<T>) event);
+					break;
+				case 40:
+					onSetSecret((SetSecretEvent<T>) event);
+					break;
+				case 41:
+					onSetTopicProtection((SetTopicProtectionEvent<T>) event);
+					break;
+				case 42:
+					onSocketConnect((SocketConnectEvent<T>) event);
+					break;
+				case 43:
+					onSuperOp((SuperOpEvent<T>) event);
+					break;
+				case 44:
+					onTime((TimeEvent<T>) event);
+					break;
+				case 45:
+					onTopic((TopicEvent<T>) event);
+					break;
+				case 46:
+					onUnknown((UnknownEvent<T>) event);
+					break;
+				case 47:
+					onUserList((UserListEvent<T>) event);
+					break;
+				case 48:
+					onUserMode((UserModeEvent<T>) event);
+					break;
+				case 49:
+					onVersion((VersionEvent<T>) event);
+					break;
+				case 50:
+					onVoice((VoiceEvent<T>) event);
+					break;
+				case 51:
+					onWhois((WhoisEvent<T>) event);
+					break;
+				case 52:
+					onGenericCTCP((GenericCTCPEvent<T>) event);
+					break;
+				case 53:
+					onGenericUserMode((GenericUserModeEvent<T>) event);
+					break;
+				case 54:
+					onGenericChannelMode((GenericChannelModeEvent<T>) event);
+					break;
+				case 55:
+					onGenericDCC((GenericDCCEvent<T>) event);
+					break;
+				case 56:
+					onGenericMessage((GenericMessageEvent<T>) event);
+					break;
+				case 57:
+					onGenericUser((GenericUserEvent<T>) event);
+					break;
+				case 58:
+					onGenericChannel((GenericChannelEvent<T>) event);
+					break;
+				case 59:
+					onGenericChannelUser((GenericChannelUserEvent<T>) event);
+					break;
+				default:
+					throw new IllegalStateException("No case for " + HANDLED_TYPES[curHandler]);
+			}
+	}
+
+	/**
+	 * Get the methods to call for an event. Built once per listener and event class
+	 * @param adapterClass The class of the listener
+	 * @param eventClass The class of the event
+	 * @return Indexes of {@link #HANDLED_TYPES}
+	 */
+	protected static int[] getHandlers(Class<?> adapterClass, Class<?> eventClass) {
+		ConcurrentMap<Class<?>, int[]> dispatchTable = DISPATCH_TABLES.get(adapterClass);
+		if (dispatchTable == null) {
+			DISPATCH_TABLES.putIfAbsent(adapterClass, new MapMaker().weakKeys().<Class<?>, int[]>makeMap());
+			dispatchTable = DISPATCH_TABLES.get(adapterClass);
+		}
+		int[] handlers = dispatchTable.get(eventClass);
+		if (handlers == null) {
+			handlers = findHandlers(adapterClass, eventClass);
+			dispatchTable.put(eventClass, handlers);
+		}
+		return handlers;
+	}
+
+	protected static int[] findHandlers(Class<?> adapterClass, Class<?> eventClass) {
+		int[] handlers = new int[HANDLED_TYPES.length];
+		int handlerCount = 0;
+		boolean specificFound = false;
+		for (int i = 0; i < HANDLED_TYPES.length; i++) {
+			Class<?> curType = HANDLED_TYPES[i];
+			if (!curType.isAssignableFrom(eventClass))
+				continue;
+			//Only the first matching specific event, but every Generic interface
+			if (!curType.isInterface()) {
+				if (specificFound)
+					continue;
+				specificFound = true;
+			}
+			//Methods that aren't overridden do nothing, skip them
+			String methodName = getMethodName(curType);
+			try {
+				if (adapterClass.getMethod(methodName, curType).getDeclaringClass() != ListenerAdapter.class)
+					handlers[handlerCount++] = i;
+			} catch (NoSuchMethodException e) {
+				throw new RuntimeException("No method " + methodName + " for " + curType, e);
+			}
+		}
+		return ArrayUtils.subarray(handlers, 0, handlerCount);
+	}
+
+	protected static String getMethodName(Class<?> handledType) {
+		return "on" + StringUtils.removeEnd(handledType.getSimpleName(), "Event");
 	}
 
 	public void onAction(ActionEvent<T> event) throws Exception {
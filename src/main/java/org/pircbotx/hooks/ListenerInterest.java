@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) 2010-2013 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of PircBotX.
+ *
+ * PircBotX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PircBotX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pircbotx.hooks;
+
+import com.google.common.collect.MapMaker;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Decides which events a listener wants, so listener managers can skip
+ * listeners (and PircBotX can skip creating events) that would do nothing.
+ * <ul>
+ * <li>{@link SelectiveListener}s decide for themselves</li>
+ * <li>{@link ListenerAdapter}s want events that have an overridden method,
+ * including the Generic methods. If onEvent is overridden they want everything</li>
+ * <li>All other listeners want everything</li>
+ * </ul>
+ * @author Leon Blakey <lord.quackstar at gmail.com>
+ */
+public final class ListenerInterest {
+	/**
+	 * If a ListenerAdapter class overrides onEvent, cached by class. Weak keys
+	 * so listener classes can still be unloaded
+	 */
+	protected static final ConcurrentMap<Class<?>, Boolean> CUSTOM_ON_EVENT = new MapMaker().weakKeys().makeMap();
+
+	//Do not create instances of this
+	private ListenerInterest() {
+	}
+
+	/**
+	 * Check if the listener wants to receive events of the specified type
+	 * @param listener The listener to check
+	 * @param eventClass The class of the event
+	 * @return True if the event should be sent to the listener
+	 */
+	public static boolean isInterested(Listener<?> listener, Class<? extends Event> eventClass) {
+		if (listener instanceof SelectiveListener)
+			return ((SelectiveListener<?>) listener).isInterested(eventClass);
+		if (!(listener instanceof ListenerAdapter))
+			return true;
+		Class<?> adapterClass = listener.getClass();
+		//Same methods ListenerAdapter.onEvent would call
+		return hasCustomOnEvent(adapterClass) || ListenerAdapter.getHandlers(adapterClass, eventClass).length != 0;
+	}
+
+	protected static boolean hasCustomOnEvent(Class<?> adapterClass) {
+		Boolean customOnEvent = CUSTOM_ON_EVENT.get(adapterClass);
+		if (customOnEvent == null) {
+			customOnEvent = findCustomOnEvent(adapterClass);
+			CUSTOM_ON_EVENT.put(adapterClass, customOnEvent);
+		}
+		return customOnEvent;
+	}
+
+	protected static boolean findCustomOnEvent(Class<?> adapterClass) {
+		try {
+			Class<?> declaringClass = adapterClass.getMethod("onEvent", Event.class).getDeclaringClass();
+			//A custom onEvent can do anything. TemporaryListener only filters 
+			//by bot before calling super
+			return declaringClass != ListenerAdapter.class && declaringClass != TemporaryListener.class;
+		} catch (NoSuchMethodException e) {
+			throw new RuntimeException("No onEvent method in " + adapterClass, e);
+		}
+	}
+}
@@ -0,0 +1,41 @@
+/**
+ * Copyright (C) 2010-2013 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of PircBotX.
+ *
+ * PircBotX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PircBotX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pircbotx.hooks;
+
+import org.pircbotx.PircBotX;
+
+/**
+ * A listener that only wants some types of events. Listener managers skip
+ * listeners that aren't interested in an event and, when no listener is
+ * interested, PircBotX won't create the event at all.
+ * <p>
+ * {@link ListenerAdapter}s are already filtered by which methods are overridden.
+ * Implement this to subscribe explicitly, which also replaces the automatic
+ * filtering of a ListenerAdapter
+ * @author Leon Blakey <lord.quackstar at gmail.com>
+ */
+public interface SelectiveListener<T extends PircBotX> extends Listener<T> {
+	/**
+	 * Check if this listener wants to receive events of the specified type.
+	 * The result must not change while the listener is in a ListenerManager
+	 * @param eventClass The class of the event
+	 * @return True to receive the event, false to skip it
+	 */
+	public boolean isInterested(Class<? extends Event> eventClass);
+}
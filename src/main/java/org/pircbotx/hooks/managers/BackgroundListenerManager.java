@@ -18,17 +18,12 @@
  */
 package org.pircbotx.hooks.managers;
 
-import com.google.common.collect.ImmutableSet;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.commons.lang3.concurrent.BasicThreadFactory;
-import org.pircbotx.hooks.Event;
 import org.pircbotx.hooks.Listener;
 
 /**
@@ -44,7 +39,7 @@ import org.pircbotx.hooks.Listener;
  * @author Leon Blakey <lord.quackstar at gmail.com>
  */
 public class BackgroundListenerManager extends ThreadedListenerManager {
-	protected Map<Listener, ExecutorService> backgroundListeners = new HashMap();
+	protected final Map<Listener, ExecutorService> backgroundListeners = new ConcurrentHashMap<Listener, ExecutorService>();
 	protected final AtomicInteger backgroundCount = new AtomicInteger();
 
 	public boolean addListener(Listener listener, boolean isBackground) {
@@ -54,31 +49,22 @@ public class BackgroundListenerManager extends ThreadedListenerManager {
 				.namingPattern("backgroundPool" + managerNumber + "-backgroundThread" + backgroundCount.getAndIncrement() + "-%d")
 				.daemon(true)
 				.build();
+		//Executor must exist before the listener can receive events
 		backgroundListeners.put(listener, Executors.newSingleThreadExecutor(factory));
+		super.addListener(listener);
 		return true;
 	}
 
 	@Override
-	public void dispatchEvent(Event event) {
-		//Dispatch to both standard listeners and background listeners
-		super.dispatchEvent(event);
-		for (Map.Entry<Listener, ExecutorService> curEntry : backgroundListeners.entrySet())
-			submitEvent(curEntry.getValue(), curEntry.getKey(), event);
-	}
-
-	@Override
-	public ImmutableSet<Listener> getListeners() {
-		return ImmutableSet.<Listener>builder()
-				.addAll(listeners)
-				.addAll(backgroundListeners.keySet())
-				.build();
+	protected ExecutorService getExecutor(Listener listener) {
+		ExecutorService backgroundExecutor = backgroundListeners.get(listener);
+		return (backgroundExecutor != null) ? backgroundExecutor : super.getExecutor(listener);
 	}
 
 	@Override
 	public boolean removeListener(Listener listener) {
-		if (backgroundListeners.containsKey(listener))
-			return backgroundListeners.remove(listener) != null;
-		else
-			return super.removeListener(listener);
+		boolean removed = super.removeListener(listener);
+		backgroundListeners.remove(listener);
+		return removed;
 	}
 }
@@ -28,6 +28,7 @@ import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.pircbotx.hooks.Event;
 import org.pircbotx.hooks.Listener;
+import org.pircbotx.hooks.ListenerInterest;
 import org.pircbotx.PircBotX;
 
 /**
@@ -71,12 +72,20 @@ public class GenericListenerManager<B extends PircBotX> implements ListenerManag
 	public void dispatchEvent(Event<B> event) {
 		try {
 			for (Listener<B> curListener : listeners)
-				curListener.onEvent(event);
+				if (ListenerInterest.isInterested(curListener, event.getClass()))
+					curListener.onEvent(event);
 		} catch (Exception e) {
 			log.error("Exception encountered when dispatching event " + event, e);
 		}
 	}
 
+	public boolean hasListeners(Class<? extends Event> eventClass) {
+		for (Listener<B> curListener : listeners)
+			if (ListenerInterest.isInterested(curListener, eventClass))
+				return true;
+		return false;
+	}
+
 	public boolean listenerExists(Listener<B> listener) {
 		return listeners.contains(listener);
 	}
@@ -51,6 +51,18 @@ public interface ListenerManager<B extends PircBotX> {
 	 */
 	public void dispatchEvent(Event<B> event);
 
+	/**
+	 * Check if any listener would receive events of the specified type. Listeners
+	 * that aren't a {@link org.pircbotx.hooks.SelectiveListener} receive every
+	 * event. PircBotX uses this to skip creating events nobody receives
+	 * <p>
+	 * <b>For implementations:</b> This is called for almost every line from the
+	 * server so it should be cached, updating when listeners are added or removed
+	 * @param eventClass The class of the event
+	 * @return True if at least one listener is interested in the event
+	 */
+	public boolean hasListeners(Class<? extends Event> eventClass);
+
 	/**
 	 * Adds an listener to the list of listeners for an event.
 	 * <p>
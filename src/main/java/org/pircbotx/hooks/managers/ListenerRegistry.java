@@ -0,0 +1,94 @@
+/**
+ * Copyright (C) 2010-2013 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of PircBotX.
+ *
+ * PircBotX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PircBotX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pircbotx.hooks.managers;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import lombok.Getter;
+import org.pircbotx.PircBotX;
+import org.pircbotx.hooks.Event;
+import org.pircbotx.hooks.Listener;
+import org.pircbotx.hooks.ListenerInterest;
+
+/**
+ * An immutable set of listeners that remembers which of them are interested in
+ * each event class (see {@link ListenerInterest}). Adding or removing a listener
+ * creates a new registry, so listener managers can dispatch from the current 
+ * registry without locking
+ * @author Leon Blakey <lord.quackstar at gmail.com>
+ */
+public class ListenerRegistry<B extends PircBotX> {
+	@Getter
+	protected final ImmutableSet<Listener<B>> listeners;
+	/**
+	 * Interested listeners by event class, filled on first use
+	 */
+	protected final ConcurrentMap<Class<? extends Event>, ImmutableList<Listener<B>>> routes = new ConcurrentHashMap<Class<? extends Event>, ImmutableList<Listener<B>>>();
+
+	public ListenerRegistry(ImmutableSet<Listener<B>> listeners) {
+		this.listeners = listeners;
+	}
+
+	/**
+	 * Get the listeners that want events of the specified class
+	 * @param eventClass The class of the event
+	 * @return The interested listeners, in the order they were added
+	 */
+	public ImmutableList<Listener<B>> getRoute(Class<? extends Event> eventClass) {
+		ImmutableList<Listener<B>> route = routes.get(eventClass);
+		if (route == null) {
+			ImmutableList.Builder<Listener<B>> routeBuilder = ImmutableList.builder();
+			for (Listener<B> curListener : listeners)
+				if (ListenerInterest.isInterested(curListener, eventClass))
+					routeBuilder.add(curListener);
+			route = routeBuilder.build();
+			routes.put(eventClass, route);
+		}
+		return route;
+	}
+
+	/**
+	 * Create a registry that also contains the listener
+	 * @return A new registry or this registry if it already contains the listener
+	 */
+	public ListenerRegistry<B> withListener(Listener<B> listener) {
+		if (listeners.contains(listener))
+			return this;
+		return new ListenerRegistry<B>(ImmutableSet.<Listener<B>>builder()
+				.addAll(listeners)
+				.add(listener)
+				.build());
+	}
+
+	/**
+	 * Create a registry without the listener
+	 * @return A new registry or this registry if it doesn't contain the listener
+	 */
+	public ListenerRegistry<B> withoutListener(Listener<B> listener) {
+		if (!listeners.contains(listener))
+			return this;
+		ImmutableSet.Builder<Listener<B>> newListeners = ImmutableSet.builder();
+		for (Listener<B> curListener : listeners)
+			if (!curListener.equals(listener))
+				newListeners.add(curListener);
+		return new ListenerRegistry<B>(newListeners.build());
+	}
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright (C) 2010-2013 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of PircBotX.
+ *
+ * PircBotX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PircBotX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pircbotx.hooks.managers;
+
+import com.google.common.base.Function;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.pircbotx.PircBotX;
+import org.pircbotx.hooks.Event;
+import org.pircbotx.hooks.Listener;
+import org.pircbotx.hooks.types.GenericChannelEvent;
+import org.pircbotx.hooks.types.GenericUserEvent;
+
+/**
+ * A {@link ThreadedListenerManager} that runs each listener's events in order
+ * per key while different keys run in parallel. With the default key a listener
+ * sees events from the same channel (or the same user for private events) one
+ * at a time in the order they were received, eg a PartEvent is never handled
+ * before the JoinEvent before it.
+ * <p>
+ * Uses a fixed size pool by default, so many busy channels can't create a 
+ * thread each. Events of a key wait in their own queue while one of them is 
+ * running instead of occupying a thread
+ * @author Leon Blakey <lord.quackstar at gmail.com>
+ */
+@Slf4j
+public class OrderedListenerManager<B extends PircBotX> extends ThreadedListenerManager<B> {
+	/**
+	 * Key events by channel, then by user, then by bot
+	 */
+	public static final Function<Event<?>, Object> DEFAULT_KEY = new Function<Event<?>, Object>() {
+		public Object apply(Event<?> event) {
+			if (event instanceof GenericChannelEvent && ((GenericChannelEvent<?>) event).getChannel() != null)
+				return ((GenericChannelEvent<?>) event).getChannel();
+			if (event instanceof GenericUserEvent && ((GenericUserEvent<?>) event).getUser() != null)
+				return ((GenericUserEvent<?>) event).getUser();
+			return event.getBot();
+		}
+	};
+	protected final Function<? super Event<B>, ?> keyFunction;
+	/**
+	 * Tasks waiting for the running task with the same listener and key. A key 
+	 * is only present while one of its tasks is running. Guarded by itself
+	 */
+	protected final Map<Object, Queue<ManagedFutureTask>> keyQueues = new HashMap<Object, Queue<ManagedFutureTask>>();
+
+	/**
+	 * Use a pool of 2 threads per processor and {@link #DEFAULT_KEY}
+	 */
+	public OrderedListenerManager() {
+		this(Runtime.getRuntime().availableProcessors() * 2);
+	}
+
+	/**
+	 * Use a pool with the specified number of threads and {@link #DEFAULT_KEY}
+	 * @param threads Number of threads in the pool
+	 */
+	public OrderedListenerManager(int threads) {
+		this(threads, DEFAULT_KEY);
+	}
+
+	/**
+	 * Use a pool with the specified number of threads
+	 * @param threads Number of threads in the pool
+	 * @param keyFunction Returns the key of an event, events with equal keys
+	 * are run in order. A null key is a valid key
+	 */
+	public OrderedListenerManager(int threads, Function<? super Event<B>, ?> keyFunction) {
+		super((ExecutorService) null);
+		this.pool = Executors.newFixedThreadPool(threads, new BasicThreadFactory.Builder()
+				.namingPattern("orderedListenerPool" + managerNumber + "-thread%d")
+				.daemon(true)
+				.build());
+		this.keyFunction = keyFunction;
+	}
+
+	/**
+	 * Use the specified pool
+	 * @param pool The pool to run events in
+	 * @param keyFunction Returns the key of an event, events with equal keys
+	 * are run in order. A null key is a valid key
+	 */
+	public OrderedListenerManager(ExecutorService pool, Function<? super Event<B>, ?> keyFunction) {
+		super(pool);
+		this.keyFunction = keyFunction;
+	}
+
+	@Override
+	protected void submitEvent(ExecutorService pool, Listener<B> listener, Event<B> event) {
+		//Listeners don't wait for each other, only for their own previous events
+		Object key = Arrays.asList(listener, keyFunction.apply(event));
+		ManagedFutureTask task = createTask(listener, event);
+		synchronized (keyQueues) {
+			Queue<ManagedFutureTask> waitingTasks = keyQueues.get(key);
+			if (waitingTasks != null) {
+				waitingTasks.add(task);
+				return;
+			}
+			keyQueues.put(key, new LinkedList<ManagedFutureTask>());
+		}
+		try {
+			pool.execute(createKeyedTask(pool, key, task));
+		} catch (RejectedExecutionException e) {
+			cancelKey(key, task);
+			throw e;
+		}
+	}
+
+	/**
+	 * Wrap a task so the next task with the same key is submitted once it finishes
+	 */
+	protected Runnable createKeyedTask(final ExecutorService pool, final Object key, final ManagedFutureTask task) {
+		return new Runnable() {
+			public void run() {
+				try {
+					task.run();
+				} finally {
+					ManagedFutureTask nextTask;
+					synchronized (keyQueues) {
+						nextTask = keyQueues.get(key).poll();
+						if (nextTask == null)
+							keyQueues.remove(key);
+					}
+					//Resubmit instead of looping so other keys get a turn
+					if (nextTask != null)
+						try {
+							pool.execute(createKeyedTask(pool, key, nextTask));
+						} catch (RejectedExecutionException e) {
+							log.error("Pool rejected event " + nextTask.getEvent() + ", cancelling remaining events of listener " + nextTask.getListener(), e);
+							cancelKey(key, nextTask);
+						}
+				}
+			}
+		};
+	}
+
+	/**
+	 * Forget a key whose task the pool rejected and cancel the tasks waiting
+	 * for it. Otherwise later events of the key would queue forever and 
+	 * {@link #shutdown(org.pircbotx.PircBotX) } would wait for tasks that never run
+	 */
+	protected void cancelKey(Object key, ManagedFutureTask task) {
+		Queue<ManagedFutureTask> waitingTasks;
+		synchronized (keyQueues) {
+			waitingTasks = keyQueues.remove(key);
+		}
+		task.cancel(false);
+		if (waitingTasks != null)
+			for (ManagedFutureTask curTask : waitingTasks)
+				curTask.cancel(false);
+	}
+}
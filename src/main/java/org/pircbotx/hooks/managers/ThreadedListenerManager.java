@@ -21,13 +21,14 @@ package org.pircbotx.hooks.managers;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.LinkedListMultimap;
 import com.google.common.collect.Multimap;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -43,6 +44,10 @@ import org.pircbotx.hooks.Listener;
 /**
  * A listener manager that executes individual listeners in a thread pool. Will 
  * also shutdown all running listeners upon bot shutdown
+ * <p>
+ * Listeners are kept in a {@link ListenerRegistry} that is replaced when 
+ * listeners are added or removed, so dispatching never locks. Only listeners 
+ * interested in an event are given a task in the pool
  * @author Leon Blakey <lord.quackstar at gmail.com>
  */
 @Slf4j
@@ -50,7 +55,11 @@ public class ThreadedListenerManager<B extends PircBotX> implements ListenerMana
 	protected static final AtomicInteger MANAGER_COUNT = new AtomicInteger();
 	protected final int managerNumber;
 	protected ExecutorService pool;
-	protected Set<Listener<B>> listeners = Collections.synchronizedSet(new HashSet<Listener<B>>());
+	/**
+	 * Guards changes to the registry
+	 */
+	protected final Object registryLock = new Object[0];
+	protected volatile ListenerRegistry<B> registry = new ListenerRegistry<B>(ImmutableSet.<Listener<B>>of());
 	protected AtomicLong currentId = new AtomicLong();
 	protected final Multimap<B, ManagedFutureTask> runningListeners = LinkedListMultimap.create();
 
@@ -80,39 +89,67 @@ public class ThreadedListenerManager<B extends PircBotX> implements ListenerMana
 	}
 
 	@Override
+	@Synchronized("registryLock")
 	public boolean addListener(Listener<B> listener) {
-		return getListenersReal().add(listener);
+		ListenerRegistry<B> oldRegistry = registry;
+		registry = oldRegistry.withListener(listener);
+		return registry != oldRegistry;
 	}
 
 	@Override
+	@Synchronized("registryLock")
 	public boolean removeListener(Listener<B> listener) {
-		return getListenersReal().remove(listener);
+		ListenerRegistry<B> oldRegistry = registry;
+		registry = oldRegistry.withoutListener(listener);
+		return registry != oldRegistry;
 	}
 
 	@Override
 	public ImmutableSet<Listener<B>> getListeners() {
-		return ImmutableSet.copyOf(getListenersReal());
-	}
-
-	protected Set<Listener<B>> getListenersReal() {
-		return listeners;
+		return registry.getListeners();
 	}
 
 	@Override
 	public boolean listenerExists(Listener<B> listener) {
-		return getListeners().contains(listener);
+		return registry.getListeners().contains(listener);
 	}
 
 	@Override
-	@Synchronized("listeners")
 	public void dispatchEvent(Event<B> event) {
-		//For each Listener, add a new Runnable
-		for (Listener<B> curListener : getListenersReal())
-			submitEvent(pool, curListener, event);
+		//For each interested Listener, add a new Runnable
+		for (Listener<B> curListener : registry.getRoute(event.getClass()))
+			submitEvent(getExecutor(curListener), curListener, event);
 	}
 
-	protected void submitEvent(ExecutorService pool, final Listener<B> listener, final Event<B> event) {
-		pool.execute(new ManagedFutureTask(listener, event, new Callable<Void>() {
+	@Override
+	public boolean hasListeners(Class<? extends Event> eventClass) {
+		return !registry.getRoute(eventClass).isEmpty();
+	}
+
+	/**
+	 * Get the executor that runs the listener
+	 * @return The shared pool
+	 */
+	protected ExecutorService getExecutor(Listener<B> listener) {
+		return pool;
+	}
+
+	protected void submitEvent(ExecutorService pool, Listener<B> listener, Event<B> event) {
+		ManagedFutureTask task = createTask(listener, event);
+		try {
+			pool.execute(task);
+		} catch (RejectedExecutionException e) {
+			//Unregister so shutdown(bot) doesn't wait for it
+			task.cancel(false);
+			throw e;
+		}
+	}
+
+	/**
+	 * Create the task that runs the listener with the event
+	 */
+	protected ManagedFutureTask createTask(final Listener<B> listener, final Event<B> event) {
+		return new ManagedFutureTask(listener, event, new Callable<Void>() {
 			public Void call() {
 				try {
 					Utils.addBotToMDC(event.getBot());
@@ -122,7 +159,7 @@ public class ThreadedListenerManager<B extends PircBotX> implements ListenerMana
 				}
 				return null;
 			}
-		}));
+		});
 	}
 
 	@Override
@@ -151,15 +188,21 @@ public class ThreadedListenerManager<B extends PircBotX> implements ListenerMana
 	}
 
 	public void shutdown(B bot) {
+		List<ManagedFutureTask> remainingTasks;
 		synchronized (runningListeners) {
-			for (ManagedFutureTask curFuture : runningListeners.get(bot))
-				try {
-					log.debug("Waiting for listener " + curFuture.getListener() + " to execute event " + curFuture.getEvent());
-					curFuture.get();
-				} catch (Exception e) {
-					throw new RuntimeException("Cannot shutdown listener " + curFuture.getListener() + " executing event " + curFuture.getEvent(), e);
-				}
+			remainingTasks = new ArrayList<ManagedFutureTask>(runningListeners.get(bot));
 		}
+		//Wait without the lock as finishing tasks need it to remove themselves.
+		//With a bounded pool waiting with it could block every thread
+		for (ManagedFutureTask curFuture : remainingTasks)
+			try {
+				log.debug("Waiting for listener " + curFuture.getListener() + " to execute event " + curFuture.getEvent());
+				curFuture.get();
+			} catch (CancellationException e) {
+				//Rejected by the pool, never ran
+			} catch (Exception e) {
+				throw new RuntimeException("Cannot shutdown listener " + curFuture.getListener() + " executing event " + curFuture.getEvent(), e);
+			}
 	}
 
 	@Getter
@@ -0,0 +1,50 @@
+/**
+ * Copyright (C) 2010-2013 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of PircBotX.
+ *
+ * PircBotX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PircBotX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pircbotx.output;
+
+import static com.google.common.base.Preconditions.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wait a fixed delay between all lines, no matter how long the bot has been idle.
+ * This is the classic PircBot behavior used when 
+ * {@link org.pircbotx.Configuration#getMessageBurst() } is 1
+ * @author Leon Blakey <lord.quackstar at gmail.com>
+ */
+public class FixedDelayRateLimiter implements RateLimiter {
+	protected final long delayNanos;
+	protected long nextLineTime = System.nanoTime();
+
+	/**
+	 * Create a limiter with a fixed delay.
+	 * @param delay Milliseconds to wait between lines
+	 */
+	public FixedDelayRateLimiter(long delay) {
+		checkArgument(delay >= 0, "Delay must be positive");
+		this.delayNanos = TimeUnit.MILLISECONDS.toNanos(delay);
+	}
+
+	public long getDelay(String line, long now) {
+		return Math.max(0, nextLineTime - now);
+	}
+
+	public void lineSent(String line, long now) {
+		nextLineTime = now + delayNanos;
+	}
+}
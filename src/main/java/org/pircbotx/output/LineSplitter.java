@@ -0,0 +1,163 @@
+/**
+ * Copyright (C) 2010-2013 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of PircBotX.
+ *
+ * PircBotX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PircBotX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pircbotx.output;
+
+import static com.google.common.base.Preconditions.*;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits messages into parts that fit in a number of encoded bytes. Parts are 
+ * packed as full as possible and never break a code point or a color code.
+ * When a space is near the end of a part the message is split after it instead
+ * of in the middle of a word.
+ * <p/>
+ * Joining the returned parts always gives the original message. This class is
+ * not thread safe
+ * @author Leon Blakey <lord.quackstar at gmail.com>
+ */
+public class LineSplitter {
+	protected final CharsetEncoder encoder;
+	protected final boolean utf8;
+	protected final boolean singleByte;
+
+	public LineSplitter(Charset charset) {
+		checkNotNull(charset, "Charset cannot be null");
+		this.encoder = charset.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.utf8 = charset.name().equals("UTF-8");
+		this.singleByte = encoder.maxBytesPerChar() == 1;
+	}
+
+	/**
+	 * Split the message into parts that each encode to at most maxBytes.
+	 * @param message The message to split
+	 * @param maxBytes The maximum encoded length of each part
+	 * @return The parts, or just the message if it already fits
+	 */
+	public List<String> split(String message, int maxBytes) {
+		checkNotNull(message, "Message cannot be null");
+		checkArgument(maxBytes > 0, "Max bytes must be positive");
+		List<String> parts = new ArrayList<String>();
+		int partStart = 0;
+		int partBytes = 0;
+		//Position after the last space in this part and the part length up to it
+		int breakEnd = -1;
+		int breakBytes = 0;
+		int unitStart = 0;
+		while (unitStart < message.length()) {
+			int unitEnd = getUnitEnd(message, unitStart);
+			int unitBytes = getByteLength(message, unitStart, unitEnd);
+			if (partBytes + unitBytes > maxBytes && unitStart > partStart) {
+				//Only give up space at the end of the part for a word boundary
+				int partEnd = unitStart;
+				if (breakEnd > partStart && breakBytes >= maxBytes - maxBytes / 4) {
+					partEnd = breakEnd;
+					partBytes -= breakBytes;
+				} else
+					partBytes = 0;
+				parts.add(message.substring(partStart, partEnd));
+				partStart = partEnd;
+				breakEnd = -1;
+				//Check the unit again against the new part
+				continue;
+			}
+
+			partBytes += unitBytes;
+			if (message.charAt(unitStart) == ' ') {
+				breakEnd = unitEnd;
+				breakBytes = partBytes;
+			}
+			unitStart = unitEnd;
+		}
+		if (partStart < message.length() || parts.isEmpty())
+			parts.add(message.substring(partStart));
+		return parts;
+	}
+
+	/**
+	 * Get the end of the code point or color code starting at the index
+	 */
+	protected int getUnitEnd(String message, int index) {
+		char curChar = message.charAt(index);
+		if (curChar == '\u0003') {
+			//Color code, up to 2 digits, optionally followed by a comma and up to 2 more
+			int end = skipDigits(message, index + 1);
+			if (end > index + 1 && end + 1 < message.length() && message.charAt(end) == ','
+					&& Character.isDigit(message.charAt(end + 1)))
+				end = skipDigits(message, end + 1);
+			return end;
+		}
+		if (Character.isHighSurrogate(curChar) && index + 1 < message.length()
+				&& Character.isLowSurrogate(message.charAt(index + 1)))
+			return index + 2;
+		return index + 1;
+	}
+
+	protected static int skipDigits(String message, int index) {
+		int end = index;
+		while (end < message.length() && end < index + 2 && message.charAt(end) >= '0' && message.charAt(end) <= '9')
+			end++;
+		return end;
+	}
+
+	/**
+	 * Get the number of bytes the text encodes to.
+	 * @param text The text to measure
+	 * @return The encoded length
+	 */
+	public int getByteLength(CharSequence text) {
+		return getByteLength(text, 0, text.length());
+	}
+
+	protected int getByteLength(CharSequence text, int start, int end) {
+		if (singleByte)
+			return end - start;
+		if (!utf8) {
+			try {
+				encoder.reset();
+				return encoder.encode(CharBuffer.wrap(text, start, end)).remaining();
+			} catch (Exception e) {
+				throw new RuntimeException("Cannot encode text", e);
+			}
+		}
+		int length = 0;
+		for (int i = start; i < end; i++) {
+			char curChar = text.charAt(i);
+			if (curChar < 0x80)
+				length++;
+			else if (curChar < 0x800)
+				length += 2;
+			else if (Character.isHighSurrogate(curChar) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else if (curChar >= Character.MIN_SURROGATE && curChar <= Character.MAX_SURROGATE)
+				//Unpaired surrogates are replaced with ?
+				length++;
+			else
+				length += 3;
+		}
+		return length;
+	}
+}
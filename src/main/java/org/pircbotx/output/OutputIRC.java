@@ -77,7 +77,8 @@ public class OutputIRC {
 	 */
 	public void quitServer(String reason) {
 		checkNotNull(reason, "Reason cannot be null");
-		bot.sendRaw().rawLine("QUIT :" + reason);
+		//Skip the queue so the QUIT is written before the bot shuts down
+		bot.sendRaw().rawLineNow("QUIT :" + reason);
 	}
 
 	/**
@@ -138,6 +139,21 @@ public class OutputIRC {
 		bot.sendRaw().rawLineSplit("PRIVMSG " + target + " :", message);
 	}
 
+	/**
+	 * Sends a message to many channels and users with as few lines as possible.
+	 * Targets are joined into comma separated lists up to the limit the server 
+	 * advertised in {@link org.pircbotx.ServerInfo#getTargetMax(java.lang.String) }
+	 * and the max line length.
+	 *
+	 * @param targets The names of the channels or user nicks to send to.
+	 * @param message The message to send.
+	 *
+	 * @see #message(java.lang.String, java.lang.String) 
+	 */
+	public void messageAll(Iterable<String> targets, String message) {
+		sendToAll("PRIVMSG", targets, message);
+	}
+
 	/**
 	 * Sends an action to the channel or to a user.
 	 *
@@ -162,6 +178,58 @@ public class OutputIRC {
 		bot.sendRaw().rawLineSplit("NOTICE " + target + " :", notice);
 	}
 
+	/**
+	 * Sends a notice to many channels and users with as few lines as possible.
+	 *
+	 * @param targets The names of the channels or user nicks to send to.
+	 * @param notice The notice to send.
+	 *
+	 * @see #messageAll(java.lang.Iterable, java.lang.String) 
+	 */
+	public void noticeAll(Iterable<String> targets, String notice) {
+		sendToAll("NOTICE", targets, notice);
+	}
+
+	/**
+	 * Send the text to the targets in comma separated groups. Groups are kept
+	 * small enough that the whole line fits, or if the text has to be split 
+	 * anyway that the targets use at most half the line. Like 
+	 * {@link OutputRaw#rawLineSplit(java.lang.String, java.lang.String) } 
+	 * lines are measured in encoded bytes and leave room for the relay prefix
+	 */
+	protected void sendToAll(String command, Iterable<String> targets, String text) {
+		checkNotNull(targets, "Targets cannot be null");
+		checkNotNull(text, "Text cannot be null");
+		OutputRaw sendRaw = bot.sendRaw();
+		int targetMax = bot.getServerInfo().getTargetMax(command);
+		int maxLineBytes = sendRaw.getMaxLineBytes();
+		int maxPrefixBytes = maxLineBytes - Math.min(sendRaw.getByteLength(text), maxLineBytes / 2);
+
+		StringBuilder prefix = new StringBuilder(command).append(' ');
+		int prefixBytes = prefix.length();
+		int groupSize = 0;
+		for (String curTarget : targets) {
+			checkArgument(!StringUtils.isBlank(curTarget), "Target '%s' is blank", curTarget);
+			int targetBytes = sendRaw.getByteLength(curTarget);
+			if (groupSize != 0 && (groupSize >= targetMax
+					|| prefixBytes + 1 + targetBytes + 2 > maxPrefixBytes)) {
+				sendRaw.rawLineSplit(prefix.append(" :").toString(), text);
+				prefix.setLength(command.length() + 1);
+				prefixBytes = prefix.length();
+				groupSize = 0;
+			}
+			if (groupSize != 0) {
+				prefix.append(',');
+				prefixBytes++;
+			}
+			prefix.append(curTarget);
+			prefixBytes += targetBytes;
+			groupSize++;
+		}
+		if (groupSize != 0)
+			sendRaw.rawLineSplit(prefix.append(" :").toString(), text);
+	}
+
 	/**
 	 * Attempt to change the current nick (nickname) of the bot when it
 	 * is connected to an IRC server.
@@ -19,30 +19,99 @@
 package org.pircbotx.output;
 
 import static com.google.common.base.Preconditions.*;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
-import lombok.NonNull;
-import lombok.RequiredArgsConstructor;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.pircbotx.Configuration;
 import org.pircbotx.PircBotX;
+import org.pircbotx.User;
 import org.pircbotx.Utils;
 import org.slf4j.Marker;
 import org.slf4j.MarkerFactory;
 
 /**
- * Send raw lines to the server with locking and message delay support.
+ * Send raw lines to the server through an outgoing queue rate limited by a 
+ * {@link RateLimiter}. Sending never blocks: lines are queued and written by a 
+ * single writer at a time. If nothing is being written and the rate limiter 
+ * allows it, the calling thread writes the queue itself, otherwise the rest of
+ * the queue is written later by a shared writer thread. Queued lines that are
+ * allowed to be written together are sent with a single flush
  * @author Leon Blakey <lord.quackstar at gmail.com>
  */
-@RequiredArgsConstructor
 @Slf4j
 public class OutputRaw {
 	protected static final Marker OUTPUT_MARKER = MarkerFactory.getMarker("pircbotx.output");
-	@NonNull
+	/**
+	 * Longest hostname allowed by RFC 1035, used until the server tells us ours
+	 */
+	protected static final int MAX_HOSTNAME_LENGTH = 63;
+	/**
+	 * How long {@link #close() } waits for the current writer before giving up
+	 * on the lines from rawLineNow
+	 */
+	protected static final long CLOSE_TIMEOUT_SECONDS = 5;
+	/**
+	 * Writes queues that had to wait for the rate limiter, shared by all bots
+	 */
+	protected static final ScheduledExecutorService WRITE_SCHEDULER = Executors.newScheduledThreadPool(
+			Runtime.getRuntime().availableProcessors(),
+			new BasicThreadFactory.Builder()
+			.namingPattern("outputWriter-thread%d")
+			.daemon(true)
+			.build());
 	protected final PircBotX bot;
+	/**
+	 * Decides when lines in the queue can be written. Only used while holding the writeLock
+	 */
+	protected final RateLimiter rateLimiter;
+	protected final LineSplitter lineSplitter;
+	/**
+	 * Guards the queues, writer state, and statistics. Not held while writing
+	 */
 	protected final ReentrantLock writeLock = new ReentrantLock(true);
-	protected final Condition writeNowCondition = writeLock.newCondition();
+	/**
+	 * Signaled when the current writer stops writing
+	 */
+	protected final Condition writerFinished = writeLock.newCondition();
+	/**
+	 * Lines waiting for the rate limiter
+	 */
+	protected final Queue<QueuedLine> queue = new LinkedList<QueuedLine>();
+	/**
+	 * Lines from rawLineNow that skip the rate limiter
+	 */
+	protected final Queue<QueuedLine> nowQueue = new LinkedList<QueuedLine>();
+	protected long queuedBytes = 0;
+	/**
+	 * True while a thread is writing, only that thread takes from the queues
+	 */
+	protected boolean writing = false;
+	protected boolean writeScheduled = false;
+	/**
+	 * The {@link System#nanoTime() } the rate limiter allows the next line to be written
+	 */
+	protected long nextWriteTime = System.nanoTime();
+	protected long lastLatency = 0;
+	protected long maxLatency = 0;
+	protected long totalLatency = 0;
+	protected long linesWritten = 0;
+
+	public OutputRaw(PircBotX bot) {
+		checkNotNull(bot, "Bot cannot be null");
+		this.bot = bot;
+		this.rateLimiter = bot.getConfiguration().getBotFactory().createRateLimiter(bot);
+		this.lineSplitter = new LineSplitter(bot.getConfiguration().getEncoding());
+	}
 
 	/**
 	 * Sends a raw line through the outgoing message queue.
@@ -51,28 +120,21 @@ public class OutputRaw {
 	 */
 	public void rawLine(String line) {
 		checkNotNull(line, "Line cannot be null");
-		if (line == null)
-			throw new NullPointerException("Cannot send null messages to server");
 		if (!bot.isConnected())
 			throw new RuntimeException("Not connected to server");
 		writeLock.lock();
 		try {
-			log.info(OUTPUT_MARKER, line);
-			Utils.sendRawLineToServer(bot, line);
-			//Block for messageDelay. If rawLineNow is called with resetDelay
-			//the condition is tripped and we wait again
-			while (writeNowCondition.await(bot.getConfiguration().getMessageDelay(), TimeUnit.MILLISECONDS)) {
-			}
-		} catch (Exception e) {
-			throw new RuntimeException("Couldn't pause thread for message delay", e);
+			queue.add(new QueuedLine(line));
+			queuedBytes += line.length() + 2;
 		} finally {
 			writeLock.unlock();
 		}
+		writeQueued();
 	}
 
 	/**
-	 * Sends a raw line to the IRC server as soon as possible without resetting
-	 * the message delay for messages waiting to send
+	 * Sends a raw line to the IRC server as soon as possible without counting
+	 * it against the rate limit of messages waiting to send
 	 *
 	 * @param line The raw line to send to the IRC server.
 	 * @see #rawLineNow(java.lang.String, boolean) 
@@ -84,7 +146,8 @@ public class OutputRaw {
 	/**
 	 * Sends a raw line to the IRC server as soon as possible
 	 * @param line The raw line to send to the IRC server
-	 * @param resetDelay If true, pending messages will reset their delay.
+	 * @param resetDelay If true, the line is counted by the rate limiter so
+	 * pending messages will wait longer.
 	 */
 	public void rawLineNow(String line, boolean resetDelay) {
 		checkNotNull(line, "Line cannot be null");
@@ -92,45 +155,206 @@ public class OutputRaw {
 			throw new RuntimeException("Not connected to server");
 		writeLock.lock();
 		try {
-			log.info(OUTPUT_MARKER, line);
-			Utils.sendRawLineToServer(bot, line);
+			nowQueue.add(new QueuedLine(line));
+			queuedBytes += line.length() + 2;
 			if (resetDelay)
-				//Reset the 
-				writeNowCondition.signalAll();
+				rateLimiter.lineSent(line, System.nanoTime());
+		} finally {
+			writeLock.unlock();
+		}
+		writeQueued();
+	}
+
+	/**
+	 * Write everything that is allowed to be written now, unless another thread
+	 * is already writing. Lines still waiting for the rate limiter are
+	 * scheduled to be written later
+	 */
+	protected void writeQueued() {
+		List<QueuedLine> batch = new ArrayList<QueuedLine>();
+		writeLock.lock();
+		try {
+			if (writing)
+				//The current writer will get to our line
+				return;
+			writing = true;
+		} finally {
+			writeLock.unlock();
+		}
+
+		while (true) {
+			writeLock.lock();
+			try {
+				takeBatch(batch);
+				if (batch.isEmpty()) {
+					writing = false;
+					writerFinished.signalAll();
+					scheduleWrite();
+					return;
+				}
+			} finally {
+				writeLock.unlock();
+			}
+			writeBatch(batch);
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Move all lines that can be written now into the batch. Must hold the writeLock
+	 */
+	protected void takeBatch(List<QueuedLine> batch) {
+		batch.addAll(nowQueue);
+		nowQueue.clear();
+		long now = System.nanoTime();
+		nextWriteTime = now;
+		while (!queue.isEmpty()) {
+			String line = queue.peek().getLine();
+			long delay = rateLimiter.getDelay(line, now);
+			if (delay > 0) {
+				nextWriteTime = now + delay;
+				break;
+			}
+			batch.add(queue.remove());
+			rateLimiter.lineSent(line, now);
+		}
+		for (QueuedLine curLine : batch)
+			queuedBytes -= curLine.getLine().length() + 2;
+	}
+
+	/**
+	 * Write the lines and flush once. Failures are logged since the thread
+	 * writing may not be the one that sent the line
+	 */
+	protected void writeBatch(List<QueuedLine> batch) {
+		try {
+			for (QueuedLine curLine : batch) {
+				log.info(OUTPUT_MARKER, curLine.getLine());
+				Utils.sendRawLineToServer(bot, curLine.getLine());
+			}
+			Utils.flushRawLinesToServer(bot);
+		} catch (Exception e) {
+			log.error("Exception encountered when writing " + batch.size() + " lines to server", e);
+		}
+
+		long writtenTime = System.nanoTime();
+		writeLock.lock();
+		try {
+			for (QueuedLine curLine : batch) {
+				lastLatency = writtenTime - curLine.getQueuedTime();
+				maxLatency = Math.max(maxLatency, lastLatency);
+				totalLatency += lastLatency;
+				linesWritten++;
+			}
 		} finally {
 			writeLock.unlock();
 		}
 	}
 
+	/**
+	 * Schedule a writer for the delayed lines if needed. Must hold the writeLock
+	 */
+	protected void scheduleWrite() {
+		if (queue.isEmpty() || writeScheduled)
+			return;
+		writeScheduled = true;
+		WRITE_SCHEDULER.schedule(new Runnable() {
+			public void run() {
+				Utils.addBotToMDC(bot);
+				writeLock.lock();
+				try {
+					writeScheduled = false;
+				} finally {
+					writeLock.unlock();
+				}
+				writeQueued();
+			}
+		}, Math.max(0, nextWriteTime - System.nanoTime()), TimeUnit.NANOSECONDS);
+	}
+
 	public void rawLineSplit(String prefix, String message) {
 		rawLineSplit(prefix, message, "");
 	}
 
+	/**
+	 * Send the message with the prefix and suffix, split into as few lines as
+	 * possible if needed. Lines are measured in encoded bytes and leave room
+	 * for the hostmask the server adds when relaying the message
+	 * @param prefix Start of each line, eg the command and target
+	 * @param message The message to split
+	 * @param suffix End of each line
+	 * @see LineSplitter
+	 */
 	public void rawLineSplit(String prefix, String message, String suffix) {
 		checkNotNull(prefix, "Prefix cannot be null");
 		checkNotNull(message, "Message cannot be null");
 		checkNotNull(suffix, "Suffix cannot be null");
 
-		//Find if final line is going to be shorter than the max line length
 		String finalMessage = prefix + message + suffix;
-		int realMaxLineLength = bot.getConfiguration().getMaxLineLength() - 2;
-		if (!bot.getConfiguration().isAutoSplitMessage() || finalMessage.length() < realMaxLineLength) {
-			//Length is good (or auto split message is false), just go ahead and send it
+		if (!bot.getConfiguration().isAutoSplitMessage()) {
 			rawLine(finalMessage);
 			return;
 		}
 
-		//Too long, split it up
-		int maxMessageLength = realMaxLineLength - (prefix + suffix).length();
-		//Oh look, no function to split every nth char. Since regex is expensive, use this nonsense
-		int iterations = (int) Math.ceil(message.length() / (double) maxMessageLength);
-		for (int i = 0; i < iterations; i++) {
-			int endPoint = (i != iterations - 1) ? ((i + 1) * maxMessageLength) : message.length();
-			String curMessagePart = prefix + message.substring(i * maxMessageLength, endPoint) + suffix;
-			rawLine(curMessagePart);
+		List<String> messageParts = null;
+		synchronized (lineSplitter) {
+			int maxLineBytes = bot.getConfiguration().getMaxLineLength() - 2 - getRelayPrefixLength();
+			if (lineSplitter.getByteLength(finalMessage) > maxLineBytes) {
+				int maxMessageBytes = maxLineBytes - lineSplitter.getByteLength(prefix + suffix);
+				checkArgument(maxMessageBytes > 0, "Prefix and suffix are too long to send any message");
+				messageParts = lineSplitter.split(message, maxMessageBytes);
+			}
+		}
+		if (messageParts == null) {
+			//Length is good, just go ahead and send it
+			rawLine(finalMessage);
+			return;
+		}
+		for (String curMessagePart : messageParts)
+			rawLine(prefix + curMessagePart + suffix);
+	}
+
+	/**
+	 * Get the number of bytes a line can use once the server adds the relay
+	 * prefix, not counting the line ending
+	 * @see #getRelayPrefixLength() 
+	 */
+	protected int getMaxLineBytes() {
+		synchronized (lineSplitter) {
+			return bot.getConfiguration().getMaxLineLength() - 2 - getRelayPrefixLength();
 		}
 	}
 
+	/**
+	 * Get the number of bytes the text is sent as.
+	 */
+	protected int getByteLength(String text) {
+		synchronized (lineSplitter) {
+			return lineSplitter.getByteLength(text);
+		}
+	}
+
+	/**
+	 * Get the length of the <code>:nick!login@host </code> prefix the server 
+	 * adds to messages it relays from the bot. Parts the server hasn't told us
+	 * yet are assumed to be the longest possible
+	 * @return The length in bytes
+	 */
+	protected int getRelayPrefixLength() {
+		String nick = bot.getNick();
+		String login = "~" + bot.getConfiguration().getLogin();
+		int hostLength = MAX_HOSTNAME_LENGTH;
+		if (nick != null && bot.getUserChannelDao().userExists(nick)) {
+			User userBot = bot.getUserChannelDao().getUser(nick);
+			if (!StringUtils.isBlank(userBot.getLogin()))
+				login = userBot.getLogin();
+			if (!StringUtils.isBlank(userBot.getHostmask()))
+				hostLength = lineSplitter.getByteLength(userBot.getHostmask());
+		}
+		//:nick!login@host followed by a space
+		return 1 + lineSplitter.getByteLength(String.valueOf(nick)) + 1 + lineSplitter.getByteLength(login) + 1 + hostLength + 1;
+	}
+
 	/**
 	 * Gets the number of lines currently waiting in the outgoing message Queue.
 	 * If this returns 0, then the Queue is empty and any new message is likely
@@ -141,6 +365,121 @@ public class OutputRaw {
 	 * @return The number of lines in the outgoing message Queue.
 	 */
 	public int getOutgoingQueueSize() {
-		return writeLock.getHoldCount();
+		writeLock.lock();
+		try {
+			return queue.size() + nowQueue.size();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the size of all lines waiting in the outgoing message Queue, counted
+	 * as one byte per character plus the line ending.
+	 * @return The approximate number of bytes waiting to be sent
+	 */
+	public long getOutgoingQueueBytes() {
+		writeLock.lock();
+		try {
+			return queuedBytes;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Gets how long the most recently written line waited between being sent
+	 * and being written to the server
+	 * @param unit The unit of the returned time
+	 * @return The latency of the last line or 0 if nothing has been written
+	 */
+	public long getLastQueueLatency(TimeUnit unit) {
+		writeLock.lock();
+		try {
+			return unit.convert(lastLatency, TimeUnit.NANOSECONDS);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the longest time any line waited between being sent and being written
+	 * @param unit The unit of the returned time
+	 * @return The maximum latency or 0 if nothing has been written
+	 */
+	public long getMaxQueueLatency(TimeUnit unit) {
+		writeLock.lock();
+		try {
+			return unit.convert(maxLatency, TimeUnit.NANOSECONDS);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the average time lines waited between being sent and being written
+	 * @param unit The unit of the returned time
+	 * @return The average latency or 0 if nothing has been written
+	 */
+	public long getAverageQueueLatency(TimeUnit unit) {
+		writeLock.lock();
+		try {
+			return linesWritten == 0 ? 0 : unit.convert(totalLatency / linesWritten, TimeUnit.NANOSECONDS);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Write any lines from rawLineNow, like a QUIT, and discard the lines still 
+	 * waiting for the rate limiter. Called when the bot disconnects before the
+	 * socket is closed so lines aren't lost or sent to the next connection
+	 */
+	public void close() {
+		List<QueuedLine> batch = new ArrayList<QueuedLine>();
+		writeLock.lock();
+		try {
+			//Wait for the current writer so lines aren't written out of order
+			try {
+				long remaining = TimeUnit.SECONDS.toNanos(CLOSE_TIMEOUT_SECONDS);
+				while (writing && remaining > 0)
+					remaining = writerFinished.awaitNanos(remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (writing)
+				log.warn("Still writing to server, discarding " + nowQueue.size() + " lines");
+			else {
+				batch.addAll(nowQueue);
+				writing = !batch.isEmpty();
+			}
+			queue.clear();
+			nowQueue.clear();
+			queuedBytes = 0;
+		} finally {
+			writeLock.unlock();
+		}
+		if (batch.isEmpty())
+			return;
+
+		writeBatch(batch);
+		writeLock.lock();
+		try {
+			writing = false;
+			writerFinished.signalAll();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	protected static class QueuedLine {
+		@Getter
+		protected final String line;
+		@Getter
+		protected final long queuedTime = System.nanoTime();
+
+		public QueuedLine(String line) {
+			this.line = line;
+		}
 	}
 }
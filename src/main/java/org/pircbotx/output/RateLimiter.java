@@ -0,0 +1,50 @@
+/**
+ * Copyright (C) 2010-2013 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of PircBotX.
+ *
+ * PircBotX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PircBotX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pircbotx.output;
+
+/**
+ * Decides when queued lines can be sent to the server to avoid being disconnected
+ * for flooding. Created for each bot by 
+ * {@link org.pircbotx.Configuration.BotFactory#createRateLimiter(org.pircbotx.PircBotX) }.
+ * <p/>
+ * Methods are only called by {@link OutputRaw} while holding its lock, so 
+ * implementations do not need to be thread safe. All times are from
+ * {@link System#nanoTime() }
+ * @author Leon Blakey <lord.quackstar at gmail.com>
+ * @see FixedDelayRateLimiter
+ * @see TokenBucketRateLimiter
+ */
+public interface RateLimiter {
+	/**
+	 * Get how long to wait before the line can be sent. This does not count
+	 * the line as sent
+	 * @param line The next line waiting to be sent
+	 * @param now The current time
+	 * @return Nanoseconds to wait or 0 if the line can be sent now
+	 */
+	public long getDelay(String line, long now);
+
+	/**
+	 * Count the line as sent. This is also called for lines that skip the 
+	 * rate limit when they should delay the lines after them
+	 * @param line The line that was sent
+	 * @param now The current time
+	 */
+	public void lineSent(String line, long now);
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) 2010-2013 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of PircBotX.
+ *
+ * PircBotX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PircBotX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pircbotx.output;
+
+import static com.google.common.base.Preconditions.*;
+import com.google.common.collect.ImmutableSet;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import lombok.Getter;
+import org.pircbotx.PircBotX;
+
+/**
+ * Token bucket flood control. The bucket holds up to capacity tokens and refills
+ * one token every refill delay. Each line costs tokens, so after being idle the
+ * bot can send a burst of lines immediately and then falls back to one line
+ * every refill delay.
+ * <p/>
+ * Every line costs 1 token. If the server advertises PENALTY in 
+ * {@link org.pircbotx.ServerInfo#isPenalty() } it charges extra for long lines
+ * and some commands, so lines cost an extra token per 
+ * {@value #PENALTY_BYTES} characters and an extra token for commands in 
+ * {@link #PENALTY_COMMANDS}. Override {@link #getCost(java.lang.String) } 
+ * for other weights
+ * @author Leon Blakey <lord.quackstar at gmail.com>
+ */
+public class TokenBucketRateLimiter implements RateLimiter {
+	/**
+	 * Commands that servers with penalties charge extra for
+	 */
+	public static final ImmutableSet<String> PENALTY_COMMANDS = ImmutableSet.of("JOIN", "PART", "WHO",
+			"WHOIS", "WHOWAS", "NAMES", "LIST", "MODE", "KICK", "TOPIC", "INVITE", "NICK");
+	public static final int PENALTY_BYTES = 100;
+	protected final PircBotX bot;
+	@Getter
+	protected final int capacity;
+	protected final long refillNanos;
+	protected double tokens;
+	protected long lastRefillTime = System.nanoTime();
+
+	/**
+	 * Create a full token bucket.
+	 * @param bot The bot to check {@link org.pircbotx.ServerInfo#isPenalty() } of
+	 * @param capacity The maximum number of tokens, ie the biggest burst of lines
+	 * @param refillDelay Milliseconds to add one token
+	 */
+	public TokenBucketRateLimiter(PircBotX bot, int capacity, long refillDelay) {
+		checkNotNull(bot, "Bot cannot be null");
+		checkArgument(capacity >= 1, "Capacity must be at least 1");
+		checkArgument(refillDelay >= 0, "Refill delay must be positive");
+		this.bot = bot;
+		this.capacity = capacity;
+		this.refillNanos = TimeUnit.MILLISECONDS.toNanos(refillDelay);
+		this.tokens = capacity;
+	}
+
+	public long getDelay(String line, long now) {
+		refill(now);
+		//A line costing more than the capacity can still be sent with a full bucket
+		double needed = Math.min(getCost(line), capacity) - tokens;
+		if (needed <= 0)
+			return 0;
+		return (long) Math.ceil(needed * refillNanos);
+	}
+
+	public void lineSent(String line, long now) {
+		refill(now);
+		tokens -= getCost(line);
+	}
+
+	/**
+	 * Get the number of tokens currently available
+	 * @return The tokens at the time of the last refill
+	 */
+	public double getTokens() {
+		return tokens;
+	}
+
+	/**
+	 * Get the number of tokens a line costs.
+	 * @param line The raw line
+	 * @return The cost, at least 1
+	 */
+	protected double getCost(String line) {
+		if (!bot.getServerInfo().isPenalty())
+			return 1;
+		double cost = 1 + line.length() / PENALTY_BYTES;
+		int commandEnd = line.indexOf(' ');
+		String command = commandEnd == -1 ? line : line.substring(0, commandEnd);
+		if (PENALTY_COMMANDS.contains(command.toUpperCase(Locale.ENGLISH)))
+			cost++;
+		return cost;
+	}
+
+	protected void refill(long now) {
+		if (refillNanos == 0)
+			tokens = capacity;
+		else if (now - lastRefillTime > 0)
+			tokens = Math.min(capacity, tokens + (now - lastRefillTime) / (double) refillNanos);
+		else
+			return;
+		lastRefillTime = now;
+	}
+}
@@ -22,6 +22,7 @@
  */
 package org.pircbotx.snapshot;
 
+import com.google.common.util.concurrent.ListenableFuture;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
@@ -40,7 +41,7 @@ public class ChannelSnapshot extends Channel {
 	@Getter
 	protected final Channel generatedFrom;
 
-	public ChannelSnapshot(Channel channel, String mode) {
+	public ChannelSnapshot(Channel channel) {
 		super(channel.getBot(), null, channel.getName());
 		this.generatedFrom = channel;
 
@@ -57,6 +58,7 @@ public class ChannelSnapshot extends Channel {
 		super.setNoExternalMessages(channel.isNoExternalMessages());
 		super.setSecret(channel.isSecret());
 		super.setTopicProtection(channel.hasTopicProtection());
+		super.copyMode(channel);
 	}
 
 	@Override
@@ -70,6 +72,26 @@ public class ChannelSnapshot extends Channel {
 		SnapshotUtils.fail();
 	}
 
+	@Override
+	protected void updateMode(char mode, boolean adding, String parameter) {
+		SnapshotUtils.fail();
+	}
+
+	@Override
+	protected void setMode(String mode) {
+		SnapshotUtils.fail();
+	}
+
+	@Override
+	public ListenableFuture<String> refreshMode() {
+		return generatedFrom.refreshMode();
+	}
+
+	@Override
+	protected void requireSync() {
+		//Snapshots only contain what was known when created
+	}
+
 	@Override
 	public ChannelSnapshot createSnapshot() {
 		throw new UnsupportedOperationException("Attempting to generate channel snapshot from a snapshot");
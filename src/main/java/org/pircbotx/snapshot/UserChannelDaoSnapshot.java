@@ -18,37 +18,223 @@
  */
 package org.pircbotx.snapshot;
 
-import com.google.common.collect.ImmutableBiMap;
+import com.google.common.base.Function;
 import com.google.common.collect.ImmutableSortedSet;
-import java.util.EnumMap;
+import com.google.common.collect.Iterables;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.pircbotx.CaseMapping;
+import org.pircbotx.Channel;
+import org.pircbotx.PersistentMap;
 import org.pircbotx.PircBotX;
+import org.pircbotx.User;
 import org.pircbotx.UserChannelDao;
-import org.pircbotx.UserChannelMap;
 import org.pircbotx.UserLevel;
 
 /**
- *
+ * A read only dao of snapshots. Queries are answered by a frozen copy of the
+ * original dao's maps and results are converted to snapshots. {@link UserSnapshot}s 
+ * are only created once a user is actually returned, as are 
+ * {@link ChannelSnapshot}s of channels that weren't copied when the snapshot 
+ * was created.
+ * <p>
+ * Only users and relationships are frozen. The fields of a channel that wasn't 
+ * copied when the snapshot was created, eg its topic and mode, are copied from 
+ * the live channel the first time it's returned. They can be newer than its 
+ * users and levels, which are still from when the snapshot was created
  * @author Leon
  */
 public class UserChannelDaoSnapshot extends UserChannelDao<UserSnapshot, ChannelSnapshot> {
-	public UserChannelDaoSnapshot(PircBotX bot, UserChannelMapSnapshot mainMap, EnumMap<UserLevel, UserChannelMap<UserSnapshot, ChannelSnapshot>> levelsMap, ImmutableBiMap<String, UserSnapshot> userNickMap, ImmutableBiMap<String, ChannelSnapshot> channelNameMap, ImmutableSortedSet<UserSnapshot> privateUsers) {
-		super(bot, null, mainMap, levelsMap, userNickMap, channelNameMap, privateUsers);
+	protected final UserChannelDao<User, Channel> frozenDao;
+	protected final PersistentMap<User, UserSnapshot> userTemplates;
+	protected final ConcurrentMap<Channel, ChannelSnapshot> channelSnapshots;
+	protected final ConcurrentMap<User, UserSnapshot> userSnapshotCache = new ConcurrentHashMap<User, UserSnapshot>();
+
+	/**
+	 * Create a snapshot dao.
+	 * @param bot The bot
+	 * @param frozenDao A copy of the dao that is never changed
+	 * @param userTemplates Snapshot of each user, copied for this dao when needed
+	 * @param channelSnapshots Snapshots of channels copied when the snapshot 
+	 * was created. Any other channel is copied when first needed
+	 */
+	public UserChannelDaoSnapshot(PircBotX bot, UserChannelDao<User, Channel> frozenDao, PersistentMap<User, UserSnapshot> userTemplates, Map<Channel, ChannelSnapshot> channelSnapshots) {
+		super(bot, null);
+		this.frozenDao = frozenDao;
+		this.userTemplates = userTemplates;
+		this.channelSnapshots = new ConcurrentHashMap<Channel, ChannelSnapshot>(channelSnapshots);
+	}
+
+	protected UserSnapshot toSnapshot(User user) {
+		UserSnapshot snapshot = userSnapshotCache.get(user);
+		if (snapshot != null)
+			return snapshot;
+		UserSnapshot template = userTemplates.get(user);
+		if (template == null)
+			throw new RuntimeException("No snapshot of user " + user.getNick());
+		snapshot = new UserSnapshot(template, this);
+		UserSnapshot existingSnapshot = userSnapshotCache.putIfAbsent(user, snapshot);
+		return existingSnapshot != null ? existingSnapshot : snapshot;
+	}
+
+	protected ChannelSnapshot toSnapshot(Channel channel) {
+		ChannelSnapshot snapshot = channelSnapshots.get(channel);
+		if (snapshot != null)
+			return snapshot;
+
+		//Wasn't copied when this snapshot was created, copy current state. Users
+		//and levels still come from frozenDao, so may be older than these fields
+		snapshot = channel.createSnapshot();
+		snapshot.setDao(this);
+		ChannelSnapshot existingSnapshot = channelSnapshots.putIfAbsent(channel, snapshot);
+		return existingSnapshot != null ? existingSnapshot : snapshot;
+	}
+
+	protected ImmutableSortedSet<UserSnapshot> toUserSnapshots(Iterable<? extends User> users) {
+		ImmutableSortedSet.Builder<UserSnapshot> builder = ImmutableSortedSet.naturalOrder();
+		for (User curUser : users)
+			builder.add(toSnapshot(curUser));
+		return builder.build();
+	}
+
+	protected ImmutableSortedSet<ChannelSnapshot> toChannelSnapshots(Iterable<? extends Channel> channels) {
+		ImmutableSortedSet.Builder<ChannelSnapshot> builder = ImmutableSortedSet.naturalOrder();
+		for (Channel curChannel : channels)
+			builder.add(toSnapshot(curChannel));
+		return builder.build();
+	}
+
+	@Override
+	public CaseMapping getCaseMapping() {
+		return frozenDao.getCaseMapping();
 	}
 
 	@Override
 	public UserSnapshot getUser(String nick) {
-		UserSnapshot user = userNickMap.get(nick);
-		if (user == null)
+		if (!frozenDao.userExists(nick))
 			throw new RuntimeException("User " + nick + " does not exist");
-		return user;
+		return toSnapshot(frozenDao.getUser(nick));
+	}
+
+	@Override
+	public UserSnapshot getSourceUser(String nick) {
+		return getUser(nick);
+	}
+
+	@Override
+	public boolean userExists(String nick) {
+		return frozenDao.userExists(nick);
+	}
+
+	@Override
+	public ImmutableSortedSet<UserSnapshot> getAllUsers() {
+		return toUserSnapshots(frozenDao.getAllUsers());
+	}
+
+	@Override
+	public int getUserCount() {
+		return frozenDao.getUserCount();
+	}
+
+	@Override
+	public ImmutableSortedSet<UserSnapshot> getNormalUsers(ChannelSnapshot channel) {
+		return toUserSnapshots(frozenDao.getNormalUsers(channel.getGeneratedFrom()));
+	}
+
+	@Override
+	public ImmutableSortedSet<UserSnapshot> getUsers(ChannelSnapshot channel, UserLevel level) {
+		return toUserSnapshots(frozenDao.getUsers(channel.getGeneratedFrom(), level));
+	}
+
+	@Override
+	public ImmutableSortedSet<UserLevel> getLevels(ChannelSnapshot channel, UserSnapshot user) {
+		return frozenDao.getLevels(channel.getGeneratedFrom(), user.getGeneratedFrom());
+	}
+
+	@Override
+	public ImmutableSortedSet<ChannelSnapshot> getNormalUserChannels(UserSnapshot user) {
+		return toChannelSnapshots(frozenDao.getNormalUserChannels(user.getGeneratedFrom()));
+	}
+
+	@Override
+	public ImmutableSortedSet<ChannelSnapshot> getChannels(UserSnapshot user, UserLevel level) {
+		return toChannelSnapshots(frozenDao.getChannels(user.getGeneratedFrom(), level));
+	}
+
+	@Override
+	protected boolean levelContainsUser(UserLevel level, ChannelSnapshot channel, UserSnapshot user) {
+		return getLevels(channel, user).contains(level);
 	}
 
 	@Override
 	public ChannelSnapshot getChannel(String name) {
-		ChannelSnapshot channel = channelNameMap.get(name);
-		if (channel == null)
-			throw new RuntimeException("Channel " + channel + " does not exist");
-		return channel;
+		if (!frozenDao.channelExists(name))
+			throw new RuntimeException("Channel " + name + " does not exist");
+		return toSnapshot(frozenDao.getChannel(name));
+	}
+
+	@Override
+	public boolean channelExists(String name) {
+		return frozenDao.channelExists(name);
+	}
+
+	@Override
+	public ImmutableSortedSet<UserSnapshot> getUsers(ChannelSnapshot channel) {
+		return toUserSnapshots(frozenDao.getUsers(channel.getGeneratedFrom()));
+	}
+
+	@Override
+	public Iterable<UserSnapshot> iterateUsers(ChannelSnapshot channel) {
+		return Iterables.transform(frozenDao.iterateUsers(channel.getGeneratedFrom()), new Function<User, UserSnapshot>() {
+			public UserSnapshot apply(User user) {
+				return toSnapshot(user);
+			}
+		});
+	}
+
+	@Override
+	public int getUserCount(ChannelSnapshot channel) {
+		return frozenDao.getUserCount(channel.getGeneratedFrom());
+	}
+
+	@Override
+	public int getLevelCount(ChannelSnapshot channel, UserLevel level) {
+		return frozenDao.getLevelCount(channel.getGeneratedFrom(), level);
+	}
+
+	@Override
+	public ImmutableSortedSet<ChannelSnapshot> getAllChannels() {
+		return toChannelSnapshots(frozenDao.getAllChannels());
+	}
+
+	@Override
+	public int getChannelCount() {
+		return frozenDao.getChannelCount();
+	}
+
+	@Override
+	public ImmutableSortedSet<ChannelSnapshot> getChannels(UserSnapshot user) {
+		return toChannelSnapshots(frozenDao.getChannels(user.getGeneratedFrom()));
+	}
+
+	@Override
+	public Iterable<ChannelSnapshot> iterateChannels(UserSnapshot user) {
+		return Iterables.transform(frozenDao.iterateChannels(user.getGeneratedFrom()), new Function<Channel, ChannelSnapshot>() {
+			public ChannelSnapshot apply(Channel channel) {
+				return toSnapshot(channel);
+			}
+		});
+	}
+
+	@Override
+	public UserChannelDaoSnapshot createSnapshot() {
+		throw new UnsupportedOperationException("Attempting to generate dao snapshot from a snapshot");
+	}
+
+	@Override
+	public UserChannelDaoSnapshot createSnapshot(Iterable<? extends ChannelSnapshot> channels) {
+		throw new UnsupportedOperationException("Attempting to generate dao snapshot from a snapshot");
 	}
 
 	@Override
@@ -81,6 +267,12 @@ public class UserChannelDaoSnapshot extends UserChannelDao<UserSnapshot, Channel
 		SnapshotUtils.fail();
 	}
 
+	@Override
+	protected Batch<UserSnapshot, ChannelSnapshot> createBatch(int expectedMemberships) {
+		SnapshotUtils.fail();
+		return null;
+	}
+
 	@Override
 	protected void addUserToLevel(UserLevel level, UserSnapshot user, ChannelSnapshot channel) {
 		SnapshotUtils.fail();
@@ -42,8 +42,22 @@ public class UserSnapshot extends User {
 	protected UserChannelDaoSnapshot dao;
 	
 	public UserSnapshot(User user) {
+		this(user, user);
+	}
+
+	/**
+	 * Copy a snapshot for use in another dao snapshot.
+	 * @param snapshot The snapshot to copy
+	 * @param dao The dao snapshot the copy belongs to
+	 */
+	public UserSnapshot(UserSnapshot snapshot, UserChannelDaoSnapshot dao) {
+		this(snapshot, snapshot.getGeneratedFrom());
+		this.dao = dao;
+	}
+
+	protected UserSnapshot(User user, User generatedFrom) {
 		super(user.getBot(), null, user.getNick());
-		generatedFrom = user;
+		this.generatedFrom = generatedFrom;
 
 		//Clone fields
 		super.setAway(user.isAway());
@@ -32,6 +32,7 @@ import org.apache.commons.lang3.time.StopWatch;
 import org.pircbotx.exception.IrcException;
 import org.pircbotx.hooks.managers.GenericListenerManager;
 import org.pircbotx.hooks.managers.ListenerManager;
+import org.pircbotx.hooks.managers.OrderedListenerManager;
 import org.pircbotx.hooks.managers.ThreadedListenerManager;
 import org.pircbotx.impl.PircBotXJMeter;
 import org.pircbotx.output.OutputRaw;
@@ -57,14 +58,16 @@ public class Benchmark {
 		configurator.doConfigure(Benchmark.class.getResource("/logback-nop.xml"));
 		StatusPrinter.printInCaseOfErrorsOrWarnings(context);
 
-		if (args.length != 1) {
+		if (args.length < 1 || args.length > 2 || (args.length == 2 && !args[1].equals("ordered"))) {
 			System.err.println("Must specify thread count:");
 			System.err.println(" -1: GenericListenerManager");
 			System.err.println(" 0: ThreadedListenerManager (default threads)");
 			System.err.println(" 1+: ThreadedListenerManager (specified threads)");
+			System.err.println("Add ordered to use OrderedListenerManager instead of ThreadedListenerManager");
 			return;
 		}
 		int threadCount = Integer.parseInt(args[0]);
+		boolean ordered = args.length == 2;
 
 		//Init
 		String[][] responseTemplateGroups = new String[13][];
@@ -115,6 +118,10 @@ public class Benchmark {
 		ListenerManager listenerManager;
 		if (threadCount == -1)
 			listenerManager = new GenericListenerManager();
+		else if (ordered && threadCount == 0)
+			listenerManager = new OrderedListenerManager();
+		else if (ordered)
+			listenerManager = new OrderedListenerManager(threadCount);
 		else if (threadCount == 0)
 			listenerManager = new ThreadedListenerManager(Executors.newCachedThreadPool());
 		else
@@ -0,0 +1,62 @@
+/**
+ * Copyright (C) 2010-2013 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of PircBotX.
+ *
+ * PircBotX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PircBotX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pircbotx;
+
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+/**
+ * Verify CASEMAPPING rules and their use in {@link UserChannelDao}
+ * @author Leon Blakey <lord.quackstar at gmail.com>
+ */
+public class CaseMappingTest {
+	@Test(description = "Verify characters are folded according to each mapping")
+	public void foldTest() {
+		assertTrue(CaseMapping.ASCII.equalsIgnoreCase("SomeNick", "somenick"));
+		assertFalse(CaseMapping.ASCII.equalsIgnoreCase("Nick[", "nick{"));
+		assertTrue(CaseMapping.RFC1459.equalsIgnoreCase("Nick[]\\~", "nick{}|^"));
+		assertTrue(CaseMapping.STRICT_RFC1459.equalsIgnoreCase("Nick[]\\", "nick{}|"));
+		assertFalse(CaseMapping.STRICT_RFC1459.equalsIgnoreCase("Nick~", "nick^"));
+		assertEquals(CaseMapping.RFC1459.hashIgnoreCase("Nick["), CaseMapping.RFC1459.hashIgnoreCase("nick{"));
+		assertEquals(CaseMapping.RFC1459.toLowerCase("Nick[\u00c9"), "nick{\u00c9");
+	}
+
+	@Test(description = "Verify CASEMAPPING names are recognized")
+	public void forNameTest() {
+		assertEquals(CaseMapping.forName("ascii"), CaseMapping.ASCII);
+		assertEquals(CaseMapping.forName("strict-rfc1459"), CaseMapping.STRICT_RFC1459);
+		assertEquals(CaseMapping.forName("rfc1459"), CaseMapping.RFC1459);
+		assertEquals(CaseMapping.forName(null), CaseMapping.RFC1459);
+	}
+
+	@Test(description = "Verify dao finds users and channels regardless of case")
+	public void daoTest() throws Exception {
+		PircBotX bot = new PircBotX(TestUtils.generateConfigurationBuilder().buildConfiguration());
+		UserChannelDao<User, Channel> dao = bot.getUserChannelDao();
+		User aUser = dao.getUser("aUser[");
+		Channel aChannel = dao.getChannel("#aChannel");
+		assertSame(dao.getUser("AUSER{"), aUser);
+		assertSame(dao.getChannel("#ACHANNEL"), aChannel);
+
+		bot.getInputParser().handleLine(":ircd.test 005 PircBotXUser CASEMAPPING=ascii :are supported by this server");
+		assertEquals(dao.getCaseMapping(), CaseMapping.ASCII);
+		assertSame(dao.getUser("AUSER["), aUser);
+		assertFalse(dao.userExists("auser{"), "Users equal under ascii mapping");
+	}
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright (C) 2010-2013 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of PircBotX.
+ *
+ * PircBotX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PircBotX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pircbotx;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.pircbotx.snapshot.UserChannelDaoSnapshot;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+/**
+ * Verify {@link ConcurrentUserChannelDao} allows parallel reads
+ * @author Leon Blakey <lord.quackstar at gmail.com>
+ */
+@Test(singleThreaded = true)
+public class ConcurrentUserChannelDaoTest {
+	protected PircBotX bot;
+	protected UserChannelDao<User, Channel> dao;
+	protected User aUser;
+	protected Channel aChannel;
+	protected ExecutorService otherThread;
+
+	@BeforeMethod
+	@SuppressWarnings("unchecked")
+	public void setUp() {
+		bot = new PircBotX(TestUtils.generateConfigurationBuilder()
+				.setBotFactory(new Configuration.BotFactory() {
+			@Override
+			public UserChannelDao createUserChannelDao(PircBotX bot) {
+				return new ConcurrentUserChannelDao<User, Channel>(bot, this);
+			}
+		})
+				.buildConfiguration());
+		dao = bot.getUserChannelDao();
+		aUser = dao.getUser("aUser");
+		aChannel = dao.getChannel("#aChannel");
+		dao.addUserToChannel(aUser, aChannel);
+		dao.addUserToLevel(UserLevel.OP, aUser, aChannel);
+		otherThread = Executors.newSingleThreadExecutor();
+	}
+
+	@AfterMethod
+	public void cleanUp() {
+		otherThread.shutdownNow();
+	}
+
+	@Test(description = "Verify reads are not blocked by other readers")
+	public void parallelReadTest() throws Exception {
+		assertTrue(dao instanceof ConcurrentUserChannelDao, "BotFactory didn't create ConcurrentUserChannelDao");
+		dao.accessLock.readLock().lock();
+		try {
+			Future<Boolean> isOp = otherThread.submit(new Callable<Boolean>() {
+				public Boolean call() throws Exception {
+					return aChannel.isOp(aUser) && dao.getUsers(aChannel).contains(aUser);
+				}
+			});
+			assertTrue(isOp.get(10, TimeUnit.SECONDS), "User not found while another thread is reading");
+		} finally {
+			dao.accessLock.readLock().unlock();
+		}
+	}
+
+	@Test(description = "Verify writes still wait for readers")
+	public void exclusiveWriteTest() throws Exception {
+		dao.accessLock.readLock().lock();
+		Future<?> removeUser;
+		try {
+			removeUser = otherThread.submit(new Runnable() {
+				public void run() {
+					dao.removeUserFromChannel(aUser, aChannel);
+				}
+			});
+			try {
+				removeUser.get(500, TimeUnit.MILLISECONDS);
+				fail("Write finished while another thread is reading");
+			} catch (TimeoutException e) {
+				//Expected
+			}
+			assertTrue(dao.getUsers(aChannel).contains(aUser), "User removed while another thread is reading");
+		} finally {
+			dao.accessLock.readLock().unlock();
+		}
+		removeUser.get(10, TimeUnit.SECONDS);
+		assertFalse(dao.getUsers(aChannel).contains(aUser), "User not removed");
+		assertFalse(aChannel.isOp(aUser), "User still op after leaving");
+	}
+
+	@Test(description = "Verify snapshots of all channels don't deadlock the read/write lock")
+	public void fullSnapshotTest() throws Exception {
+		Future<UserChannelDaoSnapshot> snapshot = otherThread.submit(new Callable<UserChannelDaoSnapshot>() {
+			public UserChannelDaoSnapshot call() throws Exception {
+				return dao.createSnapshot();
+			}
+		});
+		UserChannelDaoSnapshot daoSnapshot = snapshot.get(10, TimeUnit.SECONDS);
+		assertEquals(daoSnapshot.getAllChannels().size(), 1, "Snapshot doesn't contain channel");
+		assertTrue(daoSnapshot.getChannel("#aChannel").isOp(daoSnapshot.getUser("aUser")), "User not op in snapshot");
+
+		//Lock must be released afterwards
+		dao.removeUserFromChannel(aUser, aChannel);
+		assertFalse(dao.getUsers(aChannel).contains(aUser), "User not removed after snapshot");
+	}
+}
@@ -108,4 +108,44 @@ public class ConfigurationTest {
 		assertTrue(fieldsDiff.entriesOnlyOnRight().isEmpty(), "Builder has some fields that Configuration doesn't: "
 				+ fieldsDiff.entriesOnlyOnRight());
 	}
+
+	@Test(description = "Verify channel sync policies are matched with the server's case mapping")
+	public void channelSyncPolicyTest() {
+		Configuration<PircBotX> configuration = TestUtils.generateConfigurationBuilder()
+				.addChannelSyncPolicy("#Never[Channel]", ChannelSyncPolicy.NEVER)
+				.buildConfiguration();
+		assertEquals(configuration.getChannelSyncPolicy("#never[channel]", CaseMapping.ASCII), ChannelSyncPolicy.NEVER);
+		assertEquals(configuration.getChannelSyncPolicy("#never{channel}", CaseMapping.RFC1459), ChannelSyncPolicy.NEVER);
+		assertEquals(configuration.getChannelSyncPolicy("#never{channel}", CaseMapping.ASCII), ChannelSyncPolicy.EAGER);
+	}
+
+	@Test(description = "Verify channels resolve their sync policy once and again when CASEMAPPING changes")
+	public void channelSyncPolicyResolvedTest() {
+		Configuration<PircBotX> configuration = TestUtils.generateConfigurationBuilder()
+				.setDefaultChannelSyncPolicy(ChannelSyncPolicy.LAZY)
+				.addChannelSyncPolicy("#Never[Channel]", ChannelSyncPolicy.NEVER)
+				.buildConfiguration();
+		UserChannelDao<User, Channel> dao = new PircBotX(configuration).getUserChannelDao();
+		Channel channel = dao.getChannel("#never{channel}");
+		assertEquals(channel.syncPolicy, ChannelSyncPolicy.NEVER, "Policy not resolved with default RFC1459 case mapping");
+		dao.setCaseMapping(CaseMapping.ASCII);
+		assertEquals(channel.syncPolicy, ChannelSyncPolicy.LAZY, "Policy not resolved again after CASEMAPPING changed");
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class,
+			description = "Verify channel sync policies for the same channel are rejected")
+	public void channelSyncPolicyDuplicateTest() {
+		TestUtils.generateConfigurationBuilder()
+				.addChannelSyncPolicy("#Foo", ChannelSyncPolicy.NEVER)
+				.addChannelSyncPolicy("#foo", ChannelSyncPolicy.LAZY)
+				.buildConfiguration();
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class,
+			description = "Verify a private user cache that can't hold the sender is rejected")
+	public void maxPrivateUsersZeroTest() {
+		TestUtils.generateConfigurationBuilder()
+				.setMaxPrivateUsers(0)
+				.buildConfiguration();
+	}
 }
@@ -19,6 +19,8 @@
 package org.pircbotx;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.util.concurrent.ListenableFuture;
 import java.io.IOException;
 import org.pircbotx.hooks.events.MotdEvent;
 import org.pircbotx.hooks.events.HalfOpEvent;
@@ -26,7 +28,9 @@ import org.pircbotx.hooks.events.OwnerEvent;
 import org.pircbotx.hooks.events.SuperOpEvent;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -77,6 +81,7 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 import static org.testng.Assert.*;
+import static org.pircbotx.ReplyConstants.*;
 
 /**
  * Usability tests for PircBotX that test how PircBotX handles lines and events.
@@ -271,6 +276,47 @@ public class InputParserTest {
 		assertEquals(pevent.getMessage(), aString, "Message sent does not match");
 	}
 
+	@Test(description = "Verify users that only send private messages aren't tracked until they join")
+	public void privateMessageUntrackedTest() throws IOException, IrcException {
+		inputParser.handleLine(":AUser!~ALogin@some.host PRIVMSG PircBotXUser :" + aString);
+		User aUser = getEvent(PrivateMessageEvent.class, "MessageEvent not dispatched").getUser();
+		assertFalse(dao.userExists("AUser"), "Private message created tracked user");
+
+		//Following lines use the same user
+		events.clear();
+		inputParser.handleLine(":AUser!~ALogin@some.host PRIVMSG PircBotXUser :" + aString);
+		assertSame(getEvent(PrivateMessageEvent.class, "MessageEvent not dispatched").getUser(), aUser);
+
+		//Joining a channel starts tracking the user
+		Channel aChannel = dao.getChannel("#aChannel");
+		inputParser.handleLine(":AUser!~ALogin@some.host JOIN :#aChannel");
+		assertTrue(dao.userExists("AUser"), "Join didn't track private user");
+		assertSame(dao.getUser("AUser"), aUser);
+		assertTrue(aChannel.getUsers().contains(aUser), "Private user not in channel after join");
+	}
+
+	@Test(description = "Verify kicking or changing the modes of an unknown user doesn't track them")
+	public void unknownRecipientUntrackedTest() throws IOException, IrcException {
+		Channel aChannel = dao.getChannel("#aChannel");
+		User source = dao.getUser("SourceUser");
+		dao.addUserToChannel(source, aChannel);
+		inputParser.handleLine(":SourceUser!~SomeTest@host.test KICK #aChannel AUser :" + aString);
+		KickEvent kevent = getEvent(KickEvent.class, "KickEvent not dispatched");
+		assertEquals(kevent.getRecipient().getNick(), "AUser", "KickEvent's recipient does not match given");
+		assertFalse(dao.userExists("AUser"), "Kick created tracked user");
+
+		inputParser.handleLine(":SourceUser MODE OtherUser :+i");
+		UserModeEvent uevent = getEvent(UserModeEvent.class, "UserModeEvent not dispatched");
+		assertEquals(uevent.getRecipient().getNick(), "OtherUser", "UserModeEvent's target does not match given");
+		assertFalse(dao.userExists("OtherUser"), "User mode created tracked user");
+
+		inputParser.handleLine(":SourceUser!~SomeTest@host.test MODE #aChannel +o ThirdUser");
+		OpEvent oevent = getEvent(OpEvent.class, "OpEvent not dispatched");
+		assertEquals(oevent.getRecipient().getNick(), "ThirdUser", "OpEvent's recipient does not match given");
+		assertFalse(dao.userExists("ThirdUser"), "Channel mode created tracked user");
+		assertFalse(dao.getUsers(aChannel).contains(oevent.getRecipient()), "Channel mode added unknown user to channel");
+	}
+
 	@DataProvider
 	public Object[][] channelOrUserDataProvider() {
 		System.out.println("Generating data");
@@ -364,6 +410,65 @@ public class InputParserTest {
 		assertNull(mevent.getUser(), "ModeEvent's user not null for mode response");
 	}
 
+	@Test(description = "Verify mode response with parameters completes a mode refresh")
+	public void modeRefreshTest() throws Exception {
+		Channel aChannel = dao.getChannel("#aChannel");
+		ListenableFuture<String> future = aChannel.refreshMode();
+		assertFalse(future.isDone(), "Mode refresh completed before the server replied");
+		assertSame(aChannel.refreshMode(), future, "Pending mode refresh not shared");
+		inputParser.handleLine(":irc.someserver.net 324 PircBotXUser #aChannel +cntkl key 10");
+
+		assertTrue(future.isDone(), "Mode refresh not completed by mode response");
+		assertEquals(future.get(), "cklnt key 10", "Refreshed mode doesn't match given");
+		assertEquals(aChannel.getMode(), "cklnt key 10", "Channel mode doesn't match given");
+		assertEquals(aChannel.getChannelKey(), "key", "Channel key doesn't match given");
+		assertEquals(aChannel.getModeParameter('k'), "key", "Key mode parameter doesn't match given");
+		assertEquals(aChannel.getChannelLimit(), 10, "Channel limit doesn't match given");
+		assertTrue(aChannel.hasTopicProtection(), "Channel doesn't have topic protection from mode response");
+		ModeEvent mevent = getEvent(ModeEvent.class, "ModeEvent not dispatched for mode response");
+		assertEquals(mevent.getMode(), "+cntkl key 10", "ModeEvent's mode doesn't equal given");
+	}
+
+	@Test(description = "Verify a mode refresh that gets no reply doesn't block later refreshes")
+	public void modeRefreshNoReplyTest() throws Exception {
+		bot.loggedIn = true;
+		Channel aChannel = dao.getChannel("#aChannel");
+		ListenableFuture<String> errorFuture = aChannel.refreshMode();
+		inputParser.handleLine(":irc.someserver.net 442 PircBotXBot #aChannel :You're not on that channel");
+		assertTrue(errorFuture.isCancelled(), "Mode refresh not cancelled by error");
+
+		//Lost reply
+		ListenableFuture<String> future = aChannel.refreshMode();
+		assertNotSame(future, errorFuture, "Cancelled mode refresh reused");
+		aChannel.modeRefreshStarted -= TimeUnit.SECONDS.toNanos(Channel.MODE_REFRESH_TIMEOUT_SECONDS + 1);
+		ListenableFuture<String> retryFuture = aChannel.refreshMode();
+		assertNotSame(retryFuture, future, "Stale mode refresh not replaced");
+		assertTrue(future.isCancelled(), "Stale mode refresh not cancelled");
+
+		//Disconnect
+		dao.close();
+		assertTrue(retryFuture.isCancelled(), "Mode refresh not cancelled on close");
+	}
+
+	@Test(description = "Verify parameters are matched to modes using CHANMODES and PREFIX")
+	public void channelModeTypesTest() throws IOException, IrcException {
+		inputParser.handleLine(":irc.someserver.net 005 PircBotXBot CHANMODES=eIbq,k,flj,CFLMPQcgimnprstz PREFIX=(ov)@+ :are supported by this server");
+		Channel aChannel = dao.getChannel("#aChannel");
+		User otherUser = dao.getUser("OtherUser");
+		inputParser.handleLine(":AUser!~ALogin@some.host MODE #aChannel +qjok *!*@bad.host 5:10 OtherUser key");
+
+		assertTrue(aChannel.isOp(otherUser), "User not opped after list and parameter modes");
+		assertFalse(dao.userExists("*!*@bad.host"), "List mode parameter treated as a user");
+		assertEquals(aChannel.getMode(), "jk 5:10 key", "Channel mode doesn't match given");
+		assertEquals(aChannel.getChannelKey(), "key", "Channel key doesn't match given");
+		for (Event curEvent : events)
+			assertFalse(curEvent instanceof OwnerEvent, "OwnerEvent dispatched for list mode q");
+
+		inputParser.handleLine(":AUser!~ALogin@some.host MODE #aChannel -jk key");
+		assertEquals(aChannel.getMode(), "", "Channel mode not empty after removing all modes");
+		assertNull(aChannel.getChannelKey(), "Channel key not removed");
+	}
+
 	/**
 	 * Do setup and basic verification of channel modes
 	 * @param bot
@@ -590,6 +695,132 @@ public class InputParserTest {
 		assertFalse(aChannel.hasVoice(otherUser), "User is labeled as voiced even though specified as one in WHO");
 	}
 
+	@Test(description = "Verify a WHO reply for a nick is applied when it ends")
+	public void whoNickTest() throws IOException, IrcException {
+		inputParser.handleLine(":irc.someserver.net 352 PircBotXUser * ~ALogin some.host irc.someserver.net AUser H :2 " + aString);
+		inputParser.handleLine(":irc.someserver.net 315 PircBotXUser AUser :End of /WHO list.");
+
+		assertTrue(inputParser.whoBatches.isEmpty(), "WHO reply for a nick left a pending batch");
+		assertTrue(dao.userExists("AUser"), "WHO reply for a nick wasn't applied");
+		assertEquals(dao.getUser("AUser").getLogin(), "~ALogin", "Login doesn't match one given during WHO");
+		assertFalse(dao.channelExists("AUser"), "End of WHO reply for a nick created a channel");
+	}
+
+	@Test(description = "Verify WHOX queries are forgotten when the reply ends in a different case")
+	public void whoXEndCaseTest() throws IOException, IrcException {
+		inputParser.handleLine(":irc.someserver.net 005 PircBotXBot WHOX :are supported by this server");
+		inputParser.handleLine(":PircBotXBot!~PircBotXBot@bot.host JOIN :#aChannel");
+		assertFalse(inputParser.whoXQueries.isEmpty(), "Join didn't send a WHOX query");
+		inputParser.handleLine(":irc.someserver.net 315 PircBotXBot #ACHANNEL :End of /WHO list.");
+		assertTrue(inputParser.whoXQueries.isEmpty(), "WHOX query not forgotten");
+	}
+
+	@Test(description = "Verify WHOX is used to sync channels when the server supports it")
+	public void whoXTest() throws IOException, IrcException {
+		inputParser.handleLine(":irc.someserver.net 005 PircBotXBot WHOX :are supported by this server");
+		inputParser.handleLine(":PircBotXBot!~PircBotXBot@bot.host JOIN :#aChannel");
+		inputParser.handleLine(":irc.someserver.net 354 PircBotXBot 1 ~ALogin some.host irc.someserver.net AUser H@ 2 :" + aString);
+		//Not from our query
+		inputParser.handleLine(":irc.someserver.net 354 PircBotXBot 500 OtherUser");
+		inputParser.handleLine(":irc.someserver.net 315 PircBotXBot #aChannel :End of /WHO list.");
+
+		Channel aChannel = dao.getChannel("#aChannel");
+		assertTrue(dao.userExists("AUser"), "WHOX reply didn't create user");
+		assertFalse(dao.userExists("OtherUser"), "WHOX reply with unknown token created user");
+		User aUser = dao.getUser("AUser");
+		assertEquals(aUser.getLogin(), "~ALogin");
+		assertEquals(aUser.getHostmask(), "some.host");
+		assertEquals(aUser.getServer(), "irc.someserver.net");
+		assertEquals(aUser.getHops(), 2);
+		assertEquals(aUser.getRealName(), aString);
+		assertFalse(aUser.isAway(), "User is away even though specified as here in WHOX");
+		assertTrue(aChannel.isOp(aUser), "User isn't labeled as an op even though specified as one in WHOX");
+	}
+
+	@Test(description = "Verify lazy channels are synced on first use, one at a time")
+	public void lazyChannelSyncTest() throws IOException, IrcException {
+		Configuration configuration = TestUtils.generateConfigurationBuilder()
+				.setDefaultChannelSyncPolicy(ChannelSyncPolicy.LAZY)
+				.addChannelSyncPolicy("#NeverChannel", ChannelSyncPolicy.NEVER)
+				.buildConfiguration();
+		bot = new PircBotX(configuration) {
+			@Override
+			public boolean isConnected() {
+				return true;
+			}
+
+			@Override
+			protected void sendRawLineToServer(String line) {
+				//Do nothing
+			}
+		};
+		bot.nick = "PircBotXBot";
+		dao = bot.getUserChannelDao();
+		inputParser = bot.getInputParser();
+		inputParser.handleLine(":PircBotXBot!~PircBotXBot@bot.host JOIN :#aChannel");
+		inputParser.handleLine(":PircBotXBot!~PircBotXBot@bot.host JOIN :#bChannel");
+		inputParser.handleLine(":PircBotXBot!~PircBotXBot@bot.host JOIN :#neverChannel");
+		assertNull(inputParser.lazySyncChannel, "Lazy channel synced on join");
+		dao.getChannel("#aChannel").createSnapshot();
+		assertNull(inputParser.lazySyncChannel, "Lazy channel synced by snapshot");
+
+		dao.getChannel("#neverChannel").getUsers();
+		assertNull(inputParser.lazySyncChannel, "Channel that is never synced was synced");
+		dao.getChannel("#aChannel").getUsers();
+		assertEquals(inputParser.lazySyncChannel, "#aChannel", "Lazy channel not synced on first use");
+		dao.getChannel("#bChannel").getOps();
+		dao.getChannel("#aChannel").getUserCount();
+		assertEquals(inputParser.lazySyncQueue.size(), 1, "Second lazy channel not queued or first channel synced twice");
+
+		inputParser.handleLine(":irc.someserver.net 315 PircBotXBot #aChannel :End of /WHO list.");
+		assertEquals(inputParser.lazySyncChannel, "#bChannel", "Queued lazy channel not synced after previous WHO ended");
+		inputParser.handleLine(":irc.someserver.net 315 PircBotXBot #bChannel :End of /WHO list.");
+		assertNull(inputParser.lazySyncChannel, "Lazy sync not finished after last WHO ended");
+		assertTrue(inputParser.lazySyncQueue.isEmpty(), "Lazy sync queue not empty");
+
+		//A sync whose WHO reply never ends must not block the rest
+		inputParser.handleLine(":PircBotXBot!~PircBotXBot@bot.host JOIN :#cChannel");
+		inputParser.handleLine(":PircBotXBot!~PircBotXBot@bot.host JOIN :#dChannel");
+		inputParser.handleLine(":PircBotXBot!~PircBotXBot@bot.host JOIN :#eChannel");
+		dao.getChannel("#cChannel").getUsers();
+		dao.getChannel("#dChannel").getUsers();
+		dao.getChannel("#eChannel").getUsers();
+		bot.loggedIn = true;
+		inputParser.handleLine(":irc.someserver.net 403 PircBotXBot #cChannel :No such channel");
+		assertEquals(inputParser.lazySyncChannel, "#dChannel", "Queued lazy channel not synced after WHO error");
+		inputParser.lazySyncStarted -= TimeUnit.SECONDS.toNanos(InputParser.LAZY_SYNC_TIMEOUT_SECONDS + 1);
+		inputParser.handleLine("PING :irc.someserver.net");
+		assertEquals(inputParser.lazySyncChannel, "#eChannel", "Queued lazy channel not synced after WHO timed out");
+
+		//Disconnecting forgets pending syncs
+		inputParser.close();
+		assertNull(inputParser.lazySyncChannel, "Lazy sync not reset on close");
+	}
+
+	@Test(description = "Verify WHO replies are applied together at the end of the reply")
+	public void whoBatchTest() throws IOException, IrcException {
+		Channel aChannel = dao.getChannel("#aChannel");
+		inputParser.handleLine(":irc.someserver.net 352 PircBotXUser #aChannel ~ALogin some.host irc.someserver.net AUser H@+ :2 " + aString);
+		inputParser.handleLine(":irc.someserver.net 352 PircBotXUser #aChannel ~OtherLogin some.host1 irc.otherserver.net OtherUser G :4 " + aString);
+		assertFalse(dao.userExists("AUser"), "WHO reply applied before end of reply");
+		assertEquals(aChannel.getUserCount(), 0, "WHO reply applied before end of reply");
+
+		inputParser.handleLine(":irc.someserver.net 315 PircBotXUser #aChannel :End of /WHO list.");
+		assertEquals(aChannel.getUserCount(), 2);
+		User aUser = dao.getUser("AUser");
+		assertEquals(aUser.getLogin(), "~ALogin");
+		assertEquals(dao.getLevels(aChannel, aUser), ImmutableSortedSet.of(UserLevel.OP, UserLevel.VOICE));
+
+		//Changes to tracked users are also only told to the dao at the end
+		dao.createSnapshot();
+		inputParser.handleLine(":irc.someserver.net 352 PircBotXUser #aChannel ~NewLogin some.host irc.someserver.net AUser H@+ :2 " + aString);
+		assertEquals(aUser.getLogin(), "~NewLogin");
+		assertFalse(dao.changedUsers.contains(aUser), "User change told to dao before end of reply");
+		inputParser.handleLine(":irc.someserver.net 315 PircBotXUser #aChannel :End of /WHO list.");
+		assertTrue(dao.changedUsers.contains(aUser), "User change not told to dao at end of reply");
+		assertEquals(dao.createSnapshot().getUser("AUser").getLogin(), "~NewLogin", "Snapshot has old login");
+	}
+
 	@Test(dependsOnMethods = "joinTest", description = "Verify KickEvent from some user kicking another user")
 	public void kickTest() throws IOException, IrcException {
 		Channel aChannel = dao.getChannel("#aChannel");
@@ -789,6 +1020,42 @@ public class InputParserTest {
 		assertEquals(event.getUser(), bot.getUserBot());
 	}
 
+	@Test(description = "Verify handlers added through BotFactory are used instead of the defaults")
+	public void customHandlerTest() throws IOException, IrcException {
+		final List<String> handled = new ArrayList<String>();
+		Configuration configuration = TestUtils.generateConfigurationBuilder()
+				.setBotFactory(new Configuration.BotFactory() {
+			@Override
+			public Map<String, InputParser.CommandHandler> createCommandHandlers(PircBotX bot) {
+				Map<String, InputParser.CommandHandler> handlers = super.createCommandHandlers(bot);
+				handlers.put("WALLOPS", new InputParser.CommandHandler() {
+					public void handleCommand(InputParser parser, String target, String sourceNick, String sourceLogin, String sourceHostname,
+							User source, Channel channel, String message, String line, List<String> parsedLine) {
+						handled.add(sourceNick + " " + target);
+					}
+				});
+				return handlers;
+			}
+
+			@Override
+			public Map<Integer, InputParser.ServerResponseHandler> createServerResponseHandlers(PircBotX bot) {
+				Map<Integer, InputParser.ServerResponseHandler> handlers = super.createServerResponseHandlers(bot);
+				handlers.put(RPL_TOPIC, new InputParser.ServerResponseHandler() {
+					public void handleServerResponse(InputParser parser, int code, String rawResponse, List<String> parsedResponse) {
+						handled.add(code + " " + parsedResponse.get(2));
+					}
+				});
+				return handlers;
+			}
+		})
+				.buildConfiguration();
+		InputParser customParser = new PircBotX(configuration).getInputParser();
+
+		customParser.handleLine(":AUser!~ALogin@some.host WALLOPS :Some message");
+		customParser.handleLine(":irc.someserver.net 332 PircBotXUser #aChannel :" + aString);
+		assertEquals(handled, ImmutableList.of("AUser Some message", "332 " + aString));
+	}
+
 	/**
 	 * After simulating a server response, call this to get a specific Event from
 	 * the Event set. Note that if the event does not exist an Assertion error will
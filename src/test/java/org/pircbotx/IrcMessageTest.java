@@ -0,0 +1,82 @@
+/**
+ * Copyright (C) 2010-2013 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of PircBotX.
+ *
+ * PircBotX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PircBotX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pircbotx;
+
+import java.util.List;
+import java.util.Locale;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+/**
+ *
+ * @author Leon Blakey <lord.quackstar at gmail.com>
+ */
+public class IrcMessageTest {
+	@DataProvider
+	public Object[][] lineDataProvider() {
+		return new Object[][]{
+			{":AUser!~ALogin@some.host PRIVMSG #aChannel :Hi there: how are you?"},
+			{":AUser!~ALogin@some.host PRIVMSG #aChannel :Hi there: how are you?    "},
+			{"PING sa3214323"},
+			{":irc.someserver.net 322 PircBotXUser #PircBotXChannel 99 :Some topic"},
+			{":irc.someserver.net 004 PircBotX sendak.freenode.net ircd-seven-1.1.3 DOQRSZaghilopswz CFILMPQbcefgijklmnopqrstvz bkloveqjfI"},
+			{":AUser MODE AUser :+i"},
+			{":AUser!~ALogin@some.host PRIVMSG #aChannel :"},
+			{"A  B"}
+		};
+	}
+
+	@Test(dataProvider = "lineDataProvider")
+	public void tokenizeParityTest(String line) {
+		List<String> tokens = Utils.tokenizeLine(line);
+		IrcMessage message = new IrcMessage().parse(line);
+
+		String prefix = tokens.get(0).startsWith(":") ? tokens.remove(0).substring(1) : "";
+		assertEquals(message.getPrefix().toString(), prefix);
+		assertEquals(message.getCommand().toString(), tokens.remove(0));
+		assertEquals(message.getParamCount(), tokens.size(), "Wrong parameter count: " + tokens);
+		for (int i = 0; i < tokens.size(); i++) {
+			assertEquals(message.getParam(i).toString(), tokens.get(i));
+			assertEquals(message.getParamString(i), tokens.get(i));
+		}
+		assertEquals(message.getParams(), tokens);
+	}
+
+	@Test
+	public void hostmaskTest() {
+		IrcMessage message = new IrcMessage().parse(":AUser!~ALogin@some.host privmsg #aChannel :Hi");
+		assertTrue(message.hasHostmask());
+		assertEquals(message.getNickString(), "AUser");
+		assertEquals(message.getLoginString(), "~ALogin");
+		assertEquals(message.getHostString(), "some.host");
+		assertEquals(message.getNick().toString(), "AUser");
+		assertTrue(message.isCommand("PRIVMSG"));
+		assertSame(message.getCommandString(Locale.US), "PRIVMSG", "Known command wasn't reused");
+		assertEquals(message.getNumeric(), -1);
+
+		//Reuse for a server response
+		message.parse(":irc.someserver.net 332 PircBotXUser #aChannel :Topic");
+		assertFalse(message.hasHostmask());
+		assertEquals(message.getNickString(), "irc.someserver.net");
+		assertEquals(message.getLoginString(), "");
+		assertEquals(message.getNumeric(), 332);
+		assertEquals(message.getParamCount(), 3);
+	}
+}
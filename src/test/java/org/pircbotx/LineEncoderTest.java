@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2010-2013 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of PircBotX.
+ *
+ * PircBotX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PircBotX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pircbotx;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import org.apache.commons.lang3.StringUtils;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+/**
+ *
+ * @author Leon Blakey <lord.quackstar at gmail.com>
+ */
+public class LineEncoderTest {
+	protected static final Charset UTF8 = Charset.forName("UTF-8");
+
+	@Test
+	public void writeToTest() throws Exception {
+		LineEncoder encoder = new LineEncoder(UTF8, 512, false);
+		assertTrue(encoder.isEmpty(), "New encoder not empty");
+		encoder.encode("PONG :1234");
+		encoder.encode("PRIVMSG #aChannel :h\u00e9llo");
+		assertFalse(encoder.isEmpty(), "Encoder empty after encoding");
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		encoder.writeTo(output);
+		assertEquals(output.toString("UTF-8"), "PONG :1234\r\nPRIVMSG #aChannel :h\u00e9llo\r\n");
+		assertTrue(encoder.isEmpty(), "Encoder not empty after writing");
+	}
+
+	@Test
+	public void truncateTest() throws Exception {
+		LineEncoder encoder = new LineEncoder(UTF8, 12, false);
+		encoder.encode("0123456789ABC");
+		//2 byte characters must not be cut in half
+		encoder.encode("12345678\u00e9\u00e9");
+		encoder.encode("1234567\ud83d\ude00");
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		encoder.writeTo(output);
+		assertEquals(output.toString("UTF-8"), "0123456789\r\n12345678\u00e9\r\n1234567\r\n");
+	}
+
+	@Test
+	public void buffersTest() throws Exception {
+		LineEncoder encoder = new LineEncoder(UTF8, 512, true);
+		String line = StringUtils.repeat('a', 500);
+		int lines = 50;
+		for (int i = 0; i < lines; i++)
+			encoder.encode(line);
+
+		//Lines span multiple pooled buffers
+		ByteBuffer[] buffers = encoder.getBuffers();
+		assertTrue(buffers.length > 1, "Lines not spread over buffers");
+		int length = 0;
+		for (ByteBuffer curBuffer : buffers) {
+			assertTrue(curBuffer.isDirect(), "Buffer not direct");
+			length += curBuffer.remaining();
+		}
+		assertEquals(length, lines * (line.length() + 2));
+		encoder.recycle();
+		assertTrue(encoder.isEmpty(), "Encoder not empty after recycling");
+
+		//Buffers are reused
+		encoder.encode(line);
+		ByteBuffer[] reusedBuffers = encoder.getBuffers();
+		assertEquals(reusedBuffers.length, 1);
+		assertSame(reusedBuffers[0], buffers[0]);
+	}
+}
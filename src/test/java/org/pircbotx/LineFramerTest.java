@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 2010-2013 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of PircBotX.
+ *
+ * PircBotX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PircBotX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pircbotx;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.Charset;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+/**
+ *
+ * @author Leon Blakey <lord.quackstar at gmail.com>
+ */
+public class LineFramerTest {
+	protected static final Charset UTF8 = Charset.forName("UTF-8");
+
+	@Test
+	public void readLineTest() throws Exception {
+		LineFramer framer = new LineFramer(UTF8, 512);
+		ByteArrayInputStream input = new ByteArrayInputStream("PING :1234\r\nLF only\n\r\nh\u00e9llo\r\nno ending".getBytes(UTF8));
+		assertEquals(framer.readLine(input), "PING :1234");
+		assertEquals(framer.readLine(input), "LF only");
+		assertEquals(framer.readLine(input), "");
+		assertEquals(framer.readLine(input), "h\u00e9llo");
+		assertEquals(framer.readLine(input), "no ending");
+		assertNull(framer.readLine(input), "Line returned after end of stream");
+	}
+
+	@Test
+	public void splitLineTest() {
+		LineFramer framer = new LineFramer(UTF8, 512);
+		framer.getBuffer().put(":ircd.test PI".getBytes(UTF8));
+		assertNull(framer.nextLine(), "Returned incomplete line");
+		framer.getBuffer().put("NG :1234\r\n:ircd".getBytes(UTF8));
+		assertEquals(framer.nextLine(), ":ircd.test PING :1234");
+		assertNull(framer.nextLine(), "Returned incomplete line");
+		framer.getBuffer().put(".test\r\n".getBytes(UTF8));
+		assertEquals(framer.nextLine(), ":ircd.test");
+	}
+
+	@Test
+	public void discardLongLineTest() throws Exception {
+		LineFramer framer = new LineFramer(UTF8, 16);
+		ByteArrayInputStream input = new ByteArrayInputStream("first\r\nthis line is far too long for the framer\r\nlast\r\n".getBytes(UTF8));
+		assertEquals(framer.readLine(input), "first");
+		assertEquals(framer.readLine(input), "last", "Long line wasn't discarded");
+		assertNull(framer.readLine(input));
+	}
+}
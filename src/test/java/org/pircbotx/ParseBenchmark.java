@@ -0,0 +1,140 @@
+/**
+ * Copyright (C) 2010-2013 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of PircBotX.
+ *
+ * PircBotX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PircBotX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pircbotx;
+
+import com.google.common.collect.ImmutableList;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Compare allocation and speed of {@link Utils#tokenizeLine(java.lang.String) }
+ * (as previously used by {@link InputParser#handleLine(java.lang.String) })
+ * against a reused {@link IrcMessage}, then measure the whole of
+ * {@link InputParser#handleLine(java.lang.String) } including the handlers. 
+ * Allocation is measured with the HotSpot thread allocation counter when 
+ * available. Run with <code>-Dlogback.configurationFile=logback-nop.xml</code>
+ * so logging every line isn't measured
+ * @author Leon Blakey <lord.quackstar at gmail.com>
+ */
+public class ParseBenchmark {
+	protected static final int ITERATIONS = 2000000;
+	protected static final String[] LINES = {
+		":umark1!~jmeter@bots.jmeter PRIVMSG #cbench1 :umark1",
+		":umark2!~jmeter@bots.jmeter MODE #cbench2 +o umark2",
+		":umark3!~jmeter@bots.jmeter JOIN :#cbench3",
+		":irc.someserver.net 332 PircBotXUser #PircBotXChannel :Some topic",
+		"PING :irc.someserver.net"
+	};
+	protected static int blackhole;
+
+	public static void main(String[] args) throws Exception {
+		InputParser inputParser = createInputParser();
+		//Warm up all
+		for (int i = 0; i < 3; i++) {
+			runTokenizer();
+			runMessage();
+			runParser(inputParser);
+		}
+		measure("Utils.tokenizeLine", null, true);
+		measure("IrcMessage", null, false);
+		measure("InputParser.handleLine", inputParser, false);
+		System.out.println("(ignore) " + blackhole);
+	}
+
+	/**
+	 * Bot with only the default listeners that pretends to be connected so 
+	 * PINGs are answered
+	 */
+	protected static InputParser createInputParser() {
+		PircBotX bot = new PircBotX(TestUtils.generateConfigurationBuilder().buildConfiguration()) {
+			@Override
+			public boolean isConnected() {
+				return true;
+			}
+
+			@Override
+			protected void sendRawLineToServer(String line) {
+				//Do nothing
+			}
+		};
+		bot.nick = "PircBotXUser";
+		bot.loggedIn = true;
+		return bot.getInputParser();
+	}
+
+	protected static void measure(String name, InputParser inputParser, boolean tokenizer) throws Exception {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		long startBytes = allocatedBytes(threadBean);
+		long startTime = System.nanoTime();
+		if (inputParser != null)
+			runParser(inputParser);
+		else if (tokenizer)
+			runTokenizer();
+		else
+			runMessage();
+		long time = System.nanoTime() - startTime;
+		long bytes = allocatedBytes(threadBean) - startBytes;
+		long lines = (long) ITERATIONS * LINES.length;
+		System.out.println(name + ": " + (time / lines) + " ns/line, "
+				+ (bytes < 0 ? "unknown" : String.valueOf(bytes / lines)) + " bytes/line");
+	}
+
+	protected static void runTokenizer() {
+		for (int i = 0; i < ITERATIONS; i++)
+			for (String curLine : LINES) {
+				//Same work handleLine used to do
+				List<String> parsedLine = Utils.tokenizeLine(curLine);
+				String senderInfo = "";
+				if (parsedLine.get(0).charAt(0) == ':')
+					senderInfo = parsedLine.remove(0);
+				String command = parsedLine.remove(0).toUpperCase(Locale.US);
+				int exclamation = senderInfo.indexOf('!');
+				int at = senderInfo.indexOf('@');
+				String nick = exclamation > 0 && at > exclamation ? senderInfo.substring(1, exclamation) : senderInfo;
+				if (Utils.tryParseInt(command, -1) != -1)
+					parsedLine = ImmutableList.copyOf(parsedLine);
+				blackhole += nick.length() + command.length() + parsedLine.size();
+			}
+	}
+
+	protected static void runMessage() {
+		IrcMessage message = new IrcMessage();
+		for (int i = 0; i < ITERATIONS; i++)
+			for (String curLine : LINES) {
+				message.parse(curLine);
+				String command = message.getCommandString(Locale.US);
+				CharSequence nick = message.getNick();
+				blackhole += nick.length() + command.length() + message.getParamCount() + message.getNumeric();
+			}
+	}
+
+	protected static void runParser(InputParser inputParser) throws Exception {
+		for (int i = 0; i < ITERATIONS; i++)
+			for (String curLine : LINES)
+				inputParser.handleLine(curLine);
+	}
+
+	protected static long allocatedBytes(ThreadMXBean threadBean) {
+		if (threadBean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+}
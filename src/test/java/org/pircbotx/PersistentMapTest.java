@@ -0,0 +1,95 @@
+/**
+ * Copyright (C) 2010-2013 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of PircBotX.
+ *
+ * PircBotX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PircBotX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pircbotx;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+/**
+ * Verify {@link PersistentMap} behaves like a HashMap and never changes old versions
+ * @author Leon Blakey <lord.quackstar at gmail.com>
+ */
+public class PersistentMapTest {
+	@Test(description = "Verify old versions are unchanged")
+	public void versionTest() {
+		PersistentMap<String, String> empty = PersistentMap.empty();
+		PersistentMap<String, String> first = empty.plus("aKey", "aValue");
+		PersistentMap<String, String> second = first.plus("aKey", "otherValue").plus("otherKey", "aValue");
+		PersistentMap<String, String> third = second.minus("aKey");
+
+		assertTrue(empty.isEmpty(), "Empty map changed");
+		assertEquals(first.size(), 1);
+		assertEquals(first.get("aKey"), "aValue");
+		assertNull(first.get("otherKey"));
+		assertEquals(second.size(), 2);
+		assertEquals(second.get("aKey"), "otherValue");
+		assertEquals(third.size(), 1);
+		assertFalse(third.containsKey("aKey"), "Key not removed");
+		assertSame(third.minus("missingKey"), third, "Removing missing key created a new map");
+	}
+
+	@Test(description = "Verify random changes match a HashMap, including hash collisions")
+	public void randomTest() {
+		Random random = new Random(1);
+		PersistentMap<CollidingKey, Integer> map = PersistentMap.empty();
+		Map<CollidingKey, Integer> expected = new HashMap<CollidingKey, Integer>();
+		for (int i = 0; i < 10000; i++) {
+			CollidingKey key = new CollidingKey(random.nextInt(500));
+			if (random.nextInt(3) == 0) {
+				map = map.minus(key);
+				expected.remove(key);
+			} else {
+				map = map.plus(key, i);
+				expected.put(key, i);
+			}
+		}
+
+		assertEquals(map.size(), expected.size());
+		for (Map.Entry<CollidingKey, Integer> curEntry : expected.entrySet())
+			assertEquals(map.get(curEntry.getKey()), curEntry.getValue(), "Wrong value for " + curEntry.getKey().id);
+		Map<CollidingKey, Integer> actual = new HashMap<CollidingKey, Integer>();
+		for (Map.Entry<CollidingKey, Integer> curEntry : map)
+			actual.put(curEntry.getKey(), curEntry.getValue());
+		assertEquals(actual, expected);
+	}
+
+	/**
+	 * Key with only a few distinct hash codes that differ in the upper bits.
+	 */
+	protected static class CollidingKey {
+		protected final int id;
+
+		public CollidingKey(int id) {
+			this.id = id;
+		}
+
+		@Override
+		public int hashCode() {
+			return (id % 7) << 27;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof CollidingKey && ((CollidingKey) obj).id == id;
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright (C) 2010-2013 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of PircBotX.
+ *
+ * PircBotX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PircBotX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pircbotx;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.pircbotx.hooks.Event;
+import org.pircbotx.hooks.Listener;
+import org.pircbotx.hooks.events.ConnectEvent;
+import org.pircbotx.hooks.events.DisconnectEvent;
+import org.pircbotx.hooks.events.MessageEvent;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+/**
+ * Connect a bot through a {@link SelectorEngine} to a local server socket.
+ * @author Leon Blakey <lord.quackstar at gmail.com>
+ */
+@Test(singleThreaded = true)
+public class SelectorEngineTest {
+	protected SelectorEngine engine;
+	protected ServerSocket serverSocket;
+	protected ExecutorService connectPool;
+	protected List<Event> events;
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		engine = new SelectorEngine(1);
+		serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		connectPool = Executors.newSingleThreadExecutor();
+		events = Collections.synchronizedList(new ArrayList<Event>());
+	}
+
+	@AfterMethod
+	public void cleanUp() throws Exception {
+		connectPool.shutdown();
+		serverSocket.close();
+		engine.close();
+	}
+
+	@Test(description = "Verify lines are read and written through the engine")
+	public void connectTest() throws Exception {
+		PircBotX bot = new PircBotX(TestUtils.generateConfigurationBuilder()
+				.setCapEnabled(false)
+				.setServer("127.0.0.1", serverSocket.getLocalPort())
+				.addListener(new Listener() {
+			public void onEvent(Event event) throws Exception {
+				events.add(event);
+			}
+		})
+				.buildConfiguration());
+		ListenableFuture<Void> botFuture = engine.startBot(bot, connectPool);
+
+		Socket serverConnection = serverSocket.accept();
+		BufferedReader serverIn = new BufferedReader(new InputStreamReader(serverConnection.getInputStream(), "UTF-8"));
+		OutputStream serverOut = serverConnection.getOutputStream();
+		assertEquals(serverIn.readLine(), "NICK PircBotXBot");
+		assertTrue(serverIn.readLine().startsWith("USER "), "Unexpected login line");
+
+		//Lines split across writes must still be framed correctly
+		serverOut.write(":ircd.test 004 PircBotXBot ircd.test jmeter-ircd-basic-0.1 ov b\r\n:ircd.test PI".getBytes("UTF-8"));
+		serverOut.flush();
+		Thread.sleep(100);
+		serverOut.write("NG :1234\r\n".getBytes("UTF-8"));
+		serverOut.flush();
+		assertEquals(serverIn.readLine(), "PONG 1234");
+
+		serverOut.write(":aUser!~aLogin@some.host PRIVMSG #aChannel :Hello there\r\n".getBytes("UTF-8"));
+		serverOut.flush();
+		serverConnection.close();
+
+		//Server closed the connection, bot should be finished
+		botFuture.get(10, TimeUnit.SECONDS);
+		assertFalse(bot.isConnected(), "Bot still connected after server closed connection");
+
+		List<Class> eventClasses = new ArrayList<Class>();
+		synchronized (events) {
+			for (Event curEvent : events)
+				eventClasses.add(curEvent.getClass());
+		}
+		assertTrue(eventClasses.contains(ConnectEvent.class), "No ConnectEvent: " + eventClasses);
+		assertTrue(eventClasses.contains(MessageEvent.class), "No MessageEvent: " + eventClasses);
+		assertEquals(eventClasses.get(eventClasses.size() - 1), DisconnectEvent.class, "DisconnectEvent not last: " + eventClasses);
+	}
+
+	@Test(description = "Verify a bot waiting for its listeners to shutdown doesn't stall the other bots of the selector thread")
+	public void shutdownDoesntBlockTest() throws Exception {
+		final CountDownLatch disconnecting = new CountDownLatch(1);
+		final CountDownLatch releaseListener = new CountDownLatch(1);
+		PircBotX slowBot = new PircBotX(TestUtils.generateConfigurationBuilder()
+				.setCapEnabled(false)
+				.setServer("127.0.0.1", serverSocket.getLocalPort())
+				.addListener(new Listener() {
+			public void onEvent(Event event) throws Exception {
+				if (event instanceof DisconnectEvent) {
+					disconnecting.countDown();
+					releaseListener.await();
+				}
+			}
+		})
+				.buildConfiguration());
+		ListenableFuture<Void> slowBotFuture = engine.startBot(slowBot, connectPool);
+		Socket slowConnection = serverSocket.accept();
+
+		PircBotX otherBot = new PircBotX(TestUtils.generateConfigurationBuilder()
+				.setCapEnabled(false)
+				.setServer("127.0.0.1", serverSocket.getLocalPort())
+				.buildConfiguration());
+		engine.startBot(otherBot, connectPool);
+		Socket otherConnection = serverSocket.accept();
+		BufferedReader otherIn = new BufferedReader(new InputStreamReader(otherConnection.getInputStream(), "UTF-8"));
+		OutputStream otherOut = otherConnection.getOutputStream();
+		assertEquals(otherIn.readLine(), "NICK PircBotXBot");
+		assertTrue(otherIn.readLine().startsWith("USER "), "Unexpected login line");
+
+		//Server drops the slow bot, whose DisconnectEvent listener doesn't finish
+		slowConnection.close();
+		assertTrue(disconnecting.await(10, TimeUnit.SECONDS), "Slow bot never disconnected");
+
+		//The only selector thread must still answer the other bot's server
+		otherOut.write("PING :1234\r\n".getBytes("UTF-8"));
+		otherOut.flush();
+		assertEquals(otherIn.readLine(), "PONG 1234");
+
+		releaseListener.countDown();
+		slowBotFuture.get(10, TimeUnit.SECONDS);
+		otherConnection.close();
+	}
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 2010-2013 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of PircBotX.
+ *
+ * PircBotX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PircBotX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pircbotx;
+
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+/**
+ * Verify {@link StringPool} and its use when parsing users
+ * @author Leon Blakey <lord.quackstar at gmail.com>
+ */
+public class StringPoolTest {
+	@Test(description = "Verify equal strings are shared and hits are counted")
+	public void internTest() {
+		StringPool pool = new StringPool();
+		String first = new String("~aLogin");
+		String second = new String("~aLogin");
+		assertSame(pool.intern(first), first);
+		assertSame(pool.intern(second), first);
+		assertNull(pool.intern(null));
+		assertEquals(pool.getRequestCount(), 2);
+		assertEquals(pool.getHitCount(), 1);
+		assertEquals(pool.getHitRate(), 0.5, 0.0001);
+
+		pool.resetStats();
+		assertEquals(pool.getRequestCount(), 0);
+		assertEquals(pool.getHitRate(), 0.0, 0.0001);
+	}
+
+	@Test(description = "Verify user fields from WHO replies are shared between bots with the same pool")
+	public void sharedPoolTest() throws Exception {
+		StringPool pool = new StringPool();
+		PircBotX bot1 = new PircBotX(TestUtils.generateConfigurationBuilder().setStringPool(pool).buildConfiguration());
+		PircBotX bot2 = new PircBotX(TestUtils.generateConfigurationBuilder().setStringPool(pool).buildConfiguration());
+		bot1.getInputParser().handleLine(":irc.someserver.net 352 PircBotXUser #aChannel ~aLogin some.host irc.someserver.net AUser H :2 Some Name");
+		bot2.getInputParser().handleLine(":irc.someserver.net 352 PircBotXUser #aChannel ~aLogin some.host irc.someserver.net AUser H :2 Some Name");
+		bot1.getInputParser().handleLine(":irc.someserver.net 315 PircBotXUser #aChannel :End of /WHO list.");
+		bot2.getInputParser().handleLine(":irc.someserver.net 315 PircBotXUser #aChannel :End of /WHO list.");
+
+		User user1 = bot1.getUserChannelDao().getUser("AUser");
+		User user2 = bot2.getUserChannelDao().getUser("AUser");
+		assertEquals(user1.getLogin(), "~aLogin");
+		assertSame(user2.getLogin(), user1.getLogin());
+		assertSame(user2.getHostmask(), user1.getHostmask());
+		assertSame(user2.getServer(), user1.getServer());
+		assertSame(user2.getRealName(), user1.getRealName());
+		assertEquals(pool.getHitCount(), 4);
+	}
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2010-2013 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of PircBotX.
+ *
+ * PircBotX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PircBotX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pircbotx;
+
+import com.google.common.collect.ImmutableList;
+import org.pircbotx.snapshot.ChannelSnapshot;
+import org.pircbotx.snapshot.UserChannelDaoSnapshot;
+import org.pircbotx.snapshot.UserSnapshot;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+/**
+ * Verify snapshots of {@link UserChannelDao} are unaffected by later changes
+ * @author Leon Blakey <lord.quackstar at gmail.com>
+ */
+@Test(singleThreaded = true)
+public class UserChannelDaoSnapshotTest {
+	protected UserChannelDao<User, Channel> dao;
+	protected User aUser;
+	protected Channel aChannel;
+
+	@BeforeMethod
+	public void setUp() {
+		PircBotX bot = new PircBotX(TestUtils.generateConfigurationBuilder().buildConfiguration());
+		dao = bot.getUserChannelDao();
+		aUser = dao.getUser("aUser");
+		aUser.setLogin("aLogin");
+		aChannel = dao.getChannel("#aChannel");
+		dao.addUserToChannel(aUser, aChannel);
+		dao.addUserToLevel(UserLevel.OP, aUser, aChannel);
+	}
+
+	@Test(description = "Verify snapshot keeps the state from when it was created")
+	public void snapshotUnchangedTest() {
+		UserChannelDaoSnapshot snapshot = dao.createSnapshot();
+		aUser.setLogin("otherLogin");
+		dao.renameUser(aUser, "otherNick");
+		dao.removeUserFromChannel(aUser, aChannel);
+		assertFalse(dao.userExists("otherNick"), "User not removed from live dao");
+
+		UserSnapshot userSnapshot = snapshot.getUser("aUser");
+		ChannelSnapshot channelSnapshot = snapshot.getChannel("#aChannel");
+		assertEquals(userSnapshot.getLogin(), "aLogin");
+		assertEquals(userSnapshot.getGeneratedFrom(), aUser);
+		assertFalse(snapshot.userExists("otherNick"), "Snapshot contains new nick");
+		assertEquals(snapshot.getUsers(channelSnapshot).size(), 1);
+		assertTrue(snapshot.getUsers(channelSnapshot).contains(userSnapshot), "Snapshot channel doesn't contain user");
+		assertTrue(snapshot.getChannels(userSnapshot).contains(channelSnapshot), "Snapshot user doesn't contain channel");
+		assertTrue(channelSnapshot.isOp(userSnapshot), "Snapshot user isn't op");
+		assertSame(snapshot.getUsers(channelSnapshot, UserLevel.OP).first(), userSnapshot, "Same user has multiple snapshots");
+	}
+
+	@Test(description = "Verify user changes show up in the next snapshot")
+	public void snapshotUpdatedTest() {
+		UserChannelDaoSnapshot firstSnapshot = dao.createSnapshot();
+		aUser.setLogin("otherLogin");
+		dao.renameUser(aUser, "otherNick");
+		UserChannelDaoSnapshot secondSnapshot = dao.createSnapshot();
+
+		assertEquals(firstSnapshot.getUser("aUser").getLogin(), "aLogin");
+		assertFalse(secondSnapshot.userExists("aUser"), "Second snapshot contains old nick");
+		UserSnapshot userSnapshot = secondSnapshot.getUser("otherNick");
+		assertEquals(userSnapshot.getLogin(), "otherLogin");
+		assertEquals(userSnapshot.getNick(), "otherNick");
+		assertTrue(secondSnapshot.getUsers(secondSnapshot.getChannel("#aChannel")).contains(userSnapshot), "Renamed user not in channel");
+	}
+
+	@Test(description = "Verify only the given channels are copied when creating the snapshot")
+	public void scopedSnapshotTest() {
+		Channel otherChannel = dao.getChannel("#otherChannel");
+		dao.addUserToChannel(aUser, otherChannel);
+		aChannel.setTopic("aTopic");
+		otherChannel.setTopic("aTopic");
+		UserChannelDaoSnapshot snapshot = dao.createSnapshot(ImmutableList.of(aChannel));
+		aChannel.setTopic("otherTopic");
+		otherChannel.setTopic("otherTopic");
+		dao.removeUserFromChannel(aUser, aChannel);
+
+		UserSnapshot userSnapshot = snapshot.getUser("aUser");
+		assertEquals(snapshot.getChannels(userSnapshot).size(), 2);
+		assertEquals(snapshot.getChannel("#aChannel").getTopic(), "aTopic");
+		//Copied on first use
+		ChannelSnapshot otherChannelSnapshot = snapshot.getChannel("#otherChannel");
+		assertEquals(otherChannelSnapshot.getTopic(), "otherTopic");
+		assertSame(snapshot.getChannel("#otherChannel"), otherChannelSnapshot, "Channel copied twice");
+	}
+
+	@Test(description = "Verify channels copied on first use have newer fields but frozen users")
+	public void scopedSnapshotMixedStateTest() {
+		Channel otherChannel = dao.getChannel("#otherChannel");
+		dao.addUserToChannel(aUser, otherChannel);
+		otherChannel.setTopic("aTopic");
+		UserChannelDaoSnapshot snapshot = dao.createSnapshot(ImmutableList.of(aChannel));
+		otherChannel.setTopic("otherTopic");
+		dao.removeUserFromChannel(aUser, otherChannel);
+		assertFalse(dao.getUsers(otherChannel).contains(aUser), "User not removed from live channel");
+
+		ChannelSnapshot otherChannelSnapshot = snapshot.getChannel("#otherChannel");
+		assertEquals(otherChannelSnapshot.getTopic(), "otherTopic", "Channel fields should be copied on first use");
+		assertTrue(snapshot.getUsers(otherChannelSnapshot).contains(snapshot.getUser("aUser")),
+				"Channel users should be from when the snapshot was created");
+	}
+
+	@Test(description = "Verify snapshots cannot be modified", expectedExceptions = RuntimeException.class)
+	public void snapshotReadOnlyTest() {
+		UserChannelDao<UserSnapshot, ChannelSnapshot> snapshot = dao.createSnapshot();
+		snapshot.removeUser(snapshot.getUser("aUser"));
+	}
+}
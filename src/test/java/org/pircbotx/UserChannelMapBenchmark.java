@@ -0,0 +1,118 @@
+/**
+ * Copyright (C) 2010-2013 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of PircBotX.
+ *
+ * PircBotX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PircBotX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pircbotx;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import java.util.EnumMap;
+import java.util.Random;
+
+/**
+ * Compare the retained heap of {@link UserChannelMap} against the layout it 
+ * replaced: a pair of {@link HashMultimap}s for membership and another pair 
+ * for each {@link UserLevel}. Both layouts store every membership twice. Run 
+ * with <code>-XX:+UseSerialGC</code> so the used heap settles after each GC
+ * @author Leon Blakey <lord.quackstar at gmail.com>
+ */
+public class UserChannelMapBenchmark {
+	protected static final int USERS = 20000;
+	protected static final int CHANNELS = 200;
+	protected static final int USERS_PER_CHANNEL = 500;
+
+	public static void main(String[] args) throws Exception {
+		UserChannelDao<User, Channel> dao = new PircBotX(TestUtils.generateConfigurationBuilder().buildConfiguration()).getUserChannelDao();
+		User[] users = new User[USERS];
+		for (int i = 0; i < USERS; i++)
+			users[i] = dao.getUser("user" + i);
+		Channel[] channels = new Channel[CHANNELS];
+		for (int i = 0; i < CHANNELS; i++)
+			channels[i] = dao.getChannel("#channel" + i);
+		//Same random memberships for both layouts
+		int[][] members = new int[CHANNELS][USERS_PER_CHANNEL];
+		Random random = new Random(42);
+		for (int[] curMembers : members)
+			for (int i = 0; i < curMembers.length; i++)
+				curMembers[i] = random.nextInt(USERS);
+
+		long start = usedMemory();
+		Object multimaps = fillMultimaps(users, channels, members);
+		long multimapBytes = usedMemory() - start;
+		start = usedMemory();
+		UserChannelMap<User, Channel> map = fillMap(users, channels, members);
+		long mapBytes = usedMemory() - start;
+
+		int memberships = 0;
+		for (Channel curChannel : channels)
+			memberships += map.getUserCount(curChannel);
+		System.out.println("Memberships: " + memberships);
+		System.out.println("HashMultimap pairs: " + (multimapBytes / memberships) + " bytes/membership");
+		System.out.println("UserChannelMap: " + (mapBytes / memberships) + " bytes/membership");
+		System.out.println("(ignore) " + multimaps.hashCode() + map.hashCode());
+	}
+
+	/**
+	 * Every 20th member is an op and every 10th is voiced
+	 */
+	protected static UserChannelMap<User, Channel> fillMap(User[] users, Channel[] channels, int[][] members) {
+		UserChannelMap<User, Channel> map = new UserChannelMap<User, Channel>();
+		for (int i = 0; i < CHANNELS; i++)
+			for (int j = 0; j < USERS_PER_CHANNEL; j++) {
+				User user = users[members[i][j]];
+				map.addUserToChannel(user, channels[i]);
+				if (j % 20 == 0)
+					map.addUserToLevel(UserLevel.OP, user, channels[i]);
+				if (j % 10 == 1)
+					map.addUserToLevel(UserLevel.VOICE, user, channels[i]);
+			}
+		return map;
+	}
+
+	protected static Object fillMultimaps(User[] users, Channel[] channels, int[][] members) {
+		EnumMap<UserLevel, Multimap<User, Channel>> userToChannelLevels = Maps.newEnumMap(UserLevel.class);
+		EnumMap<UserLevel, Multimap<Channel, User>> channelToUserLevels = Maps.newEnumMap(UserLevel.class);
+		for (UserLevel curLevel : UserLevel.values()) {
+			userToChannelLevels.put(curLevel, HashMultimap.<User, Channel>create());
+			channelToUserLevels.put(curLevel, HashMultimap.<Channel, User>create());
+		}
+		Multimap<User, Channel> userToChannelMap = HashMultimap.create();
+		Multimap<Channel, User> channelToUserMap = HashMultimap.create();
+		for (int i = 0; i < CHANNELS; i++)
+			for (int j = 0; j < USERS_PER_CHANNEL; j++) {
+				User user = users[members[i][j]];
+				userToChannelMap.put(user, channels[i]);
+				channelToUserMap.put(channels[i], user);
+				UserLevel level = (j % 20 == 0) ? UserLevel.OP : (j % 10 == 1) ? UserLevel.VOICE : null;
+				if (level != null) {
+					userToChannelLevels.get(level).put(user, channels[i]);
+					channelToUserLevels.get(level).put(channels[i], user);
+				}
+			}
+		return new Object[]{userToChannelMap, channelToUserMap, userToChannelLevels, channelToUserLevels};
+	}
+
+	protected static long usedMemory() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
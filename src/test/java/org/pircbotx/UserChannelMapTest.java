@@ -0,0 +1,113 @@
+/**
+ * Copyright (C) 2010-2013 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of PircBotX.
+ *
+ * PircBotX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PircBotX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pircbotx;
+
+import com.google.common.collect.ImmutableSortedSet;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+/**
+ * Verify membership and levels stored by {@link UserChannelMap}
+ * @author Leon Blakey <lord.quackstar at gmail.com>
+ */
+@Test(singleThreaded = true)
+public class UserChannelMapTest {
+	protected UserChannelMap<User, Channel> map;
+	protected User aUser;
+	protected User otherUser;
+	protected Channel aChannel;
+
+	@BeforeMethod
+	public void setUp() {
+		UserChannelDao<User, Channel> dao = new PircBotX(TestUtils.generateConfigurationBuilder().buildConfiguration()).getUserChannelDao();
+		aUser = dao.getUser("aUser");
+		otherUser = dao.getUser("otherUser");
+		aChannel = dao.getChannel("#aChannel");
+		map = new UserChannelMap<User, Channel>();
+	}
+
+	@Test(description = "Verify levels are kept separate from membership")
+	public void levelTest() {
+		//WHO replies give levels before the user is added
+		map.addUserToLevel(UserLevel.OP, aUser, aChannel);
+		assertFalse(map.containsEntry(aUser, aChannel), "User in channel after only adding level");
+		assertFalse(map.containsUser(aUser), "User in channel after only adding level");
+		map.addUserToChannel(aUser, aChannel);
+		map.addUserToLevel(UserLevel.VOICE, aUser, aChannel);
+		map.addUserToChannel(otherUser, aChannel);
+
+		assertEquals(map.getLevels(aUser, aChannel), ImmutableSortedSet.of(UserLevel.OP, UserLevel.VOICE));
+		assertSame(map.getLevels(aUser, aChannel), map.getLevels(aUser, aChannel), "Level sets not shared");
+		assertTrue(map.containsLevel(UserLevel.OP, aUser, aChannel), "User isn't op");
+		assertFalse(map.containsLevel(UserLevel.OWNER, aUser, aChannel), "User is owner");
+		assertEquals(map.getUsers(aChannel), ImmutableSortedSet.of(aUser, otherUser));
+		assertEquals(map.getUsers(aChannel, UserLevel.OP), ImmutableSortedSet.of(aUser));
+		assertEquals(map.getNormalUsers(aChannel), ImmutableSortedSet.of(otherUser));
+		assertEquals(map.getChannels(aUser, UserLevel.VOICE), ImmutableSortedSet.of(aChannel));
+		assertTrue(map.getNormalChannels(aUser).isEmpty(), "User has normal channels");
+
+		map.removeUserFromLevel(UserLevel.OP, aUser, aChannel);
+		assertEquals(map.getLevels(aUser, aChannel), ImmutableSortedSet.of(UserLevel.VOICE));
+		map.removeUserFromChannel(aUser, aChannel);
+		assertTrue(map.getLevels(aUser, aChannel).isEmpty(), "Levels not removed with user");
+		assertFalse(map.containsUser(aUser), "User not removed");
+	}
+
+	@Test(description = "Verify counts are kept up to date")
+	public void countTest() {
+		map.addUserToLevel(UserLevel.OP, aUser, aChannel);
+		assertEquals(map.getUserCount(aChannel), 0);
+		assertEquals(map.getLevelCount(aChannel, UserLevel.OP), 1);
+		map.addUserToChannel(aUser, aChannel);
+		map.addUserToChannel(otherUser, aChannel);
+		assertEquals(map.getUserCount(aChannel), 2);
+		map.removeUserFromChannel(aUser, aChannel);
+		assertEquals(map.getUserCount(aChannel), 1);
+		assertEquals(map.getLevelCount(aChannel, UserLevel.OP), 0);
+		map.removeUser(otherUser);
+		assertEquals(map.getUserCount(aChannel), 0);
+	}
+
+	@Test(description = "Verify sorted sets are cached until the channel changes")
+	public void viewCacheTest() {
+		map.addUserToChannel(aUser, aChannel);
+		ImmutableSortedSet<User> users = map.getUsers(aChannel);
+		assertSame(map.getUsers(aChannel), users, "Users not cached");
+		map.addUserToChannel(otherUser, aChannel);
+		assertEquals(map.getUsers(aChannel), ImmutableSortedSet.of(aUser, otherUser));
+
+		int iterated = 0;
+		for (User curUser : map.iterateUsers(aChannel))
+			iterated++;
+		assertEquals(iterated, 2);
+	}
+
+	@Test(description = "Verify copies are not affected by later changes")
+	public void copyTest() {
+		map.addUserToChannel(aUser, aChannel);
+		UserChannelMap<User, Channel> copy = new UserChannelMap<User, Channel>(map);
+		map.addUserToLevel(UserLevel.OP, aUser, aChannel);
+		map.removeChannel(aChannel);
+
+		assertTrue(copy.containsEntry(aUser, aChannel), "Copy changed");
+		assertTrue(copy.getLevels(aUser, aChannel).isEmpty(), "Copy changed");
+		assertFalse(map.containsEntry(aUser, aChannel), "Channel not removed");
+	}
+}
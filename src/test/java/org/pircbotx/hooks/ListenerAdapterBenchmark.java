@@ -0,0 +1,229 @@
+/**
+ * Copyright (C) 2010-2013 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of PircBotX.
+ *
+ * PircBotX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PircBotX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pircbotx.hooks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import org.pircbotx.Channel;
+import org.pircbotx.PircBotX;
+import org.pircbotx.TestUtils;
+import org.pircbotx.User;
+import org.pircbotx.hooks.events.*;
+import org.pircbotx.hooks.types.*;
+
+/**
+ * Compare dispatching events through {@link ListenerAdapter}'s dispatch table
+ * against the instanceof chain it previously used. Both listeners only override
+ * onMessage, the usual case. Allocation is measured with the HotSpot thread
+ * allocation counter when available
+ * @author Leon Blakey <lord.quackstar at gmail.com>
+ */
+public class ListenerAdapterBenchmark {
+	protected static final int ITERATIONS = 5000000;
+	protected static int blackhole;
+
+	public static void main(String[] args) throws Exception {
+		PircBotX bot = new PircBotX(TestUtils.generateConfigurationBuilder().buildConfiguration());
+		Channel channel = bot.getUserChannelDao().getChannel("#aChannel");
+		User user = bot.getUserChannelDao().getUser("AUser");
+		Event[] events = {
+			new MessageEvent<PircBotX>(bot, channel, user, "Some message"),
+			new JoinEvent<PircBotX>(bot, channel, user),
+			new ServerPingEvent<PircBotX>(bot, "irc.someserver.net"),
+			new ConnectEvent<PircBotX>(bot)
+		};
+		ListenerAdapter<PircBotX> tableListener = new ListenerAdapter<PircBotX>() {
+			@Override
+			public void onMessage(MessageEvent<PircBotX> event) throws Exception {
+				blackhole += event.getMessage().length();
+			}
+		};
+		ListenerAdapter<PircBotX> instanceofListener = new InstanceofListenerAdapter<PircBotX>() {
+			@Override
+			public void onMessage(MessageEvent<PircBotX> event) throws Exception {
+				blackhole += event.getMessage().length();
+			}
+		};
+
+		//Warm up both
+		for (int i = 0; i < 3; i++) {
+			run(instanceofListener, events);
+			run(tableListener, events);
+		}
+		measure("instanceof chain", instanceofListener, events);
+		measure("dispatch table", tableListener, events);
+		System.out.println("(ignore) " + blackhole);
+	}
+
+	protected static void measure(String name, Listener<PircBotX> listener, Event[] events) throws Exception {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		long startBytes = allocatedBytes(threadBean);
+		long startTime = System.nanoTime();
+		run(listener, events);
+		long time = System.nanoTime() - startTime;
+		long bytes = allocatedBytes(threadBean) - startBytes;
+		long dispatched = (long) ITERATIONS * events.length;
+		System.out.println(name + ": " + ((double) time / dispatched) + " ns/event, "
+				+ (bytes < 0 ? "unknown" : String.valueOf(bytes / dispatched)) + " bytes/event");
+	}
+
+	@SuppressWarnings("unchecked")
+	protected static void run(Listener<PircBotX> listener, Event[] events) throws Exception {
+		for (int i = 0; i < ITERATIONS; i++)
+			for (Event curEvent : events)
+				listener.onEvent(curEvent);
+	}
+
+	protected static long allocatedBytes(ThreadMXBean threadBean) {
+		if (threadBean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+
+	/**
+	 * ListenerAdapter's previous onEvent, checking every event type in order
+	 */
+	protected static abstract class InstanceofListenerAdapter<T extends PircBotX> extends ListenerAdapter<T> {
+		@Override
+		public void onEvent(Event<T> event) throws Exception {
+			if (event instanceof ActionEvent)
+				onAction((ActionEvent<T>) event);
+			else if (event instanceof ChannelInfoEvent)
+				onChannelInfo((ChannelInfoEvent<T>) event);
+			else if (event instanceof ConnectEvent)
+				onConnect((ConnectEvent<T>) event);
+			else if (event instanceof DisconnectEvent)
+				onDisconnect((DisconnectEvent<T>) event);
+			else if (event instanceof FingerEvent)
+				onFinger((FingerEvent<T>) event);
+			else if (event instanceof HalfOpEvent)
+				onHalfOp((HalfOpEvent<T>) event);
+			else if (event instanceof IncomingChatRequestEvent)
+				onIncomingChatRequest((IncomingChatRequestEvent<T>) event);
+			else if (event instanceof IncomingFileTransferEvent)
+				onIncomingFileTransfer((IncomingFileTransferEvent<T>) event);
+			else if (event instanceof InviteEvent)
+				onInvite((InviteEvent<T>) event);
+			else if (event instanceof JoinEvent)
+				onJoin((JoinEvent<T>) event);
+			else if (event instanceof KickEvent)
+				onKick((KickEvent<T>) event);
+			else if (event instanceof MessageEvent)
+				onMessage((MessageEvent<T>) event);
+			else if (event instanceof ModeEvent)
+				onMode((ModeEvent<T>) event);
+			else if (event instanceof MotdEvent)
+				onMotd((MotdEvent<T>) event);
+			else if (event instanceof NickChangeEvent)
+				onNickChange((NickChangeEvent<T>) event);
+			else if (event instanceof NoticeEvent)
+				onNotice((NoticeEvent<T>) event);
+			else if (event instanceof OpEvent)
+				onOp((OpEvent<T>) event);
+			else if (event instanceof OwnerEvent)
+				onOwner((OwnerEvent<T>) event);
+			else if (event instanceof PartEvent)
+				onPart((PartEvent<T>) event);
+			else if (event instanceof PingEvent)
+				onPing((PingEvent<T>) event);
+			else if (event instanceof PrivateMessageEvent)
+				onPrivateMessage((PrivateMessageEvent<T>) event);
+			else if (event instanceof QuitEvent)
+				onQuit((QuitEvent<T>) event);
+			else if (event instanceof RemoveChannelBanEvent)
+				onRemoveChannelBan((RemoveChannelBanEvent<T>) event);
+			else if (event instanceof RemoveChannelKeyEvent)
+				onRemoveChannelKey((RemoveChannelKeyEvent<T>) event);
+			else if (event instanceof RemoveChannelLimitEvent)
+				onRemoveChannelLimit((RemoveChannelLimitEvent<T>) event);
+			else if (event instanceof RemoveInviteOnlyEvent)
+				onRemoveInviteOnly((RemoveInviteOnlyEvent<T>) event);
+			else if (event instanceof RemoveModeratedEvent)
+				onRemoveModerated((RemoveModeratedEvent<T>) event);
+			else if (event instanceof RemoveNoExternalMessagesEvent)
+				onRemoveNoExternalMessages((RemoveNoExternalMessagesEvent<T>) event);
+			else if (event instanceof RemovePrivateEvent)
+				onRemovePrivate((RemovePrivateEvent<T>) event);
+			else if (event instanceof RemoveSecretEvent)
+				onRemoveSecret((RemoveSecretEvent<T>) event);
+			else if (event instanceof RemoveTopicProtectionEvent)
+				onRemoveTopicProtection((RemoveTopicProtectionEvent<T>) event);
+			else if (event instanceof ServerPingEvent)
+				onServerPing((ServerPingEvent<T>) event);
+			else if (event instanceof ServerResponseEvent)
+				onServerResponse((ServerResponseEvent<T>) event);
+			else if (event instanceof SetChannelBanEvent)
+				onSetChannelBan((SetChannelBanEvent<T>) event);
+			else if (event instanceof SetChannelKeyEvent)
+				onSetChannelKey((SetChannelKeyEvent<T>) event);
+			else if (event instanceof SetChannelLimitEvent)
+				onSetChannelLimit((SetChannelLimitEvent<T>) event);
+			else if (event instanceof SetInviteOnlyEvent)
+				onSetInviteOnly((SetInviteOnlyEvent<T>) event);
+			else if (event instanceof SetModeratedEvent)
+				onSetModerated((SetModeratedEvent<T>) event);
+			else if (event instanceof SetNoExternalMessagesEvent)
+				onSetNoExternalMessages((SetNoExternalMessagesEvent<T>) event);
+			else if (event instanceof SetPrivateEvent)
+				onSetPrivate((SetPrivateEvent<T>) event);
+			else if (event instanceof SetSecretEvent)
+				onSetSecret((SetSecretEvent<T>) event);
+			else if (event instanceof SetTopicProtectionEvent)
+				onSetTopicProtection((SetTopicProtectionEvent<T>) event);
+			else if (event instanceof SocketConnectEvent)
+				onSocketConnect((SocketConnectEvent<T>) event);
+			else if (event instanceof SuperOpEvent)
+				onSuperOp((SuperOpEvent<T>) event);
+			else if (event instanceof TimeEvent)
+				onTime((TimeEvent<T>) event);
+			else if (event instanceof TopicEvent)
+				onTopic((TopicEvent<T>) event);
+			else if (event instanceof UnknownEvent)
+				onUnknown((UnknownEvent<T>) event);
+			else if (event instanceof UserListEvent)
+				onUserList((UserListEvent<T>) event);
+			else if (event instanceof UserModeEvent)
+				onUserMode((UserModeEvent<T>) event);
+			else if (event instanceof VersionEvent)
+				onVersion((VersionEvent<T>) event);
+			else if (event instanceof VoiceEvent)
+				onVoice((VoiceEvent<T>) event);
+			else if (event instanceof WhoisEvent)
+				onWhois((WhoisEvent<T>) event);
+
+			//Generic methods
+			if (event instanceof GenericCTCPEvent)
+				onGenericCTCP((GenericCTCPEvent<T>) event);
+			if (event instanceof GenericUserModeEvent)
+				onGenericUserMode((GenericUserModeEvent<T>) event);
+			if (event instanceof GenericChannelModeEvent)
+				onGenericChannelMode((GenericChannelModeEvent<T>) event);
+			if (event instanceof GenericDCCEvent)
+				onGenericDCC((GenericDCCEvent<T>) event);
+			if (event instanceof GenericMessageEvent)
+				onGenericMessage((GenericMessageEvent<T>) event);
+			if (event instanceof GenericUserEvent)
+				onGenericUser((GenericUserEvent<T>) event);
+			if (event instanceof GenericChannelEvent)
+				onGenericChannel((GenericChannelEvent<T>) event);
+			if (event instanceof GenericChannelUserEvent)
+				onGenericChannelUser((GenericChannelUserEvent<T>) event);
+		}
+	}
+}
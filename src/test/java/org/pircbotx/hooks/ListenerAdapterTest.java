@@ -18,6 +18,7 @@
  */
 package org.pircbotx.hooks;
 
+import com.google.common.util.concurrent.MoreExecutors;
 import java.lang.reflect.Method;
 import java.lang.reflect.Constructor;
 import java.util.HashMap;
@@ -29,7 +30,9 @@ import lombok.EqualsAndHashCode;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.SystemUtils;
 import org.apache.commons.lang3.mutable.MutableBoolean;
+import org.apache.commons.lang3.mutable.MutableInt;
 import org.pircbotx.hooks.events.MessageEvent;
+import org.pircbotx.hooks.types.GenericChannelEvent;
 import org.pircbotx.hooks.types.GenericMessageEvent;
 import org.testng.annotations.Test;
 import static org.testng.Assert.*;
@@ -41,6 +44,7 @@ import org.pircbotx.PircBotX;
 import org.pircbotx.TestUtils;
 import org.pircbotx.hooks.events.WhoisEvent;
 import org.pircbotx.hooks.managers.GenericListenerManager;
+import org.pircbotx.hooks.managers.ThreadedListenerManager;
 import org.pircbotx.hooks.types.GenericEvent;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.DataProvider;
@@ -116,6 +120,95 @@ public class ListenerAdapterTest {
 		customListener.onEvent(customEvent);
 	}
 
+	@Test(description = "Verify only overridden methods are in the dispatch table")
+	public void dispatchTableTest() throws Exception {
+		ListenerAdapter messageListener = new ListenerAdapter() {
+			@Override
+			public void onMessage(MessageEvent event) throws Exception {
+			}
+
+			@Override
+			public void onGenericChannel(GenericChannelEvent event) throws Exception {
+			}
+		};
+		int[] handlers = ListenerAdapter.getHandlers(messageListener.getClass(), MessageEvent.class);
+		assertEquals(handlers.length, 2, "Dispatch table should only have onMessage and onGenericChannel");
+		assertEquals(ListenerAdapter.HANDLED_TYPES[handlers[0]], MessageEvent.class);
+		assertEquals(ListenerAdapter.HANDLED_TYPES[handlers[1]], GenericChannelEvent.class);
+		assertEquals(ListenerAdapter.getHandlers(messageListener.getClass(), WhoisEvent.class).length, 0,
+				"Dispatch table has methods for event without overridden methods");
+	}
+
+	@DataProvider
+	public Object[][] handledTypesDataProvider() {
+		Object[][] params = new Object[ListenerAdapter.HANDLED_TYPES.length][];
+		for (int i = 0; i < params.length; i++)
+			params[i] = new Object[]{ListenerAdapter.HANDLED_TYPES[i]};
+		return params;
+	}
+
+	@Test(dataProvider = "handledTypesDataProvider", description = "Verify the onEvent switch calls the method of each HANDLED_TYPES entry")
+	public void handledTypesSwitchTest(Class<?> handledType) throws Exception {
+		Method eventMethod = ListenerAdapter.class.getDeclaredMethod(ListenerAdapter.getMethodName(handledType), handledType);
+		//Spies override every method, so every matching handler is called
+		ListenerAdapter listener = spy(new ListenerAdapter() {
+		});
+		Event event = handledType.isInterface()
+				? mock(Event.class, withSettings().extraInterfaces(handledType))
+				: (Event) mock(handledType);
+		listener.onEvent(event);
+		eventMethod.invoke(verify(listener), event);
+	}
+
+	@Test(description = "Verify only events with overridden methods are wanted")
+	public void interestTest() throws Exception {
+		ListenerAdapter messageListener = new ListenerAdapter() {
+			@Override
+			public void onGenericMessage(GenericMessageEvent event) throws Exception {
+			}
+		};
+		assertTrue(ListenerInterest.isInterested(messageListener, MessageEvent.class), "Generic method not detected");
+		assertFalse(ListenerInterest.isInterested(messageListener, WhoisEvent.class), "Wants event with no overridden method");
+
+		ListenerAdapter allListener = new ListenerAdapter() {
+			@Override
+			public void onEvent(Event event) throws Exception {
+				super.onEvent(event);
+			}
+		};
+		assertTrue(ListenerInterest.isInterested(allListener, WhoisEvent.class), "Custom onEvent should want everything");
+
+		GenericListenerManager listenerManager = new GenericListenerManager();
+		listenerManager.addListener(messageListener);
+		assertTrue(listenerManager.hasListeners(MessageEvent.class));
+		assertFalse(listenerManager.hasListeners(WhoisEvent.class));
+	}
+
+	@Test(description = "Verify ThreadedListenerManager only runs interested listeners")
+	public void threadedRouteTest() throws Exception {
+		final MutableInt messageCount = new MutableInt(0);
+		ListenerAdapter messageListener = new ListenerAdapter() {
+			@Override
+			public void onMessage(MessageEvent event) throws Exception {
+				messageCount.increment();
+			}
+		};
+		ThreadedListenerManager listenerManager = new ThreadedListenerManager(MoreExecutors.sameThreadExecutor());
+		assertTrue(listenerManager.addListener(messageListener), "Listener not added");
+		assertFalse(listenerManager.addListener(messageListener), "Listener added twice");
+		assertTrue(listenerManager.hasListeners(MessageEvent.class));
+		assertFalse(listenerManager.hasListeners(WhoisEvent.class));
+
+		MessageEvent event = new MessageEvent(bot, bot.getUserChannelDao().getChannel("#aChannel"), bot.getUserChannelDao().getUser("AUser"), "Some message");
+		listenerManager.dispatchEvent(event);
+		assertEquals(messageCount.intValue(), 1, "Listener not run for interested event");
+
+		assertTrue(listenerManager.removeListener(messageListener), "Listener not removed");
+		assertFalse(listenerManager.hasListeners(MessageEvent.class), "Removed listener still interested");
+		listenerManager.dispatchEvent(event);
+		assertEquals(messageCount.intValue(), 1, "Removed listener was run");
+	}
+
 	@DataProvider
 	public static Object[][] onEventTestDataProvider() {
 		//Map events to methods
@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2010-2013 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of PircBotX.
+ *
+ * PircBotX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PircBotX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pircbotx.hooks.managers;
+
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Multimaps;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.pircbotx.Channel;
+import org.pircbotx.PircBotX;
+import org.pircbotx.TestUtils;
+import org.pircbotx.User;
+import org.pircbotx.hooks.ListenerAdapter;
+import org.pircbotx.hooks.events.MessageEvent;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+/**
+ *
+ * @author Leon Blakey <lord.quackstar at gmail.com>
+ */
+public class OrderedListenerManagerTest {
+	@Test(description = "Verify events of the same channel are run in order")
+	public void channelOrderTest() throws Exception {
+		PircBotX bot = new PircBotX(TestUtils.generateConfigurationBuilder().buildConfiguration());
+		final ListMultimap<String, Integer> received = Multimaps.synchronizedListMultimap(LinkedListMultimap.<String, Integer>create());
+		OrderedListenerManager<PircBotX> listenerManager = new OrderedListenerManager<PircBotX>(4);
+		listenerManager.addListener(new ListenerAdapter<PircBotX>() {
+			@Override
+			public void onMessage(MessageEvent<PircBotX> event) throws Exception {
+				//Give later events a chance to overtake this one
+				if (event.getMessage().endsWith("0"))
+					Thread.sleep(5);
+				received.put(event.getChannel().getName(), Integer.valueOf(event.getMessage()));
+			}
+		});
+
+		User aUser = bot.getUserChannelDao().getUser("AUser");
+		Channel aChannel = bot.getUserChannelDao().getChannel("#aChannel");
+		Channel bChannel = bot.getUserChannelDao().getChannel("#bChannel");
+		for (int i = 0; i < 100; i++) {
+			listenerManager.dispatchEvent(new MessageEvent<PircBotX>(bot, aChannel, aUser, String.valueOf(i)));
+			listenerManager.dispatchEvent(new MessageEvent<PircBotX>(bot, bChannel, aUser, String.valueOf(i)));
+		}
+		listenerManager.shutdown(bot);
+		assertTrue(listenerManager.shutdown().awaitTermination(10, TimeUnit.SECONDS), "Pool didn't terminate");
+
+		for (String curChannel : new String[]{"#aChannel", "#bChannel"}) {
+			List<Integer> channelMessages = received.get(curChannel);
+			assertEquals(channelMessages.size(), 100, "Missing messages in " + curChannel);
+			for (int i = 0; i < 100; i++)
+				assertEquals(channelMessages.get(i).intValue(), i, "Messages in " + curChannel + " out of order");
+		}
+		assertTrue(listenerManager.keyQueues.isEmpty(), "Key queues not removed after running");
+	}
+
+	@Test(description = "Verify events rejected by the pool don't leave their key queued forever")
+	public void rejectedTest() throws Exception {
+		PircBotX bot = new PircBotX(TestUtils.generateConfigurationBuilder().buildConfiguration());
+		final CountDownLatch running = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		OrderedListenerManager<PircBotX> listenerManager = new OrderedListenerManager<PircBotX>(pool, OrderedListenerManager.DEFAULT_KEY);
+		listenerManager.addListener(new ListenerAdapter<PircBotX>() {
+			@Override
+			public void onMessage(MessageEvent<PircBotX> event) throws Exception {
+				running.countDown();
+				release.await();
+			}
+		});
+
+		User aUser = bot.getUserChannelDao().getUser("AUser");
+		Channel aChannel = bot.getUserChannelDao().getChannel("#aChannel");
+		listenerManager.dispatchEvent(new MessageEvent<PircBotX>(bot, aChannel, aUser, "0"));
+		assertTrue(running.await(10, TimeUnit.SECONDS), "First event never ran");
+		//Waits for the first event, then the pool rejects it
+		listenerManager.dispatchEvent(new MessageEvent<PircBotX>(bot, aChannel, aUser, "1"));
+		pool.shutdown();
+		release.countDown();
+		assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS), "Pool didn't terminate");
+		listenerManager.shutdown(bot);
+		assertTrue(listenerManager.keyQueues.isEmpty(), "Key not removed after rejected event");
+
+		try {
+			listenerManager.dispatchEvent(new MessageEvent<PircBotX>(bot, aChannel, aUser, "2"));
+			fail("Shutdown pool accepted event");
+		} catch (RejectedExecutionException e) {
+			//Expected
+		}
+		assertTrue(listenerManager.keyQueues.isEmpty(), "Key not removed after rejected event");
+		assertTrue(listenerManager.runningListeners.get(bot).isEmpty(), "Rejected events still registered");
+	}
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright (C) 2010-2013 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of PircBotX.
+ *
+ * PircBotX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PircBotX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pircbotx.output;
+
+import java.nio.charset.Charset;
+import java.util.List;
+import org.apache.commons.lang3.StringUtils;
+import org.pircbotx.Colors;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+/**
+ * Test splitting long messages with {@link LineSplitter}
+ * @author Leon Blakey <lord.quackstar at gmail.com>
+ */
+public class LineSplitterTest {
+	protected final LineSplitter splitter = new LineSplitter(Charset.forName("UTF-8"));
+
+	@Test(description = "Verify ASCII messages are packed into full parts")
+	public void asciiTest() {
+		List<String> parts = splitter.split("abcdefghij", 4);
+		assertEquals(parts.size(), 3);
+		assertEquals(parts.get(0), "abcd");
+		assertEquals(parts.get(1), "efgh");
+		assertEquals(parts.get(2), "ij");
+
+		assertEquals(splitter.split("abc", 4).size(), 1);
+		assertEquals(splitter.split("", 4).get(0), "");
+	}
+
+	@Test(description = "Verify multi-byte characters are measured in bytes and never broken")
+	public void multiByteTest() {
+		//2 bytes each in UTF-8
+		String message = StringUtils.repeat("\u00e9", 10);
+		assertEquals(splitter.getByteLength(message), 20);
+		List<String> parts = splitter.split(message, 5);
+		for (String curPart : parts)
+			assertTrue(splitter.getByteLength(curPart) <= 5, "Part too long: " + curPart);
+		assertEquals(parts.size(), 5);
+		assertEquals(StringUtils.join(parts, ""), message);
+
+		//Surrogate pairs are 4 bytes and must stay together
+		String pairs = StringUtils.repeat("a\ud83d\ude00", 4);
+		assertEquals(splitter.getByteLength(pairs), 20);
+		parts = splitter.split(pairs, 6);
+		for (String curPart : parts) {
+			assertFalse(Character.isHighSurrogate(curPart.charAt(curPart.length() - 1)), "Surrogate pair broken");
+			assertTrue(splitter.getByteLength(curPart) <= 6, "Part too long: " + curPart);
+		}
+		assertEquals(StringUtils.join(parts, ""), pairs);
+	}
+
+	@Test(description = "Verify color codes are never broken")
+	public void colorTest() {
+		String message = "abc" + Colors.RED + ",12def";
+		List<String> parts = splitter.split(message, 5);
+		assertEquals(parts.get(0), "abc");
+		assertTrue(parts.get(1).startsWith(Colors.RED + ",12"), "Color code broken: " + parts);
+		assertEquals(StringUtils.join(parts, ""), message);
+	}
+
+	@Test(description = "Verify messages are split after a space near the end of a part")
+	public void wordBoundaryTest() {
+		List<String> parts = splitter.split("hello there wonderful world", 12);
+		assertEquals(parts.get(0), "hello there ");
+		assertEquals(parts.get(1), "wonderful ");
+		assertEquals(parts.get(2), "world");
+
+		//Spaces too early in the part waste too much of the line
+		parts = splitter.split("a bcdefghijklmnop", 8);
+		assertEquals(parts.get(0), "a bcdefg");
+	}
+}
@@ -26,12 +26,14 @@ import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import javax.net.SocketFactory;
 import org.apache.commons.lang3.StringUtils;
 import org.pircbotx.Channel;
@@ -127,9 +129,11 @@ public class OutputTest {
 		//Build a randomly generated seed string
 		Random random = new Random();
 		int botMaxLineLength = bot.getConfiguration().getMaxLineLength();
+		//Leave room for the hostmask the server adds when relaying
+		int maxLineLength = botMaxLineLength - 2 - bot.sendRaw().getRelayPrefixLength();
 		StringBuilder seedStringBuilder = new StringBuilder(128);
 		seedStringBuilder.append(" - ");
-		while ((beginning.length() + "1".length() + seedStringBuilder.length() + ending.length()) < botMaxLineLength - 2)
+		while ((beginning.length() + "1".length() + seedStringBuilder.length() + ending.length()) < maxLineLength)
 			seedStringBuilder.append((char) (random.nextInt(26) + 'a'));
 		String seedString = seedStringBuilder.toString();
 		String[] stringParts = new String[]{
@@ -244,6 +248,51 @@ public class OutputTest {
 		checkOutput("PRIVMSG aUser :" + aString);
 	}
 
+	@Test(description = "Verify messageAll groups targets by TARGMAX")
+	public void sendMessageAllTest() throws Exception {
+		bot.getServerInfo().parse(5, Arrays.asList("PircBotXBot", "TARGMAX=NAMES:1,PRIVMSG:2,ACCEPT:", "are supported by this server"));
+		assertEquals(bot.getServerInfo().getTargetMax("privmsg"), 2);
+		assertEquals(bot.getServerInfo().getTargetMax("ACCEPT"), Integer.MAX_VALUE);
+		assertEquals(bot.getServerInfo().getTargetMax("NOTICE"), 1);
+
+		bot.sendIRC().messageAll(Arrays.asList("#aChannel", "aUser", "#otherChannel"), aString);
+		Iterator<String> outputItr = checkOutput("PRIVMSG #aChannel,aUser :" + aString);
+		assertEquals(tryGetNextLine(outputItr), "PRIVMSG #otherChannel :" + aString);
+		assertFalse(outputItr.hasNext(), "Too many lines sent");
+	}
+
+	@Test(description = "Verify messageAll measures target groups in encoded bytes")
+	public void sendMessageAllBytesTest() throws Exception {
+		//No value means there is no limit
+		bot.getServerInfo().parse(5, Arrays.asList("PircBotXBot", "MAXTARGETS=", "are supported by this server"));
+		assertEquals(bot.getServerInfo().getTargetMax("PRIVMSG"), Integer.MAX_VALUE);
+
+		List<String> targets = new ArrayList<String>();
+		for (int i = 0; i < 20; i++)
+			targets.add("#\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9" + i);
+		bot.sendIRC().messageAll(targets, aString);
+
+		String output = botOut.toString(bot.getConfiguration().getEncoding().name());
+		List<String> outputLines = Arrays.asList(StringUtils.split(output, "\n\r"));
+		int maxLineBytes = bot.sendRaw().getMaxLineBytes();
+		int sentTargets = 0;
+		//Skip the CAP, NICK, and USER lines
+		for (String curLine : outputLines.subList(3, outputLines.size())) {
+			assertTrue(bot.sendRaw().getByteLength(curLine) <= maxLineBytes, "Line too long: " + curLine);
+			assertTrue(curLine.endsWith(" :" + aString), "Text split: " + curLine);
+			sentTargets += StringUtils.split(StringUtils.substringBetween(curLine, "PRIVMSG ", " :"), ',').length;
+		}
+		assertEquals(sentTargets, targets.size(), "Targets missing");
+	}
+
+	@Test(description = "Verify noticeAll sends one line per target without TARGMAX")
+	public void sendNoticeAllTest() throws Exception {
+		bot.sendIRC().noticeAll(Arrays.asList("#aChannel", "aUser"), aString);
+		Iterator<String> outputItr = checkOutput("NOTICE #aChannel :" + aString);
+		assertEquals(tryGetNextLine(outputItr), "NOTICE aUser :" + aString);
+		assertFalse(outputItr.hasNext(), "Too many lines sent");
+	}
+
 	@Test(description = "Verify sendNotice to channel")
 	public void sendNoticeChannelTest() throws Exception {
 		aChannel.send().notice(aString);
@@ -274,6 +323,41 @@ public class OutputTest {
 		checkOutput("QUIT :" + aString);
 	}
 
+	@Test(description = "Verify the outgoing queue is empty after lines are written")
+	public void outgoingQueueTest() throws Exception {
+		OutputRaw outputRaw = bot.sendRaw();
+		outputRaw.rawLine(aString);
+		checkOutput(aString);
+		assertEquals(outputRaw.getOutgoingQueueSize(), 0, "Lines left in queue");
+		assertEquals(outputRaw.getOutgoingQueueBytes(), 0, "Bytes left in queue");
+		assertTrue(outputRaw.getMaxQueueLatency(TimeUnit.NANOSECONDS) >= outputRaw.getAverageQueueLatency(TimeUnit.NANOSECONDS),
+				"Max latency less than average latency");
+	}
+
+	@Test(description = "Verify a QUIT waiting for another writer is written when the bot shuts down")
+	public void quitBeforeShutdownTest() throws Exception {
+		OutputRaw outputRaw = bot.sendRaw();
+		//Pretend another thread is writing so the QUIT is queued
+		outputRaw.writeLock.lock();
+		try {
+			outputRaw.writing = true;
+		} finally {
+			outputRaw.writeLock.unlock();
+		}
+		bot.sendIRC().quitServer(aString);
+		assertEquals(outputRaw.getOutgoingQueueSize(), 1, "QUIT not queued");
+
+		outputRaw.writeLock.lock();
+		try {
+			outputRaw.writing = false;
+		} finally {
+			outputRaw.writeLock.unlock();
+		}
+		bot.shutdown(true);
+		checkOutput("QUIT :" + aString);
+		assertEquals(outputRaw.getOutgoingQueueSize(), 0, "Lines left in queue");
+	}
+
 	/**
 	 * Check the output for one line that equals the expected value.
 	 * @param expected
@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2010-2013 Leon Blakey <lord.quackstar at gmail.com>
+ *
+ * This file is part of PircBotX.
+ *
+ * PircBotX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * PircBotX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PircBotX. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.pircbotx.output;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.pircbotx.PircBotX;
+import org.pircbotx.TestUtils;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+/**
+ * Test the flood control used by {@link OutputRaw}
+ * @author Leon Blakey <lord.quackstar at gmail.com>
+ */
+public class RateLimiterTest {
+	protected static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	@Test(description = "Verify the legacy limiter always waits the full delay")
+	public void fixedDelayTest() {
+		FixedDelayRateLimiter limiter = new FixedDelayRateLimiter(1000);
+		long now = System.nanoTime();
+		assertEquals(limiter.getDelay("PRIVMSG #aChannel :1", now), 0);
+		limiter.lineSent("PRIVMSG #aChannel :1", now);
+		assertEquals(limiter.getDelay("PRIVMSG #aChannel :2", now), SECOND);
+
+		//Being idle doesn't allow more lines
+		now += 10 * SECOND;
+		assertEquals(limiter.getDelay("PRIVMSG #aChannel :2", now), 0);
+		limiter.lineSent("PRIVMSG #aChannel :2", now);
+		assertEquals(limiter.getDelay("PRIVMSG #aChannel :3", now), SECOND);
+	}
+
+	@Test(description = "Verify the token bucket allows bursts then refills")
+	public void tokenBucketTest() {
+		TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(createBot(), 3, 1000);
+		long now = System.nanoTime();
+		for (int i = 0; i < 3; i++) {
+			assertEquals(limiter.getDelay("PRIVMSG #aChannel :" + i, now), 0, "Line " + i + " not sent in burst");
+			limiter.lineSent("PRIVMSG #aChannel :" + i, now);
+		}
+		assertEquals(limiter.getDelay("PRIVMSG #aChannel :3", now), SECOND);
+
+		//Half a token isn't enough
+		now += SECOND / 2;
+		assertEquals(limiter.getDelay("PRIVMSG #aChannel :3", now), SECOND / 2);
+
+		//Bucket never holds more than its capacity
+		now += 100 * SECOND;
+		limiter.getDelay("PRIVMSG #aChannel :3", now);
+		assertEquals(limiter.getTokens(), 3.0);
+	}
+
+	@Test(description = "Verify servers with PENALTY charge more for expensive lines")
+	public void tokenBucketPenaltyTest() {
+		PircBotX bot = createBot();
+		TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(bot, 5, 1000);
+		assertEquals(limiter.getCost("JOIN #aChannel"), 1.0);
+
+		bot.getServerInfo().parse(5, Arrays.asList("PircBotXUser", "PENALTY", "are supported by this server"));
+		assertEquals(limiter.getCost("PRIVMSG #aChannel :Hello"), 1.0);
+		assertEquals(limiter.getCost("join #aChannel"), 2.0);
+		assertEquals(limiter.getCost("PRIVMSG #aChannel :" + createString(TokenBucketRateLimiter.PENALTY_BYTES)), 2.0);
+
+		//Lines more expensive than the capacity are sent with a full bucket
+		String hugeLine = "WHO " + createString(TokenBucketRateLimiter.PENALTY_BYTES * 10);
+		long now = System.nanoTime();
+		assertEquals(limiter.getDelay(hugeLine, now), 0);
+		limiter.lineSent(hugeLine, now);
+		assertTrue(limiter.getTokens() < 0, "Huge line didn't empty bucket");
+	}
+
+	protected static PircBotX createBot() {
+		return new PircBotX(TestUtils.generateConfigurationBuilder().buildConfiguration());
+	}
+
+	protected static String createString(int length) {
+		StringBuilder builder = new StringBuilder(length);
+		for (int i = 0; i < length; i++)
+			builder.append('a');
+		return builder.toString();
+	}
+}